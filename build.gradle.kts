@@ -10,6 +10,15 @@ repositories {
     jcenter()
 }
 
+// JMH benchmarks live in their own source set, run them with `gradle jmh`
+sourceSets {
+    create("jmh") {
+        java.srcDir("src/jmh/java")
+        compileClasspath += sourceSets["main"].output + configurations["runtimeClasspath"]
+        runtimeClasspath += output + compileClasspath
+    }
+}
+
 dependencies {
     // Annotations for better code documentation
     compile("com.intellij:annotations:12.0")
@@ -23,6 +32,10 @@ dependencies {
     //logging
     compile("ch.qos.logback:logback-classic:1.2.3")
 
+    // JMH microbenchmarks
+    "jmhCompile"("org.openjdk.jmh:jmh-core:1.21")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.21")
+
     // JUnit Jupiter test framework
     testCompile("org.junit.jupiter:junit-jupiter-api:5.3.1")
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.3.1")
@@ -36,6 +49,14 @@ tasks {
         maxHeapSize = "128m"
         useJUnitPlatform()
     }
+
+    "jmh"(JavaExec::class) {
+        description = "Runs JMH microbenchmarks, pass a filter with -Pjmh=<regexp>"
+        main = "org.openjdk.jmh.Main"
+        classpath = sourceSets["jmh"].runtimeClasspath
+        maxHeapSize = "128m"
+        args = listOfNotNull(project.findProperty("jmh") as String?)
+    }
 }
 
 application {
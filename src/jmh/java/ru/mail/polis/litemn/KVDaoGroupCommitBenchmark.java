@@ -0,0 +1,80 @@
+package ru.mail.polis.litemn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Concurrent synchronous writes with and without group commit
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class KVDaoGroupCommitBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"1", "64"})
+    private int groupSize;
+
+    @Param({"true", "false"})
+    private boolean sync;
+
+    private Path dir;
+    private KVDaoRocksDB dao;
+    private byte[][] keys;
+    private byte[] record;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("group-commit-benchmark");
+        dao = new KVDaoRocksDB(dir.toFile(), RocksDBConfig.defaults().toBuilder()
+                .sync(sync)
+                .groupCommitSize(groupSize)
+                .build());
+        keys = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = ("key" + i).getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] value = new byte[128];
+        ThreadLocalRandom.current().nextBytes(value);
+        record = KVDaoRocksDB.stamp(KVDaoRocksDB.record(value), System.currentTimeMillis());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public boolean upsertRecord() {
+        return dao.upsertRecord(keys[ThreadLocalRandom.current().nextInt(KEYS)], record);
+    }
+}
@@ -0,0 +1,90 @@
+package ru.mail.polis.litemn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Read path of {@link KVDaoRocksDB}, run with {@code -prof gc} to see bytes allocated per read
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KVDaoReadBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"16", "1024"})
+    private int size;
+
+    private Path dir;
+    private KVDaoRocksDB dao;
+    private byte[][] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("read-benchmark");
+        dao = new KVDaoRocksDB(dir.toFile());
+        keys = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            byte[] value = new byte[size];
+            ThreadLocalRandom.current().nextBytes(value);
+            dao.upsert(keys[i], value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private byte[] key() {
+        return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        return dao.get(key());
+    }
+
+    @Benchmark
+    public StorageValue getInternal() throws IOException {
+        return dao.getInternal(key());
+    }
+
+    @Benchmark
+    public byte[] getInternalEncoded() throws IOException {
+        return StorageValueCodec.encode(dao.getInternal(key()));
+    }
+
+    @Benchmark
+    public byte[] getEncoded() throws IOException {
+        return dao.getEncoded(key(), false);
+    }
+}
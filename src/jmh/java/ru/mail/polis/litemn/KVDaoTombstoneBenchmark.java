@@ -0,0 +1,109 @@
+package ru.mail.polis.litemn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Point reads over a delete heavy data set, 90% of keys are removed. With {@code purge} the tombstones
+ * are swept and compacted away before the measurement. The space used before and after is printed
+ * by the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KVDaoTombstoneBenchmark {
+    private static final int KEYS = 200_000;
+    private static final int VALUE_SIZE = 100;
+
+    @Param({"false", "true"})
+    private boolean purge;
+
+    private Path dir;
+    private KVDaoRocksDB dao;
+    private byte[][] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("tombstone-benchmark");
+        // no row cache, so reads go through the LSM tree
+        dao = new KVDaoRocksDB(dir.toFile(), RocksDBConfig.defaults().toBuilder()
+                .rowCacheSize(0)
+                .writeBufferSize(4 * 1024 * 1024)
+                .tombstoneGraceSeconds(0)
+                .tombstoneSweepIntervalSeconds(0)
+                .build());
+        keys = new byte[KEYS][];
+        byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = String.format("key%08d", i).getBytes(StandardCharsets.UTF_8);
+            ThreadLocalRandom.current().nextBytes(value);
+            dao.upsert(keys[i], value);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            if (i % 10 != 0) {
+                dao.remove(keys[i]);
+            }
+        }
+        dao.compact();
+        System.out.println("\nSpace with tombstones " + dao.spaceUsed() + " bytes");
+        if (purge) {
+            long purged = dao.sweepTombstones();
+            dao.compact();
+            System.out.println("Purged " + purged + " tombstones, space " + dao.spaceUsed() + " bytes");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Object get() throws IOException {
+        try {
+            return dao.get(keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+        } catch (NoSuchElementException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public int scan() {
+        int[] live = {0};
+        dao.scan((key, record) -> {
+            if (!KVDaoRocksDB.isRemoved(record)) {
+                live[0]++;
+            }
+            return true;
+        });
+        return live[0];
+    }
+}
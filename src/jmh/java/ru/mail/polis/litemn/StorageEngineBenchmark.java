@@ -0,0 +1,102 @@
+package ru.mail.polis.litemn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link KVDaoLsm} against {@link KVDaoRocksDB} on compacted data, so reads go to the tables
+ * rather than to the memtables
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageEngineBenchmark {
+    private static final int KEYS = 32 * 1024;
+
+    @Param({"rocksdb", "lsm"})
+    private String engine;
+
+    @Param({"16", "1024"})
+    private int size;
+
+    private Path dir;
+    private InternalKVDao dao;
+    private byte[][] keys;
+    private byte[][] missing;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("engine-benchmark");
+        keys = new byte[KEYS][];
+        missing = new byte[KEYS][];
+        value = new byte[size];
+        ThreadLocalRandom.current().nextBytes(value);
+        if ("lsm".equals(engine)) {
+            KVDaoLsm lsm = new KVDaoLsm(dir.toFile());
+            fill(lsm);
+            lsm.compact();
+            dao = lsm;
+        } else {
+            KVDaoRocksDB rocksDB = new KVDaoRocksDB(dir.toFile());
+            fill(rocksDB);
+            rocksDB.compact();
+            dao = rocksDB;
+        }
+    }
+
+    private void fill(InternalKVDao dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            missing[i] = ("missing" + i).getBytes(StandardCharsets.UTF_8);
+            dao.upsert(keys[i], value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        return dao.get(keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public StorageValue getMissing() throws IOException {
+        return dao.getInternal(missing[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public void upsert() throws IOException {
+        dao.upsert(keys[ThreadLocalRandom.current().nextInt(KEYS)], value);
+    }
+}
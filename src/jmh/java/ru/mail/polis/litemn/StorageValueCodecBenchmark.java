@@ -0,0 +1,68 @@
+package ru.mail.polis.litemn;
+
+import one.nio.serial.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a replica answer: one-nio serialization against {@link StorageValueCodec}.
+ * Trial setup prints the encoded sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageValueCodecBenchmark {
+    @Param({"16", "1024", "65536"})
+    private int size;
+
+    private StorageValue value;
+    private byte[] serialized;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] payload = new byte[size];
+        ThreadLocalRandom.current().nextBytes(payload);
+        value = StorageValue.exists(payload, System.currentTimeMillis());
+        serialized = Serializer.serialize(value);
+        encoded = StorageValueCodec.encode(value);
+        System.out.printf("%npayload=%d serialized=%d encoded=%d%n", size, serialized.length, encoded.length);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return Serializer.serialize(value);
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        return Serializer.deserialize(serialized);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return StorageValueCodec.encode(value);
+    }
+
+    @Benchmark
+    public StorageValue decode() throws IOException {
+        return StorageValueCodec.decode(encoded);
+    }
+}
@@ -0,0 +1,90 @@
+package ru.mail.polis.litemn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of vector versioning over the timestamp header: the work a write does to the stored record,
+ * the merge a replica does with a received one and the read of the values with their context.
+ * Trial setup prints the stored sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VersioningBenchmark {
+    @Param({"16", "1024"})
+    private int size;
+
+    @Param({"1", "3"})
+    private int siblings;
+
+    private byte[] payload;
+    private byte[] record;
+    private byte[] stored;
+    private byte[] received;
+    private long[] context;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        payload = new byte[size];
+        ThreadLocalRandom.current().nextBytes(payload);
+        // concurrent writes coordinated by different replicas
+        Siblings merged = Siblings.empty();
+        for (int i = 0; i < siblings; i++) {
+            merged = merged.sync(Siblings.empty().update(new long[0], i, payload));
+        }
+        stored = merged.encode();
+        context = merged.context();
+        received = merged.update(context, 0, payload).encode();
+        record = KVDaoRocksDB.stamp(KVDaoRocksDB.record(payload), System.currentTimeMillis());
+        // the last write wins, so a timestamp record keeps a single value
+        System.out.printf("%npayload=%d siblings=%d timestamp=%d vector=%d%n",
+                size, siblings, record.length, KVDaoRocksDB.HEADER_LENGTH + stored.length);
+    }
+
+    @Benchmark
+    public byte[] timestampWrite() {
+        return KVDaoRocksDB.stamp(KVDaoRocksDB.record(payload), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public byte[] vectorWrite() throws IOException {
+        return Siblings.decode(stored).update(context, 0, payload).encode();
+    }
+
+    @Benchmark
+    public byte[] vectorMerge() throws IOException {
+        return Siblings.decode(stored).sync(Siblings.decode(received)).encode();
+    }
+
+    @Benchmark
+    public byte[] timestampRead() {
+        return Arrays.copyOfRange(record, KVDaoRocksDB.HEADER_LENGTH, record.length);
+    }
+
+    @Benchmark
+    public List<byte[]> vectorRead() throws IOException {
+        Siblings decoded = Siblings.decode(stored);
+        Siblings.encodeContext(decoded.context());
+        return decoded.live();
+    }
+}
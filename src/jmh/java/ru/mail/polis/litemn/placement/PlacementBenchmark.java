@@ -0,0 +1,89 @@
+package ru.mail.polis.litemn.placement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-key lookup cost of placement strategies.
+ * Trial setup prints how evenly {@link #BALANCE_KEYS} keys are spread across the simulated nodes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlacementBenchmark {
+    private static final int KEYS = 1 << 12;
+    private static final int BALANCE_KEYS = 100_000;
+
+    @Param({"3", "8", "16", "64"})
+    private int nodes;
+
+    @Param({"ring", "rendezvous"})
+    private String strategy;
+
+    @Param({"1", "3"})
+    private int from;
+
+    private PlacementStrategy placement;
+    private byte[][] keys;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<String> topology = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            topology.add("http://node" + i + ":8080");
+        }
+        placement = "ring".equals(strategy)
+                ? new ConsistentHashRing(topology, ConsistentHashRing.DEFAULT_VNODES)
+                : new RendezvousPlacement(topology);
+        keys = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = ("key" + i).getBytes(StandardCharsets.UTF_8);
+        }
+        printBalance();
+    }
+
+    private void printBalance() {
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < BALANCE_KEYS; i++) {
+            for (String node : placement.replicas(("balance" + i).getBytes(StandardCharsets.UTF_8), from)) {
+                owned.merge(node, 1, Integer::sum);
+            }
+        }
+        double mean = (double) BALANCE_KEYS * from / nodes;
+        double variance = 0;
+        int max = 0;
+        for (String node : placement.getNodes()) {
+            int count = owned.getOrDefault(node, 0);
+            variance += (count - mean) * (count - mean) / nodes;
+            max = Math.max(max, count);
+        }
+        System.out.printf("%n%s nodes=%d from=%d: max/mean=%.3f stddev/mean=%.3f%n",
+                strategy, nodes, from, max / mean, Math.sqrt(variance) / mean);
+    }
+
+    @Benchmark
+    public List<String> replicas() {
+        return placement.replicas(keys[next++ & (KEYS - 1)], Math.min(from, nodes));
+    }
+}
@@ -17,7 +17,11 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.litemn.KVDaoLsm;
+import ru.mail.polis.litemn.KVDaoOffHeap;
 import ru.mail.polis.litemn.KVDaoRocksDB;
+import ru.mail.polis.litemn.LsmConfig;
+import ru.mail.polis.litemn.RocksDBConfig;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,6 +33,7 @@ import java.io.IOException;
  */
 final class KVDaoFactory {
     private static final long MAX_HEAP = 128 * 1024 * 1024;
+    private static final String STORAGE_PROPERTY = "litemn.storage";
 
     private KVDaoFactory() {
         // Not instantiatable
@@ -36,6 +41,11 @@ final class KVDaoFactory {
 
     /**
      * Construct a {@link KVDao} instance.
+     * Storage is chosen by {@code litemn.storage}, {@code rocksdb} by default, {@code lsm} for the storage
+     * written in Java, see {@link KVDaoLsm}, or {@code offheap} to keep the data in memory up to
+     * {@code litemn.offheap.capacity}, see {@link KVDaoOffHeap}.
+     * RocksDB is tuned by {@code litemn.rocksdb.*} system properties, see {@link RocksDBConfig},
+     * and the LSM storage by {@code litemn.lsm.*}, see {@link LsmConfig}.
      *
      * @param data local disk folder to persist the data to
      * @return a storage instance
@@ -54,6 +64,16 @@ final class KVDaoFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new KVDaoRocksDB(data);
+        String storage = System.getProperty(STORAGE_PROPERTY, "rocksdb");
+        switch (storage) {
+            case "rocksdb":
+                return new KVDaoRocksDB(data, RocksDBConfig.fromProperties(System.getProperties()));
+            case "lsm":
+                return new KVDaoLsm(data, LsmConfig.fromProperties(System.getProperties()));
+            case "offheap":
+                return KVDaoOffHeap.fromProperties(System.getProperties());
+            default:
+                throw new IllegalArgumentException("Storage must be rocksdb, lsm or offheap, got " + storage);
+        }
     }
 }
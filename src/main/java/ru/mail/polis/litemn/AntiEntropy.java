@@ -0,0 +1,268 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.litemn.command.HintsCommand;
+import ru.mail.polis.litemn.command.Peer;
+import ru.mail.polis.litemn.command.PutCommand;
+import ru.mail.polis.litemn.command.TreeCommand;
+import ru.mail.polis.litemn.placement.PlacementStrategy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reconciles replicas which diverged in spite of hints, e.g. after a lost hint or a disk swap.
+ * <p>
+ * A round fetches from every peer its {@link MerkleTree} of the keys both nodes replicate and
+ * compares it with the tree this node built in the previous round. Then one scan of the storage
+ * builds fresh trees for all peers and pushes the records of the buckets that differed. The peer
+ * applies only records newer than its own, and pushes the records this node misses in its own
+ * round, so replicas converge to the newest record of each key.
+ * <p>
+ * The scan and the pushes are throttled by bytes per second and run on a thread of their own,
+ * so repair never competes with foreground requests for executor threads.
+ */
+final class AntiEntropy {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AntiEntropy.class);
+
+    private final InternalKVDao dao;
+    private final PlacementStrategy placement;
+    private final String me;
+    private final Map<String, Peer> peers;
+    private final int from;
+    private final int depth;
+    private final long scanRate;
+    private final long pushRate;
+    private final int batchSize;
+    private final Map<String, MerkleTree> trees = new ConcurrentHashMap<>();
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder buckets = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Records of the differing buckets sent to a peer in batches within {@link Frames#MAX_BATCH_BYTES},
+     * a record too large for a batch is sent alone
+     */
+    private final class Push {
+        private final Peer peer;
+        private final Throttle throttle;
+        private final List<byte[]> frames = new ArrayList<>();
+        private long size;
+        private boolean failed;
+
+        private Push(@NotNull Peer peer, @NotNull Throttle throttle) {
+            this.peer = peer;
+            this.throttle = throttle;
+        }
+
+        private void add(@NotNull byte[] key, @NotNull byte[] record) throws InterruptedException {
+            if (failed) {
+                return;
+            }
+            int length = 2 * Integer.BYTES + key.length + record.length;
+            if (size + Integer.BYTES * frames.size() + length > Frames.MAX_BATCH_BYTES) {
+                flush();
+            }
+            if (length > Frames.MAX_BATCH_BYTES) {
+                push(key, record);
+                return;
+            }
+            frames.add(key);
+            frames.add(record);
+            size += key.length + record.length;
+            if (frames.size() >= 2 * batchSize) {
+                flush();
+            }
+        }
+
+        private void push(@NotNull byte[] key, @NotNull byte[] record) throws InterruptedException {
+            if (failed) {
+                return;
+            }
+            throttle.acquire(key.length + record.length);
+            String id = new String(key, StandardCharsets.UTF_8);
+            if (new PutCommand(peer, id, record, true).call()) {
+                records.increment();
+                bytes.add(key.length + record.length);
+            } else {
+                failed = true;
+            }
+        }
+
+        private void flush() throws InterruptedException {
+            if (failed || frames.isEmpty()) {
+                return;
+            }
+            throttle.acquire(size);
+            int count = frames.size() / 2;
+            if (new HintsCommand(peer, count, Frames.encode(frames)).call()) {
+                records.add(count);
+                bytes.add(size);
+            } else {
+                // the rest is pushed in the next round
+                failed = true;
+            }
+            frames.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @param from replicas count the shared keys are computed for
+     */
+    AntiEntropy(@NotNull InternalKVDao dao,
+                @NotNull PlacementStrategy placement,
+                @NotNull String me,
+                @NotNull Map<String, Peer> peers,
+                int from,
+                int depth,
+                long scanRate,
+                long pushRate,
+                int batchSize) {
+        if (batchSize <= 0 || depth < 0 || depth > MerkleTree.MAX_DEPTH) {
+            throw new IllegalArgumentException("Batch size must be positive and depth up to " + MerkleTree.MAX_DEPTH);
+        }
+        this.dao = dao;
+        this.placement = placement;
+        this.me = me;
+        this.peers = peers;
+        this.from = from;
+        this.depth = depth;
+        this.scanRate = scanRate;
+        this.pushRate = pushRate;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return tree of the keys shared with the host built by the last completed round
+     */
+    @Nullable
+    MerkleTree tree(@NotNull String host) {
+        return trees.get(host);
+    }
+
+    /**
+     * Runs a round, it stops early if the thread is interrupted
+     */
+    void repair() {
+        try {
+            Map<String, BitSet> differing = compare();
+            Map<String, MerkleTree> built = scan(differing);
+            if (built != null) {
+                trees.putAll(built);
+                rounds.increment();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Repair round failed", e);
+        }
+    }
+
+    /**
+     * @return buckets that differ per peer, peers in sync or unavailable are omitted
+     */
+    @NotNull
+    private Map<String, BitSet> compare() {
+        Map<String, BitSet> differing = new HashMap<>();
+        peers.forEach((host, peer) -> {
+            MerkleTree mine = trees.get(host);
+            if (mine == null || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            byte[] theirs = new TreeCommand(peer, me, mine.root()).call();
+            if (theirs == null || TreeCommand.isSame(theirs)) {
+                return;
+            }
+            BitSet diff;
+            try {
+                diff = mine.diff(MerkleTree.fromBytes(theirs));
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("Wrong tree of " + host, e);
+                return;
+            }
+            LOGGER.debug("{} buckets differ from {}", diff.cardinality(), host);
+            buckets.add(diff.cardinality());
+            differing.put(host, diff);
+        });
+        return differing;
+    }
+
+    /**
+     * Builds fresh trees and pushes records of the differing buckets within a single scan
+     *
+     * @return trees per peer or null if the scan was interrupted
+     */
+    @Nullable
+    private Map<String, MerkleTree> scan(@NotNull Map<String, BitSet> differing) {
+        Map<String, MerkleTree> built = new HashMap<>();
+        for (String host : peers.keySet()) {
+            built.put(host, new MerkleTree(depth));
+        }
+        Throttle scanThrottle = new Throttle(scanRate);
+        Throttle pushThrottle = new Throttle(pushRate);
+        Map<String, Push> pushes = new HashMap<>();
+        differing.keySet().forEach(host -> pushes.put(host, new Push(peers.get(host), pushThrottle)));
+        boolean[] completed = {true};
+        dao.scan((key, record) -> {
+            try {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                scanThrottle.acquire(key.length + record.length);
+                // chunked values can't be pushed as records, they are left to reads and hints
+                if (KVDaoRocksDB.isChunked(record)) {
+                    return true;
+                }
+                List<String> replicas = placement.replicas(key, from);
+                if (!replicas.contains(me)) {
+                    return true;
+                }
+                int bucket = MerkleTree.bucket(key, depth);
+                for (String host : replicas) {
+                    if (host.equals(me)) {
+                        continue;
+                    }
+                    built.get(host).add(key, record);
+                    BitSet diff = differing.get(host);
+                    if (diff != null && diff.get(bucket)) {
+                        pushes.get(host).add(key, record);
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completed[0] = false;
+                return false;
+            }
+        });
+        try {
+            for (Push push : pushes.values()) {
+                push.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (!completed[0]) {
+            return null;
+        }
+        built.values().forEach(MerkleTree::seal);
+        return built;
+    }
+
+    void appendMetrics(@NotNull StringBuilder metrics) {
+        metrics.append("repair.rounds ").append(rounds.sum()).append('\n')
+                .append("repair.buckets.differing ").append(buckets.sum()).append('\n')
+                .append("repair.records.pushed ").append(records.sum()).append('\n')
+                .append("repair.bytes.pushed ").append(bytes.sum()).append('\n');
+    }
+}
@@ -0,0 +1,107 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Per-key quorum of a batch read or write. Every key is decided independently as soon as {@code ack}
+ * of its replicas answered or it became impossible, the future completes when all keys are decided.
+ */
+class BatchQuorum {
+    private final CompletableFuture<BatchQuorum> future = new CompletableFuture<>();
+    private final int ack;
+    private final StorageValue[] newest;
+    private final int[] successes;
+    private final int[] pending;
+    private final boolean[] decided;
+    private int undecided;
+
+    /**
+     * @param replicas replicas count of every key
+     */
+    BatchQuorum(@NotNull int[] replicas, int ack) {
+        this.ack = ack;
+        this.newest = new StorageValue[replicas.length];
+        this.successes = new int[replicas.length];
+        this.pending = replicas.clone();
+        this.decided = new boolean[replicas.length];
+        this.undecided = replicas.length;
+        for (int i = 0; i < replicas.length; i++) {
+            decide(i);
+        }
+        complete();
+    }
+
+    void onResult(int key, @NotNull StorageValue value) {
+        synchronized (this) {
+            if (decided[key]) {
+                return;
+            }
+            pending[key]--;
+            if (value.getState() != StorageValue.State.ERROR) {
+                successes[key]++;
+                if (value.getState() != StorageValue.State.ABSENT
+                        && (newest[key] == null || value.getTime() > newest[key].getTime())) {
+                    newest[key] = value;
+                }
+            }
+            decide(key);
+        }
+        complete();
+    }
+
+    /**
+     * Acknowledged write of the key
+     */
+    void onSuccess(int key) {
+        onResult(key, StorageValue.absent());
+    }
+
+    void onFailure(int key) {
+        synchronized (this) {
+            if (decided[key]) {
+                return;
+            }
+            pending[key]--;
+            decide(key);
+        }
+        complete();
+    }
+
+    private void decide(int key) {
+        if (!decided[key] && (successes[key] >= ack || successes[key] + pending[key] < ack)) {
+            decided[key] = true;
+            undecided--;
+        }
+    }
+
+    private void complete() {
+        boolean done;
+        synchronized (this) {
+            done = undecided == 0;
+        }
+        if (done) {
+            future.complete(this);
+        }
+    }
+
+    @NotNull
+    CompletableFuture<BatchQuorum> getFuture() {
+        return future;
+    }
+
+    synchronized boolean isSucceeded(int key) {
+        return successes[key] >= ack;
+    }
+
+    /**
+     * @return newest value of the key, absent if no replica has it, null if not enough replicas answered
+     */
+    synchronized StorageValue getResult(int key) {
+        if (successes[key] < ack) {
+            return null;
+        }
+        return newest[key] == null ? StorageValue.absent() : newest[key];
+    }
+}
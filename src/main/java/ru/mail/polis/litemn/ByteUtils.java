@@ -7,14 +7,46 @@ class ByteUtils {
     private ByteUtils() {
     }
 
-    static long getLong(byte[] bytes) {
-        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-        buffer.put(bytes);
-        buffer.flip();
-        return buffer.getLong();
+    /**
+     * Reads a big-endian long in place
+     */
+    static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + Long.BYTES; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = offset + Long.BYTES - 1; i >= offset; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static void putInt(byte[] bytes, int offset, int value) {
+        for (int i = offset + Integer.BYTES - 1; i >= offset; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
     }
 
     static byte[] getBytes(long value) {
         return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
     }
+
+    /**
+     * Lexicographic comparison of unsigned bytes, the order of RocksDB default comparator
+     */
+    static int compare(byte[] left, byte[] right) {
+        int length = Math.min(left.length, right.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (left[i] & 0xFF) - (right[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return left.length - right.length;
+    }
 }
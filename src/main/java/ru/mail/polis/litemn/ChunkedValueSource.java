@@ -0,0 +1,67 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Snapshot;
+
+import java.io.IOException;
+
+/**
+ * Reads chunks of a large value one by one from a snapshot, so an overwrite can't remove them midway
+ */
+class ChunkedValueSource implements ValueSource {
+    private final RocksDB db;
+    private final ColumnFamilyHandle chunks;
+    private final Snapshot snapshot;
+    private final ReadOptions options;
+    private final long upload;
+    private final long length;
+    private long read;
+    private int index;
+
+    ChunkedValueSource(@NotNull RocksDB db,
+                       @NotNull ColumnFamilyHandle chunks,
+                       @NotNull Snapshot snapshot,
+                       long upload,
+                       long length) {
+        this.db = db;
+        this.chunks = chunks;
+        this.snapshot = snapshot;
+        this.options = new ReadOptions().setSnapshot(snapshot);
+        this.upload = upload;
+        this.length = length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Nullable
+    @Override
+    public byte[] next() throws IOException {
+        if (read == length) {
+            return null;
+        }
+        try {
+            byte[] chunk = db.get(chunks, options, KVDaoRocksDB.chunkKey(upload, ++index));
+            if (chunk == null) {
+                throw new IOException("Chunk " + index + " of upload " + upload + " is missing");
+            }
+            read += chunk.length;
+            return chunk;
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        options.close();
+        db.releaseSnapshot(snapshot);
+    }
+}
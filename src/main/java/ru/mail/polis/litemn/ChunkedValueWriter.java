@@ -0,0 +1,118 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Writes a large value as fixed size chunks while its bytes arrive, only one chunk is buffered on heap.
+ * The value becomes visible on {@link #commit()} which writes the manifest and the last chunk atomically.
+ */
+class ChunkedValueWriter implements ValueWriter {
+    private final RocksDB db;
+    private final ColumnFamilyHandle chunks;
+    private final RowCache cache;
+    private final StampedLock writes;
+    private final byte[] key;
+    private final long upload;
+    private final long length;
+    private final long time;
+    private final byte[] buffer;
+    private int buffered;
+    private int index;
+    private long written;
+
+    ChunkedValueWriter(@NotNull RocksDB db,
+                       @NotNull ColumnFamilyHandle chunks,
+                       @NotNull RowCache cache,
+                       @NotNull StampedLock writes,
+                       @NotNull byte[] key,
+                       long upload,
+                       long length,
+                       long time) throws IOException {
+        this.db = db;
+        this.chunks = chunks;
+        this.cache = cache;
+        this.writes = writes;
+        this.key = key;
+        this.upload = upload;
+        this.length = length;
+        this.time = time;
+        this.buffer = new byte[(int) Math.min(KVDaoRocksDB.CHUNK_SIZE, length)];
+        try {
+            // header chunk keeps the owner key, orphaned uploads are found by it
+            db.put(chunks, KVDaoRocksDB.chunkKey(upload, 0), key);
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(@NotNull byte[] bytes, int offset, int count) throws IOException {
+        if (written + count > length) {
+            throw new IOException("Value is longer than " + length);
+        }
+        while (count > 0) {
+            int n = Math.min(count, buffer.length - buffered);
+            System.arraycopy(bytes, offset, buffer, buffered, n);
+            buffered += n;
+            written += n;
+            offset += n;
+            count -= n;
+            if (buffered == buffer.length && written < length) {
+                try {
+                    db.put(chunks, KVDaoRocksDB.chunkKey(upload, ++index), buffer);
+                } catch (RocksDBException e) {
+                    throw new IOException(e);
+                }
+                buffered = 0;
+            }
+        }
+    }
+
+    @Override
+    public boolean commit() {
+        if (written != length) {
+            abort();
+            return false;
+        }
+        long stamp = writes.readLock();
+        try (WriteBatch batch = new WriteBatch();
+             WriteOptions options = new WriteOptions()) {
+            if (buffered > 0) {
+                byte[] last = buffered == buffer.length ? buffer : Arrays.copyOf(buffer, buffered);
+                batch.put(chunks, KVDaoRocksDB.chunkKey(upload, ++index), last);
+            }
+            byte[] previous = db.get(key);
+            batch.put(key, KVDaoRocksDB.manifest(time, length, upload));
+            long replaced = KVDaoRocksDB.uploadOf(previous);
+            if (replaced >= 0) {
+                batch.deleteRange(chunks, KVDaoRocksDB.chunkKey(replaced, 0), KVDaoRocksDB.chunkKey(replaced + 1, 0));
+            }
+            db.write(options, batch);
+            cache.invalidate(key);
+            return true;
+        } catch (RocksDBException e) {
+            abort();
+            return false;
+        } finally {
+            writes.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void abort() {
+        try {
+            db.deleteRange(chunks, KVDaoRocksDB.chunkKey(upload, 0), KVDaoRocksDB.chunkKey(upload + 1, 0));
+        } catch (RocksDBException e) {
+            // chunks without manifest are swept on the next start
+        }
+    }
+}
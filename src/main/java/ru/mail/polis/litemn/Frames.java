@@ -0,0 +1,57 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Length-prefixed frames of internal batch requests and responses
+ * +--------+-------+--------+-------+-----
+ * | length | bytes | length | bytes | ...
+ * +--------+-------+--------+-------+-----
+ */
+public final class Frames {
+    /**
+     * Frames of a batch a node sends to a peer take at most that, so the peer reads the body inline
+     */
+    static final int MAX_BATCH_BYTES = StreamSession.MAX_INLINE_BODY;
+
+    private Frames() {
+    }
+
+    @NotNull
+    public static byte[] encode(@NotNull List<byte[]> frames) {
+        int size = 0;
+        for (byte[] frame : frames) {
+            size += Integer.BYTES + frame.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] frame : frames) {
+            buffer.putInt(frame.length);
+            buffer.put(frame);
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    public static List<byte[]> decode(@NotNull byte[] bytes) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < Integer.BYTES) {
+                throw new IOException("Truncated frame header");
+            }
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("Wrong frame length " + length);
+            }
+            byte[] frame = new byte[length];
+            buffer.get(frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,169 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent single key writes into one {@link WriteBatch}, so a group pays for one WAL
+ * append and one fsync when writes are synchronous.
+ * <p>
+ * The first writer becomes the leader. It waits up to the window for others to queue, applies
+ * at most {@code maxSize} queued writes as one batch and wakes their writers. A writer returns
+ * only after its write is applied, so the visible semantics stay the same as of {@code db.put}.
+ * With no window a writer that finds nobody writing puts its value directly.
+ */
+final class GroupCommit {
+    private final RocksDB db;
+    private final WriteOptions options;
+    private final long windowNanos;
+    private final int maxSize;
+    private final ArrayDeque<Write> queue = new ArrayDeque<>();
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private boolean leading;
+
+    private static final class Write {
+        private final byte[] key;
+        private final byte[] value;
+        private boolean done;
+        private RocksDBException error;
+
+        private Write(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    GroupCommit(@NotNull RocksDB db, @NotNull WriteOptions options, long windowMicros, int maxSize) {
+        if (windowMicros < 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("Window must be non negative and size positive");
+        }
+        this.db = db;
+        this.options = options;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Same as {@code db.put}
+     *
+     * @param value copied by RocksDB, it must not change until the method returns
+     */
+    void put(@NotNull byte[] key, @NotNull byte[] value) throws RocksDBException {
+        Write write = null;
+        boolean interrupted = false;
+        synchronized (this) {
+            if (windowNanos == 0 && !leading && queue.isEmpty()) {
+                leading = true;
+            } else {
+                write = new Write(key, value);
+                queue.add(write);
+                if (queue.size() >= maxSize) {
+                    notifyAll();
+                }
+            }
+        }
+        if (write == null) {
+            try {
+                db.put(options, key, value);
+                groups.increment();
+                writes.increment();
+            } finally {
+                synchronized (this) {
+                    leading = false;
+                    if (!queue.isEmpty()) {
+                        notifyAll();
+                    }
+                }
+            }
+            return;
+        }
+        while (true) {
+            List<Write> group;
+            synchronized (this) {
+                while (leading && !write.done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (write.done) {
+                    break;
+                }
+                leading = true;
+                interrupted |= awaitWindow();
+                group = new ArrayList<>(Math.min(queue.size(), maxSize));
+                while (!queue.isEmpty() && group.size() < maxSize) {
+                    group.add(queue.poll());
+                }
+            }
+            RocksDBException error = apply(group);
+            synchronized (this) {
+                for (Write w : group) {
+                    w.error = error;
+                    w.done = true;
+                }
+                leading = false;
+                notifyAll();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (write.error != null) {
+            throw write.error;
+        }
+    }
+
+    /**
+     * Waits with the monitor released until the window passes or the group is full
+     *
+     * @return true if the thread was interrupted
+     */
+    private boolean awaitWindow() {
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining = windowNanos;
+        while (queue.size() < maxSize && remaining > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        return interrupted;
+    }
+
+    /**
+     * @return error shared by the writes of the group or null if they are applied
+     */
+    private RocksDBException apply(@NotNull List<Write> group) {
+        try (WriteBatch batch = new WriteBatch()) {
+            for (Write write : group) {
+                batch.put(write.key, write.value);
+            }
+            db.write(options, batch);
+            groups.increment();
+            writes.add(group.size());
+            return null;
+        } catch (RocksDBException e) {
+            return e;
+        }
+    }
+
+    void appendMetrics(@NotNull StringBuilder metrics) {
+        metrics.append("storage.commit.groups ").append(groups.sum()).append('\n')
+                .append("storage.commit.writes ").append(writes.sum()).append('\n');
+    }
+}
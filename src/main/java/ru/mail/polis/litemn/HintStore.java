@@ -0,0 +1,70 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes a replica missed, kept until they are replayed to it. Hints of a host are returned
+ * in the order they were added.
+ */
+public interface HintStore {
+
+    /**
+     * A write missed by the host
+     */
+    final class Hint {
+        private final byte[] id;
+        private final byte[] key;
+        private final byte[] record;
+
+        Hint(@NotNull byte[] id, @NotNull byte[] key, @NotNull byte[] record) {
+            this.id = id;
+            this.key = key;
+            this.record = record;
+        }
+
+        /**
+         * @return id the store knows the hint by
+         */
+        @NotNull
+        byte[] getId() {
+            return id;
+        }
+
+        @NotNull
+        public byte[] getKey() {
+            return key;
+        }
+
+        @NotNull
+        public byte[] getRecord() {
+            return record;
+        }
+    }
+
+    /**
+     * Keeps the write for the host
+     *
+     * @param record stamped value or tombstone, see {@link KVDaoRocksDB#stamp}
+     */
+    void add(@NotNull String host, @NotNull byte[] key, @NotNull byte[] record) throws IOException;
+
+    /**
+     * @param maxBytes keys and records of the hints take at most that, the oldest hint is returned anyway
+     * @return oldest hints of the host
+     */
+    @NotNull
+    List<Hint> oldest(@NotNull String host, int limit, long maxBytes);
+
+    /**
+     * Drops the replayed hints
+     */
+    void remove(@NotNull String host, @NotNull List<Hint> replayed) throws IOException;
+
+    /**
+     * @return number of hints kept for the host
+     */
+    long backlog(@NotNull String host);
+}
@@ -0,0 +1,175 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.litemn.command.HintsCommand;
+import ru.mail.polis.litemn.command.Peer;
+import ru.mail.polis.litemn.command.PutCommand;
+import ru.mail.polis.litemn.command.PutStream;
+import ru.mail.polis.litemn.command.StatusCommand;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps writes the replicas missed in the {@link HintStore} and replays them once a replica answers
+ * its status again. Each {@link #replay} sends at most {@code batchesPerRound} batches of
+ * {@code batchSize} hints to a replica, so a returning replica isn't flooded. A batch also stays within
+ * {@link Frames#MAX_BATCH_BYTES}, a hint too large for any batch is sent alone as an internal PUT.
+ * A hint of a chunked value holds only its manifest, the local value is streamed to the replica
+ * as long as it is still the hinted one.
+ */
+final class HintedHandoff {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HintedHandoff.class);
+
+    private final InternalKVDao dao;
+    private final HintStore store;
+    private final Map<String, Peer> peers;
+    private final int batchSize;
+    private final int batchesPerRound;
+    private final int timeout;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private final Map<String, AtomicLong> stored = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> replayed = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeout timeout of streaming a chunked value to a replica
+     */
+    HintedHandoff(@NotNull InternalKVDao dao, @NotNull Map<String, Peer> peers,
+                  int batchSize, int batchesPerRound, int timeout) {
+        if (batchSize <= 0 || batchesPerRound <= 0) {
+            throw new IllegalArgumentException("Batch size and count must be positive");
+        }
+        this.dao = dao;
+        this.store = dao.getHints();
+        this.peers = peers;
+        this.batchSize = batchSize;
+        this.batchesPerRound = batchesPerRound;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Keeps the write the host missed
+     *
+     * @param record stamped value, tombstone or manifest of a chunked value
+     */
+    void hint(@NotNull String host, @NotNull byte[] key, @NotNull byte[] record) {
+        try {
+            store.add(host, key, record);
+            counter(stored, host).incrementAndGet();
+        } catch (IOException e) {
+            LOGGER.error("Fail to keep hint for " + host, e);
+        }
+    }
+
+    /**
+     * Replays a round of hints to every replica which has them and is up, rounds never overlap
+     */
+    void replay() {
+        if (!replaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            peers.forEach((host, peer) -> {
+                if (store.backlog(host) > 0 && new StatusCommand(peer).call()) {
+                    replay(host, peer);
+                }
+            });
+        } finally {
+            replaying.set(false);
+        }
+    }
+
+    private void replay(@NotNull String host, @NotNull Peer peer) {
+        for (int i = 0; i < batchesPerRound; i++) {
+            List<HintStore.Hint> hints = store.oldest(host, batchSize,
+                    Frames.MAX_BATCH_BYTES - 2L * Integer.BYTES * batchSize);
+            if (hints.isEmpty()) {
+                return;
+            }
+            if (!send(peer, hints)) {
+                return;
+            }
+            try {
+                store.remove(host, hints);
+            } catch (IOException e) {
+                // replayed again later, the replica skips records it already has
+                LOGGER.error("Fail to drop hints of " + host, e);
+                return;
+            }
+            counter(replayed, host).addAndGet(hints.size());
+            LOGGER.debug("Replayed {} hints to {}", hints.size(), host);
+        }
+    }
+
+    private boolean send(@NotNull Peer peer, @NotNull List<HintStore.Hint> hints) {
+        List<HintStore.Hint> records = new ArrayList<>(hints.size());
+        for (HintStore.Hint hint : hints) {
+            if (!KVDaoRocksDB.isChunked(hint.getRecord())) {
+                records.add(hint);
+            } else if (!stream(peer, hint)) {
+                return false;
+            }
+        }
+        if (records.isEmpty()) {
+            return true;
+        }
+        HintStore.Hint first = records.get(0);
+        if (records.size() == 1
+                && 2 * Integer.BYTES + first.getKey().length + first.getRecord().length > Frames.MAX_BATCH_BYTES) {
+            String id = new String(first.getKey(), StandardCharsets.UTF_8);
+            return new PutCommand(peer, id, first.getRecord(), true).call();
+        }
+        List<byte[]> frames = new ArrayList<>(2 * records.size());
+        for (HintStore.Hint hint : records) {
+            frames.add(hint.getKey());
+            frames.add(hint.getRecord());
+        }
+        return new HintsCommand(peer, records.size(), Frames.encode(frames)).call();
+    }
+
+    /**
+     * Streams the local value of a chunked hint, the hint is done if the value was replaced since
+     */
+    private boolean stream(@NotNull Peer peer, @NotNull HintStore.Hint hint) {
+        byte[] key = hint.getKey();
+        long time = KVDaoRocksDB.timeOf(hint.getRecord());
+        try (ValueSource value = dao.openValue(key)) {
+            // the source is opened first, so it reads the hinted value if the stored time still matches
+            StorageValue stored = dao.getInternal(key);
+            if (value == null || stored.getState() != StorageValue.State.EXISTS || stored.getTime() != time) {
+                return true;
+            }
+            String id = new String(key, StandardCharsets.UTF_8);
+            try (PutStream put = new PutStream(peer, id, value.length(), time, timeout, true)) {
+                for (byte[] piece = value.next(); piece != null; piece = value.next()) {
+                    put.write(piece, 0, piece.length);
+                }
+                return put.finish();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Fail to read hinted value", e);
+            return false;
+        }
+    }
+
+    void appendMetrics(@NotNull StringBuilder metrics) {
+        for (String host : peers.keySet()) {
+            String prefix = "hints." + host + '.';
+            metrics.append(prefix).append("backlog ").append(store.backlog(host)).append('\n')
+                    .append(prefix).append("stored ").append(counter(stored, host).get()).append('\n')
+                    .append(prefix).append("replayed ").append(counter(replayed, host).get()).append('\n');
+        }
+    }
+
+    private static AtomicLong counter(@NotNull Map<String, AtomicLong> counters, @NotNull String host) {
+        return counters.computeIfAbsent(host, h -> new AtomicLong());
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.litemn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock versioning the writes. A timestamp keeps wall clock millis in the high bits
+ * and a logical counter in the low {@link #LOGICAL_BITS}, so it orders writes of the same millis and
+ * never goes back on this node.
+ * <p>
+ * The coordinator stamps a write once with {@link #now} and the replicas store the timestamp as is.
+ * Every timestamp the node receives moves its clock forward with {@link #observe}, so a write which
+ * follows a read or a write of another node is versioned after it in spite of clock drift.
+ * A timestamp more than the max drift ahead of the wall clock is not observed, so a node with a skewed
+ * clock can't move the clocks of the others forward for good. Such a record is still stored as is.
+ * <p>
+ * Records written before the clock keep plain millis, they are recognized by their magnitude and
+ * order before any clock timestamp.
+ */
+public final class HybridClock {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HybridClock.class);
+    private static final String MAX_DRIFT_PROPERTY = "litemn.clock.max.drift.ms";
+    static final int LOGICAL_BITS = 16;
+    // plain millis stay below it for thousands of years, clock timestamps are always above
+    private static final long LEGACY_LIMIT = 1L << 48;
+
+    private final AtomicLong last = new AtomicLong();
+    private final long maxDrift;
+
+    public HybridClock() {
+        this(Long.getLong(MAX_DRIFT_PROPERTY, TimeUnit.MINUTES.toMillis(5)));
+    }
+
+    /**
+     * @param maxDrift millis a received timestamp may be ahead of the wall clock
+     */
+    HybridClock(long maxDrift) {
+        if (maxDrift < 0) {
+            throw new IllegalArgumentException("Max drift must not be negative");
+        }
+        this.maxDrift = maxDrift;
+    }
+
+    /**
+     * @return timestamp greater than every timestamp issued or observed before
+     */
+    public long now() {
+        long wall = System.currentTimeMillis() << LOGICAL_BITS;
+        return last.updateAndGet(time -> Math.max(wall, time + 1));
+    }
+
+    /**
+     * Moves the clock to a received timestamp, unless it is too far ahead of the wall clock
+     */
+    public void observe(long time) {
+        if (time <= last.get()) {
+            return;
+        }
+        long ahead = physical(time) - System.currentTimeMillis();
+        if (ahead > maxDrift) {
+            LOGGER.warn("Ignored timestamp {} ms ahead of the clock", ahead);
+            return;
+        }
+        last.accumulateAndGet(time, Math::max);
+    }
+
+    /**
+     * @return wall clock millis of the timestamp
+     */
+    public static long physical(long time) {
+        return time < LEGACY_LIMIT ? time : time >>> LOGICAL_BITS;
+    }
+}
@@ -0,0 +1,120 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.KVDao;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * Storage of the replicated service. Values are kept as records of a flag and a timestamp in front
+ * of the payload, see {@link KVDaoRocksDB#stamp}, so replicas exchange and reconcile them as is.
+ */
+public interface InternalKVDao extends KVDao {
+
+    /**
+     * @return clock versioning the writes of this node, see {@link HybridClock}
+     */
+    @NotNull
+    HybridClock getClock();
+
+    /**
+     * @return writes the replicas missed
+     */
+    @NotNull
+    HintStore getHints();
+
+    void appendMetrics(@NotNull StringBuilder metrics);
+
+    @NotNull
+    StorageValue getInternal(@NotNull byte[] key) throws IOException;
+
+    /**
+     * @return values in order of keys
+     */
+    @NotNull
+    List<StorageValue> getInternal(@NotNull List<byte[]> keys) throws IOException;
+
+    /**
+     * Reads the value straight into its replication form, see {@link StorageValueCodec}
+     *
+     * @param digest omit the payload
+     */
+    @NotNull
+    byte[] getEncoded(@NotNull byte[] key, boolean digest) throws IOException;
+
+    /**
+     * Iterates stored records from {@code from} inclusive to {@code to} exclusive in key order,
+     * tombstones included. Iterator must be closed.
+     */
+    @NotNull
+    RecordIterator range(@NotNull byte[] from, @Nullable byte[] to);
+
+    /**
+     * Visits all stored records, tombstones and manifests of values too large to be passed as records
+     * included, see {@link KVDaoRocksDB#isChunked}
+     *
+     * @param visitor takes the key and the stored record, returns false to stop the scan
+     */
+    void scan(@NotNull BiPredicate<byte[], byte[]> visitor);
+
+    /**
+     * Opens the stored value for reading piece by piece
+     *
+     * @return null if the value is absent or removed
+     */
+    @Nullable
+    ValueSource openValue(@NotNull byte[] key) throws IOException;
+
+    /**
+     * Starts a value which is too large to be passed as an array
+     *
+     * @param time timestamp the coordinator assigned to the value
+     */
+    @NotNull
+    ValueWriter openWriter(@NotNull byte[] key, long length, long time) throws IOException;
+
+    /**
+     * Stores the record as is, see {@link KVDaoRocksDB#stamp} and {@link KVDaoRocksDB#expiring}
+     *
+     * @return false if the record is malformed or the write failed
+     */
+    boolean upsertRecord(@NotNull byte[] key, @Nullable byte[] record);
+
+    /**
+     * Applies those records which are newer than the stored ones, so late writes such as replayed hints
+     * never roll a key back
+     *
+     * @param records stamped values or tombstones in order of keys
+     * @return false if a record is malformed or the write failed
+     */
+    boolean applyNewer(@NotNull List<byte[]> keys, @NotNull List<byte[]> records);
+
+    /**
+     * Applies all mutations atomically, every mutation gets the same timestamp
+     *
+     * @param time timestamp the coordinator assigned to the batch
+     */
+    boolean applyInternal(@NotNull List<Mutation> mutations, long time);
+
+    /**
+     * @param time timestamp the coordinator assigned to the removal
+     */
+    boolean removeInternal(@NotNull byte[] key, long time);
+
+    /**
+     * Applies a write to the stored siblings of the key, see {@link Siblings#update}
+     *
+     * @param replica index of this node in the replica set of the key
+     * @param value   new value or {@code null} to remove
+     * @return stored record the other replicas merge with theirs
+     */
+    @NotNull
+    byte[] updateSiblings(@NotNull byte[] key,
+                          @NotNull long[] context,
+                          int replica,
+                          @Nullable byte[] value,
+                          long time) throws IOException;
+}
@@ -0,0 +1,625 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.litemn.lsm.LsmTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * KV dao on log-structured merge trees written in Java, see {@link LsmTree}, so a point read
+ * never crosses JNI. Records are those of {@link KVDaoRocksDB} and so are the layouts of the chunks
+ * of large values and of the hints, each kept in a tree of its own.
+ * <p>
+ * Tombstones and expired values are dropped by the compaction of the oldest table once they are older
+ * than the grace period. Chunks of an overwritten or removed value are deleted when its last reader
+ * is closed, chunks of interrupted uploads are swept on open.
+ */
+public final class KVDaoLsm implements InternalKVDao {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KVDaoLsm.class);
+    private static final byte[] FIRST = new byte[0];
+    private static final int SWEEP_BATCH = 256;
+
+    private final LsmConfig config;
+    private final LsmTree data;
+    private final LsmTree chunks;
+    private final LsmTree hintTree;
+    private final HintStore hints;
+    private final HybridClock clock = new HybridClock();
+    private final AtomicLong uploads = new AtomicLong(System.currentTimeMillis() << 16);
+    // readers of each upload, chunks of an overwritten upload outlive its readers
+    private final Map<Long, Integer> readers = new ConcurrentHashMap<>();
+    private final Set<Long> overwritten = ConcurrentHashMap.newKeySet();
+    // siblings and manifests are read and written back under the lock of their stripe
+    private final Object[] stripes = new Object[64];
+
+    public KVDaoLsm(@NotNull File dir) throws IOException {
+        this(dir, LsmConfig.defaults());
+    }
+
+    public KVDaoLsm(@NotNull File dir, @NotNull LsmConfig config) throws IOException {
+        if (!dir.exists() || !dir.isDirectory()) {
+            throw new IllegalArgumentException("File must be dir");
+        }
+        this.config = config;
+        Arrays.setAll(stripes, i -> new Object());
+        long grace = TimeUnit.SECONDS.toMillis(config.getTombstoneGraceSeconds());
+        this.data = tree(new File(dir, "data"),
+                record -> KVDaoRocksDB.isPurgeable(record, System.currentTimeMillis() - grace));
+        try {
+            this.chunks = tree(new File(dir, "chunks"), record -> false);
+            try {
+                this.hintTree = tree(new File(dir, "hints"), record -> false);
+            } catch (IOException e) {
+                chunks.close();
+                throw e;
+            }
+            this.hints = new LsmHintStore(hintTree);
+            sweepChunks();
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        LOGGER.info("Opened LSM storage with {}", config);
+    }
+
+    @NotNull
+    private LsmTree tree(@NotNull File dir, @NotNull Predicate<byte[]> purgeable) throws IOException {
+        return new LsmTree(dir, config.getMemTableSize(), config.getCompactionThreshold(), config.isSync(),
+                purgeable);
+    }
+
+    @NotNull
+    public LsmConfig getConfig() {
+        return config;
+    }
+
+    @NotNull
+    @Override
+    public HybridClock getClock() {
+        return clock;
+    }
+
+    @NotNull
+    @Override
+    public HintStore getHints() {
+        return hints;
+    }
+
+    @Override
+    public void appendMetrics(@NotNull StringBuilder metrics) {
+        data.appendMetrics(metrics, "storage.lsm.data");
+        chunks.appendMetrics(metrics, "storage.lsm.chunks");
+        hintTree.appendMetrics(metrics, "storage.lsm.hints");
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        byte[] record = data.get(key);
+        if (record == null || isRemoved(record)) {
+            throw new NoSuchElementException();
+        }
+        if (KVDaoRocksDB.isChunked(record)) {
+            return readChunked(key);
+        }
+        return Arrays.copyOfRange(record, KVDaoRocksDB.payloadOffset(record), record.length);
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        replace(key, KVDaoRocksDB.stamp(KVDaoRocksDB.record(value), clock.now()));
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        replace(key, KVDaoRocksDB.removed(clock.now()));
+    }
+
+    @Override
+    public boolean removeInternal(@NotNull byte[] key, long time) {
+        clock.observe(time);
+        try {
+            replace(key, KVDaoRocksDB.removed(time));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @NotNull
+    @Override
+    public StorageValue getInternal(@NotNull byte[] key) {
+        return KVDaoRocksDB.toStorageValue(data.get(key));
+    }
+
+    @NotNull
+    @Override
+    public List<StorageValue> getInternal(@NotNull List<byte[]> keys) {
+        List<StorageValue> result = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            result.add(getInternal(key));
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public byte[] getEncoded(@NotNull byte[] key, boolean digest) {
+        byte[] record = data.get(key);
+        if (record == null) {
+            return StorageValueCodec.encode(StorageValue.State.ABSENT, -1, null, 0, -1);
+        }
+        long time = KVDaoRocksDB.timeOf(record);
+        if (isRemoved(record)) {
+            return StorageValueCodec.encode(StorageValue.State.REMOVED, time, null, 0, -1);
+        }
+        // chunked values are never transferred inline
+        int offset = KVDaoRocksDB.payloadOffset(record);
+        int length = digest || KVDaoRocksDB.isChunked(record) ? -1 : record.length - offset;
+        return StorageValueCodec.encode(StorageValue.State.EXISTS, time, KVDaoRocksDB.expiresOf(record),
+                record, offset, length);
+    }
+
+    @NotNull
+    @Override
+    public RecordIterator range(@NotNull byte[] from, @Nullable byte[] to) {
+        Iterator<Map.Entry<byte[], byte[]>> iterator = data.range(from, to);
+        return new RecordIterator() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Record next() {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                return new Record(entry.getKey(), KVDaoRocksDB.toStorageValue(entry.getValue()));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void scan(@NotNull BiPredicate<byte[], byte[]> visitor) {
+        for (Iterator<Map.Entry<byte[], byte[]>> iterator = data.range(FIRST, null); iterator.hasNext(); ) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            if (!visitor.test(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Large values are read chunk by chunk, their chunks are kept until the source is closed
+     */
+    @Nullable
+    @Override
+    public ValueSource openValue(@NotNull byte[] key) {
+        byte[] record;
+        long upload;
+        synchronized (stripe(key)) {
+            record = data.get(key);
+            if (record == null || isRemoved(record)) {
+                return null;
+            }
+            upload = KVDaoRocksDB.uploadOf(record);
+            if (upload >= 0) {
+                readers.merge(upload, 1, Integer::sum);
+            }
+        }
+        if (upload < 0) {
+            return ValueSource.of(Arrays.copyOfRange(record, KVDaoRocksDB.payloadOffset(record), record.length));
+        }
+        long length = lengthOf(record);
+        return new ValueSource() {
+            private long read;
+            private int index;
+            private boolean closed;
+
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Nullable
+            @Override
+            public byte[] next() throws IOException {
+                if (read == length) {
+                    return null;
+                }
+                byte[] chunk = chunks.get(KVDaoRocksDB.chunkKey(upload, ++index));
+                if (chunk == null) {
+                    throw new IOException("Chunk " + index + " of upload " + upload + " is missing");
+                }
+                read += chunk.length;
+                return chunk;
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    release(upload);
+                }
+            }
+        };
+    }
+
+    private byte[] readChunked(@NotNull byte[] key) throws IOException {
+        ValueSource source = openValue(key);
+        if (source == null) {
+            throw new NoSuchElementException();
+        }
+        try {
+            if (source.length() > Integer.MAX_VALUE - Long.BYTES) {
+                throw new IOException("Value of " + source.length() + " bytes doesn't fit an array");
+            }
+            ByteBuffer value = ByteBuffer.allocate((int) source.length());
+            for (byte[] chunk = source.next(); chunk != null; chunk = source.next()) {
+                value.put(chunk);
+            }
+            return value.array();
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Chunks are written as they fill up, the manifest replaces the stored value on commit
+     */
+    @NotNull
+    @Override
+    public ValueWriter openWriter(@NotNull byte[] key, long length, long time) throws IOException {
+        clock.observe(time);
+        long upload = uploads.incrementAndGet();
+        // header chunk keeps the owner key, orphaned uploads are found by it
+        chunks.put(KVDaoRocksDB.chunkKey(upload, 0), key);
+        byte[] buffer = new byte[(int) Math.min(KVDaoRocksDB.CHUNK_SIZE, length)];
+        return new ValueWriter() {
+            private int buffered;
+            private int index;
+            private long written;
+
+            @Override
+            public void write(@NotNull byte[] bytes, int offset, int count) throws IOException {
+                if (written + count > length) {
+                    throw new IOException("Value is longer than " + length);
+                }
+                while (count > 0) {
+                    int n = Math.min(count, buffer.length - buffered);
+                    System.arraycopy(bytes, offset, buffer, buffered, n);
+                    buffered += n;
+                    written += n;
+                    offset += n;
+                    count -= n;
+                    if (buffered == buffer.length && written < length) {
+                        chunks.put(KVDaoRocksDB.chunkKey(upload, ++index), buffer.clone());
+                        buffered = 0;
+                    }
+                }
+            }
+
+            @Override
+            public boolean commit() {
+                if (written != length) {
+                    abort();
+                    return false;
+                }
+                try {
+                    if (buffered > 0) {
+                        chunks.put(KVDaoRocksDB.chunkKey(upload, ++index), Arrays.copyOf(buffer, buffered));
+                    }
+                    replace(key, KVDaoRocksDB.manifest(time, length, upload));
+                    return true;
+                } catch (IOException e) {
+                    LOGGER.error("Fail to commit upload {}", upload, e);
+                    abort();
+                    return false;
+                }
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    deleteChunks(upload, index);
+                } catch (IOException e) {
+                    // chunks without manifest are swept on the next start
+                }
+            }
+        };
+    }
+
+    /**
+     * Puts the record in place of the stored one, chunks of a replaced large value are deleted
+     */
+    private void replace(@NotNull byte[] key, @NotNull byte[] record) throws IOException {
+        long replaced;
+        synchronized (stripe(key)) {
+            replaced = KVDaoRocksDB.uploadOf(data.get(key));
+            data.put(key, record);
+        }
+        if (replaced >= 0) {
+            overwrite(replaced);
+        }
+    }
+
+    /**
+     * Applies the records as one write and deletes the chunks of the large values they replace.
+     * A manifest committed while the records are applied is lost with its chunks left to the sweep.
+     */
+    private void replace(@NotNull List<byte[]> keys, @NotNull List<byte[]> records) throws IOException {
+        List<Long> replaced = new ArrayList<>();
+        for (byte[] key : keys) {
+            long upload = KVDaoRocksDB.uploadOf(data.get(key));
+            if (upload >= 0) {
+                replaced.add(upload);
+            }
+        }
+        data.apply(keys, records);
+        for (long upload : replaced) {
+            overwrite(upload);
+        }
+    }
+
+    /**
+     * Deletes the chunks of the upload once it has no readers
+     */
+    private void overwrite(long upload) {
+        boolean[] unread = new boolean[1];
+        readers.compute(upload, (u, count) -> {
+            if (count == null) {
+                unread[0] = true;
+            } else {
+                overwritten.add(u);
+            }
+            return count;
+        });
+        if (unread[0]) {
+            try {
+                deleteChunks(upload);
+            } catch (IOException e) {
+                // the record is replaced already, the chunks are swept on the next start
+                LOGGER.warn("Fail to delete chunks of upload {}", upload, e);
+            }
+        }
+    }
+
+    private void release(long upload) {
+        boolean[] last = new boolean[1];
+        readers.computeIfPresent(upload, (u, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            last[0] = overwritten.remove(u);
+            return null;
+        });
+        if (last[0]) {
+            try {
+                deleteChunks(upload);
+            } catch (IOException e) {
+                LOGGER.warn("Fail to delete chunks of upload {}", upload, e);
+            }
+        }
+    }
+
+    private void deleteChunks(long upload) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        Iterator<Map.Entry<byte[], byte[]>> iterator =
+                chunks.range(KVDaoRocksDB.chunkKey(upload, 0), KVDaoRocksDB.chunkKey(upload + 1, 0));
+        iterator.forEachRemaining(entry -> keys.add(entry.getKey()));
+        chunks.apply(keys, Arrays.asList(new byte[keys.size()][]));
+    }
+
+    private void deleteChunks(long upload, int last) throws IOException {
+        List<byte[]> keys = new ArrayList<>(last + 1);
+        for (int i = 0; i <= last; i++) {
+            keys.add(KVDaoRocksDB.chunkKey(upload, i));
+        }
+        chunks.apply(keys, Arrays.asList(new byte[keys.size()][]));
+    }
+
+    /**
+     * Drops chunks of uploads that were interrupted or whose value was overwritten
+     */
+    private void sweepChunks() throws IOException {
+        List<byte[]> orphans = new ArrayList<>();
+        long current = -1;
+        boolean live = false;
+        for (Iterator<Map.Entry<byte[], byte[]>> iterator = chunks.range(FIRST, null); iterator.hasNext(); ) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+            long upload = key.getLong();
+            if (upload != current) {
+                current = upload;
+                // the header chunk comes first, an upload without it is partially deleted
+                live = key.getInt() == 0 && KVDaoRocksDB.uploadOf(data.get(entry.getValue())) == upload;
+            }
+            if (!live) {
+                orphans.add(entry.getKey());
+                if (orphans.size() == SWEEP_BATCH) {
+                    chunks.apply(orphans, Arrays.asList(new byte[orphans.size()][]));
+                    orphans.clear();
+                }
+            }
+        }
+        if (!orphans.isEmpty()) {
+            chunks.apply(orphans, Arrays.asList(new byte[orphans.size()][]));
+        }
+    }
+
+    private static long lengthOf(@NotNull byte[] manifest) {
+        return ByteUtils.getLong(manifest, KVDaoRocksDB.HEADER_LENGTH);
+    }
+
+    @Override
+    public boolean upsertRecord(@NotNull byte[] key, @Nullable byte[] record) {
+        if (record == null || !KVDaoRocksDB.isValue(record)) {
+            return false;
+        }
+        clock.observe(KVDaoRocksDB.timeOf(record));
+        try {
+            if (KVDaoRocksDB.isSiblings(record)) {
+                mergeSiblings(key, record);
+            } else {
+                replace(key, record);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Fail to store record", e);
+            return false;
+        }
+    }
+
+    /**
+     * Applies the newer records as one write. A write racing with the apply may still be overwritten
+     * by an older record, the apply is meant for records that are already late.
+     */
+    @Override
+    public boolean applyNewer(@NotNull List<byte[]> keys, @NotNull List<byte[]> records) {
+        List<byte[]> newerKeys = new ArrayList<>(keys.size());
+        List<byte[]> newer = new ArrayList<>(keys.size());
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] record = records.get(i);
+                if (!KVDaoRocksDB.isReplicable(record)) {
+                    return false;
+                }
+                clock.observe(KVDaoRocksDB.timeOf(record));
+                if (KVDaoRocksDB.isSiblings(record)) {
+                    mergeSiblings(keys.get(i), record);
+                    continue;
+                }
+                byte[] stored = data.get(keys.get(i));
+                if (stored == null || KVDaoRocksDB.timeOf(stored) < KVDaoRocksDB.timeOf(record)) {
+                    newerKeys.add(keys.get(i));
+                    newer.add(record);
+                }
+            }
+            if (!newerKeys.isEmpty()) {
+                replace(newerKeys, newer);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Fail to apply {} records", keys.size(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Applies all mutations as one write, i.e. a single log record
+     */
+    @Override
+    public boolean applyInternal(@NotNull List<Mutation> mutations, long time) {
+        clock.observe(time);
+        List<byte[]> keys = new ArrayList<>(mutations.size());
+        List<byte[]> records = new ArrayList<>(mutations.size());
+        for (Mutation mutation : mutations) {
+            keys.add(mutation.getKey());
+            records.add(mutation.isRemove()
+                    ? KVDaoRocksDB.removed(time)
+                    : KVDaoRocksDB.stamp(KVDaoRocksDB.record(mutation.getValue()), time));
+        }
+        try {
+            replace(keys, records);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Fail to apply {} mutations", mutations.size(), e);
+            return false;
+        }
+    }
+
+    @NotNull
+    @Override
+    public byte[] updateSiblings(@NotNull byte[] key,
+                                 @NotNull long[] context,
+                                 int replica,
+                                 @Nullable byte[] value,
+                                 long time) throws IOException {
+        synchronized (stripe(key)) {
+            Siblings siblings = KVDaoRocksDB.siblingsOf(data.get(key));
+            byte[] record = KVDaoRocksDB.siblings(siblings.update(context, replica, value), time);
+            data.put(key, record);
+            return record;
+        }
+    }
+
+    private void mergeSiblings(@NotNull byte[] key, @NotNull byte[] record) throws IOException {
+        synchronized (stripe(key)) {
+            byte[] stored = data.get(key);
+            long time = stored == null
+                    ? KVDaoRocksDB.timeOf(record)
+                    : Math.max(KVDaoRocksDB.timeOf(stored), KVDaoRocksDB.timeOf(record));
+            Siblings merged = KVDaoRocksDB.siblingsOf(stored).sync(KVDaoRocksDB.siblingsOf(record));
+            data.put(key, KVDaoRocksDB.siblings(merged, time));
+        }
+    }
+
+    @NotNull
+    private Object stripe(@NotNull byte[] key) {
+        return stripes[Arrays.hashCode(key) & (stripes.length - 1)];
+    }
+
+    /**
+     * @return true if the record is a tombstone or a value which has expired
+     */
+    private static boolean isRemoved(@NotNull byte[] record) {
+        return KVDaoRocksDB.isRemoved(record) || KVDaoRocksDB.expiresOf(record) <= System.currentTimeMillis();
+    }
+
+    /**
+     * Merges all tables of the trees, tombstones older than the grace period leave the disk
+     */
+    void compact() throws IOException {
+        data.compact();
+        chunks.compact();
+    }
+
+    /**
+     * @return number of stored chunks, header chunks of uploads included
+     */
+    long chunkCount() {
+        long count = 0;
+        for (Iterator<Map.Entry<byte[], byte[]>> iterator = chunks.range(FIRST, null); iterator.hasNext(); ) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<IOException> failures = new ArrayList<>();
+        for (LsmTree tree : Arrays.asList(data, chunks, hintTree)) {
+            try {
+                tree.close();
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            IOException failure = failures.get(0);
+            failures.subList(1, failures.size()).forEach(failure::addSuppressed);
+            throw failure;
+        }
+    }
+}
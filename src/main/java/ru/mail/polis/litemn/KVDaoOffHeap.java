@@ -0,0 +1,1029 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.litemn.placement.Hash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
+
+/**
+ * In-memory KV dao keeping the records off heap, so neither the data nor its size is seen by the
+ * garbage collector. It serves a cache tier and load tests of the network layer without a disk,
+ * the data is lost on close.
+ * <p>
+ * Keys are spread over segments guarded by locks of their own. A segment is an open addressing
+ * table of slots probed linearly
+ * +---------+------+---------+
+ * | address | hash | padding |
+ * +---------+------+---------+
+ * pointing to entries which keep the key and the record in the format of {@link KVDaoRocksDB}
+ * +------------+---------------+-----+--------+
+ * | key length | record length | key | record |
+ * +------------+---------------+-----+--------+
+ * <p>
+ * Entries take up to the capacity, a write which doesn't fit evicts entries the segment hands pass,
+ * tombstones included. Values longer than {@link StreamSession#MAX_INLINE_BODY} are reported as chunked,
+ * so they are streamed rather than passed inline between replicas, like the chunks of the other stores.
+ */
+public final class KVDaoOffHeap implements InternalKVDao {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KVDaoOffHeap.class);
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int SLOT_SIZE = 2 * Long.BYTES;
+    private static final int ENTRY_HEADER_LENGTH = 2 * Integer.BYTES;
+    // expiring records keep the expiry after the timestamp
+    private static final int MAX_HEADER_LENGTH = KVDaoRocksDB.HEADER_LENGTH + Long.BYTES;
+    private static final int SCAN_BATCH = 256;
+    private static final int MAX_HINTS = 100_000;
+    // hints stay on heap, so they take a small part of it whatever the size of the records
+    private static final long MAX_HINT_BYTES = 16 * 1024 * 1024;
+    private static final String CAPACITY_PROPERTY = "litemn.offheap.capacity";
+    private static final String DEFAULT_CAPACITY = "256m";
+
+    private final long capacity;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong tables = new AtomicLong();
+    private final AtomicInteger hand = new AtomicInteger();
+    private final LongAdder evicted = new LongAdder();
+    private final HybridClock clock = new HybridClock();
+    private final HintStore hints = new MemoryHintStore(MAX_HINTS, MAX_HINT_BYTES);
+    private volatile boolean closed;
+
+    /**
+     * Open addressing table of a part of the keys, all access is under the lock.
+     * Entries are removed with backward shift, so a probe stops at the first empty slot.
+     */
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long table;
+        private int slots;
+        private int size;
+        // slot the next eviction starts from
+        private int hand;
+
+        private Segment() {
+            allocate(INITIAL_SLOTS);
+        }
+
+        private void allocate(int count) {
+            long bytes = (long) count * SLOT_SIZE;
+            table = OffHeapMemory.allocateMemory(bytes);
+            OffHeapMemory.setMemory(table, bytes, (byte) 0);
+            slots = count;
+            tables.addAndGet(bytes);
+        }
+
+        private long slot(int index) {
+            return table + (long) index * SLOT_SIZE;
+        }
+
+        private long entry(int index) {
+            return OffHeapMemory.getLong(slot(index));
+        }
+
+        private int hash(int index) {
+            return OffHeapMemory.getInt(slot(index) + Long.BYTES);
+        }
+
+        /**
+         * @return index of the slot of the key or -1
+         */
+        private int find(@NotNull byte[] key, int hash) {
+            int mask = slots - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long entry = entry(i);
+                if (entry == 0) {
+                    return -1;
+                }
+                if (hash(i) == hash && sameKey(entry, key)) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * @return entry of the key or 0
+         */
+        private long get(@NotNull byte[] key, int hash) {
+            int index = find(key, hash);
+            return index < 0 ? 0 : entry(index);
+        }
+
+        /**
+         * @return replaced entry of the key or 0
+         */
+        private long put(@NotNull byte[] key, int hash, long entry) {
+            int mask = slots - 1;
+            int i = hash & mask;
+            for (long stored = entry(i); stored != 0; stored = entry(i)) {
+                if (hash(i) == hash && sameKey(stored, key)) {
+                    OffHeapMemory.putLong(slot(i), entry);
+                    return stored;
+                }
+                i = (i + 1) & mask;
+            }
+            OffHeapMemory.putLong(slot(i), entry);
+            OffHeapMemory.putInt(slot(i) + Long.BYTES, hash);
+            // probe sequences stay short while at most 3/4 of the slots are taken
+            if (++size > slots - slots / 4) {
+                resize();
+            }
+            return 0;
+        }
+
+        /**
+         * Moves the following entries back into the hole unless it would put them before their home slot
+         *
+         * @return removed entry
+         */
+        private long delete(int index) {
+            long removed = entry(index);
+            int mask = slots - 1;
+            int hole = index;
+            for (int i = (index + 1) & mask; entry(i) != 0; i = (i + 1) & mask) {
+                int home = hash(i) & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    OffHeapMemory.copyMemory(slot(i), slot(hole), SLOT_SIZE);
+                    hole = i;
+                }
+            }
+            OffHeapMemory.putLong(slot(hole), 0);
+            size--;
+            return removed;
+        }
+
+        /**
+         * @return removed entry at the hand or 0 if the segment is empty
+         */
+        private long evict() {
+            if (size == 0) {
+                return 0;
+            }
+            while (entry(hand) == 0) {
+                hand = (hand + 1) & (slots - 1);
+            }
+            return delete(hand);
+        }
+
+        private void resize() {
+            long old = table;
+            int count = slots;
+            allocate(count * 2);
+            hand = 0;
+            int mask = slots - 1;
+            for (int i = 0; i < count; i++) {
+                long slot = old + (long) i * SLOT_SIZE;
+                long entry = OffHeapMemory.getLong(slot);
+                if (entry == 0) {
+                    continue;
+                }
+                int hash = OffHeapMemory.getInt(slot + Long.BYTES);
+                int j = hash & mask;
+                while (entry(j) != 0) {
+                    j = (j + 1) & mask;
+                }
+                OffHeapMemory.copyMemory(slot, slot(j), SLOT_SIZE);
+            }
+            OffHeapMemory.freeMemory(old);
+            tables.addAndGet(-(long) count * SLOT_SIZE);
+        }
+
+        private void lock() {
+            lock.lock();
+            if (closed) {
+                lock.unlock();
+                throw new IllegalStateException("Storage is closed");
+            }
+        }
+
+        private void unlock() {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param capacity bytes the entries may take, slot tables take 16 bytes per slot on top of it
+     */
+    public KVDaoOffHeap(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        Arrays.setAll(segments, i -> new Segment());
+        LOGGER.info("Allocated off-heap storage of {} bytes", capacity);
+    }
+
+    /**
+     * @param properties capacity is taken from {@code litemn.offheap.capacity}, 256m by default
+     */
+    @NotNull
+    public static KVDaoOffHeap fromProperties(@NotNull Properties properties) {
+        return new KVDaoOffHeap(RocksDBConfig.parseSize(properties.getProperty(CAPACITY_PROPERTY, DEFAULT_CAPACITY)));
+    }
+
+    @NotNull
+    @Override
+    public HybridClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Hints are kept on heap, up to {@link #MAX_HINT_BYTES} of it, and lost with the data,
+     * see {@link MemoryHintStore}
+     */
+    @NotNull
+    @Override
+    public HintStore getHints() {
+        return hints;
+    }
+
+    @Override
+    public void appendMetrics(@NotNull StringBuilder metrics) {
+        long entries = 0;
+        for (Segment segment : segments) {
+            entries += segment.size;
+        }
+        metrics.append("storage.memory.entries ").append(entries).append('\n')
+                .append("storage.memory.used.bytes ").append(used.get()).append('\n')
+                .append("storage.memory.capacity.bytes ").append(capacity).append('\n')
+                .append("storage.memory.tables.bytes ").append(tables.get()).append('\n')
+                .append("storage.memory.evicted ").append(evicted.sum()).append('\n');
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        segment.lock();
+        try {
+            long entry = segment.get(key, hash);
+            if (entry == 0) {
+                throw new NoSuchElementException();
+            }
+            byte[] header = header(entry);
+            if (isRemoved(header)) {
+                throw new NoSuchElementException();
+            }
+            int offset = KVDaoRocksDB.payloadOffset(header);
+            return copy(recordAddress(entry) + offset, recordLength(entry) - offset);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        store(key, KVDaoRocksDB.stamp(KVDaoRocksDB.record(value), clock.now()));
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        store(key, KVDaoRocksDB.removed(clock.now()));
+    }
+
+    @Override
+    public boolean removeInternal(@NotNull byte[] key, long time) {
+        clock.observe(time);
+        try {
+            store(key, KVDaoRocksDB.removed(time));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @NotNull
+    @Override
+    public StorageValue getInternal(@NotNull byte[] key) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        segment.lock();
+        try {
+            long entry = segment.get(key, hash);
+            if (entry == 0) {
+                return StorageValue.absent();
+            }
+            byte[] header = header(entry);
+            if (!isRemoved(header) && isLarge(entry, header)) {
+                return StorageValue.chunked(KVDaoRocksDB.timeOf(header));
+            }
+            return KVDaoRocksDB.toStorageValue(record(entry));
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<StorageValue> getInternal(@NotNull List<byte[]> keys) {
+        List<StorageValue> result = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            result.add(getInternal(key));
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public byte[] getEncoded(@NotNull byte[] key, boolean digest) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        segment.lock();
+        try {
+            long entry = segment.get(key, hash);
+            if (entry == 0) {
+                return StorageValueCodec.encode(StorageValue.State.ABSENT, -1, null, 0, -1);
+            }
+            byte[] header = header(entry);
+            long time = KVDaoRocksDB.timeOf(header);
+            if (isRemoved(header)) {
+                return StorageValueCodec.encode(StorageValue.State.REMOVED, time, null, 0, -1);
+            }
+            long expires = KVDaoRocksDB.expiresOf(header);
+            // large values are never transferred inline
+            if (digest || isLarge(entry, header)) {
+                return StorageValueCodec.encode(StorageValue.State.EXISTS, time, expires, null, 0, -1);
+            }
+            byte[] record = record(entry);
+            int offset = KVDaoRocksDB.payloadOffset(record);
+            return StorageValueCodec.encode(StorageValue.State.EXISTS, time, expires,
+                    record, offset, record.length - offset);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * The table is not ordered, so the keys of the range are copied in a single pass over the segments
+     * and sorted once, the records are read as the iterator reaches them. The keys take heap in proportion
+     * to the range. A key written during the iteration is not returned.
+     */
+    @NotNull
+    @Override
+    public RecordIterator range(@NotNull byte[] from, @Nullable byte[] to) {
+        return new RecordIterator() {
+            private final Iterator<byte[]> keys = keys(from, to).iterator();
+            private Record next = advance();
+
+            @Nullable
+            private Record advance() {
+                while (keys.hasNext()) {
+                    byte[] key = keys.next();
+                    StorageValue value = getInternal(key);
+                    // evicted after the keys were read
+                    if (value.getState() != StorageValue.State.ABSENT) {
+                        return new Record(key, value);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Record next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Record record = next;
+                next = advance();
+                return record;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Keys are compared in place, only those of the range are copied
+     *
+     * @return keys of the range, sorted
+     */
+    @NotNull
+    private List<byte[]> keys(@NotNull byte[] from, @Nullable byte[] to) {
+        List<byte[]> keys = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                for (int i = 0; i < segment.slots; i++) {
+                    long entry = segment.entry(i);
+                    if (entry == 0
+                            || compareKey(entry, from) < 0
+                            || to != null && compareKey(entry, to) >= 0) {
+                        continue;
+                    }
+                    keys.add(key(entry));
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+        keys.sort(ByteUtils::compare);
+        return keys;
+    }
+
+    /**
+     * Records are copied out of a segment in batches and visited without the lock. A key written
+     * or evicted during the scan may be missed, a table resized during the scan may be visited
+     * partially twice.
+     */
+    @Override
+    public void scan(@NotNull BiPredicate<byte[], byte[]> visitor) {
+        List<byte[]> batch = new ArrayList<>(2 * SCAN_BATCH);
+        for (Segment segment : segments) {
+            int position = 0;
+            do {
+                segment.lock();
+                try {
+                    for (; position < segment.slots && batch.size() < 2 * SCAN_BATCH; position++) {
+                        long entry = segment.entry(position);
+                        if (entry == 0) {
+                            continue;
+                        }
+                        byte[] header = header(entry);
+                        batch.add(key(entry));
+                        batch.add(!isRemoved(header) && isLarge(entry, header)
+                                ? KVDaoRocksDB.manifest(KVDaoRocksDB.timeOf(header), payloadLength(entry, header), 0)
+                                : record(entry));
+                    }
+                } finally {
+                    segment.unlock();
+                }
+                for (int i = 0; i < batch.size(); i += 2) {
+                    if (!visitor.test(batch.get(i), batch.get(i + 1))) {
+                        return;
+                    }
+                }
+                batch.clear();
+            } while (position < segment.slots);
+        }
+    }
+
+    /**
+     * Large values are read piece by piece, a piece is copied under the lock of the segment
+     */
+    @Nullable
+    @Override
+    public ValueSource openValue(@NotNull byte[] key) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        segment.lock();
+        try {
+            long entry = segment.get(key, hash);
+            if (entry == 0) {
+                return null;
+            }
+            byte[] header = header(entry);
+            if (isRemoved(header)) {
+                return null;
+            }
+            int offset = KVDaoRocksDB.payloadOffset(header);
+            if (!isLarge(entry, header)) {
+                return ValueSource.of(copy(recordAddress(entry) + offset, recordLength(entry) - offset));
+            }
+            return new EntrySource(key, hash, entry, header, offset);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Reads a large value while it stays the stored one
+     */
+    private final class EntrySource implements ValueSource {
+        private final byte[] key;
+        private final int hash;
+        private final long entry;
+        private final byte[] header;
+        private final int offset;
+        private final int length;
+        private int read;
+
+        private EntrySource(@NotNull byte[] key, int hash, long entry, @NotNull byte[] header, int offset) {
+            this.key = key;
+            this.hash = hash;
+            this.entry = entry;
+            this.header = header;
+            this.offset = offset;
+            this.length = recordLength(entry) - offset;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Nullable
+        @Override
+        public byte[] next() throws IOException {
+            if (read == length) {
+                return null;
+            }
+            Segment segment = segment(hash);
+            segment.lock();
+            try {
+                // the address alone may be reused by a newer record of the key
+                if (segment.get(key, hash) != entry || recordLength(entry) != offset + length
+                        || !Arrays.equals(header, header(entry))) {
+                    throw new IOException("Value was replaced while read");
+                }
+                byte[] piece = copy(recordAddress(entry) + offset + read,
+                        Math.min(KVDaoRocksDB.CHUNK_SIZE, length - read));
+                read += piece.length;
+                return piece;
+            } finally {
+                segment.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The value is written straight into its entry, which takes its share of the capacity from the start
+     */
+    @NotNull
+    @Override
+    public ValueWriter openWriter(@NotNull byte[] key, long length, long time) throws IOException {
+        if (length > Integer.MAX_VALUE - KVDaoRocksDB.HEADER_LENGTH - ENTRY_HEADER_LENGTH - key.length) {
+            throw new IOException("Value of " + length + " bytes doesn't fit an entry");
+        }
+        clock.observe(time);
+        long entry = allocate(key, KVDaoRocksDB.stamp(new byte[KVDaoRocksDB.HEADER_LENGTH], time),
+                KVDaoRocksDB.HEADER_LENGTH + (int) length);
+        return new ValueWriter() {
+            private final long end = recordAddress(entry) + recordLength(entry);
+            private long position = recordAddress(entry) + KVDaoRocksDB.HEADER_LENGTH;
+            private boolean done;
+
+            @Override
+            public void write(@NotNull byte[] bytes, int offset, int count) throws IOException {
+                if (done || position + count > end) {
+                    throw new IOException("Value is longer than " + length);
+                }
+                OffHeapMemory.copyMemory(bytes, OffHeapMemory.BYTE_ARRAY_OFFSET + offset, null, position, count);
+                position += count;
+            }
+
+            @Override
+            public boolean commit() {
+                if (done || position != end) {
+                    abort();
+                    return false;
+                }
+                done = true;
+                int hash = hash(key);
+                Segment segment = segment(hash);
+                try {
+                    segment.lock();
+                } catch (IllegalStateException e) {
+                    free(entry);
+                    return false;
+                }
+                try {
+                    install(segment, key, hash, entry);
+                    return true;
+                } finally {
+                    segment.unlock();
+                }
+            }
+
+            @Override
+            public void abort() {
+                if (!done) {
+                    done = true;
+                    free(entry);
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean upsertRecord(@NotNull byte[] key, @Nullable byte[] record) {
+        if (record == null || !KVDaoRocksDB.isValue(record)) {
+            return false;
+        }
+        clock.observe(KVDaoRocksDB.timeOf(record));
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        segment.lock();
+        try {
+            install(segment, key, hash, allocate(key, KVDaoRocksDB.isSiblings(record)
+                    ? merge(segment.get(key, hash), record)
+                    : record));
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Fail to store record", e);
+            return false;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Applies the newer records atomically, the segments of the keys are locked in their order
+     */
+    @Override
+    public boolean applyNewer(@NotNull List<byte[]> keys, @NotNull List<byte[]> records) {
+        for (byte[] record : records) {
+            if (!KVDaoRocksDB.isReplicable(record)) {
+                return false;
+            }
+            clock.observe(KVDaoRocksDB.timeOf(record));
+        }
+        int[] hashes = hashes(keys);
+        List<Segment> locked = lock(hashes);
+        try {
+            List<byte[]> newerKeys = new ArrayList<>(keys.size());
+            List<byte[]> newer = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                byte[] record = records.get(i);
+                long stored = segment(hashes[i]).get(key, hashes[i]);
+                if (KVDaoRocksDB.isSiblings(record)) {
+                    newerKeys.add(key);
+                    newer.add(merge(stored, record));
+                } else if (stored == 0 || KVDaoRocksDB.timeOf(header(stored)) < KVDaoRocksDB.timeOf(record)) {
+                    newerKeys.add(key);
+                    newer.add(record);
+                }
+            }
+            return storeAll(newerKeys, newer);
+        } catch (IOException e) {
+            LOGGER.error("Fail to merge siblings", e);
+            return false;
+        } finally {
+            locked.forEach(Segment::unlock);
+        }
+    }
+
+    /**
+     * Applies all mutations atomically, the segments of the keys are locked in their order
+     */
+    @Override
+    public boolean applyInternal(@NotNull List<Mutation> mutations, long time) {
+        clock.observe(time);
+        List<byte[]> keys = new ArrayList<>(mutations.size());
+        List<byte[]> records = new ArrayList<>(mutations.size());
+        for (Mutation mutation : mutations) {
+            keys.add(mutation.getKey());
+            records.add(mutation.isRemove()
+                    ? KVDaoRocksDB.removed(time)
+                    : KVDaoRocksDB.stamp(KVDaoRocksDB.record(mutation.getValue()), time));
+        }
+        List<Segment> locked = lock(hashes(keys));
+        try {
+            return storeAll(keys, records);
+        } finally {
+            locked.forEach(Segment::unlock);
+        }
+    }
+
+    @NotNull
+    @Override
+    public byte[] updateSiblings(@NotNull byte[] key,
+                                 @NotNull long[] context,
+                                 int replica,
+                                 @Nullable byte[] value,
+                                 long time) throws IOException {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        segment.lock();
+        try {
+            long stored = segment.get(key, hash);
+            Siblings siblings = KVDaoRocksDB.siblingsOf(stored == 0 ? null : record(stored));
+            byte[] record = KVDaoRocksDB.siblings(siblings.update(context, replica, value), time);
+            install(segment, key, hash, allocate(key, record));
+            return record;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * @return record of the stored siblings synced with those of the record
+     */
+    @NotNull
+    private static byte[] merge(long stored, @NotNull byte[] record) throws IOException {
+        if (stored == 0) {
+            return KVDaoRocksDB.siblings(KVDaoRocksDB.siblingsOf(record), KVDaoRocksDB.timeOf(record));
+        }
+        byte[] current = record(stored);
+        long time = Math.max(KVDaoRocksDB.timeOf(current), KVDaoRocksDB.timeOf(record));
+        return KVDaoRocksDB.siblings(KVDaoRocksDB.siblingsOf(current).sync(KVDaoRocksDB.siblingsOf(record)), time);
+    }
+
+    private void store(@NotNull byte[] key, @NotNull byte[] record) throws IOException {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        segment.lock();
+        try {
+            install(segment, key, hash, allocate(key, record));
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Allocates all entries before installing any, so the records are stored either all or none.
+     * Locks of the segments must be held.
+     *
+     * @return false if the records don't fit
+     */
+    private boolean storeAll(@NotNull List<byte[]> keys, @NotNull List<byte[]> records) {
+        long[] entries = new long[keys.size()];
+        try {
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = allocate(keys.get(i), records.get(i));
+            }
+        } catch (IOException e) {
+            LOGGER.error("Fail to store {} records", entries.length, e);
+            for (long entry : entries) {
+                if (entry != 0) {
+                    free(entry);
+                }
+            }
+            return false;
+        }
+        for (int i = 0; i < entries.length; i++) {
+            byte[] key = keys.get(i);
+            int hash = hash(key);
+            install(segment(hash), key, hash, entries[i]);
+        }
+        return true;
+    }
+
+    private void install(@NotNull Segment segment, @NotNull byte[] key, int hash, long entry) {
+        long replaced = segment.put(key, hash, entry);
+        if (replaced != 0) {
+            free(replaced);
+        }
+    }
+
+    /**
+     * @return locked segments of the hashes in their order, so concurrent batches never deadlock
+     */
+    @NotNull
+    private List<Segment> lock(@NotNull int[] hashes) {
+        boolean[] involved = new boolean[SEGMENTS];
+        for (int hash : hashes) {
+            involved[segmentIndex(hash)] = true;
+        }
+        List<Segment> locked = new ArrayList<>();
+        try {
+            for (int i = 0; i < SEGMENTS; i++) {
+                if (involved[i]) {
+                    segments[i].lock();
+                    locked.add(segments[i]);
+                }
+            }
+        } catch (IllegalStateException e) {
+            locked.forEach(Segment::unlock);
+            throw e;
+        }
+        return locked;
+    }
+
+    private long allocate(@NotNull byte[] key, @NotNull byte[] record) throws IOException {
+        long entry = allocate(key, record, record.length);
+        OffHeapMemory.copyMemory(record, OffHeapMemory.BYTE_ARRAY_OFFSET, null, recordAddress(entry), record.length);
+        return entry;
+    }
+
+    /**
+     * Allocates an entry of the record length and fills it up to the record header
+     */
+    private long allocate(@NotNull byte[] key, @NotNull byte[] header, int recordLength) throws IOException {
+        long size = (long) ENTRY_HEADER_LENGTH + key.length + recordLength;
+        reserve(size);
+        long entry;
+        try {
+            entry = OffHeapMemory.allocateMemory(size);
+        } catch (OutOfMemoryError e) {
+            used.addAndGet(-size);
+            throw new IOException("Fail to allocate " + size + " bytes", e);
+        }
+        OffHeapMemory.putInt(entry, key.length);
+        OffHeapMemory.putInt(entry + Integer.BYTES, recordLength);
+        OffHeapMemory.copyMemory(key, OffHeapMemory.BYTE_ARRAY_OFFSET, null, entry + ENTRY_HEADER_LENGTH, key.length);
+        OffHeapMemory.copyMemory(header, OffHeapMemory.BYTE_ARRAY_OFFSET, null, recordAddress(entry), header.length);
+        return entry;
+    }
+
+    private void free(long entry) {
+        used.addAndGet(-(ENTRY_HEADER_LENGTH + (long) keyLength(entry) + recordLength(entry)));
+        OffHeapMemory.freeMemory(entry);
+    }
+
+    /**
+     * Takes the size out of the capacity, evicting entries until it fits
+     */
+    private void reserve(long size) throws IOException {
+        if (size > capacity) {
+            throw new IOException("Entry of " + size + " bytes exceeds the capacity of " + capacity);
+        }
+        while (true) {
+            long current = used.get();
+            if (current + size <= capacity) {
+                if (used.compareAndSet(current, current + size)) {
+                    return;
+                }
+            } else if (!evict()) {
+                throw new IOException("No room for " + size + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Evicts an entry of the next segment which has one. Segments locked by other threads are
+     * skipped, so eviction never waits for a lock while the caller holds one.
+     *
+     * @return false if all segments are empty
+     */
+    private boolean evict() {
+        while (true) {
+            boolean busy = false;
+            for (int i = 0; i < SEGMENTS; i++) {
+                Segment segment = segments[hand.getAndIncrement() & (SEGMENTS - 1)];
+                if (!segment.lock.tryLock()) {
+                    busy = true;
+                    continue;
+                }
+                try {
+                    long entry = segment.evict();
+                    if (entry != 0) {
+                        free(entry);
+                        evicted.increment();
+                        return true;
+                    }
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+            if (!busy) {
+                return false;
+            }
+            Thread.yield();
+        }
+    }
+
+    @NotNull
+    private Segment segment(int hash) {
+        return segments[segmentIndex(hash)];
+    }
+
+    /**
+     * Slots are taken by the low bits of the hash, segments by the high ones
+     */
+    private static int segmentIndex(int hash) {
+        return hash >>> (Integer.SIZE - Integer.numberOfTrailingZeros(SEGMENTS));
+    }
+
+    private static int hash(@NotNull byte[] key) {
+        long hash = Hash.mix(Hash.hash64(key));
+        return (int) (hash ^ (hash >>> Integer.SIZE));
+    }
+
+    @NotNull
+    private static int[] hashes(@NotNull List<byte[]> keys) {
+        int[] hashes = new int[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = hash(keys.get(i));
+        }
+        return hashes;
+    }
+
+    private static boolean sameKey(long entry, @NotNull byte[] key) {
+        if (keyLength(entry) != key.length) {
+            return false;
+        }
+        long address = entry + ENTRY_HEADER_LENGTH;
+        for (int i = 0; i < key.length; i++) {
+            if (OffHeapMemory.getByte(address + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the key of the entry with the given one as {@link ByteUtils#compare} does
+     */
+    private static int compareKey(long entry, @NotNull byte[] key) {
+        int length = keyLength(entry);
+        long address = entry + ENTRY_HEADER_LENGTH;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (OffHeapMemory.getByte(address + i) & 0xFF) - (key[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int keyLength(long entry) {
+        return OffHeapMemory.getInt(entry);
+    }
+
+    private static int recordLength(long entry) {
+        return OffHeapMemory.getInt(entry + Integer.BYTES);
+    }
+
+    private static long recordAddress(long entry) {
+        return entry + ENTRY_HEADER_LENGTH + keyLength(entry);
+    }
+
+    @NotNull
+    private static byte[] key(long entry) {
+        return copy(entry + ENTRY_HEADER_LENGTH, keyLength(entry));
+    }
+
+    @NotNull
+    private static byte[] record(long entry) {
+        return copy(recordAddress(entry), recordLength(entry));
+    }
+
+    /**
+     * @return flag, timestamp and expiry if the record has one
+     */
+    @NotNull
+    private static byte[] header(long entry) {
+        return copy(recordAddress(entry), Math.min(recordLength(entry), MAX_HEADER_LENGTH));
+    }
+
+    private static long payloadLength(long entry, @NotNull byte[] header) {
+        return recordLength(entry) - KVDaoRocksDB.payloadOffset(header);
+    }
+
+    /**
+     * @return true if the record is a tombstone or a value expired by now
+     */
+    private static boolean isRemoved(@NotNull byte[] header) {
+        return KVDaoRocksDB.isRemoved(header) || KVDaoRocksDB.expiresOf(header) <= System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the value is too large to be passed inline between replicas
+     */
+    private static boolean isLarge(long entry, @NotNull byte[] header) {
+        return !KVDaoRocksDB.isSiblings(header) && payloadLength(entry, header) > StreamSession.MAX_INLINE_BODY;
+    }
+
+    @NotNull
+    private static byte[] copy(long address, int length) {
+        byte[] bytes = new byte[length];
+        OffHeapMemory.copyMemory(null, address, bytes, OffHeapMemory.BYTE_ARRAY_OFFSET, length);
+        return bytes;
+    }
+
+    /**
+     * Frees all memory once the operations in progress leave their segments, writers still open
+     * free their entries themselves
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (int i = 0; i < segment.slots; i++) {
+                    long entry = segment.entry(i);
+                    if (entry != 0) {
+                        free(entry);
+                    }
+                }
+                OffHeapMemory.freeMemory(segment.table);
+                tables.addAndGet(-(long) segment.slots * SLOT_SIZE);
+                segment.size = 0;
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+}
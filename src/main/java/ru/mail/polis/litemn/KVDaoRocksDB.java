@@ -1,26 +1,73 @@
 package ru.mail.polis.litemn;
 
 import org.jetbrains.annotations.NotNull;
-import org.rocksdb.Options;
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.AbstractNativeReference;
+import org.rocksdb.Cache;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.DBOptions;
+import org.rocksdb.Filter;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
-import ru.mail.polis.KVDao;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.Snapshot;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiPredicate;
 
 /**
- * RocksDB KV dao impl
+ * RocksDB KV dao impl. Large values are stored as chunks in a separate column family
+ * and referenced by a manifest stored under the key. Hints for unreachable replicas are kept
+ * in a column family of their own, see {@link HintStore}.
+ * <p>
+ * Values with TTL keep the expiry after the timestamp, see {@link #expiring}. An expired value reads
+ * as a tombstone written at the time of the value and is purged with tombstones.
+ * <p>
+ * With vector versioning the payload is the {@link Siblings} of the key, such records are merged
+ * with the stored ones instead of replacing them.
  */
-public class KVDaoRocksDB implements KVDao {
+public class KVDaoRocksDB implements InternalKVDao {
 
+    static final int CHUNK_SIZE = 256 * 1024;
+    private static final Logger LOGGER = LoggerFactory.getLogger(KVDaoRocksDB.class);
     private static final int FLAG_LENGTH = 1;
     private static final byte EXISTS = FLAG_LENGTH;
     private static final byte REMOVED = 0;
-    private static final byte[] EMPTY = new byte[]{};
+    private static final byte CHUNKED = 2;
+    private static final byte EXPIRING = 3;
+    private static final byte SIBLINGS = 4;
+    private static final int MANIFEST_LENGTH = FLAG_LENGTH + 3 * Long.BYTES;
+    private static final byte[] CHUNKS_FAMILY = "chunks".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HINTS_FAMILY = "hints".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Flag and timestamp in front of the payload, callers reserve it to pass a record without a copy
+     */
+    static final int HEADER_LENGTH = FLAG_LENGTH + Long.BYTES;
+    static final int EXPIRING_HEADER_LENGTH = HEADER_LENGTH + Long.BYTES;
+    private static final int MAX_RETAINED_READ = 64 * 1024;
+    private static final ThreadLocal<ReadBuffer> READ_BUFFER = ThreadLocal.withInitial(ReadBuffer::new);
+    // RocksDB copies the value on put, so a tombstone array is reused by its thread
+    private static final ThreadLocal<byte[]> TOMBSTONE = ThreadLocal.withInitial(() -> new byte[HEADER_LENGTH]);
 
     static {
         //load native library
@@ -28,36 +75,209 @@ public class KVDaoRocksDB implements KVDao {
     }
 
     private final RocksDB db;
+    private final RocksDBConfig config;
+    private final RowCache cache;
+    private final WriteOptions writeOptions;
+    private final GroupCommit commits;
+    // options, cache and filter must outlive the db
+    private final List<AbstractNativeReference> resources = new ArrayList<>();
+    private final List<ColumnFamilyHandle> handles = new ArrayList<>();
+    private final ColumnFamilyHandle chunks;
+    private final HintStore hints;
+    // writes of the default family are shared, the tombstone sweeper deletes exclusively
+    private final StampedLock writes = new StampedLock();
+    private final TombstoneSweeper sweeper;
+    @Nullable
+    private final ScheduledExecutorService sweeps;
+    private final AtomicLong uploads = new AtomicLong(System.currentTimeMillis() << 16);
+    private final HybridClock clock = new HybridClock();
+    // siblings are read, merged and written back under the lock of their stripe
+    private final Object[] stripes = new Object[64];
 
     public KVDaoRocksDB(File dir) {
+        this(dir, RocksDBConfig.defaults());
+    }
+
+    public KVDaoRocksDB(@NotNull File dir, @NotNull RocksDBConfig config) {
         if (!dir.exists() || !dir.isDirectory()) {
             throw new IllegalArgumentException("File must be dir");
         }
-        try (final Options options = new Options().setCreateIfMissing(true)) {
-            db = RocksDB.open(options, dir.getPath());
+        this.config = config;
+        this.cache = new RowCache(config.getRowCacheSize());
+        Arrays.setAll(stripes, i -> new Object());
+        Cache blockCache = config.newCache();
+        Filter filter = config.newFilter();
+        ColumnFamilyOptions familyOptions = config.toColumnFamilyOptions(blockCache, filter);
+        DBOptions options = config.toDBOptions();
+        writeOptions = new WriteOptions().setSync(config.isSync());
+        resources.addAll(Arrays.asList(options, familyOptions, writeOptions));
+        if (blockCache != null) {
+            resources.add(blockCache);
+        }
+        if (filter != null) {
+            resources.add(filter);
+        }
+        List<ColumnFamilyDescriptor> families = Arrays.asList(
+                new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, familyOptions),
+                new ColumnFamilyDescriptor(CHUNKS_FAMILY, familyOptions),
+                new ColumnFamilyDescriptor(HINTS_FAMILY, familyOptions));
+        try {
+            db = RocksDB.open(options, dir.getPath(), families, handles);
+            chunks = handles.get(1);
+            hints = new RocksDBHintStore(db, handles.get(2), writeOptions);
+            commits = new GroupCommit(db, writeOptions, config.getGroupCommitWindowMicros(),
+                    config.getGroupCommitSize());
+            sweeper = new TombstoneSweeper(db, writeOptions, writes, cache);
+            sweepChunks();
         } catch (RocksDBException e) {
+            resources.forEach(AbstractNativeReference::close);
             throw new IllegalStateException("Fail to init rocksDB", e);
         }
+        long interval = config.getTombstoneSweepIntervalSeconds();
+        if (interval > 0) {
+            sweeps = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "tombstone-sweeper");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            sweeps.scheduleWithFixedDelay(this::sweepInBackground, interval, interval, TimeUnit.SECONDS);
+        } else {
+            sweeps = null;
+        }
+        LOGGER.info("Opened RocksDB with {}", config);
+    }
+
+    @NotNull
+    public RocksDBConfig getConfig() {
+        return config;
+    }
+
+    @NotNull
+    @Override
+    public HintStore getHints() {
+        return hints;
+    }
+
+    @NotNull
+    @Override
+    public HybridClock getClock() {
+        return clock;
+    }
+
+    @Override
+    public void appendMetrics(@NotNull StringBuilder metrics) {
+        cache.appendMetrics(metrics);
+        commits.appendMetrics(metrics);
+        sweeper.appendMetrics(metrics);
+    }
+
+    /**
+     * Stored record read into a per-thread buffer, flag and timestamp are parsed in place
+     * and only the payload is copied out of it
+     */
+    private static final class ReadBuffer {
+        private byte[] retained = new byte[4 * 1024];
+        private byte[] bytes;
+        private int length;
+
+        private boolean isAbsent() {
+            return length <= 0;
+        }
+
+        private byte flag() {
+            return bytes[0];
+        }
+
+        private long time() {
+            return ByteUtils.getLong(bytes, FLAG_LENGTH);
+        }
+
+        private long expires() {
+            return flag() == EXPIRING ? ByteUtils.getLong(bytes, HEADER_LENGTH) : StorageValue.NEVER;
+        }
+
+        /**
+         * @return true if the record is a tombstone or a value expired by {@code now}
+         */
+        private boolean isRemoved(long now) {
+            return flag() == REMOVED || expires() <= now;
+        }
+
+        private int payloadOffset() {
+            return flag() == EXPIRING ? EXPIRING_HEADER_LENGTH : HEADER_LENGTH;
+        }
+
+        private int payloadLength() {
+            return length - payloadOffset();
+        }
+
+        /**
+         * Drops a record read into an array of its own, so it is not kept until the next read
+         */
+        private void release() {
+            if (bytes != retained) {
+                bytes = null;
+                length = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads the stored record without allocating the result array, records larger than
+     * {@link #MAX_RETAINED_READ} are read into an array of their own which is not kept,
+     * callers {@link ReadBuffer#release} the buffer when they are done with it.
+     * Cached records are returned in place, see {@link RowCache}.
+     */
+    @NotNull
+    private ReadBuffer read(@NotNull byte[] key) throws RocksDBException {
+        ReadBuffer buffer = READ_BUFFER.get();
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            buffer.bytes = cached;
+            buffer.length = cached.length;
+            return buffer;
+        }
+        long stamp = cache.stamp(key);
+        byte[] bytes = buffer.retained;
+        int length = db.get(key, bytes);
+        while (length > bytes.length) {
+            bytes = new byte[length];
+            if (length <= MAX_RETAINED_READ) {
+                buffer.retained = bytes;
+            }
+            // the record might change between reads, so repeat until it fits
+            length = db.get(key, bytes);
+        }
+        buffer.bytes = bytes;
+        buffer.length = length;
+        cache.put(key, bytes, length, stamp);
+        return buffer;
     }
 
     @NotNull
     @Override
     public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
         try {
-            byte[] bytes = db.get(key);
-            if (bytes == null || bytes.length == 0 || bytes[0] == REMOVED) {
+            ReadBuffer stored = read(key);
+            if (stored.isAbsent() || stored.isRemoved(System.currentTimeMillis())) {
                 throw new NoSuchElementException();
             }
-            return Arrays.copyOfRange(bytes, FLAG_LENGTH + Long.BYTES, bytes.length);
+            if (stored.flag() == CHUNKED) {
+                return readChunked(key);
+            }
+            return Arrays.copyOfRange(stored.bytes, stored.payloadOffset(), stored.length);
         } catch (RocksDBException e) {
             throw new IOException(e);
+        } finally {
+            READ_BUFFER.get().release();
         }
     }
 
     @Override
     public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
         try {
-            db.put(key, getStoredValue(value, EXISTS));
+            store(key, getStoredValue(value, EXISTS, clock.now()));
         } catch (RocksDBException e) {
             throw new IOException(e);
         }
@@ -66,45 +286,537 @@ public class KVDaoRocksDB implements KVDao {
     @Override
     public void remove(@NotNull byte[] key) throws IOException {
         try {
-            byte[] removed = getStoredValue(EMPTY, REMOVED);
-            db.put(key, removed);
+            store(key, tombstone(clock.now()));
         } catch (RocksDBException e) {
             throw new IOException(e);
         }
     }
 
     public boolean removeInternal(@NotNull byte[] key) {
+        return removeInternal(key, clock.now());
+    }
+
+    @Override
+    public boolean removeInternal(@NotNull byte[] key, long time) {
+        clock.observe(time);
         try {
-            byte[] removed = getStoredValue(EMPTY, REMOVED);
-            db.put(key, removed);
+            store(key, tombstone(time));
             return true;
         } catch (RocksDBException e) {
             return false;
         }
     }
 
+    @NotNull
+    @Override
     public StorageValue getInternal(@NotNull byte[] key) throws IOException {
-        byte[] bytes;
         try {
-            bytes = db.get(key);
-            if (bytes == null || bytes.length == 0) {
+            ReadBuffer stored = read(key);
+            if (stored.isAbsent()) {
                 return StorageValue.absent();
             }
-            long time = ByteUtils.getLong(Arrays.copyOfRange(bytes, FLAG_LENGTH, Long.BYTES + FLAG_LENGTH));
-            if (bytes[0] == REMOVED) {
-                return StorageValue.removed(time);
+            if (stored.isRemoved(System.currentTimeMillis())) {
+                return StorageValue.removed(stored.time());
+            }
+            if (stored.flag() == CHUNKED) {
+                return StorageValue.chunked(stored.time());
             }
-            byte[] value = Arrays.copyOfRange(bytes, FLAG_LENGTH + Long.BYTES, bytes.length);
-            return StorageValue.exists(value, time);
+            return StorageValue.exists(Arrays.copyOfRange(stored.bytes, stored.payloadOffset(), stored.length),
+                    stored.time(), stored.expires());
         } catch (RocksDBException e) {
             throw new IOException(e);
+        } finally {
+            READ_BUFFER.get().release();
         }
+    }
 
+    @NotNull
+    @Override
+    public byte[] getEncoded(@NotNull byte[] key, boolean digest) throws IOException {
+        try {
+            ReadBuffer stored = read(key);
+            if (stored.isAbsent()) {
+                return StorageValueCodec.encode(StorageValue.State.ABSENT, -1, null, 0, -1);
+            }
+            if (stored.isRemoved(System.currentTimeMillis())) {
+                return StorageValueCodec.encode(StorageValue.State.REMOVED, stored.time(), null, 0, -1);
+            }
+            // chunked values are never transferred inline
+            int length = digest || stored.flag() == CHUNKED ? -1 : stored.payloadLength();
+            return StorageValueCodec.encode(StorageValue.State.EXISTS, stored.time(), stored.expires(),
+                    stored.bytes, stored.payloadOffset(), length);
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        } finally {
+            READ_BUFFER.get().release();
+        }
     }
 
-    public boolean upsertInternal(@NotNull byte[] key, @NotNull byte[] value) {
+    /**
+     * Reads all keys with one RocksDB multiGet
+     */
+    @NotNull
+    @Override
+    public List<StorageValue> getInternal(@NotNull List<byte[]> keys) throws IOException {
         try {
-            db.put(key, getStoredValue(value, EXISTS));
+            Map<byte[], byte[]> found = db.multiGet(keys);
+            List<StorageValue> result = new ArrayList<>(keys.size());
+            for (byte[] key : keys) {
+                result.add(toStorageValue(found.get(key)));
+            }
+            return result;
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Iterates stored records from {@code from} inclusive to {@code to} exclusive, tombstones included.
+     * Iterator reads a consistent view and must be closed.
+     */
+    @NotNull
+    @Override
+    public RecordIterator range(@NotNull byte[] from, @Nullable byte[] to) {
+        RocksIterator iterator = db.newIterator();
+        iterator.seek(from);
+        return new RecordIterator() {
+            @Override
+            public boolean hasNext() {
+                return iterator.isValid() && (to == null || ByteUtils.compare(iterator.key(), to) < 0);
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Record record = new Record(iterator.key(), toStorageValue(iterator.value()));
+                iterator.next();
+                return record;
+            }
+
+            @Override
+            public void close() {
+                iterator.close();
+            }
+        };
+    }
+
+    /**
+     * Visits all stored records in key order on a snapshot, tombstones and manifests of chunked values
+     * included. Blocks read by the scan don't evict the block cache, so a background scan doesn't
+     * push out the blocks foreground reads use.
+     *
+     * @param visitor takes the key and the stored record, returns false to stop the scan
+     */
+    @Override
+    public void scan(@NotNull BiPredicate<byte[], byte[]> visitor) {
+        try (ReadOptions options = new ReadOptions().setFillCache(false);
+             RocksIterator iterator = db.newIterator(options)) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                if (!visitor.test(iterator.key(), iterator.value())) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the record is a tombstone
+     */
+    static boolean isRemoved(@NotNull byte[] record) {
+        return record.length == HEADER_LENGTH && record[0] == REMOVED;
+    }
+
+    /**
+     * @param before wall clock millis
+     * @return true if the record is a tombstone stamped before {@code before} or a value expired by then
+     */
+    static boolean isPurgeable(@NotNull byte[] record, long before) {
+        return (isRemoved(record) && HybridClock.physical(timeOf(record)) < before) || expiresOf(record) < before;
+    }
+
+    /**
+     * @return time the record expires at or {@link StorageValue#NEVER}
+     */
+    static long expiresOf(@NotNull byte[] record) {
+        return record.length >= EXPIRING_HEADER_LENGTH && record[0] == EXPIRING
+                ? ByteUtils.getLong(record, HEADER_LENGTH)
+                : StorageValue.NEVER;
+    }
+
+    /**
+     * @return true if the record is a value a client wrote, plain, expiring or siblings
+     */
+    static boolean isValue(@NotNull byte[] record) {
+        return record.length >= HEADER_LENGTH && (record[0] == EXISTS || record[0] == SIBLINGS
+                || record[0] == EXPIRING && record.length >= EXPIRING_HEADER_LENGTH);
+    }
+
+    /**
+     * @return true if the record can be passed between replicas, i.e. it is not a manifest
+     */
+    static boolean isReplicable(@NotNull byte[] record) {
+        return record.length >= HEADER_LENGTH && record[0] != CHUNKED
+                && (record[0] != REMOVED || record.length == HEADER_LENGTH)
+                && (record[0] != EXPIRING || record.length >= EXPIRING_HEADER_LENGTH);
+    }
+
+    static boolean isSiblings(@NotNull byte[] record) {
+        return record.length >= HEADER_LENGTH && record[0] == SIBLINGS;
+    }
+
+    /**
+     * @return true if the record is a manifest of a value stored as chunks
+     */
+    static boolean isChunked(@NotNull byte[] record) {
+        return record.length > 0 && record[0] == CHUNKED;
+    }
+
+    /**
+     * Starts a value which is too large to be passed as an array, see {@link ChunkedValueWriter}
+     *
+     * @param time timestamp the coordinator assigned to the value
+     */
+    @NotNull
+    @Override
+    public ValueWriter openWriter(@NotNull byte[] key, long length, long time) throws IOException {
+        clock.observe(time);
+        return new ChunkedValueWriter(db, chunks, cache, writes, key, uploads.incrementAndGet(), length, time);
+    }
+
+    /**
+     * Opens the stored value for reading piece by piece, large values are read chunk by chunk
+     *
+     * @return null if the value is absent or removed
+     */
+    @Nullable
+    @Override
+    public ValueSource openValue(@NotNull byte[] key) throws IOException {
+        Snapshot snapshot = db.getSnapshot();
+        try (ReadOptions options = new ReadOptions().setSnapshot(snapshot)) {
+            byte[] bytes = db.get(options, key);
+            if (bytes == null || bytes.length == 0 || bytes[0] == REMOVED
+                    || expiresOf(bytes) <= System.currentTimeMillis()) {
+                db.releaseSnapshot(snapshot);
+                return null;
+            }
+            if (bytes[0] == CHUNKED) {
+                ByteBuffer manifest = ByteBuffer.wrap(bytes, FLAG_LENGTH + Long.BYTES, 2 * Long.BYTES);
+                long length = manifest.getLong();
+                return new ChunkedValueSource(db, chunks, snapshot, manifest.getLong(), length);
+            }
+            db.releaseSnapshot(snapshot);
+            return ValueSource.of(Arrays.copyOfRange(bytes, payloadOffset(bytes), bytes.length));
+        } catch (RocksDBException e) {
+            db.releaseSnapshot(snapshot);
+            throw new IOException(e);
+        }
+    }
+
+    private byte[] readChunked(@NotNull byte[] key) throws IOException {
+        ValueSource source = openValue(key);
+        if (source == null) {
+            throw new NoSuchElementException();
+        }
+        try {
+            if (source.length() > Integer.MAX_VALUE - Long.BYTES) {
+                throw new IOException("Value of " + source.length() + " bytes doesn't fit an array");
+            }
+            ByteBuffer value = ByteBuffer.allocate((int) source.length());
+            for (byte[] chunk = source.next(); chunk != null; chunk = source.next()) {
+                value.put(chunk);
+            }
+            return value.array();
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Drops chunks of uploads that were interrupted or whose value was overwritten by a small one
+     */
+    private void sweepChunks() throws RocksDBException {
+        try (RocksIterator iterator = db.newIterator(chunks)) {
+            iterator.seekToFirst();
+            while (iterator.isValid()) {
+                long upload = ByteBuffer.wrap(iterator.key()).getLong();
+                if (uploadOf(db.get(iterator.value())) != upload) {
+                    db.deleteRange(chunks, chunkKey(upload, 0), chunkKey(upload + 1, 0));
+                }
+                iterator.seek(chunkKey(upload + 1, 0));
+            }
+        }
+    }
+
+    /**
+     * Key of a chunk, the header chunk 0 holds the owner key and data chunks start from 1
+     */
+    static byte[] chunkKey(long upload, int index) {
+        return ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(upload).putInt(index).array();
+    }
+
+    /**
+     * Manifest of a large value
+     * +---------+-----------+--------+--------+
+     * | chunked | timestamp | length | upload |
+     * +---------+-----------+--------+--------+
+     */
+    static byte[] manifest(long time, long length, long upload) {
+        return ByteBuffer.allocate(MANIFEST_LENGTH)
+                .put(CHUNKED)
+                .putLong(time)
+                .putLong(length)
+                .putLong(upload)
+                .array();
+    }
+
+    /**
+     * @return upload referenced by the stored value or -1 if the value is not chunked
+     */
+    static long uploadOf(@Nullable byte[] stored) {
+        if (stored == null || stored.length != MANIFEST_LENGTH || stored[0] != CHUNKED) {
+            return -1;
+        }
+        return ByteBuffer.wrap(stored, FLAG_LENGTH + 2 * Long.BYTES, Long.BYTES).getLong();
+    }
+
+    @NotNull
+    static StorageValue toStorageValue(@Nullable byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return StorageValue.absent();
+        }
+        long time = ByteUtils.getLong(bytes, FLAG_LENGTH);
+        long expires = expiresOf(bytes);
+        if (bytes[0] == REMOVED || expires <= System.currentTimeMillis()) {
+            return StorageValue.removed(time);
+        }
+        if (bytes[0] == CHUNKED) {
+            return StorageValue.chunked(time);
+        }
+        byte[] value = Arrays.copyOfRange(bytes, payloadOffset(bytes), bytes.length);
+        return StorageValue.exists(value, time, expires);
+    }
+
+    /**
+     * @return offset of the payload in a stored value
+     */
+    static int payloadOffset(@NotNull byte[] record) {
+        return record[0] == EXPIRING ? EXPIRING_HEADER_LENGTH : HEADER_LENGTH;
+    }
+
+    @Override
+    public boolean upsertRecord(@NotNull byte[] key, @Nullable byte[] record) {
+        if (record == null || !isValue(record)) {
+            return false;
+        }
+        clock.observe(timeOf(record));
+        if (isSiblings(record)) {
+            return mergeSiblings(key, record);
+        }
+        try {
+            store(key, record);
+            return true;
+        } catch (RocksDBException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Fills the header of a record whose payload follows {@link #HEADER_LENGTH} reserved bytes,
+     * so the array becomes the stored value without a copy
+     */
+    @NotNull
+    public static byte[] stamp(@NotNull byte[] record, long time) {
+        record[0] = EXISTS;
+        ByteUtils.putLong(record, FLAG_LENGTH, time);
+        return record;
+    }
+
+    /**
+     * Copies the payload into a record which expires at the given time
+     * +----------+-----------+---------+---------+
+     * | expiring | timestamp | expires | payload |
+     * +----------+-----------+---------+---------+
+     */
+    @NotNull
+    public static byte[] expiring(@NotNull byte[] payload, int offset, int length, long time, long expires) {
+        byte[] record = new byte[EXPIRING_HEADER_LENGTH + length];
+        record[0] = EXPIRING;
+        ByteUtils.putLong(record, FLAG_LENGTH, time);
+        ByteUtils.putLong(record, HEADER_LENGTH, expires);
+        System.arraycopy(payload, offset, record, EXPIRING_HEADER_LENGTH, length);
+        return record;
+    }
+
+    /**
+     * @return new tombstone record
+     */
+    @NotNull
+    public static byte[] removed(long time) {
+        byte[] record = new byte[HEADER_LENGTH];
+        record[0] = REMOVED;
+        ByteUtils.putLong(record, FLAG_LENGTH, time);
+        return record;
+    }
+
+    /**
+     * @return timestamp of the record
+     */
+    static long timeOf(@NotNull byte[] record) {
+        return ByteUtils.getLong(record, FLAG_LENGTH);
+    }
+
+    /**
+     * Applies the newer records as one WriteBatch. A write racing with the apply may still be
+     * overwritten by an older record, the apply is meant for records that are already late.
+     */
+    @Override
+    public boolean applyNewer(@NotNull List<byte[]> keys, @NotNull List<byte[]> records) {
+        try (WriteBatch batch = new WriteBatch()) {
+            List<byte[]> written = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] record = records.get(i);
+                if (!isReplicable(record)) {
+                    return false;
+                }
+                clock.observe(timeOf(record));
+                if (isSiblings(record)) {
+                    if (!mergeSiblings(keys.get(i), record)) {
+                        return false;
+                    }
+                    continue;
+                }
+                ReadBuffer stored = read(keys.get(i));
+                if (stored.isAbsent() || stored.time() < timeOf(record)) {
+                    batch.put(keys.get(i), record);
+                    written.add(keys.get(i));
+                }
+            }
+            if (!written.isEmpty()) {
+                write(batch);
+                written.forEach(cache::invalidate);
+            }
+            return true;
+        } catch (RocksDBException e) {
+            return false;
+        } finally {
+            READ_BUFFER.get().release();
+        }
+    }
+
+    @NotNull
+    @Override
+    public byte[] updateSiblings(@NotNull byte[] key,
+                          @NotNull long[] context,
+                          int replica,
+                          @Nullable byte[] value,
+                          long time) throws IOException {
+        synchronized (stripe(key)) {
+            try {
+                byte[] record = siblings(siblingsOf(read(key)).update(context, replica, value), time);
+                store(key, record);
+                return record;
+            } catch (RocksDBException e) {
+                throw new IOException(e);
+            } finally {
+                READ_BUFFER.get().release();
+            }
+        }
+    }
+
+    /**
+     * @return false if the record is malformed or the write failed
+     */
+    private boolean mergeSiblings(@NotNull byte[] key, @NotNull byte[] record) {
+        synchronized (stripe(key)) {
+            try {
+                ReadBuffer stored = read(key);
+                long time = stored.isAbsent() ? timeOf(record) : Math.max(stored.time(), timeOf(record));
+                Siblings merged = siblingsOf(stored).sync(siblingsOf(record));
+                store(key, siblings(merged, time));
+                return true;
+            } catch (IOException | RocksDBException e) {
+                LOGGER.error("Fail to merge siblings", e);
+                return false;
+            } finally {
+                READ_BUFFER.get().release();
+            }
+        }
+    }
+
+    /**
+     * Values stored without siblings are not carried over, vector versioning starts with empty storage
+     */
+    @NotNull
+    private static Siblings siblingsOf(@NotNull ReadBuffer stored) throws IOException {
+        if (stored.isAbsent() || stored.flag() != SIBLINGS) {
+            return Siblings.empty();
+        }
+        return Siblings.decode(stored.bytes, HEADER_LENGTH, stored.payloadLength());
+    }
+
+    /**
+     * Values stored without siblings are not carried over
+     */
+    @NotNull
+    static Siblings siblingsOf(@Nullable byte[] record) throws IOException {
+        if (record == null || !isSiblings(record)) {
+            return Siblings.empty();
+        }
+        return Siblings.decode(record, HEADER_LENGTH, record.length - HEADER_LENGTH);
+    }
+
+    @NotNull
+    private Object stripe(@NotNull byte[] key) {
+        return stripes[Arrays.hashCode(key) & (stripes.length - 1)];
+    }
+
+    /**
+     * Record of the siblings
+     * +----------+-----------+----------+
+     * | siblings | timestamp | siblings |
+     * +----------+-----------+----------+
+     */
+    @NotNull
+    static byte[] siblings(@NotNull Siblings siblings, long time) {
+        byte[] encoded = siblings.encode();
+        byte[] record = new byte[HEADER_LENGTH + encoded.length];
+        record[0] = SIBLINGS;
+        ByteUtils.putLong(record, FLAG_LENGTH, time);
+        System.arraycopy(encoded, 0, record, HEADER_LENGTH, encoded.length);
+        return record;
+    }
+
+    /**
+     * Copies the payload into a record to be stamped
+     */
+    @NotNull
+    public static byte[] record(@NotNull byte[] payload) {
+        byte[] record = new byte[HEADER_LENGTH + payload.length];
+        System.arraycopy(payload, 0, record, HEADER_LENGTH, payload.length);
+        return record;
+    }
+
+    public boolean applyInternal(@NotNull List<Mutation> mutations) {
+        return applyInternal(mutations, clock.now());
+    }
+
+    /**
+     * Applies all mutations with one WriteBatch, i.e. a single WAL append
+     */
+    @Override
+    public boolean applyInternal(@NotNull List<Mutation> mutations, long time) {
+        clock.observe(time);
+        try (WriteBatch batch = new WriteBatch()) {
+            for (Mutation mutation : mutations) {
+                byte[] stored = mutation.isRemove()
+                        ? tombstone(time)
+                        : getStoredValue(mutation.getValue(), EXISTS, time);
+                batch.put(mutation.getKey(), stored);
+            }
+            write(batch);
+            mutations.forEach(mutation -> cache.invalidate(mutation.getKey()));
             return true;
         } catch (RocksDBException e) {
             return false;
@@ -119,18 +831,109 @@ public class KVDaoRocksDB implements KVDao {
      *
      * @param value value for store
      * @param flag  flag {@code ru.mail.polis.litemn.KVDaoRocksDB#EXISTS} {@code ru.mail.polis.litemn.KVDaoRocksDB#REMOVED}
+     * @param time  timestamp of the modification
      * @return array of bytes in correct form
      */
-    private byte[] getStoredValue(@NotNull byte[] value, @NotNull byte flag) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(FLAG_LENGTH + value.length + Long.BYTES);
-        byteBuffer.put(flag);
-        byteBuffer.putLong(System.currentTimeMillis());
-        byteBuffer.put(value);
-        return byteBuffer.array();
+    private static byte[] getStoredValue(@NotNull byte[] value, @NotNull byte flag, long time) {
+        byte[] stored = new byte[HEADER_LENGTH + value.length];
+        stored[0] = flag;
+        ByteUtils.putLong(stored, FLAG_LENGTH, time);
+        System.arraycopy(value, 0, stored, HEADER_LENGTH, value.length);
+        return stored;
+    }
+
+    /**
+     * Single key write of the default family, see {@link GroupCommit}
+     */
+    private void store(@NotNull byte[] key, @NotNull byte[] record) throws RocksDBException {
+        long stamp = writes.readLock();
+        try {
+            commits.put(key, record);
+        } finally {
+            writes.unlockRead(stamp);
+        }
+        cache.invalidate(key);
+    }
+
+    private void write(@NotNull WriteBatch batch) throws RocksDBException {
+        long stamp = writes.readLock();
+        try {
+            db.write(writeOptions, batch);
+        } finally {
+            writes.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Purges tombstones and expired values older than the grace period, sweeps run in the background
+     * as well
+     *
+     * @return number of purged records
+     */
+    long sweepTombstones() throws IOException {
+        try {
+            long grace = TimeUnit.SECONDS.toMillis(config.getTombstoneGraceSeconds());
+            return sweeper.sweep(System.currentTimeMillis() - grace);
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Compacts the default family, purged tombstones leave the disk only with compaction
+     */
+    void compact() throws IOException {
+        try {
+            db.compactRange();
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return bytes of SST files and memtables
+     */
+    long spaceUsed() throws IOException {
+        try {
+            return Long.parseLong(db.getProperty("rocksdb.total-sst-files-size"))
+                    + Long.parseLong(db.getProperty("rocksdb.cur-size-all-mem-tables"));
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void sweepInBackground() {
+        try {
+            long purged = sweepTombstones();
+            LOGGER.debug("Purged {} tombstones", purged);
+        } catch (IOException e) {
+            LOGGER.error("Fail to sweep tombstones", e);
+        }
+    }
+
+    /**
+     * @return tombstone in the per-thread array, valid until the next call on this thread
+     */
+    private static byte[] tombstone(long time) {
+        byte[] tombstone = TOMBSTONE.get();
+        tombstone[0] = REMOVED;
+        ByteUtils.putLong(tombstone, FLAG_LENGTH, time);
+        return tombstone;
     }
 
     @Override
     public void close() {
+        if (sweeps != null) {
+            sweeps.shutdownNow();
+            try {
+                // the sweep must leave the db before it is closed
+                sweeps.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        handles.forEach(ColumnFamilyHandle::close);
         db.close();
+        resources.forEach(AbstractNativeReference::close);
     }
 }
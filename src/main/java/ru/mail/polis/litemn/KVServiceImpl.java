@@ -8,77 +8,189 @@ import one.nio.http.Path;
 import one.nio.http.Request;
 import one.nio.http.Response;
 import one.nio.net.ConnectionString;
+import one.nio.net.Socket;
 import one.nio.server.AcceptorConfig;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.KVDao;
 import ru.mail.polis.KVService;
+import ru.mail.polis.litemn.command.BatchCommand;
+import ru.mail.polis.litemn.command.BatchGetCommand;
 import ru.mail.polis.litemn.command.CommandProcessor;
 import ru.mail.polis.litemn.command.CommandProcessorFactory;
 import ru.mail.polis.litemn.command.DeleteCommand;
+import ru.mail.polis.litemn.command.ForwardCommand;
 import ru.mail.polis.litemn.command.GetCommand;
+import ru.mail.polis.litemn.command.HintsCommand;
+import ru.mail.polis.litemn.command.Peer;
+import ru.mail.polis.litemn.command.PeerStats;
 import ru.mail.polis.litemn.command.PutCommand;
+import ru.mail.polis.litemn.command.PutStream;
+import ru.mail.polis.litemn.command.ScanCommand;
+import ru.mail.polis.litemn.placement.PlacementStrategy;
+import ru.mail.polis.litemn.placement.PlacementStrategyFactory;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
-import static one.nio.serial.Serializer.serialize;
 
 /**
  * one-nio KV service impl
  */
 public class KVServiceImpl extends HttpServer implements KVService {
     public static final String ENTITY_PATH = "/v0/entity";
+    public static final String ENTITIES_PATH = "/v0/entities";
+    public static final String BATCH_PATH = "/v0/batch";
     public static final String STATUS_PATH = "/v0/status";
+    public static final String METRICS_PATH = "/v0/metrics";
+    public static final String REPAIR_PATH = "/v0/repair";
     public static final String INTERNAL_HEADER = "X-Internal-header: true";
+    /**
+     * Causal context of the siblings a client read, passed back as {@code context} of the next write
+     */
+    public static final String CONTEXT_HEADER = "X-Context: ";
     private static final Logger LOGGER = LoggerFactory.getLogger(KVServiceImpl.class);
+    private static final String HEDGE_PERCENTILE_PROPERTY = "litemn.hedge.percentile";
+    private static final String HEDGE_DELAY_PROPERTY = "litemn.hedge.delay.micros";
+    private static final String POOL_SIZE_PROPERTY = "litemn.peer.pool.size";
+    private static final String PEER_TIMEOUT_PROPERTY = "litemn.peer.timeout.ms";
+    private static final String PEER_BACKOFF_PROPERTY = "litemn.peer.backoff.ms";
+    private static final String HINTS_BATCH_PROPERTY = "litemn.hints.batch.size";
+    private static final String HINTS_RATE_PROPERTY = "litemn.hints.batches.per.second";
+    private static final String READ_REPAIR_PROPERTY = "litemn.read.repair.chance";
+    private static final String REPAIR_INTERVAL_PROPERTY = "litemn.repair.interval.ms";
+    private static final String REPAIR_DEPTH_PROPERTY = "litemn.repair.depth";
+    private static final String REPAIR_SCAN_RATE_PROPERTY = "litemn.repair.scan.bytes.per.second";
+    private static final String REPAIR_PUSH_RATE_PROPERTY = "litemn.repair.push.bytes.per.second";
+    private static final String VERSIONING_PROPERTY = "litemn.versioning";
+    private static final int MAX_BATCH_IDS = 1024;
+    // payload bytes a multi get response carries inline, keys past it are read one by one
+    private static final int MAX_MULTI_GET_BYTES = 4 * 1024 * 1024;
+    // keys a multi get reads from the storage at once
+    private static final int MULTI_GET_SLICE = 16;
+    private static final int SCAN_PAGE_SIZE = 256;
+    // keeps the expiry far from overflow
+    private static final long MAX_TTL_SECONDS = Integer.MAX_VALUE;
     @NotNull
-    private final Map<String, HttpClient> clients;
+    private final Map<String, Peer> peers;
     @NotNull
-    private final List<String> hosts;
+    private final String me;
+    @NotNull
+    private final PlacementStrategy placement;
     @NotNull
     private final ExecutorService executor;
     @NotNull
-    private final KVDaoRocksDB dao;
+    private final ScheduledExecutorService scheduler;
+    @NotNull
+    private final InternalKVDao dao;
     @NotNull
     private final RF quorum;
+    private final int peerTimeout;
     private final CommandProcessor<Boolean> processor;
     private final CommandProcessor<StorageValue> getProcessor;
+    private final HintedHandoff handoff;
+    private final AntiEntropy antiEntropy;
+    private final double readRepairChance;
+    // concurrent writes are kept as siblings instead of the last write winning
+    private final boolean vector;
+    private final LongAdder readRepairs = new LongAdder();
+    @NotNull
+    private final ScheduledExecutorService repairScheduler;
 
     public KVServiceImpl(int port, @NotNull KVDao dao, @NotNull final Set<String> topology) throws IOException {
         super(create(port));
-        this.dao = (KVDaoRocksDB) dao;
+        if (!(dao instanceof InternalKVDao)) {
+            throw new IllegalArgumentException("Storage must keep internal records, got " + dao.getClass());
+        }
+        this.dao = (InternalKVDao) dao;
         this.quorum = RF.quorum(topology.size());
-        clients = new HashMap<>(topology.size() - 1);
-        hosts = new ArrayList<>(topology.size() - 1);
+        peers = new HashMap<>(topology.size() - 1);
+        double hedgePercentile = Double.parseDouble(System.getProperty(HEDGE_PERCENTILE_PROPERTY, "95"));
+        // every executor thread may hold a connection to the same peer
+        int poolSize = Integer.getInteger(POOL_SIZE_PROPERTY,
+                Math.max(10, 2 * Runtime.getRuntime().availableProcessors()));
+        int timeout = Integer.getInteger(PEER_TIMEOUT_PROPERTY, 3000);
+        this.peerTimeout = timeout;
+        long backoff = Long.getLong(PEER_BACKOFF_PROPERTY, 1000);
+        String self = null;
         for (String host : topology) {
             int indexOf = host.lastIndexOf(':');
             if (indexOf == -1) {
                 throw new IllegalArgumentException("Wrong host of server " + host);
             }
             if (Integer.valueOf(host.substring(indexOf + 1)) == port) {
+                self = host;
                 continue;
             }
-            hosts.add(host);
-            clients.put(host, new HttpClient(new ConnectionString(host)));
+            HttpClient client = new HttpClient(new ConnectionString(
+                    host + "?clientMaxPoolSize=" + poolSize + "&timeout=" + timeout));
+            peers.put(host, new Peer(host, client, new PeerStats(hedgePercentile), backoff));
+        }
+        if (self == null) {
+            throw new IllegalArgumentException("Topology doesn't contain port " + port);
         }
-        hosts.sort(String::compareTo);
+        this.me = self;
+        this.placement = PlacementStrategyFactory.newPlacementStrategy(topology);
         executor = Executors.newWorkStealingPool();
+        ScheduledThreadPoolExecutor hedgeScheduler = new ScheduledThreadPoolExecutor(1);
+        hedgeScheduler.setRemoveOnCancelPolicy(true);
+        scheduler = hedgeScheduler;
         processor = CommandProcessorFactory.newCommandProcessor(executor);
-        getProcessor = CommandProcessorFactory.newCommandProcessor(executor);
+        getProcessor = CommandProcessorFactory.newHedgedCommandProcessor(executor, scheduler,
+                Long.getLong(HEDGE_DELAY_PROPERTY, TimeUnit.MILLISECONDS.toMicros(10)));
+        readRepairChance = Double.parseDouble(System.getProperty(READ_REPAIR_PROPERTY, "0.1"));
+        String versioning = System.getProperty(VERSIONING_PROPERTY, "timestamp");
+        if (!"timestamp".equals(versioning) && !"vector".equals(versioning)) {
+            throw new IllegalArgumentException("Versioning must be timestamp or vector");
+        }
+        vector = "vector".equals(versioning);
+        int batchSize = Integer.getInteger(HINTS_BATCH_PROPERTY, 128);
+        handoff = new HintedHandoff(this.dao, peers, batchSize,
+                Integer.getInteger(HINTS_RATE_PROPERTY, 8), peerTimeout);
+        // replay blocks on peers, so it runs on the executor rather than the hedge scheduler
+        scheduler.scheduleWithFixedDelay(() -> executor.execute(handoff::replay), 1, 1, TimeUnit.SECONDS);
+        antiEntropy = new AntiEntropy(this.dao, placement, me, peers, quorum.getFrom(),
+                Integer.getInteger(REPAIR_DEPTH_PROPERTY, 10),
+                RocksDBConfig.parseSize(System.getProperty(REPAIR_SCAN_RATE_PROPERTY, "16m")),
+                RocksDBConfig.parseSize(System.getProperty(REPAIR_PUSH_RATE_PROPERTY, "1m")),
+                batchSize);
+        // a round scans the whole storage, so it gets a low priority thread of its own
+        repairScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "repair-" + port);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        long repairInterval = Long.getLong(REPAIR_INTERVAL_PROPERTY, TimeUnit.MINUTES.toMillis(1));
+        if (repairInterval > 0) {
+            repairScheduler.scheduleWithFixedDelay(antiEntropy::repair, repairInterval, repairInterval,
+                    TimeUnit.MILLISECONDS);
+        }
     }
 
     private static HttpServerConfig create(int port) {
@@ -99,44 +211,215 @@ public class KVServiceImpl extends HttpServer implements KVService {
         return Response.ok(Response.EMPTY);
     }
 
+    /**
+     * Sends the tree of the keys shared with the peer, see {@link AntiEntropy}
+     */
+    @Path(value = REPAIR_PATH)
+    public Response repair(Request request) {
+        String peer = request.getParameter("peer=");
+        String root = request.getParameter("root=");
+        if (request.getMethod() != Request.METHOD_GET || request.getHeader(INTERNAL_HEADER) == null
+                || peer == null || root == null) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        MerkleTree tree = antiEntropy.tree(peer);
+        if (tree == null) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+        try {
+            if (tree.root() == Long.parseUnsignedLong(root, 16)) {
+                return new Response(Response.NOT_MODIFIED, Response.EMPTY);
+            }
+        } catch (NumberFormatException e) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        return Response.ok(tree.toBytes());
+    }
+
+    @Path(value = METRICS_PATH)
+    public Response metrics(Request request) {
+        if (request.getMethod() != Request.METHOD_GET) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        StringBuilder metrics = new StringBuilder();
+        for (Peer peer : peers.values()) {
+            peer.appendMetrics(metrics);
+        }
+        dao.appendMetrics(metrics);
+        handoff.appendMetrics(metrics);
+        antiEntropy.appendMetrics(metrics);
+        metrics.append("repair.read.records ").append(readRepairs.sum()).append('\n');
+        return Response.ok(metrics.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public HttpSession createSession(Socket socket) {
+        return new StreamSession(socket, this, this::startUpload,
+                request -> ENTITY_PATH.equals(request.getPath()) && request.getHeader(INTERNAL_HEADER) == null,
+                executor);
+    }
+
     @Override
     public void handleDefault(Request request, HttpSession session) throws IOException {
-        RF rf = quorum;
         boolean internal = request.getHeader(INTERNAL_HEADER) != null;
         LOGGER.debug("Request: {}", request);
-        if (!request.getPath().equals(ENTITY_PATH)) {
-            LOGGER.debug("Bad path {}", request.getPath());
+        RF rf = replicationFactor(request);
+        if (rf == null) {
             session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
             return;
         }
-        String id = request.getParameter("id=");
-        if (id == null || id.isEmpty()) {
-            LOGGER.debug("Missing id param for {}", request.getPath());
+        if (vector && !internal && !ENTITY_PATH.equals(request.getPath())) {
+            LOGGER.debug("{} is not supported with vector versioning", request.getPath());
             session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
             return;
         }
-        String replicas = request.getParameter("replicas=");
-        if (replicas != null) {
-            try {
-                rf = RF.from(replicas);
-            } catch (IllegalArgumentException e) {
+        switch (request.getPath()) {
+            case ENTITY_PATH:
+                entity(request, session, internal, rf);
+                break;
+            case ENTITIES_PATH:
+                entities(request, session, internal, rf);
+                break;
+            case BATCH_PATH:
+                batch(request, session, internal, rf);
+                break;
+            default:
+                LOGGER.debug("Bad path {}", request.getPath());
                 session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
-                return;
+        }
+    }
+
+    /**
+     * @return replication factor of the request or null if it is wrong
+     */
+    @Nullable
+    private RF replicationFactor(final @NotNull Request request) {
+        String replicas = request.getParameter("replicas=");
+        if (replicas == null) {
+            return quorum;
+        }
+        RF rf;
+        try {
+            rf = RF.from(replicas);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (rf.getFrom() > placement.getNodes().size()) {
+            LOGGER.debug("Replicas {} exceed cluster size", replicas);
+            return null;
+        }
+        return rf;
+    }
+
+    /**
+     * Streams the body of a large PUT into the local chunks and to the replicas, see {@link ValueUpload}.
+     * Values with TTL or siblings are not streamed, their body must fit a request.
+     */
+    @Nullable
+    private StreamSession.Upload startUpload(final @NotNull Request request,
+                                             final long length,
+                                             final @NotNull StreamSession session) throws IOException {
+        String id = request.getParameter("id=");
+        RF rf = replicationFactor(request);
+        if (!ENTITY_PATH.equals(request.getPath()) || id == null || id.isEmpty() || rf == null
+                || request.getParameter("ttl=") != null || vector) {
+            return null;
+        }
+        LOGGER.debug("Upload {} bytes by id {}", length, id);
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        if (request.getHeader(INTERNAL_HEADER) != null) {
+            if (request.getParameter("time=") == null) {
+                // a stamped record, it never exceeds the inline limit of records
+                return null;
+            }
+            long time = time(request);
+            ValueWriter writer = dao.openWriter(key, length, time);
+            if (request.getParameter("hint=") != null) {
+                writer = newerOnly(key, time, writer);
+            }
+            return new ValueUpload(session, writer, Collections.emptyList(), 1,
+                    Response.INTERNAL_ERROR, executor, host -> { });
+        }
+        long time = dao.getClock().now();
+        List<String> replicas = getHosts(key, rf);
+        List<PutStream> remotes = remotes(replicas)
+                .map(h -> new PutStream(peers.get(h), id, length, time, peerTimeout))
+                .collect(toList());
+        ValueWriter local = replicas.contains(me) ? dao.openWriter(key, length, time) : null;
+        byte[] manifest = KVDaoRocksDB.manifest(time, length, 0);
+        return new ValueUpload(session, local, remotes, rf.getAck(), Response.GATEWAY_TIMEOUT, executor,
+                host -> handoff.hint(host, key, manifest));
+    }
+
+    /**
+     * Writer of a replayed value, it is committed only if the stored record is older
+     */
+    @NotNull
+    private ValueWriter newerOnly(final @NotNull byte[] key, final long time, final @NotNull ValueWriter writer) {
+        return new ValueWriter() {
+            @Override
+            public void write(@NotNull byte[] bytes, int offset, int count) throws IOException {
+                writer.write(bytes, offset, count);
+            }
+
+            @Override
+            public boolean commit() {
+                try {
+                    StorageValue stored = dao.getInternal(key);
+                    if (stored.getState() != StorageValue.State.ABSENT && stored.getTime() >= time) {
+                        writer.abort();
+                        return true;
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Fail to read the stored value", e);
+                    writer.abort();
+                    return false;
+                }
+                return writer.commit();
             }
+
+            @Override
+            public void abort() {
+                writer.abort();
+            }
+        };
+    }
+
+    private void entity(final @NotNull Request request,
+                        final @NotNull HttpSession session,
+                        final boolean internal,
+                        final @NotNull RF rf) throws IOException {
+        String id = request.getParameter("id=");
+        if (id == null || id.isEmpty()) {
+            LOGGER.debug("Missing id param for {}", request.getPath());
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
         }
         switch (request.getMethod()) {
             case Request.METHOD_GET:
-                if (internal) {
-                    getInternal(session, id);
+                if (internal && request.getParameter("stream=") != null) {
+                    streamInternal(session, id);
+                } else if (internal) {
+                    getInternal(session, id, request.getParameter("digest=") != null);
+                } else if (vector) {
+                    getSiblings(session, id, rf);
                 } else {
                     get(session, id, rf);
                 }
                 break;
             case Request.METHOD_PUT:
-                put(request, session, id, internal, rf);
+                if (vector && !internal) {
+                    writeSibling(request, session, id, body(request), rf, Response.CREATED);
+                } else {
+                    put(request, session, id, internal, rf);
+                }
                 break;
             case Request.METHOD_DELETE:
-                delete(session, id, internal, rf);
+                if (vector && !internal) {
+                    writeSibling(request, session, id, null, rf, Response.ACCEPTED);
+                } else {
+                    delete(request, session, id, internal, rf);
+                }
                 break;
             default:
                 LOGGER.debug("Bad request method {} for {}", request.getMethod(), request.getPath());
@@ -144,17 +427,146 @@ public class KVServiceImpl extends HttpServer implements KVService {
         }
     }
 
-    private void getInternal(final @NotNull HttpSession session, final @NotNull String id) throws IOException {
+    private void entities(final @NotNull Request request,
+                          final @NotNull HttpSession session,
+                          final boolean internal,
+                          final @NotNull RF rf) throws IOException {
+        if (internal && request.getMethod() == Request.METHOD_POST) {
+            batchGetInternal(request, session);
+            return;
+        }
+        String ids = request.getParameter("ids=");
+        String start = request.getParameter("start=");
+        if (request.getMethod() == Request.METHOD_GET && ids == null && start != null && !start.isEmpty()) {
+            range(request, session, start, internal, rf);
+            return;
+        }
+        if (request.getMethod() != Request.METHOD_GET || ids == null) {
+            LOGGER.debug("Bad request {} for {}", request.getMethod(), request.getPath());
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        String[] split = ids.split(",");
+        if (split.length > MAX_BATCH_IDS || Arrays.stream(split).anyMatch(String::isEmpty)) {
+            LOGGER.debug("Wrong ids {}", ids);
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        multiGet(session, split, rf);
+    }
+
+    /**
+     * Streams existing records from {@code start} inclusive to {@code end} exclusive. Every node is scanned
+     * page by page and the sorted streams are merged, the scan tolerates as many failed nodes
+     * as leave {@code ack} replicas for every key. Internal request returns one page with tombstones.
+     * Values uploaded by streaming are stored as chunks and are left out of the range, they are read by key only.
+     */
+    private void range(final @NotNull Request request,
+                       final @NotNull HttpSession session,
+                       final @NotNull String start,
+                       final boolean internal,
+                       final @NotNull RF rf) throws IOException {
+        String end = request.getParameter("end=");
+        if (end != null && end.isEmpty()) {
+            end = null;
+        }
+        String limitParameter = request.getParameter("limit=");
+        long limit = Long.MAX_VALUE;
+        if (limitParameter != null) {
+            try {
+                limit = Long.parseLong(limitParameter);
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit <= 0) {
+                LOGGER.debug("Wrong limit {}", limitParameter);
+                session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+                return;
+            }
+        }
+        LOGGER.debug("Range from {} to {} limit {}", start, end, limit);
+        byte[] from = start.getBytes(StandardCharsets.UTF_8);
+        byte[] to = end == null ? null : end.getBytes(StandardCharsets.UTF_8);
+        if (internal) {
+            List<byte[]> frames = new ArrayList<>();
+            long bytes = 0;
+            try (RecordIterator records = dao.range(from, to)) {
+                for (long i = 0; i < Math.min(limit, SCAN_PAGE_SIZE) && bytes < ScanCommand.PAGE_BYTES
+                        && records.hasNext(); i++) {
+                    Record record = records.next();
+                    byte[] encoded = StorageValueCodec.encode(record.getValue());
+                    frames.add(record.getKey());
+                    frames.add(encoded);
+                    bytes += 2 * Integer.BYTES + record.getKey().length + encoded.length;
+                }
+            }
+            session.sendResponse(new Response(Response.OK, Frames.encode(frames)));
+            return;
+        }
+        List<RemoteRecordIterator> remotes = new ArrayList<>(peers.size());
+        for (Peer peer : peers.values()) {
+            remotes.add(new RemoteRecordIterator(peer, start, end, SCAN_PAGE_SIZE, executor));
+        }
+        final long max = limit;
+        try {
+            executor.execute(() -> streamRange(session, from, to, remotes, max, rf));
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Range rejected", e);
+            remotes.forEach(RemoteRecordIterator::close);
+            sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+        }
+    }
+
+    /**
+     * Waits for the first pages of the peers off the selector thread and streams the merged records
+     */
+    private void streamRange(final @NotNull HttpSession session,
+                             final @NotNull byte[] from,
+                             final @Nullable byte[] to,
+                             final @NotNull List<RemoteRecordIterator> remotes,
+                             final long limit,
+                             final @NotNull RF rf) {
+        List<RecordIterator> sources = new ArrayList<>(remotes.size() + 1);
+        sources.add(dao.range(from, to));
+        int failed = 0;
+        for (RemoteRecordIterator remote : remotes) {
+            if (remote.open()) {
+                sources.add(remote);
+            } else {
+                remote.close();
+                failed++;
+            }
+        }
+        RecordIterator merged = new MergingRecordIterator(sources);
+        if (failed > rf.getFrom() - rf.getAck()) {
+            LOGGER.debug("{} nodes failed to scan", failed);
+            merged.close();
+            sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+            return;
+        }
+        try {
+            ((StreamSession) session).stream(merged, limit);
+        } catch (IOException e) {
+            LOGGER.error("Fail to stream range", e);
+            merged.close();
+        }
+    }
+
+    private void getInternal(final @NotNull HttpSession session,
+                             final @NotNull String id,
+                             final boolean digest) throws IOException {
         try {
             LOGGER.debug("Request get entity by id {}", id);
-            StorageValue value = dao.getInternal(id.getBytes(Charset.forName(StandardCharsets.UTF_8.name())));
-            if (value.getState() == StorageValue.State.ABSENT || value.getState() == StorageValue.State.REMOVED) {
+            // the payload is copied from RocksDB straight into the response body
+            byte[] encoded = dao.getEncoded(id.getBytes(StandardCharsets.UTF_8), digest);
+            StorageValue.State state = StorageValueCodec.state(encoded);
+            if (state == StorageValue.State.ABSENT || state == StorageValue.State.REMOVED) {
                 LOGGER.debug("Entity by id {} not found", id);
-                session.sendResponse(new Response(Response.NOT_FOUND, serialize(value)));
-            } else if (value.getState() == StorageValue.State.EXISTS) {
-                session.sendResponse(new Response(Response.OK, serialize(value)));
-            } else if (value.getState() == StorageValue.State.ERROR) {
-                session.sendResponse(new Response(Response.GATEWAY_TIMEOUT, serialize(value)));
+                session.sendResponse(new Response(Response.NOT_FOUND, encoded));
+            } else if (state == StorageValue.State.EXISTS) {
+                session.sendResponse(new Response(Response.OK, encoded));
+            } else if (state == StorageValue.State.ERROR) {
+                session.sendResponse(new Response(Response.GATEWAY_TIMEOUT, encoded));
             }
         } catch (Exception e) {
             LOGGER.error("Fail to process get request by id {}", id);
@@ -162,108 +574,784 @@ public class KVServiceImpl extends HttpServer implements KVService {
         }
     }
 
+    /**
+     * Sends the payload of any size as a plain body
+     */
+    private void streamInternal(final @NotNull HttpSession session,
+                                final @NotNull String id) throws IOException {
+        ValueSource value = dao.openValue(id.getBytes(StandardCharsets.UTF_8));
+        if (value == null) {
+            session.sendResponse(new Response(Response.NOT_FOUND, Response.EMPTY));
+        } else {
+            ((StreamSession) session).stream(value);
+        }
+    }
+
     private void get(final @NotNull HttpSession session,
                      final @NotNull String id,
-                     @NotNull RF rf) throws IOException {
+                     @NotNull RF rf) {
+        LOGGER.debug("Request get entity by id {}", id);
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        List<String> replicas = getHosts(key, rf);
+        List<Callable<StorageValue>> commands = new ArrayList<>(replicas.size());
+        List<GetCommand> remoteCommands = new ArrayList<>(replicas.size());
+        List<String> remoteHosts = new ArrayList<>(replicas.size());
+        AtomicReference<StorageValue> local = new AtomicReference<>();
+        // the fastest replicas go first, the rest are queried only as hedges
+        if (replicas.contains(me)) {
+            commands.add(() -> {
+                StorageValue value = dao.getInternal(key);
+                local.set(value);
+                return value;
+            });
+        }
+        remotes(replicas)
+                .sorted(Comparator.comparingLong(h -> peers.get(h).getStats().getMedian()))
+                .forEach(h -> {
+                    // only the first replica sends the payload, others send the version
+                    GetCommand command = new GetCommand(peers.get(h), id, !commands.isEmpty());
+                    remoteCommands.add(command);
+                    remoteHosts.add(h);
+                    commands.add(command);
+                });
+        getProcessor.process(commands, s -> s.getState() != StorageValue.State.ERROR, rf.getAck())
+                .whenComplete((results, e) -> {
+                    if (e != null) {
+                        LOGGER.error("Fail to process get request by id " + id, e);
+                        sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                        return;
+                    }
+                    if (results.size() < rf.getAck()) {
+                        sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    // values which expired after the replica answered are merged as tombstones
+                    StorageValue value = results.stream()
+                            .map(s -> s.live(now))
+                            .filter(s -> s.getState() != StorageValue.State.ABSENT)
+                            .max(Comparator.comparingLong(StorageValue::getTime)
+                                    .thenComparing(s -> !s.isDigest()))
+                            .orElseGet(StorageValue::absent);
+                    if (value.getState() != StorageValue.State.ABSENT) {
+                        // a write which follows the read is versioned after what it has seen
+                        dao.getClock().observe(value.getTime());
+                    }
+                    List<String> stale = value.getState() == StorageValue.State.ABSENT
+                            || ThreadLocalRandom.current().nextDouble() >= readRepairChance
+                            ? Collections.emptyList()
+                            : stale(value, local.get(), remoteHosts, remoteCommands);
+                    if (value.isChunked()) {
+                        // read repair skips chunked values, they are never transferred inline: a replica
+                        // which missed one gets it from the hint the coordinator of its upload kept
+                        streamLocal(session, id, key);
+                    } else if (value.isDigest()) {
+                        fetchNewest(session, id, remoteCommands, value, stale);
+                    } else {
+                        readRepair(key, value, stale);
+                        respond(session, id, value);
+                    }
+                });
+    }
+
+    /**
+     * Reads the siblings from the replicas and merges them. A single value is sent as is, concurrent
+     * values as {@link Frames} with 300. Every response has the {@link #CONTEXT_HEADER} the next write
+     * passes to replace what was read.
+     */
+    private void getSiblings(final @NotNull HttpSession session,
+                             final @NotNull String id,
+                             @NotNull RF rf) {
+        LOGGER.debug("Request siblings by id {}", id);
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        List<String> replicas = getHosts(key, rf);
+        List<Callable<StorageValue>> commands = new ArrayList<>(replicas.size());
+        if (replicas.contains(me)) {
+            commands.add(() -> dao.getInternal(key));
+        }
+        // siblings can't be compared by digest, every replica sends its set
+        remotes(replicas).forEach(h -> commands.add(new GetCommand(peers.get(h), id, false)));
+        getProcessor.process(commands, s -> s.getState() != StorageValue.State.ERROR, rf.getAck())
+                .whenComplete((results, e) -> {
+                    if (e != null) {
+                        LOGGER.error("Fail to process get request by id " + id, e);
+                        sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                        return;
+                    }
+                    if (results.size() < rf.getAck()) {
+                        sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+                        return;
+                    }
+                    Siblings siblings = Siblings.empty();
+                    try {
+                        for (StorageValue value : results) {
+                            if (value.getState() == StorageValue.State.EXISTS) {
+                                siblings = siblings.sync(Siblings.decode(value.getValue()));
+                            }
+                        }
+                    } catch (IOException ex) {
+                        LOGGER.error("Malformed siblings by id " + id, ex);
+                        sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                        return;
+                    }
+                    List<byte[]> live = siblings.live();
+                    Response response;
+                    if (live.isEmpty()) {
+                        response = new Response(Response.NOT_FOUND, Response.EMPTY);
+                    } else if (live.size() == 1) {
+                        response = new Response(Response.OK, live.get(0));
+                    } else {
+                        response = new Response(Response.MULTIPLE_CHOICES, Frames.encode(live));
+                    }
+                    response.addHeader(CONTEXT_HEADER
+                            + Base64.getUrlEncoder().withoutPadding().encodeToString(
+                                    Siblings.encodeContext(siblings.context())));
+                    sendResponse(session, response);
+                });
+    }
+
+    /**
+     * Writes a sibling replacing those the {@code context} of the request has seen. The dot of the write
+     * is issued by a replica of the key, so a coordinator out of the replica set forwards the request.
+     *
+     * @param value new value or {@code null} to remove
+     */
+    private void writeSibling(final @NotNull Request request,
+                              final @NotNull HttpSession session,
+                              final @NotNull String id,
+                              final @Nullable byte[] value,
+                              final @NotNull RF rf,
+                              final @NotNull String status) throws IOException {
+        String encoded = request.getParameter("context=");
+        long[] context;
         try {
-            LOGGER.debug("Request get entity by id {}", id);
-            StorageValue value;
-            List<StorageValue> results = getProcessor.process(
-                    getHosts(rf).stream().map(h -> new GetCommand(clients.get(h), id)).collect(toList())
-            );
-            results.add(dao.getInternal(id.getBytes(Charset.forName(StandardCharsets.UTF_8.name()))));
-            value = results.stream()
-                    .filter(s -> s.getState() != StorageValue.State.ABSENT)
-                    .max(Comparator.comparingLong(StorageValue::getTime))
-                    .orElseGet(StorageValue::absent);
-            long ackCount = results.stream().filter(s -> s.getState() != StorageValue.State.ERROR).count();
-            switch (value.getState()) {
-                case EXISTS:
-                    if (ackCount < rf.getAck()) {
-                        session.sendResponse(new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+            context = encoded == null
+                    ? new long[0]
+                    : Siblings.decodeContext(Base64.getUrlDecoder().decode(encoded));
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.debug("Wrong context {}", encoded);
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        if ((value == null && request.getMethod() == Request.METHOD_PUT) || request.getParameter("ttl=") != null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        List<String> replicas = getHosts(key, rf);
+        int replica = replicas.indexOf(me);
+        if (replica < 0) {
+            LOGGER.debug("Forward write by id {} to {}", id, replicas.get(0));
+            ForwardCommand forward = new ForwardCommand(peers.get(replicas.get(0)), id, request.getURI(), value);
+            CompletableFuture.supplyAsync(forward::call, executor)
+                    .thenAccept(response -> sendResponse(session, response == null
+                            ? new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY)
+                            : new Response(response.getHeaders()[0], response.getBody())));
+            return;
+        }
+        byte[] record;
+        try {
+            record = dao.updateSiblings(key, context, replica, value, dao.getClock().now());
+        } catch (IOException e) {
+            LOGGER.error("Fail to write sibling by id " + id, e);
+            session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+            return;
+        }
+        List<Callable<Boolean>> commands = new ArrayList<>(replicas.size());
+        remotes(replicas).forEach(h ->
+                commands.add(hinted(h, key, record, new PutCommand(peers.get(h), id, record))));
+        commands.add(() -> true);
+        processor.process(commands, Boolean.TRUE::equals, rf.getAck())
+                .whenComplete((acks, e) -> respond(session, acks, e, rf, status));
+    }
+
+    /**
+     * @return body of a client PUT without the reserved record header or null if there is no body
+     */
+    @Nullable
+    private static byte[] body(final @NotNull Request request) {
+        byte[] body = request.getBody();
+        if (body == null || !StreamSession.hasRecordHeader(request)) {
+            return body;
+        }
+        return Arrays.copyOfRange(body, KVDaoRocksDB.HEADER_LENGTH, body.length);
+    }
+
+    /**
+     * @return replicas which answered with a version older than the newest one or with none
+     */
+    @NotNull
+    private List<String> stale(@NotNull StorageValue newest,
+                               @Nullable StorageValue local,
+                               @NotNull List<String> hosts,
+                               @NotNull List<GetCommand> commands) {
+        List<String> stale = new ArrayList<>();
+        if (isOlder(local, newest)) {
+            stale.add(me);
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            if (isOlder(commands.get(i).getResult(), newest)) {
+                stale.add(hosts.get(i));
+            }
+        }
+        return stale;
+    }
+
+    private static boolean isOlder(@Nullable StorageValue answer, @NotNull StorageValue newest) {
+        if (answer == null || answer.getState() == StorageValue.State.ERROR) {
+            // the replica didn't answer in time, its version is unknown
+            return false;
+        }
+        return answer.getState() == StorageValue.State.ABSENT || answer.getTime() < newest.getTime();
+    }
+
+    /**
+     * Pushes the newest version to the stale replicas in the background. The record keeps its timestamp
+     * and replicas apply it only if it is still newer than theirs, so a repair never rolls back a write
+     * which lands meanwhile.
+     */
+    private void readRepair(@NotNull byte[] key, @NotNull StorageValue newest, @NotNull List<String> stale) {
+        if (stale.isEmpty()) {
+            return;
+        }
+        byte[] record;
+        if (newest.getState() == StorageValue.State.REMOVED) {
+            record = KVDaoRocksDB.removed(newest.getTime());
+        } else if (newest.getExpires() == StorageValue.NEVER) {
+            record = KVDaoRocksDB.stamp(KVDaoRocksDB.record(newest.getValue()), newest.getTime());
+        } else {
+            byte[] value = newest.getValue();
+            record = KVDaoRocksDB.expiring(value, 0, value.length, newest.getTime(), newest.getExpires());
+        }
+        List<byte[]> keys = Collections.singletonList(key);
+        List<byte[]> records = Collections.singletonList(record);
+        try {
+            executor.execute(() -> {
+                for (String host : stale) {
+                    boolean repaired = host.equals(me)
+                            ? dao.applyNewer(keys, records)
+                            : new HintsCommand(peers.get(host), 1, Frames.encode(Arrays.asList(key, record))).call();
+                    if (repaired) {
+                        readRepairs.increment();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Skip read repair on stop", e);
+        }
+    }
+
+    /**
+     * The newest version came as a digest, read its payload from the replica which has it
+     */
+    private void fetchNewest(final @NotNull HttpSession session,
+                             final @NotNull String id,
+                             final @NotNull List<GetCommand> commands,
+                             final @NotNull StorageValue digest,
+                             final @NotNull List<String> stale) {
+        LOGGER.debug("Digest of {} is newer than data, fetch it", id);
+        GetCommand source = commands.stream()
+                .filter(c -> c.getResult() == digest)
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+        CompletableFuture.supplyAsync(source.fullRead()::call, executor).whenComplete((value, e) -> {
+            if (e != null
+                    || value.getState() == StorageValue.State.ERROR
+                    || value.getState() == StorageValue.State.ABSENT
+                    || value.getTime() < digest.getTime()) {
+                sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+            } else if (value.isDigest()) {
+                // the replica keeps the value in chunks
+                streamRemote(session, id, source);
+            } else {
+                StorageValue live = value.live(System.currentTimeMillis());
+                readRepair(id.getBytes(StandardCharsets.UTF_8), live, stale);
+                respond(session, id, live);
+            }
+        });
+    }
+
+    private void streamLocal(final @NotNull HttpSession session,
+                             final @NotNull String id,
+                             final @NotNull byte[] key) {
+        try {
+            ValueSource value = dao.openValue(key);
+            if (value == null) {
+                respond(session, id, StorageValue.absent());
+            } else {
+                ((StreamSession) session).stream(value);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Fail to stream value by id " + id, e);
+            sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+        }
+    }
+
+    private void streamRemote(final @NotNull HttpSession session,
+                              final @NotNull String id,
+                              final @NotNull GetCommand source) {
+        try {
+            ValueSource value = source.stream(peerTimeout);
+            if (value == null) {
+                sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+            } else {
+                ((StreamSession) session).stream(value);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Fail to stream value by id " + id, e);
+            sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+        }
+    }
+
+    private static void respond(final @NotNull HttpSession session,
+                                final @NotNull String id,
+                                final @NotNull StorageValue value) {
+        if (value.getState() == StorageValue.State.EXISTS) {
+            sendResponse(session, new Response(Response.OK, value.getValue()));
+        } else {
+            LOGGER.debug("Entity by id {} not found", id);
+            sendResponse(session, new Response(Response.NOT_FOUND, Response.EMPTY));
+        }
+    }
+
+    /**
+     * Sends one internal batch per replica, every key is resolved by its own quorum.
+     * Response holds a frame per id in request order
+     * +--------+--------+---------+-----
+     * | status | length | payload | ...
+     * +--------+--------+---------+-----
+     * Payloads take at most {@link #MAX_MULTI_GET_BYTES}, replicas read the keys past it as digests.
+     * Such keys and chunked values get 413, the client reads them one by one.
+     */
+    private void multiGet(final @NotNull HttpSession session,
+                          final @NotNull String[] ids,
+                          final @NotNull RF rf) {
+        LOGGER.debug("Request multi get of {} ids", ids.length);
+        int[] replicasCount = new int[ids.length];
+        byte[][] keys = new byte[ids.length][];
+        Map<String, List<Integer>> byHost = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+            List<String> replicas = getHosts(keys[i], rf);
+            replicasCount[i] = replicas.size();
+            for (String host : replicas) {
+                byHost.computeIfAbsent(host, h -> new ArrayList<>()).add(i);
+            }
+        }
+        BatchQuorum batchQuorum = new BatchQuorum(replicasCount, rf.getAck());
+        for (Map.Entry<String, List<Integer>> entry : byHost.entrySet()) {
+            String host = entry.getKey();
+            List<Integer> indexes = entry.getValue();
+            List<String> hostIds = new ArrayList<>(indexes.size());
+            indexes.forEach(i -> hostIds.add(ids[i]));
+            Callable<List<StorageValue>> command = host.equals(me)
+                    ? () -> readCapped(indexes.stream()
+                    .map(i -> keys[i])
+                    .collect(toList()))
+                    : new BatchGetCommand(peers.get(host), hostIds);
+            try {
+                executor.execute(() -> {
+                    List<StorageValue> values = null;
+                    try {
+                        values = command.call();
+                    } catch (Exception e) {
+                        LOGGER.error("Fail to read batch locally", e);
+                    }
+                    for (int i = 0; i < indexes.size(); i++) {
+                        if (values == null) {
+                            batchQuorum.onFailure(indexes.get(i));
+                        } else {
+                            batchQuorum.onResult(indexes.get(i), values.get(i));
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Multi get rejected", e);
+                sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+                return;
+            }
+        }
+        batchQuorum.getFuture().thenAccept(q -> {
+            List<StorageValue> results = new ArrayList<>(ids.length);
+            int size = 0;
+            int inline = 0;
+            for (int i = 0; i < ids.length; i++) {
+                StorageValue value = q.getResult(i);
+                size += 2 * Integer.BYTES;
+                if (hasPayload(value)) {
+                    if (inline + value.getValue().length > MAX_MULTI_GET_BYTES) {
+                        value = value.digest();
                     } else {
-                        session.sendResponse(new Response(Response.OK, value.getValue()));
+                        inline += value.getValue().length;
                     }
-                    return;
-                case ABSENT:
-                case REMOVED:
-                    LOGGER.debug("Entity by id {} not found", id);
-                    session.sendResponse(new Response(Response.NOT_FOUND, Response.EMPTY));
-                    return;
-                case ERROR:
-                    session.sendResponse(new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
-                    return;
-                default:
-                    throw new IllegalStateException();
+                }
+                results.add(value);
             }
+            ByteBuffer body = ByteBuffer.allocate(size + inline);
+            for (StorageValue value : results) {
+                if (value == null) {
+                    body.putInt(504).putInt(0);
+                } else if (value.isDigest()) {
+                    // chunked values and values past the cap are only read alone
+                    body.putInt(413).putInt(0);
+                } else if (value.getState() == StorageValue.State.EXISTS) {
+                    body.putInt(200).putInt(value.getValue().length).put(value.getValue());
+                } else {
+                    body.putInt(404).putInt(0);
+                }
+            }
+            sendResponse(session, new Response(Response.OK, body.array()));
+        });
+    }
 
-        } catch (Exception e) {
-            LOGGER.error("Fail to process get request by id " + id, e);
+    /**
+     * Reads the keys in slices of {@link #MULTI_GET_SLICE}, once the payloads reach
+     * {@link #MAX_MULTI_GET_BYTES} the values are read as digests
+     */
+    @NotNull
+    private List<StorageValue> readCapped(@NotNull List<byte[]> keys) throws IOException {
+        List<StorageValue> values = new ArrayList<>(keys.size());
+        int inline = 0;
+        for (int from = 0; from < keys.size(); from += MULTI_GET_SLICE) {
+            List<byte[]> slice = keys.subList(from, Math.min(keys.size(), from + MULTI_GET_SLICE));
+            if (inline >= MAX_MULTI_GET_BYTES) {
+                for (byte[] key : slice) {
+                    values.add(StorageValueCodec.decode(dao.getEncoded(key, true)));
+                }
+                continue;
+            }
+            for (StorageValue value : dao.getInternal(slice)) {
+                if (hasPayload(value)) {
+                    if (inline + value.getValue().length > MAX_MULTI_GET_BYTES) {
+                        value = value.digest();
+                    } else {
+                        inline += value.getValue().length;
+                    }
+                }
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    private static boolean hasPayload(@Nullable StorageValue value) {
+        return value != null && value.getState() == StorageValue.State.EXISTS && !value.isDigest();
+    }
+
+    private void batchGetInternal(final @NotNull Request request,
+                                  final @NotNull HttpSession session) throws IOException {
+        try {
+            List<StorageValue> values = readCapped(Frames.decode(request.getBody()));
+            List<byte[]> frames = new ArrayList<>(values.size());
+            for (StorageValue value : values) {
+                frames.add(StorageValueCodec.encode(value));
+            }
+            session.sendResponse(new Response(Response.OK, Frames.encode(frames)));
+        } catch (IOException e) {
+            LOGGER.error("Fail to process batch get", e);
             session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
         }
     }
 
-    private void delete(final @NotNull HttpSession session,
+    /**
+     * Body is a list of {@link Frames} holding a {@link Mutation} each. Mutations are grouped by replica,
+     * every replica applies its part with one WriteBatch and gets it with one internal request.
+     * Replies 201 when every key is acknowledged by {@code ack} replicas.
+     */
+    private void batch(final @NotNull Request request,
+                       final @NotNull HttpSession session,
+                       final boolean internal,
+                       final @NotNull RF rf) throws IOException {
+        if (request.getMethod() != Request.METHOD_POST || request.getBody() == null) {
+            LOGGER.debug("Bad request {} for {}", request.getMethod(), request.getPath());
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        if (internal && request.getParameter("hints=") != null) {
+            applyHints(request, session);
+            return;
+        }
+        List<byte[]> frames;
+        List<Mutation> mutations;
+        try {
+            frames = Frames.decode(request.getBody());
+            mutations = new ArrayList<>(frames.size());
+            for (byte[] frame : frames) {
+                mutations.add(Mutation.decode(frame));
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Malformed batch", e);
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        if (mutations.isEmpty()) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        LOGGER.debug("Batch of {} mutations", mutations.size());
+        if (internal) {
+            session.sendResponse(dao.applyInternal(mutations, time(request))
+                    ? new Response(Response.CREATED, Response.EMPTY)
+                    : new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+            return;
+        }
+        long time = dao.getClock().now();
+        int[] replicasCount = new int[mutations.size()];
+        Map<String, List<Integer>> byHost = new HashMap<>();
+        for (int i = 0; i < mutations.size(); i++) {
+            List<String> replicas = getHosts(mutations.get(i).getKey(), rf);
+            replicasCount[i] = replicas.size();
+            for (String host : replicas) {
+                byHost.computeIfAbsent(host, h -> new ArrayList<>()).add(i);
+            }
+        }
+        BatchQuorum batchQuorum = new BatchQuorum(replicasCount, rf.getAck());
+        for (Map.Entry<String, List<Integer>> entry : byHost.entrySet()) {
+            String host = entry.getKey();
+            List<Integer> indexes = entry.getValue();
+            Callable<Boolean> command;
+            if (host.equals(me)) {
+                List<Mutation> local = new ArrayList<>(indexes.size());
+                indexes.forEach(i -> local.add(mutations.get(i)));
+                command = () -> dao.applyInternal(local, time);
+            } else {
+                List<byte[]> remote = new ArrayList<>(indexes.size());
+                indexes.forEach(i -> remote.add(frames.get(i)));
+                command = new BatchCommand(peers.get(host), remote.size(), Frames.encode(remote), time);
+            }
+            try {
+                executor.execute(() -> {
+                    boolean applied = false;
+                    try {
+                        applied = command.call();
+                    } catch (Exception e) {
+                        LOGGER.error("Fail to apply batch locally", e);
+                    }
+                    for (int i : indexes) {
+                        if (applied) {
+                            batchQuorum.onSuccess(i);
+                        } else {
+                            batchQuorum.onFailure(i);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Batch rejected", e);
+                sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+                return;
+            }
+        }
+        batchQuorum.getFuture().thenAccept(q -> {
+            for (int i = 0; i < replicasCount.length; i++) {
+                if (!q.isSucceeded(i)) {
+                    sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+                    return;
+                }
+            }
+            sendResponse(session, new Response(Response.CREATED, Response.EMPTY));
+        });
+    }
+
+    /**
+     * Applies replayed hints, frames are key and record pairs
+     */
+    private void applyHints(final @NotNull Request request,
+                            final @NotNull HttpSession session) throws IOException {
+        List<byte[]> frames;
+        try {
+            frames = Frames.decode(request.getBody());
+        } catch (IOException e) {
+            LOGGER.debug("Malformed hints", e);
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        if (frames.isEmpty() || frames.size() % 2 != 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        List<byte[]> keys = new ArrayList<>(frames.size() / 2);
+        List<byte[]> records = new ArrayList<>(frames.size() / 2);
+        for (int i = 0; i < frames.size(); i += 2) {
+            keys.add(frames.get(i));
+            records.add(frames.get(i + 1));
+        }
+        LOGGER.debug("Apply {} hints", keys.size());
+        session.sendResponse(dao.applyNewer(keys, records)
+                ? new Response(Response.CREATED, Response.EMPTY)
+                : new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+    }
+
+    private void delete(final @NotNull Request request,
+                        final @NotNull HttpSession session,
                         final @NotNull String id,
                         final boolean internal,
                         final @NotNull RF rf) throws IOException {
-        try {
-            LOGGER.debug("Remove entity by id {}", id);
-            if (!internal && !hosts.isEmpty()) {
-                List<Boolean> result = processor.process(
-                        getHosts(rf).stream().map(h -> new DeleteCommand(clients.get(h), id)).collect(toList())
-                );
-                result.add(dao.removeInternal(id.getBytes(Charset.forName(StandardCharsets.UTF_8.name()))));
-                if (result.stream().filter(Predicate.isEqual(true)).count() < rf.getAck()) {
-                    session.sendResponse(new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
-                } else {
-                    session.sendResponse(new Response(Response.ACCEPTED, Response.EMPTY));
-                }
-            } else {
-                dao.remove(id.getBytes(Charset.forName(StandardCharsets.UTF_8.name())));
+        LOGGER.debug("Remove entity by id {}", id);
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        if (internal) {
+            if (dao.removeInternal(key, time(request))) {
                 session.sendResponse(new Response(Response.ACCEPTED, Response.EMPTY));
+            } else {
+                LOGGER.error("Error when remove by id {}", id);
+                session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
             }
-        } catch (Exception e) {
-            LOGGER.error("Error when remove by id " + id, e);
-            session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+            return;
+        }
+        List<String> replicas = getHosts(key, rf);
+        List<Callable<Boolean>> commands = new ArrayList<>(replicas.size());
+        long time = dao.getClock().now();
+        byte[] tombstone = KVDaoRocksDB.removed(time);
+        remotes(replicas).forEach(h ->
+                commands.add(hinted(h, key, tombstone, new DeleteCommand(peers.get(h), id, time))));
+        if (replicas.contains(me)) {
+            commands.add(() -> dao.removeInternal(key, time));
         }
+        processor.process(commands, Boolean.TRUE::equals, rf.getAck())
+                .whenComplete((acks, e) -> respond(session, acks, e, rf, Response.ACCEPTED));
     }
 
+    /**
+     * Internal PUT bodies are stamped records, see {@link KVDaoRocksDB#stamp}. The coordinator stamps
+     * the record once and the same array is stored locally and sent to the replicas.
+     * Optional {@code ttl} in seconds makes the value expire, see {@link KVDaoRocksDB#expiring}.
+     */
     private void put(
             final @NotNull Request request,
             final @NotNull HttpSession session,
             final @NotNull String id,
             final boolean internal,
             final RF rf) throws IOException {
-        try {
-            byte[] body = request.getBody();
-            LOGGER.debug("Put entity by id {}", id);
-            if (!internal) {
-                List<Boolean> result = processor.process(
-                        getHosts(rf).stream().map(h -> new PutCommand(clients.get(h), id, body)).collect(toList()));
-                result.add(dao.upsertInternal(id.getBytes(Charset.forName(StandardCharsets.UTF_8.name())), body));
-                if (result.stream().filter(Predicate.isEqual(true)).count() < rf.getAck()) {
-                    session.sendResponse(new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
-                } else {
-                    session.sendResponse(new Response(Response.CREATED, Response.EMPTY));
-                }
-            } else {
-                dao.upsert(id.getBytes(Charset.forName(StandardCharsets.UTF_8.name())), body);
+        byte[] body = request.getBody();
+        LOGGER.debug("Put entity by id {}", id);
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        if (internal) {
+            boolean stored = request.getParameter("hint=") != null && body != null
+                    ? dao.applyNewer(Collections.singletonList(key), Collections.singletonList(body))
+                    : dao.upsertRecord(key, body);
+            if (stored) {
                 session.sendResponse(new Response(Response.CREATED, Response.EMPTY));
+            } else {
+                LOGGER.error("Error when put by id {}", id);
+                session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
             }
-        } catch (Exception e) {
-            LOGGER.error("Error when put by id " + id, e);
-            session.sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+            return;
+        }
+        long ttl = ttl(request);
+        if (body == null || ttl <= 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        long time = dao.getClock().now();
+        byte[] record;
+        if (ttl == StorageValue.NEVER) {
+            record = KVDaoRocksDB.stamp(
+                    StreamSession.hasRecordHeader(request) ? body : KVDaoRocksDB.record(body),
+                    time);
+        } else {
+            int offset = StreamSession.hasRecordHeader(request) ? KVDaoRocksDB.HEADER_LENGTH : 0;
+            record = KVDaoRocksDB.expiring(body, offset, body.length - offset, time,
+                    HybridClock.physical(time) + ttl);
         }
+        List<String> replicas = getHosts(key, rf);
+        List<Callable<Boolean>> commands = new ArrayList<>(replicas.size());
+        remotes(replicas).forEach(h ->
+                commands.add(hinted(h, key, record, new PutCommand(peers.get(h), id, record))));
+        if (replicas.contains(me)) {
+            commands.add(() -> dao.upsertRecord(key, record));
+        }
+        processor.process(commands, Boolean.TRUE::equals, rf.getAck())
+                .whenComplete((acks, e) -> respond(session, acks, e, rf, Response.CREATED));
     }
 
-    private List<String> getHosts(RF rf) {
-        return hosts.subList(0, rf.getFrom() - 1);
+    /**
+     * @return timestamp the coordinator assigned to an internal write or a new one if there is none
+     */
+    private long time(final @NotNull Request request) {
+        String time = request.getParameter("time=");
+        if (time != null) {
+            try {
+                return Long.parseLong(time);
+            } catch (NumberFormatException e) {
+                LOGGER.debug("Wrong time {}", time);
+            }
+        }
+        return dao.getClock().now();
+    }
+
+    /**
+     * @return TTL of the request in millis, {@link StorageValue#NEVER} if absent or 0 if it is wrong
+     */
+    private static long ttl(final @NotNull Request request) {
+        String ttl = request.getParameter("ttl=");
+        if (ttl == null) {
+            return StorageValue.NEVER;
+        }
+        try {
+            long seconds = Long.parseLong(ttl);
+            return seconds > 0 && seconds <= MAX_TTL_SECONDS ? TimeUnit.SECONDS.toMillis(seconds) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Keeps a hint if the replica misses the write, see {@link HintedHandoff}
+     */
+    private Callable<Boolean> hinted(@NotNull String host,
+                                     @NotNull byte[] key,
+                                     @NotNull byte[] record,
+                                     @NotNull Callable<Boolean> command) {
+        return () -> {
+            Boolean applied = command.call();
+            if (!Boolean.TRUE.equals(applied)) {
+                handoff.hint(host, key, record);
+            }
+            return applied;
+        };
+    }
+
+    private static void respond(@NotNull HttpSession session,
+                                List<Boolean> acks,
+                                Throwable error,
+                                @NotNull RF rf,
+                                @NotNull String status) {
+        if (error != null) {
+            LOGGER.error("Fail to process modification", error);
+            sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+        } else if (acks.size() < rf.getAck()) {
+            sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+        } else {
+            sendResponse(session, new Response(status, Response.EMPTY));
+        }
+    }
+
+    /**
+     * Responses are sent from executor threads after the quorum is reached
+     */
+    private static void sendResponse(@NotNull HttpSession session, @NotNull Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            LOGGER.error("Fail to send response", e);
+        }
+    }
+
+    /**
+     * Replicas set for the key, the coordinator is included only if the placement puts the key on it
+     */
+    private List<String> getHosts(@NotNull byte[] key, @NotNull RF rf) {
+        return placement.replicas(key, rf.getFrom());
+    }
+
+    private Stream<String> remotes(@NotNull List<String> replicas) {
+        return replicas.stream().filter(h -> !h.equals(me));
     }
 
     @Override
     public synchronized void stop() {
         super.stop();
+        // the round must leave the storage before the dao is closed
+        repairScheduler.shutdownNow();
         executor.shutdown();
         try {
             executor.awaitTermination(5, TimeUnit.SECONDS);
@@ -271,5 +1359,12 @@ public class KVServiceImpl extends HttpServer implements KVService {
             Thread.currentThread().interrupt();
         }
         executor.shutdownNow();
+        scheduler.shutdownNow();
+        try {
+            repairScheduler.awaitTermination(peerTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        peers.values().forEach(Peer::close);
     }
 }
@@ -0,0 +1,136 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuning of {@link KVDaoLsm}, read by {@link #fromProperties} from {@code litemn.lsm.*} properties.
+ * Sizes accept {@code k}, {@code m} and {@code g} suffixes.
+ */
+public final class LsmConfig {
+    public static final String PREFIX = "litemn.lsm.";
+    static final String MEMTABLE_SIZE = "memtable.size";
+    static final String COMPACTION_THRESHOLD = "compaction.threshold";
+    static final String SYNC = "sync";
+    static final String TOMBSTONE_GRACE = "tombstone.grace.seconds";
+
+    private final long memTableSize;
+    private final int compactionThreshold;
+    private final boolean sync;
+    private final long tombstoneGraceSeconds;
+
+    private LsmConfig(@NotNull Builder builder) {
+        if (builder.memTableSize <= 0 || builder.tombstoneGraceSeconds < 0) {
+            throw new IllegalArgumentException("Sizes must be positive");
+        }
+        if (builder.compactionThreshold < 2) {
+            throw new IllegalArgumentException("Compaction merges at least 2 tables");
+        }
+        this.memTableSize = builder.memTableSize;
+        this.compactionThreshold = builder.compactionThreshold;
+        this.sync = builder.sync;
+        this.tombstoneGraceSeconds = builder.tombstoneGraceSeconds;
+    }
+
+    @NotNull
+    public static LsmConfig defaults() {
+        return new Builder().build();
+    }
+
+    @NotNull
+    public static LsmConfig fromProperties(@NotNull Properties properties) {
+        Builder builder = new Builder();
+        String value;
+        if ((value = get(properties, MEMTABLE_SIZE)) != null) {
+            builder.memTableSize(RocksDBConfig.parseSize(value));
+        }
+        if ((value = get(properties, COMPACTION_THRESHOLD)) != null) {
+            builder.compactionThreshold(Integer.parseInt(value));
+        }
+        if ((value = get(properties, SYNC)) != null) {
+            builder.sync(Boolean.parseBoolean(value));
+        }
+        if ((value = get(properties, TOMBSTONE_GRACE)) != null) {
+            builder.tombstoneGraceSeconds(Long.parseLong(value));
+        }
+        return builder.build();
+    }
+
+    @Nullable
+    private static String get(@NotNull Properties properties, @NotNull String name) {
+        String value = properties.getProperty(PREFIX + name);
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    public long getMemTableSize() {
+        return memTableSize;
+    }
+
+    public int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    public long getTombstoneGraceSeconds() {
+        return tombstoneGraceSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "lsm {memtable=" + memTableSize
+                + ", compaction=" + compactionThreshold
+                + ", sync=" + sync
+                + ", tombstones=" + tombstoneGraceSeconds + "s}";
+    }
+
+    /**
+     * Memtables of 4 MB fit the heap limit of the service with a few of them waiting for the flush
+     */
+    public static final class Builder {
+        private long memTableSize = 4 * 1024 * 1024;
+        private int compactionThreshold = 4;
+        private boolean sync;
+        private long tombstoneGraceSeconds = TimeUnit.DAYS.toSeconds(10);
+
+        public Builder memTableSize(long size) {
+            this.memTableSize = size;
+            return this;
+        }
+
+        /**
+         * @param count tables of similar size merged at once
+         */
+        public Builder compactionThreshold(int count) {
+            this.compactionThreshold = count;
+            return this;
+        }
+
+        /**
+         * @param sync fsync the log before a write returns
+         */
+        public Builder sync(boolean sync) {
+            this.sync = sync;
+            return this;
+        }
+
+        /**
+         * @param seconds age after which a tombstone is dropped by the compaction of the oldest table,
+         *                see {@link RocksDBConfig.Builder#tombstoneGraceSeconds}
+         */
+        public Builder tombstoneGraceSeconds(long seconds) {
+            this.tombstoneGraceSeconds = seconds;
+            return this;
+        }
+
+        @NotNull
+        public LsmConfig build() {
+            return new LsmConfig(this);
+        }
+    }
+}
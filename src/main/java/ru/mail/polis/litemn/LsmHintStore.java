@@ -0,0 +1,88 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.litemn.lsm.LsmTree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hints kept in a tree of their own, ids and values are those of {@link RocksDBHintStore}
+ */
+final class LsmHintStore implements HintStore {
+    private final LsmTree tree;
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() << 16);
+    private final Map<String, AtomicLong> backlog = new ConcurrentHashMap<>();
+
+    LsmHintStore(@NotNull LsmTree tree) {
+        this.tree = tree;
+        for (Iterator<Map.Entry<byte[], byte[]>> iterator = tree.range(new byte[0], null); iterator.hasNext(); ) {
+            counter(RocksDBHintStore.hostOf(iterator.next().getKey())).incrementAndGet();
+        }
+    }
+
+    @Override
+    public void add(@NotNull String host, @NotNull byte[] key, @NotNull byte[] record) throws IOException {
+        byte[] value = ByteBuffer.allocate(Integer.BYTES + key.length + record.length)
+                .putInt(key.length)
+                .put(key)
+                .put(record)
+                .array();
+        tree.put(RocksDBHintStore.hintId(host, sequence.incrementAndGet()), value);
+        counter(host).incrementAndGet();
+    }
+
+    @NotNull
+    @Override
+    public List<Hint> oldest(@NotNull String host, int limit, long maxBytes) {
+        List<Hint> result = new ArrayList<>();
+        long bytes = 0;
+        byte[] prefix = RocksDBHintStore.hintId(host, 0);
+        Iterator<Map.Entry<byte[], byte[]>> iterator = tree.range(prefix, null);
+        while (iterator.hasNext() && result.size() < limit) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            byte[] id = entry.getKey();
+            if (!RocksDBHintStore.sameHost(id, prefix)) {
+                break;
+            }
+            bytes += entry.getValue().length - Integer.BYTES;
+            if (!result.isEmpty() && bytes > maxBytes) {
+                break;
+            }
+            ByteBuffer value = ByteBuffer.wrap(entry.getValue());
+            byte[] key = new byte[value.getInt()];
+            value.get(key);
+            byte[] record = new byte[value.remaining()];
+            value.get(record);
+            result.add(new Hint(id, key, record));
+        }
+        return result;
+    }
+
+    @Override
+    public void remove(@NotNull String host, @NotNull List<Hint> replayed) throws IOException {
+        List<byte[]> ids = new ArrayList<>(replayed.size());
+        for (Hint hint : replayed) {
+            ids.add(hint.getId());
+        }
+        tree.apply(ids, Arrays.asList(new byte[ids.size()][]));
+        counter(host).addAndGet(-replayed.size());
+    }
+
+    @Override
+    public long backlog(@NotNull String host) {
+        AtomicLong count = backlog.get(host);
+        return count == null ? 0 : count.get();
+    }
+
+    private AtomicLong counter(@NotNull String host) {
+        return backlog.computeIfAbsent(host, h -> new AtomicLong());
+    }
+}
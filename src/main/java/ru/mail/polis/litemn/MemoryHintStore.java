@@ -0,0 +1,109 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hints kept on heap, they are lost with the node just like the data of an in-memory storage.
+ * The backlog of a host is capped by count and all hints together by bytes, the oldest hints of the
+ * host are dropped to let newer ones in and are left to anti-entropy.
+ */
+final class MemoryHintStore implements HintStore {
+    // hint, its id and array headers, the skip list node and the boxed sequence, roughly
+    private static final int HINT_OVERHEAD = 128;
+
+    private final int maxBacklog;
+    private final long maxBytes;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Hints of a host by sequence, the skip list doesn't count its entries in constant time
+     */
+    private static final class Queue {
+        private final ConcurrentSkipListMap<Long, Hint> hints = new ConcurrentSkipListMap<>();
+        private final AtomicLong size = new AtomicLong();
+    }
+
+    /**
+     * @param maxBacklog hints kept per host
+     * @param maxBytes   heap the hints of all hosts take, roughly
+     */
+    MemoryHintStore(int maxBacklog, long maxBytes) {
+        if (maxBacklog <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Backlog and bytes must be positive");
+        }
+        this.maxBacklog = maxBacklog;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void add(@NotNull String host, @NotNull byte[] key, @NotNull byte[] record) {
+        long id = sequence.incrementAndGet();
+        Queue queue = queues.computeIfAbsent(host, h -> new Queue());
+        Hint hint = new Hint(ByteUtils.getBytes(id), key, record);
+        queue.hints.put(id, hint);
+        queue.size.incrementAndGet();
+        long total = bytes.addAndGet(sizeOf(hint));
+        // the hint just added is dropped last, when the hints of other hosts take the bytes
+        while (queue.size.get() > maxBacklog || total > maxBytes) {
+            Map.Entry<Long, Hint> oldest = queue.hints.pollFirstEntry();
+            if (oldest == null) {
+                break;
+            }
+            queue.size.decrementAndGet();
+            total = bytes.addAndGet(-sizeOf(oldest.getValue()));
+        }
+    }
+
+    private static long sizeOf(@NotNull Hint hint) {
+        return HINT_OVERHEAD + hint.getKey().length + hint.getRecord().length;
+    }
+
+    @NotNull
+    @Override
+    public List<Hint> oldest(@NotNull String host, int limit, long maxBytes) {
+        List<Hint> result = new ArrayList<>();
+        long bytes = 0;
+        Queue queue = queues.get(host);
+        if (queue == null) {
+            return result;
+        }
+        for (Hint hint : queue.hints.values()) {
+            bytes += hint.getKey().length + hint.getRecord().length;
+            if (result.size() == limit || !result.isEmpty() && bytes > maxBytes) {
+                break;
+            }
+            result.add(hint);
+        }
+        return result;
+    }
+
+    @Override
+    public void remove(@NotNull String host, @NotNull List<Hint> replayed) {
+        Queue queue = queues.get(host);
+        if (queue == null) {
+            return;
+        }
+        for (Hint hint : replayed) {
+            Hint removed = queue.hints.remove(ByteUtils.getLong(hint.getId(), 0));
+            if (removed != null) {
+                queue.size.decrementAndGet();
+                bytes.addAndGet(-sizeOf(removed));
+            }
+        }
+    }
+
+    @Override
+    public long backlog(@NotNull String host) {
+        Queue queue = queues.get(host);
+        return queue == null ? 0 : queue.size.get();
+    }
+}
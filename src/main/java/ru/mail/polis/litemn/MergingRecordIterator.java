@@ -0,0 +1,83 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted record streams of replicas, the newest version of every key wins
+ * and keys whose newest version is a tombstone or a chunked value are skipped. Chunked values
+ * come from streamed uploads and are never transferred inline, so a range leaves them out.
+ */
+class MergingRecordIterator implements RecordIterator {
+    private final List<? extends RecordIterator> sources;
+    private final PriorityQueue<Head> heads;
+    private Record next;
+
+    MergingRecordIterator(@NotNull List<? extends RecordIterator> sources) {
+        this.sources = sources;
+        this.heads = new PriorityQueue<>(Math.max(1, sources.size()));
+        for (RecordIterator source : sources) {
+            advance(source);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !heads.isEmpty()) {
+            Head head = heads.poll();
+            Record newest = head.record;
+            advance(head.source);
+            while (!heads.isEmpty() && ByteUtils.compare(heads.peek().record.getKey(), newest.getKey()) == 0) {
+                Head same = heads.poll();
+                if (same.record.getValue().getTime() > newest.getValue().getTime()) {
+                    newest = same.record;
+                }
+                advance(same.source);
+            }
+            // chunked values are only streamed by key, replicas send them as digests
+            if (newest.getValue().getState() == StorageValue.State.EXISTS && !newest.getValue().isDigest()) {
+                next = newest;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Record next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Record result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() {
+        sources.forEach(RecordIterator::close);
+    }
+
+    private void advance(@NotNull RecordIterator source) {
+        if (source.hasNext()) {
+            heads.add(new Head(source.next(), source));
+        }
+    }
+
+    private static final class Head implements Comparable<Head> {
+        private final Record record;
+        private final RecordIterator source;
+
+        private Head(Record record, RecordIterator source) {
+            this.record = record;
+            this.source = source;
+        }
+
+        @Override
+        public int compareTo(@NotNull Head o) {
+            return ByteUtils.compare(record.getKey(), o.record.getKey());
+        }
+    }
+}
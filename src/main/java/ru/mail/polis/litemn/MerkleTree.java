@@ -0,0 +1,119 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.litemn.placement.Hash;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Hash tree over the records of a key range. Keys are split into {@code 2^depth} buckets by key hash,
+ * a leaf is the sum of its record hashes, so records are added in any order. Records are hashed by
+ * key, flag and timestamp only, as replicas reconcile by timestamp anyway.
+ * <p>
+ * Nodes are kept in an array, the root is at 1 and children of {@code i} are at {@code 2i} and
+ * {@code 2i + 1}. Only leaves are transferred, the receiver rebuilds inner nodes with {@link #seal}.
+ */
+final class MerkleTree {
+    static final int MAX_DEPTH = 20;
+
+    private final int depth;
+    private final long[] nodes;
+
+    MerkleTree(int depth) {
+        if (depth < 0 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Depth must be from 0 to " + MAX_DEPTH);
+        }
+        this.depth = depth;
+        this.nodes = new long[2 << depth];
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return bucket of the key for a tree of the depth
+     */
+    static int bucket(@NotNull byte[] key, int depth) {
+        return depth == 0 ? 0 : (int) (Hash.hash64(key) >>> (Long.SIZE - depth));
+    }
+
+    /**
+     * @param record stored value or tombstone, see {@link KVDaoRocksDB#stamp}
+     */
+    void add(@NotNull byte[] key, @NotNull byte[] record) {
+        long hash = Hash.mix(Hash.hash64(key) * 31 + KVDaoRocksDB.timeOf(record)) + record[0];
+        nodes[(1 << depth) + bucket(key, depth)] += hash;
+    }
+
+    /**
+     * Computes inner nodes, must be called after the last leaf changes
+     */
+    MerkleTree seal() {
+        for (int i = (1 << depth) - 1; i > 0; i--) {
+            nodes[i] = Hash.mix(nodes[2 * i] * 31 + nodes[2 * i + 1]);
+        }
+        return this;
+    }
+
+    long root() {
+        return nodes[1];
+    }
+
+    /**
+     * Descends only into subtrees whose hashes differ
+     *
+     * @return buckets that differ from the other tree of the same depth
+     */
+    @NotNull
+    BitSet diff(@NotNull MerkleTree other) {
+        if (other.depth != depth) {
+            throw new IllegalArgumentException("Depth " + other.depth + " differs from " + depth);
+        }
+        BitSet buckets = new BitSet(1 << depth);
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(1);
+        while (!pending.isEmpty()) {
+            int node = pending.pop();
+            if (nodes[node] == other.nodes[node]) {
+                continue;
+            }
+            if (node >= 1 << depth) {
+                buckets.set(node - (1 << depth));
+            } else {
+                pending.push(2 * node + 1);
+                pending.push(2 * node);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * @return leaves in bucket order
+     */
+    @NotNull
+    byte[] toBytes() {
+        ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES << depth);
+        for (int i = 1 << depth; i < nodes.length; i++) {
+            bytes.putLong(nodes[i]);
+        }
+        return bytes.array();
+    }
+
+    @NotNull
+    static MerkleTree fromBytes(@NotNull byte[] bytes) {
+        int leaves = bytes.length / Long.BYTES;
+        if (bytes.length % Long.BYTES != 0 || Integer.bitCount(leaves) != 1) {
+            throw new IllegalArgumentException("Wrong tree of " + bytes.length + " bytes");
+        }
+        MerkleTree tree = new MerkleTree(Integer.numberOfTrailingZeros(leaves));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int i = leaves; i < tree.nodes.length; i++) {
+            tree.nodes[i] = buffer.getLong();
+        }
+        return tree.seal();
+    }
+}
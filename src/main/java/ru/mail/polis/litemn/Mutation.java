@@ -0,0 +1,89 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Single upsert or remove of a batch write, one frame per mutation
+ * +------+------------+-----+---------+
+ * | type | key length | key | payload |
+ * +------+------------+-----+---------+
+ * Remove has no payload.
+ */
+public final class Mutation {
+    static final byte UPSERT = 1;
+    static final byte REMOVE = 0;
+    private static final int HEADER_LENGTH = 1 + Integer.BYTES;
+
+    private final byte type;
+    @NotNull
+    private final byte[] key;
+    @NotNull
+    private final byte[] value;
+
+    private Mutation(byte type, @NotNull byte[] key, @NotNull byte[] value) {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    @NotNull
+    public static Mutation upsert(@NotNull byte[] key, @NotNull byte[] value) {
+        return new Mutation(UPSERT, key, value);
+    }
+
+    @NotNull
+    public static Mutation remove(@NotNull byte[] key) {
+        return new Mutation(REMOVE, key, new byte[0]);
+    }
+
+    @NotNull
+    public byte[] encode() {
+        return ByteBuffer.allocate(HEADER_LENGTH + key.length + value.length)
+                .put(type)
+                .putInt(key.length)
+                .put(key)
+                .put(value)
+                .array();
+    }
+
+    @NotNull
+    public static Mutation decode(@NotNull byte[] frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        if (buffer.remaining() < HEADER_LENGTH) {
+            throw new IOException("Truncated mutation");
+        }
+        byte type = buffer.get();
+        if (type != UPSERT && type != REMOVE) {
+            throw new IOException("Unknown mutation type " + type);
+        }
+        int keyLength = buffer.getInt();
+        if (keyLength <= 0 || keyLength > buffer.remaining()) {
+            throw new IOException("Wrong key length " + keyLength);
+        }
+        byte[] key = new byte[keyLength];
+        buffer.get(key);
+        if (type == REMOVE && buffer.hasRemaining()) {
+            throw new IOException("Remove must not have a payload");
+        }
+        byte[] value = new byte[buffer.remaining()];
+        buffer.get(value);
+        return new Mutation(type, key, value);
+    }
+
+    public boolean isRemove() {
+        return type == REMOVE;
+    }
+
+    @NotNull
+    public byte[] getKey() {
+        return key;
+    }
+
+    @NotNull
+    public byte[] getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,59 @@
+package ru.mail.polis.litemn;
+
+import one.nio.util.JavaInternals;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Raw memory access of {@link KVDaoOffHeap}. The unsafe instance is reached through one-nio and never
+ * named, so the build has no warnings about the internal API. Calls are small enough to be inlined.
+ */
+final class OffHeapMemory {
+    static final long BYTE_ARRAY_OFFSET = JavaInternals.byteArrayOffset;
+
+    private OffHeapMemory() {
+    }
+
+    static long allocateMemory(long bytes) {
+        return JavaInternals.unsafe.allocateMemory(bytes);
+    }
+
+    static void freeMemory(long address) {
+        JavaInternals.unsafe.freeMemory(address);
+    }
+
+    static void setMemory(long address, long bytes, byte value) {
+        JavaInternals.unsafe.setMemory(address, bytes, value);
+    }
+
+    static void copyMemory(long from, long to, long bytes) {
+        JavaInternals.unsafe.copyMemory(from, to, bytes);
+    }
+
+    /**
+     * @param from array or null for an address
+     * @param to   array or null for an address
+     */
+    static void copyMemory(@Nullable Object from, long fromOffset, @Nullable Object to, long toOffset, long bytes) {
+        JavaInternals.unsafe.copyMemory(from, fromOffset, to, toOffset, bytes);
+    }
+
+    static byte getByte(long address) {
+        return JavaInternals.unsafe.getByte(address);
+    }
+
+    static int getInt(long address) {
+        return JavaInternals.unsafe.getInt(address);
+    }
+
+    static void putInt(long address, int value) {
+        JavaInternals.unsafe.putInt(address, value);
+    }
+
+    static long getLong(long address) {
+        return JavaInternals.unsafe.getLong(address);
+    }
+
+    static void putLong(long address, long value) {
+        JavaInternals.unsafe.putLong(address, value);
+    }
+}
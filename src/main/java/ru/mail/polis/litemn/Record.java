@@ -0,0 +1,28 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Key with its stored value, element of range scans
+ */
+public final class Record {
+    @NotNull
+    private final byte[] key;
+    @NotNull
+    private final StorageValue value;
+
+    public Record(@NotNull byte[] key, @NotNull StorageValue value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    @NotNull
+    public byte[] getKey() {
+        return key;
+    }
+
+    @NotNull
+    public StorageValue getValue() {
+        return value;
+    }
+}
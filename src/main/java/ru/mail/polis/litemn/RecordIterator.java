@@ -0,0 +1,13 @@
+package ru.mail.polis.litemn;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Records in ascending unsigned byte order of keys, holds native or remote resources until closed
+ */
+public interface RecordIterator extends Iterator<Record>, Closeable {
+
+    @Override
+    void close();
+}
@@ -0,0 +1,99 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.litemn.command.Peer;
+import ru.mail.polis.litemn.command.ScanCommand;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Range scan of a peer read page by page, the next page is requested while the current one is consumed
+ * so at most two pages of the peer are held on heap, see {@link ScanCommand#PAGE_BYTES}
+ */
+class RemoteRecordIterator implements RecordIterator {
+    private final Peer peer;
+    private final String end;
+    private final int pageSize;
+    private final Executor executor;
+    private CompletableFuture<ScanCommand.Page> prefetch;
+    private Iterator<Record> page;
+    private byte[] skip;
+
+    RemoteRecordIterator(@NotNull Peer peer,
+                         @NotNull String start,
+                         @Nullable String end,
+                         int pageSize,
+                         @NotNull Executor executor) {
+        this.peer = peer;
+        this.end = end;
+        this.pageSize = pageSize;
+        this.executor = executor;
+        this.prefetch = fetch(start);
+    }
+
+    /**
+     * Waits for the first page
+     *
+     * @return false if the peer didn't answer
+     */
+    boolean open() {
+        try {
+            hasNext();
+            return true;
+        } catch (UncheckedIOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((page == null || !page.hasNext()) && prefetch != null) {
+            ScanCommand.Page fetched = prefetch.join();
+            prefetch = null;
+            if (fetched == null) {
+                throw new UncheckedIOException(new IOException("Fail to scan " + peer.getHost()));
+            }
+            List<Record> records = fetched.getRecords();
+            boolean last = fetched.isLast() || records.isEmpty();
+            if (!last) {
+                byte[] lastKey = records.get(records.size() - 1).getKey();
+                prefetch = fetch(new String(lastKey, StandardCharsets.UTF_8));
+            }
+            page = records.iterator();
+            // page starts from the last key of the previous one
+            if (skip != null && !records.isEmpty() && Arrays.equals(records.get(0).getKey(), skip)) {
+                page.next();
+            }
+            skip = last ? null : records.get(records.size() - 1).getKey();
+        }
+        return page != null && page.hasNext();
+    }
+
+    @Override
+    public Record next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void close() {
+        if (prefetch != null) {
+            prefetch.cancel(false);
+        }
+    }
+
+    private CompletableFuture<ScanCommand.Page> fetch(@NotNull String start) {
+        return CompletableFuture.supplyAsync(new ScanCommand(peer, start, end, pageSize)::call, executor);
+    }
+}
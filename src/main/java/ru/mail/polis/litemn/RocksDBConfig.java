@@ -0,0 +1,593 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.ClockCache;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
+import org.rocksdb.Filter;
+import org.rocksdb.LRUCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuning of {@link KVDaoRocksDB}, both column families share the block cache and get the same options.
+ * Records of point reads are also cached on heap by the {@link RowCache}.
+ * <p>
+ * {@link #fromProperties} starts from the preset named by {@code litemn.rocksdb.profile}
+ * ({@code default}, {@code point-lookup}, {@code write-heavy} or {@code scan-heavy}) and overrides it with
+ * {@code litemn.rocksdb.*} properties, read from the file named by {@code litemn.rocksdb.config} and then
+ * from the given properties. Sizes accept {@code k}, {@code m} and {@code g} suffixes.
+ */
+public final class RocksDBConfig {
+    public static final String PREFIX = "litemn.rocksdb.";
+    public static final String CONFIG_PROPERTY = PREFIX + "config";
+    public static final String PROFILE_PROPERTY = PREFIX + "profile";
+    static final String CACHE_SIZE = "block.cache.size";
+    static final String CACHE_TYPE = "block.cache.type";
+    static final String BLOCK_SIZE = "block.size";
+    static final String BLOOM_BITS = "bloom.bits";
+    static final String WRITE_BUFFER_SIZE = "write.buffer.size";
+    static final String WRITE_BUFFER_COUNT = "write.buffer.count";
+    static final String COMPACTION = "compaction";
+    static final String BACKGROUND_JOBS = "background.jobs";
+    static final String COMPRESSION = "compression";
+    static final String ROW_CACHE_SIZE = "row.cache.size";
+    static final String SYNC = "sync";
+    static final String GROUP_COMMIT_WINDOW = "group.commit.window.micros";
+    static final String GROUP_COMMIT_SIZE = "group.commit.size";
+    static final String TOMBSTONE_GRACE = "tombstone.grace.seconds";
+    static final String TOMBSTONE_SWEEP_INTERVAL = "tombstone.sweep.interval.seconds";
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+
+    public enum CacheType {
+        LRU,
+        /**
+         * Needs RocksDB built with TBB
+         */
+        CLOCK
+    }
+
+    private final String profile;
+    private final long blockCacheSize;
+    private final CacheType cacheType;
+    private final long blockSize;
+    private final int bloomBitsPerKey;
+    private final long writeBufferSize;
+    private final int writeBufferCount;
+    private final CompactionStyle compaction;
+    private final int backgroundJobs;
+    private final List<CompressionType> compressionPerLevel;
+    private final long rowCacheSize;
+    private final boolean sync;
+    private final long groupCommitWindowMicros;
+    private final int groupCommitSize;
+    private final long tombstoneGraceSeconds;
+    private final long tombstoneSweepIntervalSeconds;
+
+    private RocksDBConfig(@NotNull Builder builder) {
+        if (builder.blockCacheSize < 0 || builder.rowCacheSize < 0 || builder.blockSize <= 0
+                || builder.bloomBitsPerKey < 0 || builder.writeBufferSize <= 0 || builder.writeBufferCount <= 0
+                || builder.backgroundJobs <= 0 || builder.groupCommitWindowMicros < 0
+                || builder.groupCommitSize <= 0 || builder.tombstoneGraceSeconds < 0
+                || builder.tombstoneSweepIntervalSeconds < 0) {
+            throw new IllegalArgumentException("Sizes and counts must be positive");
+        }
+        if (builder.compaction == CompactionStyle.FIFO) {
+            throw new IllegalArgumentException("FIFO compaction drops data");
+        }
+        this.profile = builder.profile;
+        this.blockCacheSize = builder.blockCacheSize;
+        this.cacheType = builder.cacheType;
+        this.blockSize = builder.blockSize;
+        this.bloomBitsPerKey = builder.bloomBitsPerKey;
+        this.writeBufferSize = builder.writeBufferSize;
+        this.writeBufferCount = builder.writeBufferCount;
+        this.compaction = builder.compaction;
+        this.backgroundJobs = builder.backgroundJobs;
+        this.compressionPerLevel = Collections.unmodifiableList(new ArrayList<>(builder.compressionPerLevel));
+        this.rowCacheSize = builder.rowCacheSize;
+        this.sync = builder.sync;
+        this.groupCommitWindowMicros = builder.groupCommitWindowMicros;
+        this.groupCommitSize = builder.groupCommitSize;
+        this.tombstoneGraceSeconds = builder.tombstoneGraceSeconds;
+        this.tombstoneSweepIntervalSeconds = builder.tombstoneSweepIntervalSeconds;
+    }
+
+    /**
+     * RocksDB defaults and a small row cache
+     */
+    @NotNull
+    public static RocksDBConfig defaults() {
+        return new Builder("default").build();
+    }
+
+    /**
+     * Reads dominate and mostly hit: bloom filters, cached index and filter blocks, a large cache
+     * and no compression of the upper levels that serve most reads
+     */
+    @NotNull
+    public static RocksDBConfig pointLookup() {
+        return new Builder("point-lookup")
+                .blockCacheSize(64 * MB)
+                .rowCacheSize(32 * MB)
+                .bloomBitsPerKey(10)
+                .writeBufferSize(32 * MB)
+                .writeBufferCount(2)
+                .compressionPerLevel(levels(CompressionType.NO_COMPRESSION, CompressionType.NO_COMPRESSION,
+                        CompressionType.LZ4_COMPRESSION))
+                .build();
+    }
+
+    /**
+     * Writes dominate: universal compaction with lower write amplification, more and larger memtables
+     * and more background jobs to flush and compact them
+     */
+    @NotNull
+    public static RocksDBConfig writeHeavy() {
+        return new Builder("write-heavy")
+                .blockCacheSize(16 * MB)
+                .bloomBitsPerKey(10)
+                .writeBufferSize(64 * MB)
+                .writeBufferCount(4)
+                .compaction(CompactionStyle.UNIVERSAL)
+                .backgroundJobs(4)
+                .groupCommitSize(256)
+                .compressionPerLevel(levels(CompressionType.NO_COMPRESSION, CompressionType.NO_COMPRESSION,
+                        CompressionType.NO_COMPRESSION, CompressionType.LZ4_COMPRESSION))
+                .build();
+    }
+
+    /**
+     * Range scans dominate: whole key bloom filters don't help iterators, large blocks mean fewer reads
+     * per scanned key and compress better
+     */
+    @NotNull
+    public static RocksDBConfig scanHeavy() {
+        return new Builder("scan-heavy")
+                .blockCacheSize(64 * MB)
+                .blockSize(64 * KB)
+                .writeBufferSize(32 * MB)
+                .writeBufferCount(2)
+                .compressionPerLevel(levels(CompressionType.NO_COMPRESSION, CompressionType.LZ4_COMPRESSION,
+                        CompressionType.LZ4_COMPRESSION, CompressionType.ZSTD_COMPRESSION))
+                .build();
+    }
+
+    @NotNull
+    public static RocksDBConfig profile(@NotNull String name) {
+        switch (name) {
+            case "default":
+                return defaults();
+            case "point-lookup":
+                return pointLookup();
+            case "write-heavy":
+                return writeHeavy();
+            case "scan-heavy":
+                return scanHeavy();
+            default:
+                throw new IllegalArgumentException("Unknown RocksDB profile " + name);
+        }
+    }
+
+    @NotNull
+    public static RocksDBConfig fromProperties(@NotNull Properties properties) throws IOException {
+        Properties merged = new Properties();
+        String file = properties.getProperty(CONFIG_PROPERTY);
+        if (file != null) {
+            try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                merged.load(in);
+            }
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                merged.setProperty(name, properties.getProperty(name));
+            }
+        }
+        Builder builder = profile(merged.getProperty(PROFILE_PROPERTY, "default")).toBuilder();
+        String value;
+        if ((value = get(merged, CACHE_SIZE)) != null) {
+            builder.blockCacheSize(parseSize(value));
+        }
+        if ((value = get(merged, CACHE_TYPE)) != null) {
+            builder.cacheType(CacheType.valueOf(value.toUpperCase(Locale.ROOT)));
+        }
+        if ((value = get(merged, BLOCK_SIZE)) != null) {
+            builder.blockSize(parseSize(value));
+        }
+        if ((value = get(merged, BLOOM_BITS)) != null) {
+            builder.bloomBitsPerKey(Integer.parseInt(value));
+        }
+        if ((value = get(merged, WRITE_BUFFER_SIZE)) != null) {
+            builder.writeBufferSize(parseSize(value));
+        }
+        if ((value = get(merged, WRITE_BUFFER_COUNT)) != null) {
+            builder.writeBufferCount(Integer.parseInt(value));
+        }
+        if ((value = get(merged, COMPACTION)) != null) {
+            builder.compaction(CompactionStyle.valueOf(value.toUpperCase(Locale.ROOT)));
+        }
+        if ((value = get(merged, BACKGROUND_JOBS)) != null) {
+            builder.backgroundJobs(Integer.parseInt(value));
+        }
+        if ((value = get(merged, COMPRESSION)) != null) {
+            builder.compressionPerLevel(parseCompression(value));
+        }
+        if ((value = get(merged, ROW_CACHE_SIZE)) != null) {
+            builder.rowCacheSize(parseSize(value));
+        }
+        if ((value = get(merged, SYNC)) != null) {
+            builder.sync(Boolean.parseBoolean(value));
+        }
+        if ((value = get(merged, GROUP_COMMIT_WINDOW)) != null) {
+            builder.groupCommitWindowMicros(Long.parseLong(value));
+        }
+        if ((value = get(merged, GROUP_COMMIT_SIZE)) != null) {
+            builder.groupCommitSize(Integer.parseInt(value));
+        }
+        if ((value = get(merged, TOMBSTONE_GRACE)) != null) {
+            builder.tombstoneGraceSeconds(Long.parseLong(value));
+        }
+        if ((value = get(merged, TOMBSTONE_SWEEP_INTERVAL)) != null) {
+            builder.tombstoneSweepIntervalSeconds(Long.parseLong(value));
+        }
+        return builder.build();
+    }
+
+    @Nullable
+    private static String get(@NotNull Properties properties, @NotNull String name) {
+        String value = properties.getProperty(PREFIX + name);
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    static long parseSize(@NotNull String size) {
+        String value = size.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        switch (value.charAt(value.length() - 1)) {
+            case 'k':
+                unit = KB;
+                break;
+            case 'm':
+                unit = MB;
+                break;
+            case 'g':
+                unit = 1024 * MB;
+                break;
+            default:
+                return Long.parseLong(value);
+        }
+        return unit * Long.parseLong(value.substring(0, value.length() - 1));
+    }
+
+    /**
+     * @param compression comma separated per level list of {@code none}, {@code snappy}, {@code lz4},
+     *                    {@code zstd}, ..., the last one applies to the rest of the levels
+     */
+    static List<CompressionType> parseCompression(@NotNull String compression) {
+        List<CompressionType> types = new ArrayList<>();
+        for (String name : compression.split(",")) {
+            String type = name.trim().toUpperCase(Locale.ROOT);
+            types.add("NONE".equals(type) ? CompressionType.NO_COMPRESSION
+                    : CompressionType.valueOf(type + "_COMPRESSION"));
+        }
+        return types;
+    }
+
+    private static List<CompressionType> levels(@NotNull CompressionType... types) {
+        return Arrays.asList(types);
+    }
+
+    @NotNull
+    public Builder toBuilder() {
+        return new Builder(profile)
+                .blockCacheSize(blockCacheSize)
+                .cacheType(cacheType)
+                .blockSize(blockSize)
+                .bloomBitsPerKey(bloomBitsPerKey)
+                .writeBufferSize(writeBufferSize)
+                .writeBufferCount(writeBufferCount)
+                .compaction(compaction)
+                .backgroundJobs(backgroundJobs)
+                .compressionPerLevel(compressionPerLevel)
+                .rowCacheSize(rowCacheSize)
+                .sync(sync)
+                .groupCommitWindowMicros(groupCommitWindowMicros)
+                .groupCommitSize(groupCommitSize)
+                .tombstoneGraceSeconds(tombstoneGraceSeconds)
+                .tombstoneSweepIntervalSeconds(tombstoneSweepIntervalSeconds);
+    }
+
+    @NotNull
+    DBOptions toDBOptions() {
+        return new DBOptions()
+                .setCreateIfMissing(true)
+                .setCreateMissingColumnFamilies(true)
+                .setMaxBackgroundJobs(backgroundJobs);
+    }
+
+    /**
+     * @return shared block cache or null if blocks are not cached
+     */
+    @Nullable
+    Cache newCache() {
+        if (blockCacheSize == 0) {
+            return null;
+        }
+        return cacheType == CacheType.CLOCK ? new ClockCache(blockCacheSize) : new LRUCache(blockCacheSize);
+    }
+
+    /**
+     * @return bloom filter or null if filters are off
+     */
+    @Nullable
+    Filter newFilter() {
+        // full filters, block based ones are legacy
+        return bloomBitsPerKey == 0 ? null : new BloomFilter(bloomBitsPerKey, false);
+    }
+
+    /**
+     * @param cache  see {@link #newCache}
+     * @param filter see {@link #newFilter}
+     */
+    @NotNull
+    ColumnFamilyOptions toColumnFamilyOptions(@Nullable Cache cache, @Nullable Filter filter) {
+        BlockBasedTableConfig table = new BlockBasedTableConfig().setBlockSize(blockSize);
+        if (cache == null) {
+            table.setNoBlockCache(true);
+        } else {
+            table.setBlockCache(cache);
+        }
+        if (filter != null) {
+            table.setFilter(filter)
+                    .setCacheIndexAndFilterBlocks(true)
+                    .setPinL0FilterAndIndexBlocksInCache(true);
+        }
+        ColumnFamilyOptions options = new ColumnFamilyOptions()
+                .setTableFormatConfig(table)
+                .setWriteBufferSize(writeBufferSize)
+                .setMaxWriteBufferNumber(writeBufferCount)
+                .setCompactionStyle(compaction);
+        if (!compressionPerLevel.isEmpty()) {
+            List<CompressionType> levels = new ArrayList<>(compressionPerLevel);
+            while (levels.size() < options.numLevels()) {
+                levels.add(levels.get(levels.size() - 1));
+            }
+            options.setCompressionPerLevel(levels);
+        }
+        return options;
+    }
+
+    @NotNull
+    public String getProfile() {
+        return profile;
+    }
+
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    @NotNull
+    public CacheType getCacheType() {
+        return cacheType;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public long getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public int getWriteBufferCount() {
+        return writeBufferCount;
+    }
+
+    @NotNull
+    public CompactionStyle getCompaction() {
+        return compaction;
+    }
+
+    public int getBackgroundJobs() {
+        return backgroundJobs;
+    }
+
+    @NotNull
+    public List<CompressionType> getCompressionPerLevel() {
+        return compressionPerLevel;
+    }
+
+    public long getRowCacheSize() {
+        return rowCacheSize;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    public long getGroupCommitWindowMicros() {
+        return groupCommitWindowMicros;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public long getTombstoneGraceSeconds() {
+        return tombstoneGraceSeconds;
+    }
+
+    public long getTombstoneSweepIntervalSeconds() {
+        return tombstoneSweepIntervalSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return profile + " {cache=" + cacheType + " " + blockCacheSize
+                + ", block=" + blockSize
+                + ", bloom=" + bloomBitsPerKey
+                + ", memtable=" + writeBufferCount + "x" + writeBufferSize
+                + ", compaction=" + compaction
+                + ", jobs=" + backgroundJobs
+                + ", compression=" + compressionPerLevel
+                + ", rows=" + rowCacheSize
+                + ", sync=" + sync
+                + ", group=" + groupCommitSize + "/" + groupCommitWindowMicros + "us"
+                + ", tombstones=" + tombstoneGraceSeconds + "s/" + tombstoneSweepIntervalSeconds + "s}";
+    }
+
+    /**
+     * Starts from RocksDB defaults
+     */
+    public static final class Builder {
+        private final String profile;
+        private long blockCacheSize = 8 * MB;
+        private CacheType cacheType = CacheType.LRU;
+        private long blockSize = 4 * KB;
+        private int bloomBitsPerKey;
+        private long writeBufferSize = 64 * MB;
+        private int writeBufferCount = 2;
+        private CompactionStyle compaction = CompactionStyle.LEVEL;
+        private int backgroundJobs = 2;
+        private List<CompressionType> compressionPerLevel = Collections.emptyList();
+        private long rowCacheSize = 8 * MB;
+        private boolean sync;
+        private long groupCommitWindowMicros;
+        private int groupCommitSize = 64;
+        private long tombstoneGraceSeconds = TimeUnit.DAYS.toSeconds(10);
+        private long tombstoneSweepIntervalSeconds = TimeUnit.HOURS.toSeconds(1);
+
+        public Builder(@NotNull String profile) {
+            this.profile = profile;
+        }
+
+        /**
+         * @param size bytes, {@code 0} turns the block cache off
+         */
+        public Builder blockCacheSize(long size) {
+            this.blockCacheSize = size;
+            return this;
+        }
+
+        public Builder cacheType(@NotNull CacheType type) {
+            this.cacheType = type;
+            return this;
+        }
+
+        public Builder blockSize(long size) {
+            this.blockSize = size;
+            return this;
+        }
+
+        /**
+         * @param bits bloom filter bits per key, {@code 0} turns filters off
+         */
+        public Builder bloomBitsPerKey(int bits) {
+            this.bloomBitsPerKey = bits;
+            return this;
+        }
+
+        public Builder writeBufferSize(long size) {
+            this.writeBufferSize = size;
+            return this;
+        }
+
+        public Builder writeBufferCount(int count) {
+            this.writeBufferCount = count;
+            return this;
+        }
+
+        public Builder compaction(@NotNull CompactionStyle style) {
+            this.compaction = style;
+            return this;
+        }
+
+        public Builder backgroundJobs(int jobs) {
+            this.backgroundJobs = jobs;
+            return this;
+        }
+
+        /**
+         * @param types compression of levels from 0, the last one applies to the rest, empty keeps the default
+         */
+        public Builder compressionPerLevel(@NotNull List<CompressionType> types) {
+            this.compressionPerLevel = types;
+            return this;
+        }
+
+        /**
+         * @param size bytes of the on-heap {@link RowCache}, {@code 0} turns it off
+         */
+        public Builder rowCacheSize(long size) {
+            this.rowCacheSize = size;
+            return this;
+        }
+
+        /**
+         * @param sync fsync the WAL before a write returns
+         */
+        public Builder sync(boolean sync) {
+            this.sync = sync;
+            return this;
+        }
+
+        /**
+         * @param micros how long the group commit leader waits for more writes, see {@link GroupCommit}
+         */
+        public Builder groupCommitWindowMicros(long micros) {
+            this.groupCommitWindowMicros = micros;
+            return this;
+        }
+
+        /**
+         * @param size max writes applied as one batch, {@code 1} turns group commit off
+         */
+        public Builder groupCommitSize(int size) {
+            this.groupCommitSize = size;
+            return this;
+        }
+
+        /**
+         * @param seconds age after which a tombstone is purged, it must exceed the time a replica may stay
+         *                behind, otherwise hints, read repair or anti-entropy bring the removed value back
+         */
+        public Builder tombstoneGraceSeconds(long seconds) {
+            this.tombstoneGraceSeconds = seconds;
+            return this;
+        }
+
+        /**
+         * @param seconds delay between tombstone sweeps, {@code 0} turns sweeping off
+         */
+        public Builder tombstoneSweepIntervalSeconds(long seconds) {
+            this.tombstoneSweepIntervalSeconds = seconds;
+            return this;
+        }
+
+        @NotNull
+        public RocksDBConfig build() {
+            return new RocksDBConfig(this);
+        }
+    }
+}
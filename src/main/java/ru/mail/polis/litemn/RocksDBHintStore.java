@@ -0,0 +1,140 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hints kept in a RocksDB column family, so they survive a restart.
+ * Hints of a host are ordered by sequence
+ * +-------------+------+----------+
+ * | host length | host | sequence |
+ * +-------------+------+----------+
+ * and hold the key and the stamped record of the write
+ * +------------+-----+--------+
+ * | key length | key | record |
+ * +------------+-----+--------+
+ */
+final class RocksDBHintStore implements HintStore {
+    private final RocksDB db;
+    private final ColumnFamilyHandle hints;
+    private final WriteOptions options;
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() << 16);
+    private final Map<String, AtomicLong> backlog = new ConcurrentHashMap<>();
+
+    RocksDBHintStore(@NotNull RocksDB db, @NotNull ColumnFamilyHandle hints, @NotNull WriteOptions options) {
+        this.db = db;
+        this.hints = hints;
+        this.options = options;
+        try (RocksIterator iterator = db.newIterator(hints)) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                counter(hostOf(iterator.key())).incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void add(@NotNull String host, @NotNull byte[] key, @NotNull byte[] record) throws IOException {
+        byte[] value = ByteBuffer.allocate(Integer.BYTES + key.length + record.length)
+                .putInt(key.length)
+                .put(key)
+                .put(record)
+                .array();
+        try {
+            db.put(hints, options, hintId(host, sequence.incrementAndGet()), value);
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+        counter(host).incrementAndGet();
+    }
+
+    @Override
+    @NotNull
+    public List<Hint> oldest(@NotNull String host, int limit, long maxBytes) {
+        List<Hint> result = new ArrayList<>();
+        long bytes = 0;
+        byte[] prefix = hintId(host, 0);
+        try (RocksIterator iterator = db.newIterator(hints)) {
+            for (iterator.seek(prefix); iterator.isValid() && result.size() < limit; iterator.next()) {
+                byte[] id = iterator.key();
+                if (!sameHost(id, prefix)) {
+                    break;
+                }
+                byte[] stored = iterator.value();
+                bytes += stored.length - Integer.BYTES;
+                if (!result.isEmpty() && bytes > maxBytes) {
+                    break;
+                }
+                ByteBuffer value = ByteBuffer.wrap(stored);
+                byte[] key = new byte[value.getInt()];
+                value.get(key);
+                byte[] record = new byte[value.remaining()];
+                value.get(record);
+                result.add(new Hint(id, key, record));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void remove(@NotNull String host, @NotNull List<Hint> replayed) throws IOException {
+        try (WriteBatch batch = new WriteBatch()) {
+            for (Hint hint : replayed) {
+                batch.delete(hints, hint.getId());
+            }
+            db.write(options, batch);
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+        counter(host).addAndGet(-replayed.size());
+    }
+
+    @Override
+    public long backlog(@NotNull String host) {
+        AtomicLong count = backlog.get(host);
+        return count == null ? 0 : count.get();
+    }
+
+    private AtomicLong counter(@NotNull String host) {
+        return backlog.computeIfAbsent(host, h -> new AtomicLong());
+    }
+
+    static byte[] hintId(@NotNull String host, long sequence) {
+        byte[] bytes = host.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(Short.BYTES + bytes.length + Long.BYTES)
+                .putShort((short) bytes.length)
+                .put(bytes)
+                .putLong(sequence)
+                .array();
+    }
+
+    static boolean sameHost(@NotNull byte[] id, @NotNull byte[] other) {
+        if (id.length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length - Long.BYTES; i++) {
+            if (id[i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String hostOf(@NotNull byte[] id) {
+        int length = ByteBuffer.wrap(id).getShort();
+        return new String(id, Short.BYTES, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,378 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of stored records in front of RocksDB, sized in bytes of keys and records.
+ * Absent keys are cached as {@link #ABSENT} and tombstones as they are stored, so repeated misses
+ * don't reach RocksDB either.
+ * <p>
+ * Eviction is W-TinyLFU: new entries get into a small LRU window, an entry leaving the window is
+ * admitted to the main segmented LRU only if the {@link FrequencySketch} saw it more often than the
+ * main victim. A scan of cold keys can't flush the hot ones this way.
+ * <p>
+ * Writers invalidate the key after the write. A miss remembers the shard {@link #stamp} before it reads
+ * RocksDB and its result is dropped if a write to the shard happened meanwhile, so a read racing
+ * with a write never caches the overwritten record.
+ */
+final class RowCache {
+    static final byte[] ABSENT = new byte[0];
+    private static final int SHARDS = 16;
+    // node fields, array headers and the table slot
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int AVERAGE_ENTRY = 256;
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final long capacity;
+    private final Shard[] shards;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity bytes, {@code 0} disables the cache
+     */
+    RowCache(long capacity) {
+        this.capacity = capacity;
+        this.shards = new Shard[capacity == 0 ? 0 : SHARDS];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(capacity / SHARDS);
+        }
+    }
+
+    /**
+     * @return stored record, {@link #ABSENT} or null if the key is not cached
+     */
+    @Nullable
+    byte[] get(@NotNull byte[] key) {
+        if (capacity == 0) {
+            return null;
+        }
+        int hash = hash(key);
+        byte[] record = shard(hash).get(key, hash);
+        if (record == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return record;
+    }
+
+    /**
+     * @return stamp to pass to {@link #put} after RocksDB is read
+     */
+    long stamp(@NotNull byte[] key) {
+        return capacity == 0 ? 0 : shard(hash(key)).stamp;
+    }
+
+    /**
+     * Caches a copy of the record read from RocksDB
+     *
+     * @param length record length, non positive if the key is absent
+     */
+    void put(@NotNull byte[] key, @NotNull byte[] record, int length, long stamp) {
+        if (capacity == 0) {
+            return;
+        }
+        int hash = hash(key);
+        Shard shard = shard(hash);
+        int weight = ENTRY_OVERHEAD + key.length + Math.max(0, length);
+        if (weight > shard.maxWeight / 16 || shard.stamp != stamp) {
+            return;
+        }
+        byte[] copy = length <= 0 ? ABSENT : Arrays.copyOf(record, length);
+        shard.put(Arrays.copyOf(key, key.length), hash, copy, weight, stamp);
+    }
+
+    void invalidate(@NotNull byte[] key) {
+        if (capacity == 0) {
+            return;
+        }
+        int hash = hash(key);
+        shard(hash).invalidate(key, hash);
+    }
+
+    void appendMetrics(@NotNull StringBuilder metrics) {
+        long weight = 0;
+        long entries = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                weight += shard.windowWeight + shard.mainWeight;
+                entries += shard.size;
+            }
+        }
+        metrics.append("cache.row.capacity.bytes ").append(capacity).append('\n')
+                .append("cache.row.size.bytes ").append(weight).append('\n')
+                .append("cache.row.entries ").append(entries).append('\n')
+                .append("cache.row.hits ").append(hits.sum()).append('\n')
+                .append("cache.row.misses ").append(misses.sum()).append('\n')
+                .append("cache.row.evictions ").append(evictions.sum()).append('\n');
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    private static int hash(@NotNull byte[] key) {
+        int h = Arrays.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private Shard shard(int hash) {
+        return shards[(hash >>> 8) & (SHARDS - 1)];
+    }
+
+    private static final class Node {
+        private static final byte WINDOW = 0;
+        private static final byte PROBATION = 1;
+        private static final byte PROTECTED = 2;
+
+        private final byte[] key;
+        private final int hash;
+        private byte[] record;
+        private int weight;
+        private byte segment;
+        private Node chain;
+        private Node prev;
+        private Node next;
+
+        private Node(byte[] key, int hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Access ordered list, the head is the least recently used
+     */
+    private static final class Segment {
+        private Node head;
+        private Node tail;
+
+        private void add(@NotNull Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
+
+        private void remove(@NotNull Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        private void touch(@NotNull Node node) {
+            if (node != tail) {
+                remove(node);
+                add(node);
+            }
+        }
+    }
+
+    private final class Shard {
+        private final long maxWeight;
+        private final long windowMax;
+        private final long protectedMax;
+        private final FrequencySketch sketch;
+        private final Segment window = new Segment();
+        private final Segment probation = new Segment();
+        private final Segment protectedSegment = new Segment();
+        private Node[] table = new Node[16];
+        private int size;
+        private long windowWeight;
+        private long mainWeight;
+        private long protectedWeight;
+        private volatile long stamp;
+
+        private Shard(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.windowMax = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+            this.protectedMax = (maxWeight - windowMax) * PROTECTED_PERCENT / 100;
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxWeight / AVERAGE_ENTRY));
+        }
+
+        private synchronized byte[] get(@NotNull byte[] key, int hash) {
+            sketch.increment(hash);
+            Node node = find(key, hash);
+            if (node == null) {
+                return null;
+            }
+            switch (node.segment) {
+                case Node.WINDOW:
+                    window.touch(node);
+                    break;
+                case Node.PROBATION:
+                    probation.remove(node);
+                    node.segment = Node.PROTECTED;
+                    protectedSegment.add(node);
+                    protectedWeight += node.weight;
+                    demote();
+                    break;
+                default:
+                    protectedSegment.touch(node);
+            }
+            return node.record;
+        }
+
+        private synchronized void put(@NotNull byte[] key, int hash, @NotNull byte[] record, int weight, long stamp) {
+            if (this.stamp != stamp) {
+                return;
+            }
+            Node node = find(key, hash);
+            if (node != null) {
+                // another miss of the same key cached it first
+                return;
+            }
+            node = new Node(key, hash);
+            node.record = record;
+            node.weight = weight;
+            node.segment = Node.WINDOW;
+            link(node);
+            window.add(node);
+            windowWeight += weight;
+            evict();
+        }
+
+        private synchronized void invalidate(@NotNull byte[] key, int hash) {
+            stamp++;
+            Node node = find(key, hash);
+            if (node != null) {
+                remove(node);
+            }
+        }
+
+        private void demote() {
+            while (protectedWeight > protectedMax) {
+                Node node = protectedSegment.head;
+                protectedSegment.remove(node);
+                protectedWeight -= node.weight;
+                node.segment = Node.PROBATION;
+                probation.add(node);
+            }
+        }
+
+        private void evict() {
+            while (windowWeight > windowMax) {
+                Node candidate = window.head;
+                window.remove(candidate);
+                windowWeight -= candidate.weight;
+                boolean admitted = true;
+                while (mainWeight + candidate.weight > maxWeight - windowMax) {
+                    Node victim = probation.head != null ? probation.head : protectedSegment.head;
+                    if (victim == null) {
+                        break;
+                    }
+                    if (sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                        admitted = false;
+                        break;
+                    }
+                    remove(victim);
+                    evictions.increment();
+                }
+                if (admitted) {
+                    candidate.segment = Node.PROBATION;
+                    probation.add(candidate);
+                    mainWeight += candidate.weight;
+                } else {
+                    unlink(candidate);
+                    evictions.increment();
+                }
+            }
+        }
+
+        private void remove(@NotNull Node node) {
+            unlink(node);
+            switch (node.segment) {
+                case Node.WINDOW:
+                    window.remove(node);
+                    windowWeight -= node.weight;
+                    break;
+                case Node.PROBATION:
+                    probation.remove(node);
+                    mainWeight -= node.weight;
+                    break;
+                default:
+                    protectedSegment.remove(node);
+                    protectedWeight -= node.weight;
+                    mainWeight -= node.weight;
+            }
+        }
+
+        @Nullable
+        private Node find(@NotNull byte[] key, int hash) {
+            for (Node node = table[hash & (table.length - 1)]; node != null; node = node.chain) {
+                if (node.hash == hash && Arrays.equals(node.key, key)) {
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        private void link(@NotNull Node node) {
+            if (++size > table.length * 3 / 4) {
+                resize();
+            }
+            int index = node.hash & (table.length - 1);
+            node.chain = table[index];
+            table[index] = node;
+        }
+
+        private void unlink(@NotNull Node node) {
+            int index = node.hash & (table.length - 1);
+            Node prev = null;
+            for (Node current = table[index]; current != null; prev = current, current = current.chain) {
+                if (current == node) {
+                    if (prev == null) {
+                        table[index] = node.chain;
+                    } else {
+                        prev.chain = node.chain;
+                    }
+                    node.chain = null;
+                    size--;
+                    return;
+                }
+            }
+        }
+
+        private void resize() {
+            Node[] old = table;
+            table = new Node[old.length * 2];
+            for (Node head : old) {
+                for (Node node = head; node != null; ) {
+                    Node next = node.chain;
+                    int index = node.hash & (table.length - 1);
+                    node.chain = table[index];
+                    table[index] = node;
+                    node = next;
+                }
+            }
+        }
+    }
+}
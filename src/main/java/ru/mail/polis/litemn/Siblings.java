@@ -0,0 +1,291 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Dotted version vector set of a key, the concurrent values of the key with their causal history.
+ * Entry {@code i} belongs to the {@code i}-th replica of the key, so the vector never outgrows
+ * the replica set. An entry keeps the counter of the replica and the values of its latest dots,
+ * newest first: the value at position {@code j} has dot {@code (i, counter - j)}.
+ * <p>
+ * A write coordinated by replica {@code i} drops the values its context has seen and adds a value
+ * with the next dot of {@code i}. Replicas exchange whole sets and {@link #sync} them, so a value is
+ * kept until a write which has seen it replaces it. Removal is a write of a {@code null} value.
+ * <p>
+ * Encoding, counters and lengths are varints, length 0 stands for a removed value
+ * +---------+---------+-------+--------------+-----------+-----+-----
+ * | entries | counter | count | length + 1   | value     | ... | ...
+ * +---------+---------+-------+--------------+-----------+-----+-----
+ */
+final class Siblings {
+    private static final Siblings EMPTY = new Siblings(new long[0], Collections.emptyList());
+
+    private final long[] counters;
+    private final List<List<byte[]>> values;
+
+    private Siblings(@NotNull long[] counters, @NotNull List<List<byte[]>> values) {
+        this.counters = counters;
+        this.values = values;
+    }
+
+    @NotNull
+    static Siblings empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return version vector of all the values, the causal context a client passes with the next write
+     */
+    @NotNull
+    long[] context() {
+        return counters.clone();
+    }
+
+    /**
+     * @return concurrent values, {@code null} stands for a removed one
+     */
+    @NotNull
+    List<byte[]> values() {
+        List<byte[]> all = new ArrayList<>();
+        values.forEach(all::addAll);
+        return all;
+    }
+
+    /**
+     * @return values which are not removed
+     */
+    @NotNull
+    List<byte[]> live() {
+        List<byte[]> live = new ArrayList<>();
+        for (List<byte[]> entry : values) {
+            for (byte[] value : entry) {
+                if (value != null) {
+                    live.add(value);
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Replaces the values the context has seen with a value of the next dot of the replica
+     *
+     * @param context version vector the client read, empty if it read nothing
+     * @param replica index of the coordinating replica in the replica set of the key
+     * @param value   new value or {@code null} to remove
+     */
+    @NotNull
+    Siblings update(@NotNull long[] context, int replica, @Nullable byte[] value) {
+        int size = Math.max(Math.max(counters.length, context.length), replica + 1);
+        long[] nextCounters = new long[size];
+        List<List<byte[]>> nextValues = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            long counter = counter(counters, i);
+            long seen = counter(context, i);
+            List<byte[]> entry = entry(i);
+            // values whose dots the context covers are replaced
+            List<byte[]> kept = new ArrayList<>(entry.subList(0, (int) Math.max(0, Math.min(entry.size(),
+                    counter - seen))));
+            if (i == replica) {
+                kept.add(0, value);
+            }
+            nextCounters[i] = Math.max(counter, seen) + (i == replica ? 1 : 0);
+            nextValues.add(kept);
+        }
+        return new Siblings(nextCounters, nextValues);
+    }
+
+    /**
+     * @return values of both sets that neither set has replaced
+     */
+    @NotNull
+    Siblings sync(@NotNull Siblings other) {
+        int size = Math.max(counters.length, other.counters.length);
+        long[] nextCounters = new long[size];
+        List<List<byte[]>> nextValues = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            long n1 = counter(counters, i);
+            long n2 = counter(other.counters, i);
+            List<byte[]> l1 = entry(i);
+            List<byte[]> l2 = other.entry(i);
+            nextCounters[i] = Math.max(n1, n2);
+            nextValues.add(n1 >= n2 ? merge(n1, l1, n2, l2) : merge(n2, l2, n1, l1));
+        }
+        return new Siblings(nextCounters, nextValues);
+    }
+
+    /**
+     * Dots of the newer entry are kept if the other entry hasn't seen them or still keeps them
+     */
+    @NotNull
+    private static List<byte[]> merge(long newer, @NotNull List<byte[]> newerValues,
+                                      long older, @NotNull List<byte[]> olderValues) {
+        long keep = newer - older + olderValues.size();
+        return keep >= newerValues.size() ? newerValues : newerValues.subList(0, (int) keep);
+    }
+
+    private static long counter(@NotNull long[] vector, int i) {
+        return i < vector.length ? vector[i] : 0;
+    }
+
+    @NotNull
+    private List<byte[]> entry(int i) {
+        return i < values.size() ? values.get(i) : Collections.emptyList();
+    }
+
+    @NotNull
+    byte[] encode() {
+        int size = varintLength(counters.length);
+        for (int i = 0; i < counters.length; i++) {
+            size += varintLength(counters[i]) + varintLength(values.get(i).size());
+            for (byte[] value : values.get(i)) {
+                int length = value == null ? 0 : value.length + 1;
+                size += varintLength(length) + Math.max(0, length - 1);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        putVarint(buffer, counters.length);
+        for (int i = 0; i < counters.length; i++) {
+            putVarint(buffer, counters[i]);
+            putVarint(buffer, values.get(i).size());
+            for (byte[] value : values.get(i)) {
+                if (value == null) {
+                    putVarint(buffer, 0);
+                } else {
+                    putVarint(buffer, value.length + 1);
+                    buffer.put(value);
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    static Siblings decode(@NotNull byte[] bytes) throws IOException {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    @NotNull
+    static Siblings decode(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        try {
+            long entries = getVarint(buffer);
+            if (entries > buffer.remaining()) {
+                throw new IOException("Wrong entries count " + entries);
+            }
+            int size = (int) entries;
+            long[] counters = new long[size];
+            List<List<byte[]>> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                counters[i] = getVarint(buffer);
+                long count = getVarint(buffer);
+                if (count > counters[i] || count > buffer.remaining()) {
+                    throw new IOException("Entry " + i + " has more values than dots");
+                }
+                List<byte[]> entry = new ArrayList<>((int) count);
+                for (long j = 0; j < count; j++) {
+                    long valueLength = getVarint(buffer);
+                    if (valueLength > buffer.remaining() + 1L) {
+                        throw new IOException("Value of entry " + i + " is truncated");
+                    }
+                    if (valueLength == 0) {
+                        entry.add(null);
+                    } else {
+                        byte[] value = new byte[(int) valueLength - 1];
+                        buffer.get(value);
+                        entry.add(value);
+                    }
+                }
+                values.add(entry);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException(buffer.remaining() + " bytes after the siblings");
+            }
+            return new Siblings(counters, values);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed siblings of " + length + " bytes", e);
+        }
+    }
+
+    /**
+     * @return version vector as varints, see {@link #context}
+     */
+    @NotNull
+    static byte[] encodeContext(@NotNull long[] context) {
+        int size = varintLength(context.length);
+        for (long counter : context) {
+            size += varintLength(counter);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        putVarint(buffer, context.length);
+        for (long counter : context) {
+            putVarint(buffer, counter);
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    static long[] decodeContext(@NotNull byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            long size = getVarint(buffer);
+            if (size > buffer.remaining()) {
+                throw new IOException("Wrong context size " + size);
+            }
+            long[] context = new long[(int) size];
+            for (int i = 0; i < context.length; i++) {
+                context[i] = getVarint(buffer);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException(buffer.remaining() + " bytes after the context");
+            }
+            return context;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed context of " + bytes.length + " bytes", e);
+        }
+    }
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void putVarint(@NotNull ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarint(@NotNull ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    throw new IOException("Negative varint");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    @Override
+    public String toString() {
+        return "Siblings{counters=" + Arrays.toString(counters) + ", values=" + values().size() + '}';
+    }
+}
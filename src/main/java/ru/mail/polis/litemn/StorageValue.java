@@ -3,21 +3,40 @@ package ru.mail.polis.litemn;
 import java.io.Serializable;
 
 public class StorageValue implements Serializable {
+    /**
+     * Expiry of values without TTL
+     */
+    public static final long NEVER = Long.MAX_VALUE;
 
     private final State state;
     private final long time;
+    private final long expires;
     private final byte[] value;
+    private final boolean chunked;
 
     private StorageValue(State state, long time, byte[] value) {
+        this(state, time, NEVER, value, false);
+    }
+
+    private StorageValue(State state, long time, long expires, byte[] value, boolean chunked) {
         this.state = state;
         this.time = time;
+        this.expires = expires;
         this.value = value;
+        this.chunked = chunked;
     }
 
     static StorageValue exists(byte[] value, long time) {
         return new StorageValue(State.EXISTS, time, value);
     }
 
+    /**
+     * @param expires time the value expires at
+     */
+    static StorageValue exists(byte[] value, long time, long expires) {
+        return new StorageValue(State.EXISTS, time, expires, value, false);
+    }
+
     static StorageValue absent() {
         return new StorageValue(State.ABSENT, -1, null);
     }
@@ -26,10 +45,48 @@ public class StorageValue implements Serializable {
         return new StorageValue(State.ERROR, -1, null);
     }
 
+    /**
+     * Local value stored in chunks, its payload is only streamed and never transferred inline
+     */
+    static StorageValue chunked(long time) {
+        return new StorageValue(State.EXISTS, time, NEVER, null, true);
+    }
+
     static StorageValue removed(long time) {
         return new StorageValue(State.REMOVED, time, null);
     }
 
+    /**
+     * @return same version without payload, replicas answer digest reads with it
+     */
+    StorageValue digest() {
+        return state == State.EXISTS ? new StorageValue(state, time, expires, null, chunked) : this;
+    }
+
+    /**
+     * Expired values read as removed at the time they were written, so they lose to newer writes
+     * and win over older ones, like a tombstone would
+     *
+     * @return removed value if the value expired by {@code now} or the same value
+     */
+    StorageValue live(long now) {
+        return state == State.EXISTS && expires <= now ? removed(time) : this;
+    }
+
+    /**
+     * @return true if the value exists but its payload was not transferred
+     */
+    boolean isDigest() {
+        return state == State.EXISTS && value == null;
+    }
+
+    /**
+     * @return true if the value is stored locally in chunks, a chunked value is a digest as well
+     */
+    boolean isChunked() {
+        return chunked;
+    }
+
     State getState() {
         return state;
     }
@@ -41,8 +98,15 @@ public class StorageValue implements Serializable {
         return time;
     }
 
+    /**
+     * @return time the value expires at or {@link #NEVER}
+     */
+    long getExpires() {
+        return expires;
+    }
+
     public byte[] getValue() {
-        if (state == State.ABSENT || state == State.REMOVED) {
+        if (state == State.ABSENT || state == State.REMOVED || isDigest()) {
             throw new IllegalStateException();
         }
         return value;
@@ -0,0 +1,125 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary replication format of {@link StorageValue}
+ * +---------+-------+-----------+--------+---------+
+ * | version | state | timestamp | length | payload |
+ * +---------+-------+-----------+--------+---------+
+ * length is {@code -1} when the payload is not transferred (absent, removed or digest).
+ * Values with TTL are encoded with version 2, which has the expiry after the timestamp.
+ */
+public final class StorageValueCodec {
+    static final byte VERSION = 1;
+    static final byte EXPIRING_VERSION = 2;
+    static final int HEADER_LENGTH = 1 + 1 + Long.BYTES + Integer.BYTES;
+    private static final int NO_PAYLOAD = -1;
+
+    private static final StorageValue.State[] STATES = StorageValue.State.values();
+
+    private StorageValueCodec() {
+    }
+
+    @NotNull
+    public static byte[] encode(@NotNull StorageValue value) {
+        boolean hasPayload = value.getState() == StorageValue.State.EXISTS && !value.isDigest();
+        byte[] payload = hasPayload ? value.getValue() : null;
+        long time = value.getState() == StorageValue.State.ABSENT ? -1 : value.getTime();
+        long expires = value.getState() == StorageValue.State.EXISTS ? value.getExpires() : StorageValue.NEVER;
+        return encode(value.getState(), time, expires, payload, 0, hasPayload ? payload.length : NO_PAYLOAD);
+    }
+
+    /**
+     * Encodes a value whose payload lies in a larger buffer, the payload is copied once
+     *
+     * @param length payload length or {@code -1} if there is no payload
+     */
+    @NotNull
+    static byte[] encode(@NotNull StorageValue.State state,
+                         long time,
+                         byte[] payload,
+                         int offset,
+                         int length) {
+        return encode(state, time, StorageValue.NEVER, payload, offset, length);
+    }
+
+    /**
+     * @param expires expiry of the value or {@link StorageValue#NEVER}
+     */
+    @NotNull
+    static byte[] encode(@NotNull StorageValue.State state,
+                         long time,
+                         long expires,
+                         byte[] payload,
+                         int offset,
+                         int length) {
+        int header = expires == StorageValue.NEVER ? HEADER_LENGTH : HEADER_LENGTH + Long.BYTES;
+        byte[] bytes = new byte[header + Math.max(0, length)];
+        bytes[0] = expires == StorageValue.NEVER ? VERSION : EXPIRING_VERSION;
+        bytes[1] = (byte) state.ordinal();
+        ByteUtils.putLong(bytes, 2, time);
+        if (expires != StorageValue.NEVER) {
+            ByteUtils.putLong(bytes, 2 + Long.BYTES, expires);
+        }
+        ByteUtils.putInt(bytes, header - Integer.BYTES, length);
+        if (length > 0) {
+            System.arraycopy(payload, offset, bytes, header, length);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return state of the encoded value without decoding it
+     */
+    @NotNull
+    static StorageValue.State state(@NotNull byte[] bytes) throws IOException {
+        if (bytes.length < HEADER_LENGTH || bytes[1] < 0 || bytes[1] >= STATES.length) {
+            throw new IOException("Malformed value");
+        }
+        return STATES[bytes[1]];
+    }
+
+    @NotNull
+    public static StorageValue decode(@NotNull byte[] bytes) throws IOException {
+        if (bytes.length < HEADER_LENGTH) {
+            throw new IOException("Truncated value of " + bytes.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte version = buffer.get();
+        if (version != VERSION && version != EXPIRING_VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        int state = buffer.get();
+        if (state < 0 || state >= STATES.length) {
+            throw new IOException("Unknown state " + state);
+        }
+        long time = buffer.getLong();
+        if (version == EXPIRING_VERSION && buffer.remaining() < Long.BYTES + Integer.BYTES) {
+            throw new IOException("Truncated value of " + bytes.length + " bytes");
+        }
+        long expires = version == EXPIRING_VERSION ? buffer.getLong() : StorageValue.NEVER;
+        int length = buffer.getInt();
+        switch (STATES[state]) {
+            case EXISTS:
+                if (length == NO_PAYLOAD) {
+                    return StorageValue.exists(null, time, expires);
+                }
+                if (length != buffer.remaining()) {
+                    throw new IOException("Payload length " + length + " doesn't match " + buffer.remaining());
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                return StorageValue.exists(payload, time, expires);
+            case REMOVED:
+                return StorageValue.removed(time);
+            case ABSENT:
+                return StorageValue.absent();
+            default:
+                return StorageValue.error();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package ru.mail.polis.litemn;
+
+import one.nio.http.HttpException;
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Request;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * Session able to stream responses and request bodies.
+ * <p>
+ * Responses are written piece by piece, the next piece is produced only when the socket drained
+ * the previous ones, so a stream never piles up in the write queue. Pieces are produced on the
+ * executor, a producer may wait for a peer and the selector thread never does. Records are sent
+ * with chunked transfer encoding, a chunk per record
+ * +------------+-----+--------------+-------+
+ * | key length | key | value length | value |
+ * +------------+-----+--------------+-------+
+ * <p>
+ * PUT bodies larger than {@link #MAX_INLINE_BODY} are not collected into the request,
+ * their bytes are passed to an {@link Upload} as they are read from the socket.
+ * Smaller PUT bodies of requests accepted by the record filter are read after
+ * {@link KVDaoRocksDB#HEADER_LENGTH} reserved bytes, so the body becomes a stored record in place.
+ * Internal PUTs of records stamped by the coordinator are read inline up to {@link #MAX_INLINE_RECORD},
+ * the record of any inline value fits it.
+ */
+class StreamSession extends HttpSession {
+    static final int MAX_INLINE_BODY = 1024 * 1024;
+    static final int MAX_INLINE_RECORD = MAX_INLINE_BODY + KVDaoRocksDB.EXPIRING_HEADER_LENGTH;
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamSession.class);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // marks the parsed request whose body goes to the upload
+    private static final byte[] UPLOADING = new byte[1];
+
+    private final Uploads uploads;
+    private final Predicate<Request> records;
+    private final Executor executor;
+    private Producer producer;
+    // the producer runs on the executor, it is closed there when it returns
+    private boolean producing;
+    private boolean keepAlive;
+    private Upload upload;
+    private long uploadRemaining;
+    private boolean readingSuspended;
+
+    StreamSession(@NotNull Socket socket,
+                  @NotNull HttpServer server,
+                  @NotNull Uploads uploads,
+                  @NotNull Predicate<Request> records,
+                  @NotNull Executor executor) {
+        super(socket, server);
+        this.uploads = uploads;
+        this.records = records;
+        this.executor = executor;
+    }
+
+    /**
+     * @return true for an internal PUT of a stamped record, values streamed to replicas come with their time
+     */
+    private static boolean isRecord(@NotNull Request request) {
+        return request.getMethod() == Request.METHOD_PUT
+                && request.getHeader(KVServiceImpl.INTERNAL_HEADER) != null
+                && request.getParameter("time=") == null;
+    }
+
+    /**
+     * @return true if the body was read after the reserved record header
+     */
+    static boolean hasRecordHeader(@NotNull Request request) {
+        byte[] body = request.getBody();
+        String contentLength = request.getHeader("Content-Length: ");
+        return body != null && contentLength != null
+                && body.length == Long.parseLong(contentLength.trim()) + KVDaoRocksDB.HEADER_LENGTH;
+    }
+
+    /**
+     * Receiver of a streamed request body
+     */
+    interface Upload {
+        /**
+         * Must not block, the body is read on the selector thread
+         *
+         * @return false to stop reading the body until {@link #resumeReading}
+         */
+        boolean write(@NotNull byte[] bytes, int offset, int count);
+
+        /**
+         * Whole body is received, the upload sends the response
+         */
+        void complete();
+
+        void abort();
+    }
+
+    interface Uploads {
+        /**
+         * @return upload of the request body or null if the request can't be streamed
+         */
+        @Nullable
+        Upload start(@NotNull Request request, long length, @NotNull StreamSession session) throws IOException;
+    }
+
+    private interface Producer {
+        /**
+         * May block, it is never called on the selector thread
+         *
+         * @return next bytes to send or null when the response is complete
+         */
+        @Nullable
+        byte[] next() throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Starts streaming of at most {@code limit} records, the iterator is closed when the stream ends
+     */
+    synchronized void stream(@NotNull RecordIterator records, long limit) throws IOException {
+        writeHeaders("Transfer-Encoding: chunked");
+        start(new Producer() {
+            private long remaining = limit;
+            private boolean done;
+
+            @Override
+            public byte[] next() {
+                if (done) {
+                    return null;
+                }
+                if (remaining > 0 && records.hasNext()) {
+                    remaining--;
+                    return chunk(records.next());
+                }
+                done = true;
+                return LAST_CHUNK;
+            }
+
+            @Override
+            public void close() {
+                records.close();
+            }
+        });
+    }
+
+    /**
+     * Streams the value as a plain body, the source is closed when the stream ends
+     */
+    synchronized void stream(@NotNull ValueSource value) throws IOException {
+        writeHeaders("Content-Length: " + value.length());
+        start(new Producer() {
+            @Override
+            public byte[] next() throws IOException {
+                return value.next();
+            }
+
+            @Override
+            public void close() {
+                value.close();
+            }
+        });
+    }
+
+    private void writeHeaders(@NotNull String transfer) throws IOException {
+        if (handling == null) {
+            throw new IOException("Out of order response");
+        }
+        keepAlive = !"close".equalsIgnoreCase(handling.getHeader("Connection: "));
+        byte[] headers = ("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + transfer + "\r\n"
+                + (keepAlive ? "Connection: Keep-Alive" : "Connection: close") + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        write(headers, 0, headers.length);
+    }
+
+    private void start(@NotNull Producer producer) {
+        this.producer = producer;
+        schedule();
+    }
+
+    @Override
+    protected void processWrite() throws Exception {
+        super.processWrite();
+        schedule();
+    }
+
+    /**
+     * Hands the producer to the executor once the socket drained the queue
+     */
+    private synchronized void schedule() {
+        if (producer == null || producing || queueHead != null) {
+            return;
+        }
+        producing = true;
+        try {
+            executor.execute(this::produce);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Stream rejected", e);
+            producing = false;
+            closeProducer();
+            scheduleClose();
+        }
+    }
+
+    /**
+     * Writes pieces while the socket takes them without queueing. The producer is called without
+     * the session lock, so the selector thread is never held by it.
+     */
+    private void produce() {
+        while (true) {
+            Producer current;
+            synchronized (this) {
+                current = producer;
+                if (current == null || queueHead != null) {
+                    producing = false;
+                    return;
+                }
+            }
+            byte[] bytes = null;
+            Exception failure = null;
+            try {
+                bytes = current.next();
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                if (producer != current) {
+                    // the session was closed meanwhile
+                    producing = false;
+                    current.close();
+                    return;
+                }
+                try {
+                    if (failure != null) {
+                        LOGGER.error("Stream is broken", failure);
+                        producing = false;
+                        closeProducer();
+                        scheduleClose();
+                        return;
+                    }
+                    if (bytes == null) {
+                        producing = false;
+                        closeProducer();
+                        finish();
+                        return;
+                    }
+                    write(bytes, 0, bytes.length);
+                } catch (IOException e) {
+                    LOGGER.debug("Fail to write stream", e);
+                    producing = false;
+                    if (producer != null) {
+                        closeProducer();
+                    }
+                    scheduleClose();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static byte[] chunk(@NotNull Record record) {
+        byte[] key = record.getKey();
+        byte[] value = record.getValue().getValue();
+        int length = 2 * Integer.BYTES + key.length + value.length;
+        byte[] size = Integer.toHexString(length).getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocate(size.length + CRLF.length + length + CRLF.length)
+                .put(size)
+                .put(CRLF)
+                .putInt(key.length)
+                .put(key)
+                .putInt(value.length)
+                .put(value)
+                .put(CRLF)
+                .array();
+    }
+
+    /**
+     * Completes the handled request the way {@link HttpSession#sendResponse} does
+     */
+    private void finish() throws IOException {
+        Request handling = this.handling;
+        if (handling == null) {
+            throw new IOException("Out of order response");
+        }
+        server.incRequestsProcessed();
+        if (!keepAlive) {
+            scheduleClose();
+        }
+        if ((this.handling = handling = pipeline.pollFirst()) != null) {
+            if (handling == FIN) {
+                scheduleClose();
+            } else {
+                server.handleRequest(handling, this);
+            }
+        }
+    }
+
+    private void closeProducer() {
+        Producer closed = producer;
+        producer = null;
+        if (!producing) {
+            closed.close();
+        }
+    }
+
+    @Override
+    protected int getMaxRequestBodyLength() {
+        return parsing != null && isRecord(parsing) ? MAX_INLINE_RECORD : MAX_INLINE_BODY;
+    }
+
+    @Override
+    protected int startParsingRequestBody(String contentLength,
+                                          byte[] buffer,
+                                          int offset,
+                                          int length) throws IOException, HttpException {
+        long bodyLength;
+        try {
+            bodyLength = Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            throw new HttpException("Invalid Content-Length header");
+        }
+        if (parsing.getMethod() != Request.METHOD_PUT) {
+            return super.startParsingRequestBody(contentLength, buffer, offset, length);
+        }
+        if (bodyLength >= 0 && bodyLength <= MAX_INLINE_BODY - KVDaoRocksDB.HEADER_LENGTH
+                && records.test(parsing)) {
+            return startRecord((int) bodyLength, buffer, offset, length);
+        }
+        if (bodyLength <= getMaxRequestBodyLength()) {
+            return super.startParsingRequestBody(contentLength, buffer, offset, length);
+        }
+        if (handling != null) {
+            throw new HttpException("Pipelined upload");
+        }
+        Upload started = uploads.start(parsing, bodyLength, this);
+        if (started == null) {
+            return super.startParsingRequestBody(contentLength, buffer, offset, length);
+        }
+        upload = started;
+        uploadRemaining = bodyLength;
+        handling = parsing;
+        parsing.setBody(UPLOADING);
+        requestBodyOffset = 0;
+        return feed(buffer, offset, length);
+    }
+
+    /**
+     * Same as {@link HttpSession#startParsingRequestBody} with the header room in front of the body,
+     * the rest of the body is appended by {@link HttpSession#processHttpBuffer} at {@code requestBodyOffset}
+     */
+    private int startRecord(int bodyLength, @NotNull byte[] buffer, int offset, int length) {
+        byte[] record = new byte[KVDaoRocksDB.HEADER_LENGTH + bodyLength];
+        int count = Math.min(length, bodyLength);
+        System.arraycopy(buffer, offset, record, KVDaoRocksDB.HEADER_LENGTH, count);
+        requestBodyOffset = KVDaoRocksDB.HEADER_LENGTH + count;
+        parsing.setBody(record);
+        return count;
+    }
+
+    @Override
+    protected int processHttpBuffer(byte[] buffer, int length) throws IOException, HttpException {
+        if (upload == null) {
+            return super.processHttpBuffer(buffer, length);
+        }
+        int consumed = feed(buffer, 0, length);
+        int rest = length - consumed;
+        if (rest == 0) {
+            return consumed;
+        }
+        // a pipelined request follows the body, super parses from the buffer start
+        System.arraycopy(buffer, consumed, buffer, 0, rest);
+        int parsed = super.processHttpBuffer(buffer, rest);
+        System.arraycopy(buffer, parsed, buffer, consumed + parsed, rest - parsed);
+        return consumed + parsed;
+    }
+
+    private int feed(@NotNull byte[] buffer, int offset, int length) {
+        int count = (int) Math.min(length, uploadRemaining);
+        if (!upload.write(buffer, offset, count)) {
+            readingSuspended = true;
+            listen(0);
+        }
+        uploadRemaining -= count;
+        if (uploadRemaining == 0) {
+            Upload completed = upload;
+            upload = null;
+            parsing = null;
+            requestBodyOffset = 0;
+            completed.complete();
+        }
+        return count;
+    }
+
+    /**
+     * Resumes reading of the body stopped by {@link Upload#write}
+     */
+    synchronized void resumeReading() {
+        if (readingSuspended) {
+            readingSuspended = false;
+            if (!closing) {
+                listen(READABLE);
+            }
+        }
+    }
+
+    @Override
+    protected void handleSocketClosed() {
+        if (upload != null) {
+            // the body will never be complete
+            abortUpload();
+            scheduleClose();
+            return;
+        }
+        super.handleSocketClosed();
+    }
+
+    @Override
+    public synchronized void close() {
+        abortUpload();
+        if (producer != null) {
+            closeProducer();
+        }
+        super.close();
+    }
+
+    private void abortUpload() {
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+    }
+}
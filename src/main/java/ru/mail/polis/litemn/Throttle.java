@@ -0,0 +1,34 @@
+package ru.mail.polis.litemn;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a background job under a byte rate, the caller sleeps when it gets ahead of the rate
+ */
+final class Throttle {
+    private final long bytesPerSecond;
+    private final long start = System.nanoTime();
+    private long acquired;
+
+    /**
+     * @param bytesPerSecond rate, not positive means no limit
+     */
+    Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Accounts the bytes and waits until the rate allows them
+     */
+    void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        acquired += bytes;
+        long due = start + TimeUnit.SECONDS.toNanos(1) * acquired / bytesPerSecond;
+        long ahead = due - System.nanoTime();
+        if (ahead > 0) {
+            TimeUnit.NANOSECONDS.sleep(ahead);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Purges tombstones older than the grace period, RocksDB Java can't run a compaction filter written
+ * in Java, so the sweeper scans the records instead. Purged tombstones become RocksDB deletes, which
+ * compaction drops together with the data they cover. Values which expired the grace period ago are
+ * purged the same way, until then they read as tombstones.
+ * <p>
+ * A tombstone can't be deleted blindly, a write racing with the delete would be lost. Writers hold
+ * the shared side of the lock, the sweeper takes the exclusive side only to check again and delete
+ * a batch of candidates found by the scan.
+ */
+final class TombstoneSweeper {
+    private static final int BATCH_SIZE = 256;
+
+    private final RocksDB db;
+    private final WriteOptions options;
+    private final StampedLock writes;
+    private final RowCache cache;
+    private final LongAdder sweeps = new LongAdder();
+    private final LongAdder purged = new LongAdder();
+    private final LongAdder reclaimed = new LongAdder();
+
+    TombstoneSweeper(@NotNull RocksDB db,
+                     @NotNull WriteOptions options,
+                     @NotNull StampedLock writes,
+                     @NotNull RowCache cache) {
+        this.db = db;
+        this.options = options;
+        this.writes = writes;
+        this.cache = cache;
+    }
+
+    /**
+     * Stops early if the thread is interrupted
+     *
+     * @param before tombstones stamped earlier and values expired earlier are purged
+     * @return number of purged tombstones
+     */
+    long sweep(long before) throws RocksDBException {
+        long count = 0;
+        List<byte[]> keys = new ArrayList<>(BATCH_SIZE);
+        List<byte[]> tombstones = new ArrayList<>(BATCH_SIZE);
+        try (ReadOptions readOptions = new ReadOptions().setFillCache(false);
+             RocksIterator iterator = db.newIterator(readOptions)) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return count;
+                }
+                byte[] record = iterator.value();
+                if (KVDaoRocksDB.isPurgeable(record, before)) {
+                    keys.add(iterator.key());
+                    tombstones.add(record);
+                    if (keys.size() == BATCH_SIZE) {
+                        count += purge(keys, tombstones);
+                    }
+                }
+            }
+        }
+        count += purge(keys, tombstones);
+        sweeps.increment();
+        return count;
+    }
+
+    /**
+     * Deletes the candidates which are still the same tombstones, clears the lists
+     */
+    private long purge(@NotNull List<byte[]> keys, @NotNull List<byte[]> tombstones) throws RocksDBException {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        long count = 0;
+        long bytes = 0;
+        long stamp = writes.writeLock();
+        try (WriteBatch batch = new WriteBatch()) {
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                if (Arrays.equals(tombstones.get(i), db.get(key))) {
+                    batch.delete(key);
+                    count++;
+                    bytes += key.length + tombstones.get(i).length;
+                }
+            }
+            if (count > 0) {
+                db.write(options, batch);
+            }
+        } finally {
+            writes.unlockWrite(stamp);
+        }
+        keys.forEach(cache::invalidate);
+        purged.add(count);
+        reclaimed.add(bytes);
+        keys.clear();
+        tombstones.clear();
+        return count;
+    }
+
+    void appendMetrics(@NotNull StringBuilder metrics) {
+        metrics.append("storage.tombstones.sweeps ").append(sweeps.sum()).append('\n')
+                .append("storage.tombstones.purged ").append(purged.sum()).append('\n')
+                .append("storage.tombstones.purged.bytes ").append(reclaimed.sum()).append('\n');
+    }
+}
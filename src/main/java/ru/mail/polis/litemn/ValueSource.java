@@ -0,0 +1,55 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Value read piece by piece, so a value of any size is never held on heap as a whole
+ */
+public interface ValueSource extends Closeable {
+
+    /**
+     * @return total length of the value in bytes
+     */
+    long length();
+
+    /**
+     * @return next piece of the value or null at the end, the array is not reused by the source
+     */
+    @Nullable
+    byte[] next() throws IOException;
+
+    @Override
+    void close();
+
+    /**
+     * @return source of a value which is already on heap
+     */
+    @NotNull
+    static ValueSource of(@NotNull byte[] value) {
+        return new ValueSource() {
+            private boolean read;
+
+            @Override
+            public long length() {
+                return value.length;
+            }
+
+            @Override
+            public byte[] next() {
+                if (read) {
+                    return null;
+                }
+                read = true;
+                return value;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
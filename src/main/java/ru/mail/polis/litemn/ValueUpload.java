@@ -0,0 +1,203 @@
+package ru.mail.polis.litemn;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.litemn.command.PutStream;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Large value streamed into the local value writer and to the replicas while the body is read.
+ * Body pieces are queued and forwarded by an executor task, the session stops reading the body
+ * while {@link #MAX_PENDING_BYTES} wait in the queue. Heap usage is bounded by the queue
+ * regardless of the value size. Replicas which didn't store the value are reported to {@code missed}
+ * once the local replica committed it, so they get it later from this node.
+ */
+class ValueUpload implements StreamSession.Upload {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValueUpload.class);
+    private static final int MAX_PENDING_BYTES = 4 * KVDaoRocksDB.CHUNK_SIZE;
+
+    private final StreamSession session;
+    private final ValueWriter local;
+    private final List<PutStream> remotes;
+    private final int ack;
+    private final String failure;
+    private final Executor executor;
+    private final Consumer<String> missed;
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private long pendingBytes;
+    private boolean draining;
+    private boolean suspended;
+    private boolean completed;
+    private boolean aborted;
+    private boolean localFailed;
+
+    /**
+     * @param local   writer of the local replica, null if the coordinator is not a replica
+     * @param failure status sent if less than {@code ack} replicas stored the value
+     * @param missed  receives the host of each replica which missed the committed value
+     */
+    ValueUpload(@NotNull StreamSession session,
+                @Nullable ValueWriter local,
+                @NotNull List<PutStream> remotes,
+                int ack,
+                @NotNull String failure,
+                @NotNull Executor executor,
+                @NotNull Consumer<String> missed) {
+        this.session = session;
+        this.local = local;
+        this.remotes = remotes;
+        this.ack = ack;
+        this.failure = failure;
+        this.executor = executor;
+        this.missed = missed;
+    }
+
+    @Override
+    public synchronized boolean write(@NotNull byte[] bytes, int offset, int count) {
+        if (aborted) {
+            return true;
+        }
+        pending.add(Arrays.copyOfRange(bytes, offset, offset + count));
+        pendingBytes += count;
+        drain();
+        if (pendingBytes < MAX_PENDING_BYTES) {
+            return true;
+        }
+        suspended = true;
+        return false;
+    }
+
+    @Override
+    public synchronized void complete() {
+        completed = true;
+        drain();
+    }
+
+    @Override
+    public synchronized void abort() {
+        aborted = true;
+        pending.clear();
+        pendingBytes = 0;
+        if (!draining) {
+            release();
+        }
+    }
+
+    /**
+     * Starts the forwarding task unless it runs
+     */
+    private void drain() {
+        if (draining || aborted) {
+            return;
+        }
+        draining = true;
+        try {
+            executor.execute(this::forward);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Upload rejected", e);
+            draining = false;
+            aborted = true;
+            pending.clear();
+            pendingBytes = 0;
+            release();
+            session.scheduleClose();
+        }
+    }
+
+    /**
+     * Writes queued pieces to the replicas, commits and responds once the whole body is forwarded
+     */
+    private void forward() {
+        while (true) {
+            byte[] piece;
+            boolean resume = false;
+            boolean done;
+            boolean release;
+            synchronized (this) {
+                piece = pending.poll();
+                release = aborted;
+                done = piece == null && completed;
+                if (piece == null) {
+                    draining = false;
+                } else {
+                    pendingBytes -= piece.length;
+                    if (suspended && pendingBytes < MAX_PENDING_BYTES) {
+                        suspended = false;
+                        resume = true;
+                    }
+                }
+            }
+            if (release) {
+                release();
+                return;
+            }
+            if (piece == null) {
+                if (done) {
+                    respond();
+                }
+                return;
+            }
+            if (resume) {
+                session.resumeReading();
+            }
+            write(piece);
+        }
+    }
+
+    private void write(@NotNull byte[] piece) {
+        if (local != null && !localFailed) {
+            try {
+                local.write(piece, 0, piece.length);
+            } catch (IOException e) {
+                LOGGER.error("Fail to store chunk", e);
+                localFailed = true;
+                local.abort();
+            }
+        }
+        for (PutStream remote : remotes) {
+            remote.write(piece, 0, piece.length);
+        }
+    }
+
+    private void respond() {
+        int acks = 0;
+        boolean stored = local != null && !localFailed && local.commit();
+        if (stored) {
+            acks++;
+        }
+        for (PutStream remote : remotes) {
+            if (remote.finish()) {
+                acks++;
+            } else if (stored) {
+                missed.accept(remote.getHost());
+            } else {
+                // no replica to replay from, read repair skips streamed values
+                LOGGER.warn("Replica {} missed a value this node didn't store", remote.getHost());
+            }
+        }
+        try {
+            session.sendResponse(acks >= ack
+                    ? new Response(Response.CREATED, Response.EMPTY)
+                    : new Response(failure, Response.EMPTY));
+        } catch (IOException e) {
+            LOGGER.error("Fail to send response", e);
+        }
+    }
+
+    private void release() {
+        if (local != null && !localFailed) {
+            local.abort();
+        }
+        remotes.forEach(PutStream::close);
+    }
+}
@@ -0,0 +1,23 @@
+package ru.mail.polis.litemn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Value written piece by piece while its bytes arrive, it becomes visible only on {@link #commit()}
+ */
+public interface ValueWriter {
+
+    void write(@NotNull byte[] bytes, int offset, int count) throws IOException;
+
+    /**
+     * @return false if the value is incomplete or can't be stored
+     */
+    boolean commit();
+
+    /**
+     * Drops the written bytes, the stored value is left as is
+     */
+    void abort();
+}
@@ -0,0 +1,36 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.http.Response;
+
+import static ru.mail.polis.litemn.KVServiceImpl.BATCH_PATH;
+import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
+
+/**
+ * Replicates all mutations the peer holds for a batch write with one internal request
+ */
+public class BatchCommand extends Command<Boolean> {
+
+    private final byte[] body;
+    private final long time;
+
+    /**
+     * @param body framed mutations
+     * @param time timestamp of all the mutations, the peer stores it as is
+     */
+    public BatchCommand(Peer peer, int size, byte[] body, long time) {
+        super(peer, size + " mutations");
+        this.body = body;
+        this.time = time;
+    }
+
+    @Override
+    Boolean execute() throws Exception {
+        Response response = getClient().post(BATCH_PATH + "?time=" + time, body, INTERNAL_HEADER);
+        return (response.getStatus() == 201);
+    }
+
+    @Override
+    Boolean failed() {
+        return false;
+    }
+}
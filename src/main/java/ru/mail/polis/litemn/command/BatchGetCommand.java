@@ -0,0 +1,56 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.http.Response;
+import ru.mail.polis.litemn.Frames;
+import ru.mail.polis.litemn.StorageValue;
+import ru.mail.polis.litemn.StorageValueCodec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ru.mail.polis.litemn.KVServiceImpl.ENTITIES_PATH;
+import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
+
+/**
+ * Reads all keys the peer holds for a multi-get with one internal request
+ */
+public class BatchGetCommand extends Command<List<StorageValue>> {
+
+    private final List<String> ids;
+
+    public BatchGetCommand(Peer peer, List<String> ids) {
+        super(peer, ids.size() + " ids");
+        this.ids = ids;
+    }
+
+    @Override
+    List<StorageValue> execute() throws Exception {
+        List<byte[]> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(id.getBytes(StandardCharsets.UTF_8));
+        }
+        Response response = getClient().post(ENTITIES_PATH, Frames.encode(keys), INTERNAL_HEADER);
+        if (response.getStatus() != 200) {
+            return failed();
+        }
+        List<byte[]> frames = Frames.decode(response.getBody());
+        if (frames.size() != ids.size()) {
+            throw new IOException("Expected " + ids.size() + " values, got " + frames.size());
+        }
+        List<StorageValue> values = new ArrayList<>(frames.size());
+        for (byte[] frame : frames) {
+            values.add(StorageValueCodec.decode(frame));
+        }
+        return values;
+    }
+
+    /**
+     * @return null, a failed batch has no values
+     */
+    @Override
+    List<StorageValue> failed() {
+        return null;
+    }
+}
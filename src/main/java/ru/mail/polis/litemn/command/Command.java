@@ -1,21 +1,63 @@
 package ru.mail.polis.litemn.command;
 
 import one.nio.http.HttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 abstract class Command<T> implements Callable<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Command.class);
 
-    private final HttpClient client;
+    private final Peer peer;
     private final String id;
 
-    Command(HttpClient client, String id) {
-        this.client = client;
+    Command(Peer peer, String id) {
+        this.peer = peer;
         this.id = id;
     }
 
+    @Override
+    public final T call() {
+        if (!peer.acquire()) {
+            LOGGER.debug("Peer {} is down, skip {} for {}", peer.getHost(), getClass().getSimpleName(), id);
+            return failed();
+        }
+        long start = System.nanoTime();
+        try {
+            T result = execute();
+            peer.onSuccess();
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed();
+        } catch (Exception e) {
+            LOGGER.error("Error in " + getClass().getSimpleName() + " for " + id + " to " + peer.getHost(), e);
+            peer.onFailure();
+            return failed();
+        } finally {
+            peer.getStats().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    abstract T execute() throws Exception;
+
+    /**
+     * @return result reported when the peer didn't answer
+     */
+    abstract T failed();
+
+    Peer getPeer() {
+        return peer;
+    }
+
     HttpClient getClient() {
-        return client;
+        return peer.getClient();
+    }
+
+    PeerStats getStats() {
+        return peer.getStats();
     }
 
     String getId() {
@@ -1,7 +1,18 @@
 package ru.mail.polis.litemn.command;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 public interface CommandProcessor<T> {
-    List<T> process(List<Command<T>> commands);
+
+    /**
+     * Runs all commands in parallel and completes as soon as the outcome is known:
+     * either {@code ack} results satisfied {@code success} or so many commands failed that it is impossible.
+     * Commands still running at that moment finish in background.
+     *
+     * @return successful results collected by completion, less than {@code ack} means not enough replicas
+     */
+    CompletableFuture<List<T>> process(List<? extends Callable<T>> commands, Predicate<T> success, int ack);
 }
@@ -1,6 +1,7 @@
 package ru.mail.polis.litemn.command;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class CommandProcessorFactory {
 
@@ -8,6 +9,12 @@ public class CommandProcessorFactory {
     }
 
     public static <T> CommandProcessor<T> newCommandProcessor(ExecutorService executorService) {
-        return new SequenceCommandProcessor<>(executorService);
+        return new QuorumCommandProcessor<>(executorService);
+    }
+
+    public static <T> CommandProcessor<T> newHedgedCommandProcessor(ExecutorService executorService,
+                                                                    ScheduledExecutorService scheduler,
+                                                                    long defaultDelayMicros) {
+        return new HedgedCommandProcessor<>(executorService, scheduler, defaultDelayMicros);
     }
 }
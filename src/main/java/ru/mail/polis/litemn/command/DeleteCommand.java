@@ -1,28 +1,29 @@
 package ru.mail.polis.litemn.command;
 
-import one.nio.http.HttpClient;
 import one.nio.http.Response;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import static ru.mail.polis.litemn.KVServiceImpl.ENTITY_PATH;
 import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
 
 public class DeleteCommand extends Command<Boolean> {
-    private static final Logger LOGGER = LoggerFactory.getLogger(DeleteCommand.class);
+    private final long time;
 
-    public DeleteCommand(HttpClient client, String id) {
-        super(client, id);
+    /**
+     * @param time timestamp of the removal, the peer stores it as is
+     */
+    public DeleteCommand(Peer peer, String id, long time) {
+        super(peer, id);
+        this.time = time;
     }
 
     @Override
-    public Boolean call() {
-        try {
-            Response response = getClient().delete(ENTITY_PATH + "?id=" + getId(), INTERNAL_HEADER);
-            return (response.getStatus() == 202);
-        } catch (Exception e) {
-            LOGGER.error("Error in del command for " + getId(), e);
-            return false;
-        }
+    Boolean execute() throws Exception {
+        Response response = getClient().delete(ENTITY_PATH + "?id=" + getId() + "&time=" + time, INTERNAL_HEADER);
+        return (response.getStatus() == 202);
+    }
+
+    @Override
+    Boolean failed() {
+        return false;
     }
 }
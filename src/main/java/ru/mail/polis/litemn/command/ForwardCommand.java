@@ -0,0 +1,35 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.http.Response;
+
+/**
+ * Passes a client write to a peer which coordinates it instead of this node
+ */
+public class ForwardCommand extends Command<Response> {
+
+    private final String uri;
+    private final byte[] body;
+
+    /**
+     * @param uri  request URI with the parameters of the client
+     * @param body value to put or null to delete
+     */
+    public ForwardCommand(Peer peer, String id, String uri, byte[] body) {
+        super(peer, id);
+        this.uri = uri;
+        this.body = body;
+    }
+
+    /**
+     * @return response of the peer or null if it didn't answer
+     */
+    @Override
+    Response execute() throws Exception {
+        return body == null ? getClient().delete(uri) : getClient().put(uri, body);
+    }
+
+    @Override
+    Response failed() {
+        return null;
+    }
+}
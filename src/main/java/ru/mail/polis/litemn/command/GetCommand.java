@@ -1,31 +1,61 @@
 package ru.mail.polis.litemn.command;
 
-import one.nio.http.HttpClient;
 import one.nio.http.Response;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import ru.mail.polis.litemn.StorageValue;
+import ru.mail.polis.litemn.StorageValueCodec;
+
+import java.io.IOException;
 
-import static one.nio.serial.Serializer.deserialize;
 import static ru.mail.polis.litemn.KVServiceImpl.ENTITY_PATH;
 import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
 
 public class GetCommand extends Command<StorageValue> {
-    private static final Logger LOGGER = LoggerFactory.getLogger(GetCommand.class);
 
-    public GetCommand(HttpClient client, String id) {
-        super(client, id);
+    private final boolean digest;
+    private volatile StorageValue result;
+
+    /**
+     * @param digest ask the replica for the version only, without the payload
+     */
+    public GetCommand(Peer peer, String id, boolean digest) {
+        super(peer, id);
+        this.digest = digest;
+    }
+
+    /**
+     * @return command reading the payload from the same replica
+     */
+    public GetCommand fullRead() {
+        return new GetCommand(getPeer(), getId(), false);
+    }
+
+    /**
+     * Opens a stream of the payload from the same replica, for values that are never transferred inline
+     *
+     * @return null if the replica doesn't have the value anymore
+     */
+    public GetStream stream(int timeout) throws IOException {
+        return GetStream.open(getPeer(), getId(), timeout);
+    }
+
+    /**
+     * @return value returned by the replica or null if the command is not completed
+     */
+    public StorageValue getResult() {
+        return result;
+    }
+
+    @Override
+    StorageValue execute() throws Exception {
+        String uri = ENTITY_PATH + "?id=" + getId() + (digest ? "&digest=true" : "");
+        Response response = getClient().get(uri, INTERNAL_HEADER);
+        result = StorageValueCodec.decode(response.getBody());
+        return result;
     }
 
     @Override
-    public StorageValue call() {
-        try {
-            Response response = getClient().get(ENTITY_PATH + "?id=" + getId(), INTERNAL_HEADER);
-            byte[] body = response.getBody();
-            return (StorageValue) deserialize(body);
-        } catch (Exception e) {
-            LOGGER.error("Error in get command for " + getId(), e);
-            return StorageValue.error();
-        }
+    StorageValue failed() {
+        result = StorageValue.error();
+        return result;
     }
 }
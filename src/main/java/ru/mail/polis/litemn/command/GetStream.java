@@ -0,0 +1,78 @@
+package ru.mail.polis.litemn.command;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.litemn.ValueSource;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static ru.mail.polis.litemn.KVServiceImpl.ENTITY_PATH;
+import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
+
+/**
+ * Payload of a large value read from the peer piece by piece
+ */
+public class GetStream implements ValueSource {
+    private static final int PIECE_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final long length;
+    private long remaining;
+
+    private GetStream(@NotNull Socket socket, @NotNull DataInputStream in, long length) {
+        this.socket = socket;
+        this.in = in;
+        this.length = length;
+        this.remaining = length;
+    }
+
+    /**
+     * @return stream of the value or null if the peer doesn't have it
+     */
+    @Nullable
+    static GetStream open(@NotNull Peer peer, @NotNull String id, int timeout) throws IOException {
+        Socket socket = Streams.connect(peer, timeout);
+        try {
+            socket.getOutputStream().write(("GET " + ENTITY_PATH + "?id=" + id + "&stream=true HTTP/1.1\r\n"
+                    + INTERNAL_HEADER + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int status = Streams.readStatus(in);
+            long length = Streams.readContentLength(in);
+            if (status != 200 || length < 0) {
+                Streams.closeQuietly(socket);
+                return null;
+            }
+            return new GetStream(socket, in, length);
+        } catch (IOException e) {
+            Streams.closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Nullable
+    @Override
+    public byte[] next() throws IOException {
+        if (remaining == 0) {
+            return null;
+        }
+        byte[] piece = new byte[(int) Math.min(PIECE_SIZE, remaining)];
+        in.readFully(piece);
+        remaining -= piece.length;
+        return piece;
+    }
+
+    @Override
+    public void close() {
+        Streams.closeQuietly(socket);
+    }
+}
@@ -0,0 +1,151 @@
+package ru.mail.polis.litemn.command;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Starts only the first {@code ack} commands, callers put the fastest replicas first.
+ * Next command is started speculatively when a running one fails or doesn't answer within
+ * its peer hedge percentile, so one slow replica doesn't define the request latency.
+ */
+public class HedgedCommandProcessor<T> implements CommandProcessor<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HedgedCommandProcessor.class);
+
+    private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduler;
+    private final long defaultDelayMicros;
+
+    /**
+     * @param defaultDelayMicros hedge delay used until the peer has latency statistics
+     */
+    HedgedCommandProcessor(ExecutorService executorService,
+                           ScheduledExecutorService scheduler,
+                           long defaultDelayMicros) {
+        this.executorService = executorService;
+        this.scheduler = scheduler;
+        this.defaultDelayMicros = defaultDelayMicros;
+    }
+
+    @Override
+    public CompletableFuture<List<T>> process(List<? extends Callable<T>> commands, Predicate<T> success, int ack) {
+        Hedge hedge = new Hedge(commands, success, ack);
+        for (int i = 0; i < ack; i++) {
+            hedge.launchNext();
+        }
+        return hedge.future;
+    }
+
+    private long delayOf(Callable<T> command) {
+        if (!(command instanceof Command)) {
+            // local operations are hedged only on failure
+            return -1;
+        }
+        long delay = ((Command<?>) command).getStats().getHedgeDelay();
+        return delay < 0 ? defaultDelayMicros : Math.max(delay, 1);
+    }
+
+    private class Hedge {
+        private final CompletableFuture<List<T>> future = new CompletableFuture<>();
+        private final List<? extends Callable<T>> commands;
+        private final List<T> successes = new ArrayList<>();
+        private final Predicate<T> success;
+        private final int ack;
+        private int next;
+        private int running;
+        private boolean done;
+
+        Hedge(List<? extends Callable<T>> commands, Predicate<T> success, int ack) {
+            this.commands = commands;
+            this.success = success;
+            this.ack = ack;
+            if (commands.size() < ack) {
+                done = true;
+                future.complete(new ArrayList<>());
+            }
+        }
+
+        void launchNext() {
+            Callable<T> command;
+            synchronized (this) {
+                if (done || next >= commands.size()) {
+                    return;
+                }
+                command = commands.get(next++);
+                running++;
+            }
+            Attempt attempt = new Attempt();
+            try {
+                executorService.execute(() -> attempt.run(command));
+            } catch (RejectedExecutionException e) {
+                LOGGER.error("Command rejected", e);
+                onComplete(attempt, null, false);
+                return;
+            }
+            long delay = delayOf(command);
+            if (delay >= 0) {
+                try {
+                    attempt.timer = scheduler.schedule(() -> {
+                        if (!attempt.finished) {
+                            launchNext();
+                        }
+                    }, delay, TimeUnit.MICROSECONDS);
+                } catch (RejectedExecutionException e) {
+                    LOGGER.debug("Hedge is not scheduled", e);
+                }
+            }
+        }
+
+        void onComplete(Attempt attempt, T value, boolean succeeded) {
+            attempt.finished = true;
+            ScheduledFuture<?> timer = attempt.timer;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            List<T> outcome = null;
+            synchronized (this) {
+                running--;
+                if (succeeded) {
+                    successes.add(value);
+                }
+                if (!done && (successes.size() >= ack
+                        || successes.size() + running + commands.size() - next < ack)) {
+                    done = true;
+                    outcome = new ArrayList<>(successes);
+                }
+            }
+            if (outcome != null) {
+                future.complete(outcome);
+            } else if (!succeeded) {
+                launchNext();
+            }
+        }
+
+        private class Attempt {
+            private volatile boolean finished;
+            private volatile ScheduledFuture<?> timer;
+
+            void run(Callable<T> command) {
+                T value;
+                try {
+                    value = command.call();
+                } catch (Exception e) {
+                    LOGGER.error("Error to process command", e);
+                    onComplete(this, null, false);
+                    return;
+                }
+                onComplete(this, value, success.test(value));
+            }
+        }
+    }
+}
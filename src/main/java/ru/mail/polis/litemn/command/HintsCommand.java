@@ -0,0 +1,33 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.http.Response;
+
+import static ru.mail.polis.litemn.KVServiceImpl.BATCH_PATH;
+import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
+
+/**
+ * Sends replayed hints or repaired records, the peer applies only records newer than the ones it has
+ */
+public class HintsCommand extends Command<Boolean> {
+
+    private final byte[] body;
+
+    /**
+     * @param body framed key and record pairs
+     */
+    public HintsCommand(Peer peer, int size, byte[] body) {
+        super(peer, size + " hints");
+        this.body = body;
+    }
+
+    @Override
+    Boolean execute() throws Exception {
+        Response response = getClient().post(BATCH_PATH + "?hints=true", body, INTERNAL_HEADER);
+        return (response.getStatus() == 201);
+    }
+
+    @Override
+    Boolean failed() {
+        return false;
+    }
+}
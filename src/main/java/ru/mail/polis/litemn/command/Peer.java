@@ -0,0 +1,96 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.http.HttpClient;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remote node: its connection pool, latency statistics and health.
+ * After {@link #FAILURES_TO_DOWN} consecutive I/O failures the peer is considered down for the backoff,
+ * commands to it fail fast and the pooled connections are recycled. One probe request passes per backoff.
+ */
+public class Peer implements Closeable {
+    private static final int FAILURES_TO_DOWN = 3;
+
+    private final String host;
+    private final HttpClient client;
+    private final PeerStats stats;
+    private final long backoffMillis;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong downUntil = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public Peer(@NotNull String host, HttpClient client, @NotNull PeerStats stats, long backoffMillis) {
+        this.host = host;
+        this.client = client;
+        this.stats = stats;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * @return false if the peer is down, true for a healthy peer or for the single probe after backoff
+     */
+    boolean acquire() {
+        long until = downUntil.get();
+        if (until == 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= until && downUntil.compareAndSet(until, now + backoffMillis)) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    void onSuccess() {
+        consecutiveFailures.set(0);
+        downUntil.set(0);
+    }
+
+    void onFailure() {
+        failures.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= FAILURES_TO_DOWN) {
+            downUntil.set(System.currentTimeMillis() + backoffMillis);
+        }
+        // connections may be stale after peer restart
+        client.invalidateAll();
+    }
+
+    @NotNull
+    public String getHost() {
+        return host;
+    }
+
+    HttpClient getClient() {
+        return client;
+    }
+
+    @NotNull
+    public PeerStats getStats() {
+        return stats;
+    }
+
+    public void appendMetrics(@NotNull StringBuilder metrics) {
+        String prefix = "peer." + host + '.';
+        metrics.append(prefix).append("pool.max ").append(client.getMaxCount()).append('\n')
+                .append(prefix).append("pool.busy ").append(client.getBusyCount()).append('\n')
+                .append(prefix).append("pool.idle ").append(client.getIdleCount()).append('\n')
+                .append(prefix).append("pool.waiting ").append(client.getWaitingThreads()).append('\n')
+                .append(prefix).append("pool.timeouts ").append(client.getTimeouts()).append('\n')
+                .append(prefix).append("failures ").append(failures.get()).append('\n')
+                .append(prefix).append("rejected ").append(rejected.get()).append('\n')
+                .append(prefix).append("down ").append(downUntil.get() != 0 ? 1 : 0).append('\n')
+                .append(prefix).append("latency.median.micros ").append(stats.getMedian()).append('\n')
+                .append(prefix).append("latency.hedge.micros ").append(stats.getHedgeDelay()).append('\n');
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,59 @@
+package ru.mail.polis.litemn.command;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sliding window of recent request latencies to a peer.
+ * Percentiles are refreshed every {@link #REFRESH} samples, so reading them is cheap.
+ */
+public class PeerStats {
+    private static final int WINDOW = 256;
+    private static final int REFRESH = 32;
+    private static final long UNKNOWN = -1;
+
+    private final double hedgePercentile;
+    private final long[] samples = new long[WINDOW];
+    private final AtomicLong count = new AtomicLong();
+    private volatile long median = UNKNOWN;
+    private volatile long hedge = UNKNOWN;
+
+    /**
+     * @param hedgePercentile percentile in {@code (0, 100]} after which a speculative request is sent
+     */
+    public PeerStats(double hedgePercentile) {
+        if (hedgePercentile <= 0 || hedgePercentile > 100) {
+            throw new IllegalArgumentException("Wrong percentile " + hedgePercentile);
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    void record(long micros) {
+        long n = count.getAndIncrement();
+        samples[(int) (n % WINDOW)] = micros;
+        if ((n + 1) % REFRESH == 0) {
+            refresh(Math.min(n + 1, WINDOW));
+        }
+    }
+
+    private void refresh(long size) {
+        long[] sorted = Arrays.copyOf(samples, (int) size);
+        Arrays.sort(sorted);
+        median = sorted[sorted.length / 2];
+        hedge = sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * hedgePercentile / 100) - 1)];
+    }
+
+    /**
+     * @return median latency in microseconds or {@code -1} until enough samples are collected
+     */
+    public long getMedian() {
+        return median;
+    }
+
+    /**
+     * @return hedge percentile latency in microseconds or {@code -1} until enough samples are collected
+     */
+    public long getHedgeDelay() {
+        return hedge;
+    }
+}
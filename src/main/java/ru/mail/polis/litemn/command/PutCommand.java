@@ -1,31 +1,38 @@
 package ru.mail.polis.litemn.command;
 
-import one.nio.http.HttpClient;
 import one.nio.http.Response;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import static ru.mail.polis.litemn.KVServiceImpl.ENTITY_PATH;
 import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
 
+/**
+ * Sends a record stamped by the coordinator, the replica stores it as is.
+ * A hint is stored only if it is newer than the record the replica has.
+ */
 public class PutCommand extends Command<Boolean> {
-    private static final Logger LOGGER = LoggerFactory.getLogger(PutCommand.class);
 
-    private final byte[] value;
+    private final byte[] record;
+    private final boolean hint;
 
-    public PutCommand(HttpClient client, String id, byte[] value) {
-        super(client, id);
-        this.value = value;
+    public PutCommand(Peer peer, String id, byte[] record) {
+        this(peer, id, record, false);
+    }
+
+    public PutCommand(Peer peer, String id, byte[] record, boolean hint) {
+        super(peer, id);
+        this.record = record;
+        this.hint = hint;
+    }
+
+    @Override
+    Boolean execute() throws Exception {
+        Response response = getClient().put(ENTITY_PATH + "?id=" + getId() + (hint ? "&hint=true" : ""),
+                record, INTERNAL_HEADER);
+        return (response.getStatus() == 201);
     }
 
     @Override
-    public Boolean call() {
-        try {
-            Response response = getClient().put(ENTITY_PATH + "?id=" + getId(), value, INTERNAL_HEADER);
-            return (response.getStatus() == 201);
-        } catch (Exception e) {
-            LOGGER.error("Error in put command for " + getId(), e);
-            return false;
-        }
+    Boolean failed() {
+        return false;
     }
 }
@@ -0,0 +1,109 @@
+package ru.mail.polis.litemn.command;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static ru.mail.polis.litemn.KVServiceImpl.ENTITY_PATH;
+import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
+
+/**
+ * Internal PUT of a large value whose body is forwarded to the peer as it arrives.
+ * The peer is connected on the first write, the stream does blocking I/O and must be used
+ * off the selector thread. A failed stream ignores further writes and reports no ack.
+ */
+public class PutStream implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PutStream.class);
+
+    private final Peer peer;
+    private final String head;
+    private final int timeout;
+    private Socket socket;
+    private OutputStream out;
+    private boolean failed;
+
+    /**
+     * @param time timestamp of the value, the peer stores it as is
+     */
+    public PutStream(@NotNull Peer peer, @NotNull String id, long length, long time, int timeout) {
+        this(peer, id, length, time, timeout, false);
+    }
+
+    /**
+     * @param hint true if the peer stores the value only if it is newer than the stored one
+     */
+    public PutStream(@NotNull Peer peer, @NotNull String id, long length, long time, int timeout, boolean hint) {
+        this.peer = peer;
+        this.head = "PUT " + ENTITY_PATH + "?id=" + id + "&time=" + time
+                + (hint ? "&hint=true" : "") + " HTTP/1.1\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + INTERNAL_HEADER + "\r\n"
+                + "Connection: close\r\n\r\n";
+        this.timeout = timeout;
+        failed = !peer.acquire();
+    }
+
+    @NotNull
+    public String getHost() {
+        return peer.getHost();
+    }
+
+    private void connect() throws IOException {
+        if (socket == null) {
+            socket = Streams.connect(peer, timeout);
+            out = socket.getOutputStream();
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    public void write(@NotNull byte[] bytes, int offset, int count) {
+        if (failed) {
+            return;
+        }
+        try {
+            connect();
+            out.write(bytes, offset, count);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return true if the peer stored the value
+     */
+    public boolean finish() {
+        if (failed) {
+            return false;
+        }
+        try {
+            connect();
+            out.flush();
+            int status = Streams.readStatus(socket.getInputStream());
+            peer.onSuccess();
+            return status == 201;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        } finally {
+            close();
+        }
+    }
+
+    private void fail(@NotNull IOException e) {
+        LOGGER.error("Fail to stream value to " + peer.getHost(), e);
+        failed = true;
+        peer.onFailure();
+        close();
+    }
+
+    @Override
+    public void close() {
+        Streams.closeQuietly(socket);
+    }
+}
@@ -0,0 +1,100 @@
+package ru.mail.polis.litemn.command;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+
+public class QuorumCommandProcessor<T> implements CommandProcessor<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuorumCommandProcessor.class);
+
+    private final ExecutorService executorService;
+
+    QuorumCommandProcessor(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    @Override
+    public CompletableFuture<List<T>> process(List<? extends Callable<T>> commands, Predicate<T> success, int ack) {
+        Quorum<T> quorum = new Quorum<>(commands.size(), success, ack);
+        for (Callable<T> command : commands) {
+            try {
+                executorService.execute(() -> {
+                    try {
+                        quorum.onResult(command.call());
+                    } catch (Exception e) {
+                        LOGGER.error("Error to process command", e);
+                        quorum.onFailure();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.error("Command rejected", e);
+                quorum.onFailure();
+            }
+        }
+        return quorum.future;
+    }
+
+    private static class Quorum<T> {
+        private final CompletableFuture<List<T>> future = new CompletableFuture<>();
+        private final List<T> successes = new ArrayList<>();
+        private final Predicate<T> success;
+        private final int ack;
+        private int pending;
+        private boolean done;
+
+        Quorum(int total, Predicate<T> success, int ack) {
+            this.success = success;
+            this.ack = ack;
+            this.pending = total;
+            if (total < ack) {
+                done = true;
+                future.complete(new ArrayList<>());
+            }
+        }
+
+        void onResult(T value) {
+            List<T> outcome;
+            synchronized (this) {
+                pending--;
+                if (success.test(value)) {
+                    successes.add(value);
+                }
+                outcome = outcome();
+            }
+            complete(outcome);
+        }
+
+        void onFailure() {
+            List<T> outcome;
+            synchronized (this) {
+                pending--;
+                outcome = outcome();
+            }
+            complete(outcome);
+        }
+
+        private List<T> outcome() {
+            if (!done && (successes.size() >= ack || successes.size() + pending < ack)) {
+                done = true;
+                return new ArrayList<>(successes);
+            }
+            return null;
+        }
+
+        /**
+         * Completes outside the lock, so response sending doesn't block other replicas results
+         */
+        private void complete(List<T> outcome) {
+            if (outcome != null) {
+                future.complete(outcome);
+            }
+        }
+    }
+}
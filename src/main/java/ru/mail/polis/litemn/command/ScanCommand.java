@@ -0,0 +1,82 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.http.Response;
+import one.nio.util.URLEncoder;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.litemn.Frames;
+import ru.mail.polis.litemn.Record;
+import ru.mail.polis.litemn.StorageValueCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ru.mail.polis.litemn.KVServiceImpl.ENTITIES_PATH;
+import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
+
+/**
+ * Reads one page of a range scan from the peer, tombstones included.
+ * Page is framed as key and encoded value pairs, the peer ends it at {@code limit} records or once
+ * the frames take {@link #PAGE_BYTES}.
+ */
+public class ScanCommand extends Command<ScanCommand.Page> {
+    public static final int PAGE_BYTES = 1024 * 1024;
+
+    private final String end;
+    private final int limit;
+
+    /**
+     * Records of a page, a page cut short by neither bound is the last one
+     */
+    public static final class Page {
+        private final List<Record> records;
+        private final boolean last;
+
+        private Page(List<Record> records, boolean last) {
+            this.records = records;
+            this.last = last;
+        }
+
+        public List<Record> getRecords() {
+            return records;
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+    }
+
+    public ScanCommand(Peer peer, String start, @Nullable String end, int limit) {
+        super(peer, start);
+        this.end = end;
+        this.limit = limit;
+    }
+
+    @Override
+    Page execute() throws Exception {
+        String uri = ENTITIES_PATH + "?start=" + URLEncoder.encode(getId())
+                + (end == null ? "" : "&end=" + URLEncoder.encode(end)) + "&limit=" + limit;
+        Response response = getClient().get(uri, INTERNAL_HEADER);
+        if (response.getStatus() != 200) {
+            return failed();
+        }
+        byte[] body = response.getBody();
+        List<byte[]> frames = Frames.decode(body);
+        if (frames.size() % 2 != 0) {
+            throw new IOException("Odd frames count " + frames.size());
+        }
+        List<Record> records = new ArrayList<>(frames.size() / 2);
+        for (int i = 0; i < frames.size(); i += 2) {
+            records.add(new Record(frames.get(i), StorageValueCodec.decode(frames.get(i + 1))));
+        }
+        return new Page(records, records.size() < limit && body.length < PAGE_BYTES);
+    }
+
+    /**
+     * @return null, a failed page has no records
+     */
+    @Override
+    Page failed() {
+        return null;
+    }
+}
@@ -0,0 +1,26 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.http.Response;
+
+import static ru.mail.polis.litemn.KVServiceImpl.STATUS_PATH;
+
+/**
+ * Checks the peer is up
+ */
+public class StatusCommand extends Command<Boolean> {
+
+    public StatusCommand(Peer peer) {
+        super(peer, STATUS_PATH);
+    }
+
+    @Override
+    Boolean execute() throws Exception {
+        Response response = getClient().get(STATUS_PATH);
+        return (response.getStatus() == 200);
+    }
+
+    @Override
+    Boolean failed() {
+        return false;
+    }
+}
@@ -0,0 +1,100 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.net.ConnectionString;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal blocking HTTP/1.1 over a plain socket for streamed values, one-nio client holds whole bodies
+ */
+final class Streams {
+    private static final int MAX_LINE = 8 * 1024;
+
+    private Streams() {
+    }
+
+    @NotNull
+    static Socket connect(@NotNull Peer peer, int timeout) throws IOException {
+        ConnectionString address = new ConnectionString(peer.getHost());
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.getHost(), address.getPort()), timeout);
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Reads the status line
+     */
+    static int readStatus(@NotNull InputStream in) throws IOException {
+        String line = readLine(in);
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Wrong status line " + line);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Wrong status line " + line, e);
+        }
+    }
+
+    /**
+     * Reads headers up to the body
+     *
+     * @return content length or -1 if there is no such header
+     */
+    static long readContentLength(@NotNull InputStream in) throws IOException {
+        long length = -1;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && "Content-Length".equalsIgnoreCase(line.substring(0, colon).trim())) {
+                try {
+                    length = Long.parseLong(line.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Wrong header " + line, e);
+                }
+            }
+        }
+        return length;
+    }
+
+    private static String readLine(@NotNull InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            if (line.size() == MAX_LINE) {
+                throw new IOException("Line too long");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    static void closeQuietly(@Nullable Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing to do with a broken socket
+        }
+    }
+}
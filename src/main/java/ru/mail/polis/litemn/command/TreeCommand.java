@@ -0,0 +1,52 @@
+package ru.mail.polis.litemn.command;
+
+import one.nio.http.Response;
+
+import static ru.mail.polis.litemn.KVServiceImpl.INTERNAL_HEADER;
+import static ru.mail.polis.litemn.KVServiceImpl.REPAIR_PATH;
+
+/**
+ * Fetches the hash tree the peer keeps of the keys it shares with this node
+ */
+public class TreeCommand extends Command<byte[]> {
+    private static final byte[] SAME = new byte[0];
+
+    private final String uri;
+
+    /**
+     * @param self host of this node
+     * @param root root of the tree of this node, the peer doesn't send its tree if the roots match
+     */
+    public TreeCommand(Peer peer, String self, long root) {
+        super(peer, REPAIR_PATH);
+        this.uri = REPAIR_PATH + "?peer=" + self + "&root=" + Long.toHexString(root);
+    }
+
+    /**
+     * @return true if the result means the trees match
+     */
+    public static boolean isSame(byte[] result) {
+        return result == SAME;
+    }
+
+    /**
+     * @return leaves of the peer tree, {@link #isSame} result or null if the peer has no tree yet
+     */
+    @Override
+    byte[] execute() throws Exception {
+        Response response = getClient().get(uri, INTERNAL_HEADER);
+        switch (response.getStatus()) {
+            case 200:
+                return response.getBody();
+            case 304:
+                return SAME;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    byte[] failed() {
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter of the keys of a table, 10 bits and 7 probes per key give about 1% false positives.
+ * Probes are derived from two halves of one 64-bit hash, the filter is read in place from the table.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+
+    private BloomFilter() {
+    }
+
+    @NotNull
+    static long[] create(long keys) {
+        return new long[(int) Math.max(1, (keys * BITS_PER_KEY + Long.SIZE - 1) / Long.SIZE)];
+    }
+
+    static void add(@NotNull long[] words, @NotNull byte[] key) {
+        long hash = hash(key);
+        long bits = (long) words.length * Long.SIZE;
+        for (int i = 0; i < PROBES; i++) {
+            long bit = probe(hash, i, bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param offset offset of the filter words in the buffer
+     */
+    static boolean mightContain(@NotNull ByteBuffer buffer, int offset, int words, @NotNull byte[] key) {
+        long hash = hash(key);
+        long bits = (long) words * Long.SIZE;
+        for (int i = 0; i < PROBES; i++) {
+            long bit = probe(hash, i, bits);
+            if ((buffer.getLong(offset + (int) (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long probe(long hash, int i, long bits) {
+        int combined = (int) hash + i * (int) (hash >>> Integer.SIZE);
+        return (combined & Integer.MAX_VALUE) % bits;
+    }
+
+    private static long hash(@NotNull byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,24 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.jetbrains.annotations.NotNull;
+
+final class Bytes {
+    static final byte[] EMPTY = new byte[0];
+
+    private Bytes() {
+    }
+
+    /**
+     * Lexicographic comparison of unsigned bytes, the order of RocksDB default comparator
+     */
+    static int compare(@NotNull byte[] left, @NotNull byte[] right) {
+        int length = Math.min(left.length, right.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (left[i] & 0xFF) - (right[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return left.length - right.length;
+    }
+}
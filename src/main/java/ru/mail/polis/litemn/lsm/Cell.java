@@ -0,0 +1,34 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Key with its value or with a deletion which hides the older values of the key
+ */
+final class Cell {
+    private final byte[] key;
+    private final byte[] value;
+
+    Cell(@NotNull byte[] key, @Nullable byte[] value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    @NotNull
+    byte[] getKey() {
+        return key;
+    }
+
+    /**
+     * @return value or null if the key is deleted
+     */
+    @Nullable
+    byte[] getValue() {
+        return value;
+    }
+
+    boolean isDeleted() {
+        return value == null;
+    }
+}
@@ -0,0 +1,614 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Log-structured merge tree of a directory. Writes go to the log and the memtable, a full memtable
+ * is flushed to a new {@link SSTable} in the background and the tables of similar size are merged
+ * by size-tiered compaction. A read looks through the memtables and then through the tables newest
+ * first, the first cell of the key wins.
+ * <p>
+ * Memtables and tables are swapped as one immutable state, so readers never lock. Writers share
+ * a lock the swap takes exclusively, a write is never logged to a memtable which is already sealed.
+ * At most {@link #MAX_PENDING_FLUSHES} memtables wait for the flush, writers wait for them beyond that.
+ * <p>
+ * A table is named by the sequence of the newest memtable it holds, a log by the sequence of its
+ * memtable. On open the tables covered by a compacted one are dropped, the logs without a table are
+ * replayed to tables of their own.
+ */
+public final class LsmTree implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LsmTree.class);
+    private static final String WAL_SUFFIX = ".wal";
+    private static final Pattern TABLE_NAME = Pattern.compile("(\\d+)\\.sst");
+    private static final Pattern WAL_NAME = Pattern.compile("(\\d+)\\.wal");
+    private static final int MAX_PENDING_FLUSHES = 2;
+    private static final int MAX_COMPACTION_TABLES = 32;
+    private static final long FLUSH_RETRY_MILLIS = 100;
+    private static final long MAX_FLUSH_RETRY_MILLIS = 10_000;
+
+    private final File dir;
+    private final long memTableSize;
+    private final int compactionThreshold;
+    private final long maxTableSize;
+    private final boolean sync;
+    private final Predicate<byte[]> purgeable;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Semaphore pending = new Semaphore(MAX_PENDING_FLUSHES);
+    private final AtomicLong sequence;
+    private final ExecutorService flusher;
+    private final ExecutorService compactor;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder compacted = new LongAdder();
+    private volatile State state;
+    private volatile boolean closed;
+
+    /**
+     * Memtable taking the writes, memtables waiting for the flush and tables, all newest first
+     */
+    private static final class State {
+        private final MemTable active;
+        private final List<MemTable> flushing;
+        private final List<SSTable> tables;
+
+        private State(@NotNull MemTable active, @NotNull List<MemTable> flushing, @NotNull List<SSTable> tables) {
+            this.active = active;
+            this.flushing = Collections.unmodifiableList(flushing);
+            this.tables = Collections.unmodifiableList(tables);
+        }
+    }
+
+    /**
+     * @param memTableSize        memtable is flushed when its cells take that many bytes
+     * @param compactionThreshold tables of similar size merged at once
+     * @param sync                force the log to disk on every write
+     * @param purgeable           values dropped by the compaction which includes the oldest table
+     */
+    public LsmTree(@NotNull File dir,
+                   long memTableSize,
+                   int compactionThreshold,
+                   boolean sync,
+                   @NotNull Predicate<byte[]> purgeable) throws IOException {
+        this(dir, memTableSize, compactionThreshold, sync, purgeable, SSTable.MAX_SIZE);
+    }
+
+    /**
+     * @param maxTableSize compaction leaves tables which would be merged beyond that size
+     */
+    LsmTree(@NotNull File dir,
+            long memTableSize,
+            int compactionThreshold,
+            boolean sync,
+            @NotNull Predicate<byte[]> purgeable,
+            long maxTableSize) throws IOException {
+        if (memTableSize <= 0 || compactionThreshold < 2 || maxTableSize > SSTable.MAX_SIZE) {
+            throw new IllegalArgumentException("Memtable size must be positive, threshold at least 2 "
+                    + "and table size at most " + SSTable.MAX_SIZE);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        this.dir = dir;
+        this.memTableSize = memTableSize;
+        this.compactionThreshold = compactionThreshold;
+        this.maxTableSize = maxTableSize;
+        this.sync = sync;
+        this.purgeable = purgeable;
+        List<SSTable> tables = recover();
+        long last = 0;
+        for (SSTable table : tables) {
+            last = Math.max(last, table.getSequence());
+        }
+        this.sequence = new AtomicLong(last);
+        this.state = new State(newMemTable(), Collections.emptyList(), tables);
+        this.flusher = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-flush"));
+        this.compactor = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-compaction"));
+        LOGGER.info("Opened {} with {} tables", dir, tables.size());
+    }
+
+    @NotNull
+    private static Thread daemon(@NotNull Runnable runnable, @NotNull String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * @return value or null if the key is absent or deleted
+     */
+    @Nullable
+    public byte[] get(@NotNull byte[] key) {
+        State current = state;
+        byte[] value = current.active.get(key);
+        for (int i = 0; value == null && i < current.flushing.size(); i++) {
+            value = current.flushing.get(i).get(key);
+        }
+        for (int i = 0; value == null && i < current.tables.size(); i++) {
+            value = current.tables.get(i).get(key);
+        }
+        return value == MemTable.DELETED ? null : value;
+    }
+
+    public void put(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        apply(Collections.singletonList(key), Collections.singletonList(value));
+    }
+
+    public void delete(@NotNull byte[] key) throws IOException {
+        apply(Collections.singletonList(key), Collections.singletonList(null));
+    }
+
+    /**
+     * Writes all cells atomically, they are logged as one record
+     *
+     * @param values values in order of keys, null deletes the key
+     */
+    public void apply(@NotNull List<byte[]> keys, @NotNull List<byte[]> values) throws IOException {
+        MemTable memTable;
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("Tree " + dir + " is closed");
+            }
+            memTable = state.active;
+            memTable.write(keys, values);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (memTable.size() >= memTableSize) {
+            scheduleFlush(memTable);
+        }
+    }
+
+    /**
+     * Iterates the values from {@code from} inclusive to {@code to} exclusive in key order.
+     * Tables are read as of the call, the memtable taking the writes is read as the iterator goes.
+     */
+    @NotNull
+    public Iterator<Map.Entry<byte[], byte[]>> range(@NotNull byte[] from, @Nullable byte[] to) {
+        State current = state;
+        List<Iterator<Cell>> sources = new ArrayList<>(1 + current.flushing.size() + current.tables.size());
+        sources.add(current.active.iterator(from));
+        current.flushing.forEach(memTable -> sources.add(memTable.iterator(from)));
+        current.tables.forEach(table -> sources.add(table.iterator(from)));
+        Iterator<Cell> cells = new MergingIterator(sources);
+        return new Iterator<Map.Entry<byte[], byte[]>>() {
+            private Cell next = advance();
+
+            @Nullable
+            private Cell advance() {
+                while (cells.hasNext()) {
+                    Cell cell = cells.next();
+                    if (to != null && Bytes.compare(cell.getKey(), to) >= 0) {
+                        return null;
+                    }
+                    if (!cell.isDeleted()) {
+                        return cell;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Cell cell = next;
+                next = advance();
+                return new AbstractMap.SimpleImmutableEntry<>(cell.getKey(), cell.getValue());
+            }
+        };
+    }
+
+    /**
+     * Flushes the memtable and waits for the flushes scheduled before
+     */
+    public void flush() throws IOException {
+        MemTable memTable = state.active;
+        if (!memTable.isEmpty()) {
+            scheduleFlush(memTable);
+        }
+        await(flusher.submit(() -> {
+        }));
+    }
+
+    /**
+     * Merges all tables into one, deletions and purgeable values are dropped. Tables beyond the
+     * maximal table size are merged into as few as fit.
+     */
+    public void compact() throws IOException {
+        flush();
+        await(compactor.submit(() -> {
+            List<SSTable> tables = state.tables;
+            for (int start = 0; start < tables.size(); ) {
+                int end = start + 1;
+                long bytes = tables.get(start).size();
+                while (end < tables.size() && bytes + tables.get(end).size() <= maxTableSize) {
+                    bytes += tables.get(end).size();
+                    end++;
+                }
+                if (end - start > 1 || end == tables.size() && hasPurgeable(tables.get(start))) {
+                    compact(tables.subList(start, end));
+                }
+                start = end;
+            }
+            return null;
+        }));
+    }
+
+    private boolean hasPurgeable(@NotNull SSTable table) {
+        for (Iterator<Cell> cells = table.iterator(Bytes.EMPTY); cells.hasNext(); ) {
+            Cell cell = cells.next();
+            if (cell.isDeleted() || purgeable.test(cell.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void appendMetrics(@NotNull StringBuilder metrics, @NotNull String prefix) {
+        State current = state;
+        long tableBytes = 0;
+        for (SSTable table : current.tables) {
+            tableBytes += table.size();
+        }
+        long memTableBytes = current.active.size();
+        for (MemTable memTable : current.flushing) {
+            memTableBytes += memTable.size();
+        }
+        metrics.append(prefix).append(".tables ").append(current.tables.size()).append('\n')
+                .append(prefix).append(".tables.bytes ").append(tableBytes).append('\n')
+                .append(prefix).append(".memtables.bytes ").append(memTableBytes).append('\n')
+                .append(prefix).append(".flushes ").append(flushes.sum()).append('\n')
+                .append(prefix).append(".compactions ").append(compactions.sum()).append('\n')
+                .append(prefix).append(".compacted.bytes ").append(compacted.sum()).append('\n');
+    }
+
+    /**
+     * Seals the full memtable and hands it to the flusher, waits while too many flushes are pending
+     */
+    private void scheduleFlush(@NotNull MemTable full) throws IOException {
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a flush");
+        }
+        boolean scheduled = false;
+        lock.writeLock().lock();
+        try {
+            State current = state;
+            // another writer has already swapped it
+            if (closed || current.active != full) {
+                return;
+            }
+            MemTable next = newMemTable();
+            full.seal();
+            List<MemTable> flushing = new ArrayList<>(current.flushing.size() + 1);
+            flushing.add(full);
+            flushing.addAll(current.flushing);
+            state = new State(next, flushing, current.tables);
+            flusher.execute(() -> {
+                try {
+                    flush(full);
+                } finally {
+                    pending.release();
+                }
+            });
+            scheduled = true;
+        } finally {
+            lock.writeLock().unlock();
+            if (!scheduled) {
+                pending.release();
+            }
+        }
+    }
+
+    /**
+     * A memtable which fails to flush stays readable and the flush is retried until the tree closes,
+     * the flushes behind it wait, so no newer table appears. The log of a memtable left unflushed is
+     * replayed on the next open.
+     */
+    private void flush(@NotNull MemTable memTable) {
+        long seq = memTable.getSequence();
+        SSTable table;
+        for (long delay = FLUSH_RETRY_MILLIS; ; delay = Math.min(2 * delay, MAX_FLUSH_RETRY_MILLIS)) {
+            try {
+                table = SSTable.write(dir, seq, seq, memTable.iterator(Bytes.EMPTY), memTable.count(),
+                        cell -> false, SSTable.MAX_SIZE);
+                break;
+            } catch (IOException e) {
+                LOGGER.error("Fail to flush memtable {} of {}", seq, dir, e);
+            }
+            if (closed) {
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            State current = state;
+            List<MemTable> flushing = new ArrayList<>(current.flushing);
+            flushing.remove(memTable);
+            List<SSTable> tables = new ArrayList<>(current.tables);
+            if (table != null) {
+                tables.add(position(tables, seq), table);
+            }
+            state = new State(current.active, flushing, tables);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushes.increment();
+        deleteFile(wal(seq));
+        if (!closed) {
+            compactor.execute(this::compactIfNeeded);
+        }
+    }
+
+    /**
+     * @return position of the table of the sequence in the list ordered newest first
+     */
+    private static int position(@NotNull List<SSTable> tables, long seq) {
+        int position = 0;
+        while (position < tables.size() && tables.get(position).getSequence() > seq) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Merges the newest run of adjacent tables of similar size, tables smaller than a memtable
+     * count as a memtable. A run ends before the table which would take it beyond the maximal
+     * table size, the merged table is at most as large as the run.
+     */
+    private void compactIfNeeded() {
+        if (closed) {
+            return;
+        }
+        List<SSTable> tables = state.tables;
+        for (int start = 0; start < tables.size(); ) {
+            int end = start + 1;
+            long total = tierSize(tables.get(start));
+            long bytes = tables.get(start).size();
+            while (end < tables.size() && end - start < MAX_COMPACTION_TABLES) {
+                long size = tierSize(tables.get(end));
+                long average = total / (end - start);
+                if (size < average / 2 || size > 2 * average || bytes + tables.get(end).size() > maxTableSize) {
+                    break;
+                }
+                total += size;
+                bytes += tables.get(end).size();
+                end++;
+            }
+            if (end - start >= compactionThreshold) {
+                try {
+                    compact(tables.subList(start, end));
+                } catch (IOException e) {
+                    LOGGER.error("Fail to compact {}", dir, e);
+                }
+                return;
+            }
+            start = end;
+        }
+    }
+
+    private long tierSize(@NotNull SSTable table) {
+        return Math.max(table.size(), memTableSize);
+    }
+
+    /**
+     * Writes the merged table under the name of the newest one and deletes the others. Until they
+     * are deleted the merged table covers their sequences, so a crash leaves nothing to resurrect.
+     * The run is left as it is if it spans a memtable not flushed yet, the merged table would cover
+     * its log and the open would not replay it.
+     */
+    private void compact(@NotNull List<SSTable> run) throws IOException {
+        State snapshot = state;
+        List<SSTable> tables = snapshot.tables;
+        SSTable newest = run.get(0);
+        SSTable oldest = run.get(run.size() - 1);
+        for (MemTable memTable : snapshot.flushing) {
+            if (oldest.getMinSequence() <= memTable.getSequence() && memTable.getSequence() <= newest.getSequence()) {
+                LOGGER.warn("Skip compaction of {} over unflushed memtable {}", dir, memTable.getSequence());
+                return;
+            }
+        }
+        // deletions hide nothing below the oldest table
+        boolean bottom = oldest == tables.get(tables.size() - 1);
+        List<Iterator<Cell>> sources = new ArrayList<>(run.size());
+        long cells = 0;
+        long bytes = 0;
+        for (SSTable table : run) {
+            sources.add(table.iterator(Bytes.EMPTY));
+            cells += table.count();
+            bytes += table.size();
+        }
+        SSTable merged = SSTable.write(dir, newest.getSequence(), oldest.getMinSequence(),
+                new MergingIterator(sources), cells,
+                cell -> bottom && (cell.isDeleted() || purgeable.test(cell.getValue())), maxTableSize);
+        lock.writeLock().lock();
+        try {
+            State current = state;
+            List<SSTable> next = new ArrayList<>(current.tables);
+            int position = next.indexOf(newest);
+            next.removeAll(run);
+            if (merged != null) {
+                next.add(position, merged);
+            }
+            state = new State(current.active, current.flushing, next);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // oldest first, so the tables left by a crash still hide what they deleted
+        for (int i = run.size() - 1; i >= 0; i--) {
+            SSTable table = run.get(i);
+            if (merged == null || table != newest) {
+                deleteFile(table.getFile());
+            }
+        }
+        compactions.increment();
+        compacted.add(bytes);
+        LOGGER.debug("Compacted {} tables of {} bytes in {}", run.size(), bytes, dir);
+    }
+
+    /**
+     * Opens the tables and turns the logs left by the previous run into tables
+     *
+     * @return tables newest first
+     */
+    @NotNull
+    private List<SSTable> recover() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + dir);
+        }
+        List<SSTable> tables = new ArrayList<>();
+        List<Long> wals = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            Matcher table = TABLE_NAME.matcher(name);
+            Matcher wal = WAL_NAME.matcher(name);
+            if (SSTable.isTemporary(name)) {
+                deleteFile(file);
+            } else if (table.matches()) {
+                tables.add(SSTable.open(file, Long.parseLong(table.group(1))));
+            } else if (wal.matches()) {
+                wals.add(Long.parseLong(wal.group(1)));
+            }
+        }
+        tables.sort((left, right) -> Long.compare(right.getSequence(), left.getSequence()));
+        List<SSTable> live = new ArrayList<>(tables.size());
+        for (SSTable table : tables) {
+            if (covered(live, table.getSequence())) {
+                deleteFile(table.getFile());
+            } else {
+                live.add(table);
+            }
+        }
+        Collections.sort(wals);
+        for (long seq : wals) {
+            File file = wal(seq);
+            if (!covered(live, seq)) {
+                MemTable memTable = new MemTable(seq, null);
+                Wal.replay(file, memTable::put);
+                SSTable table = SSTable.write(dir, seq, seq, memTable.iterator(Bytes.EMPTY), memTable.count(),
+                        cell -> false, SSTable.MAX_SIZE);
+                if (table != null) {
+                    live.add(position(live, seq), table);
+                }
+            }
+            deleteFile(file);
+        }
+        return live;
+    }
+
+    /**
+     * @return true if a table holds the memtable of the sequence
+     */
+    private static boolean covered(@NotNull List<SSTable> tables, long seq) {
+        for (SSTable table : tables) {
+            if (table.getMinSequence() <= seq && seq <= table.getSequence()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    private MemTable newMemTable() throws IOException {
+        long seq = sequence.incrementAndGet();
+        return new MemTable(seq, new Wal(wal(seq), sync));
+    }
+
+    @NotNull
+    private File wal(long seq) {
+        return new File(dir, String.format("%019d", seq) + WAL_SUFFIX);
+    }
+
+    private static void deleteFile(@NotNull File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOGGER.warn("Fail to delete {}", file, e);
+        }
+    }
+
+    private static void await(@NotNull Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + future);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Waits for the pending flushes and writes the memtable to a table, so the next open has no log
+     * to replay
+     */
+    @Override
+    public void close() throws IOException {
+        MemTable last;
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = state.active;
+            last.seal();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(last);
+    }
+}
@@ -0,0 +1,154 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recent writes in a concurrent skip list, neither reads nor writes lock it. Writes are logged first
+ * and a cell keeps the write of its key which comes last in the log, so concurrent writers insert in
+ * any order and the log still replays to the same state. Only the log append is serialized, see
+ * {@link Wal#append}.
+ */
+final class MemTable {
+    /**
+     * Stored value of a deleted key, compared by identity
+     */
+    static final byte[] DELETED = new byte[0];
+    // skip list node, its index levels, the version and array headers, roughly
+    private static final int CELL_OVERHEAD = 88;
+
+    private final long sequence;
+    @Nullable
+    private final Wal wal;
+    private final ConcurrentSkipListMap<byte[], Version> cells = new ConcurrentSkipListMap<>(Bytes::compare);
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Value with the position of its write in the log
+     */
+    private static final class Version {
+        private final byte[] value;
+        private final long order;
+
+        private Version(@NotNull byte[] value, long order) {
+            this.value = value;
+            this.order = order;
+        }
+    }
+
+    /**
+     * @param wal log of the writes or null if the writes are already durable
+     */
+    MemTable(long sequence, @Nullable Wal wal) {
+        this.sequence = sequence;
+        this.wal = wal;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param values values in order of keys, null deletes the key
+     */
+    void write(@NotNull List<byte[]> keys, @NotNull List<byte[]> values) throws IOException {
+        long order = wal == null ? writes.incrementAndGet() : wal.append(keys, values);
+        for (int i = 0; i < keys.size(); i++) {
+            put(keys.get(i), values.get(i), order);
+        }
+    }
+
+    /**
+     * Writes the cell after all previous ones, meant for a memtable without a log
+     */
+    void put(@NotNull byte[] key, @Nullable byte[] value) {
+        put(key, value, writes.incrementAndGet());
+    }
+
+    private void put(@NotNull byte[] key, @Nullable byte[] value, long order) {
+        Version version = new Version(value == null ? DELETED : value, order);
+        while (true) {
+            Version previous = cells.putIfAbsent(key, version);
+            if (previous == null) {
+                size.addAndGet(CELL_OVERHEAD + key.length + version.value.length);
+                return;
+            }
+            // a later write of the key is already there
+            if (previous.order > order) {
+                return;
+            }
+            if (cells.replace(key, previous, version)) {
+                size.addAndGet(version.value.length - previous.value.length);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return value, {@link #DELETED} or null if the key wasn't written
+     */
+    @Nullable
+    byte[] get(@NotNull byte[] key) {
+        Version version = cells.get(key);
+        return version == null ? null : version.value;
+    }
+
+    /**
+     * @return bytes taken by the cells, roughly
+     */
+    long size() {
+        return size.get();
+    }
+
+    int count() {
+        return cells.size();
+    }
+
+    boolean isEmpty() {
+        return cells.isEmpty();
+    }
+
+    /**
+     * Iterates cells from {@code from} inclusive in key order, deletions included
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull byte[] from) {
+        NavigableMap<byte[], Version> tail = cells.tailMap(from, true);
+        Iterator<Map.Entry<byte[], Version>> entries = tail.entrySet().iterator();
+        return new Iterator<Cell>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<byte[], Version> entry = entries.next();
+                byte[] value = entry.getValue().value;
+                return new Cell(entry.getKey(), value == DELETED ? null : value);
+            }
+        };
+    }
+
+    /**
+     * Closes the log, the table takes no more writes
+     */
+    void seal() throws IOException {
+        if (wal != null) {
+            wal.close();
+        }
+    }
+}
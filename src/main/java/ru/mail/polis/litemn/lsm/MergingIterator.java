@@ -0,0 +1,78 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted cells of several sources into one sorted sequence. Sources are passed newest first,
+ * the cell of the newest source wins for a key written to several of them. Deletions are passed on,
+ * the caller decides whether they still hide anything.
+ */
+final class MergingIterator implements Iterator<Cell> {
+    private final PriorityQueue<Source> queue;
+
+    private static final class Source {
+        private final Iterator<Cell> iterator;
+        private final int age;
+        private Cell current;
+
+        private Source(@NotNull Iterator<Cell> iterator, int age) {
+            this.iterator = iterator;
+            this.age = age;
+            this.current = iterator.next();
+        }
+
+        private boolean advance() {
+            if (iterator.hasNext()) {
+                current = iterator.next();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param sources cells of each source in key order, newest source first
+     */
+    MergingIterator(@NotNull List<Iterator<Cell>> sources) {
+        this.queue = new PriorityQueue<>(Math.max(1, sources.size()), (left, right) -> {
+            int diff = Bytes.compare(left.current.getKey(), right.current.getKey());
+            return diff != 0 ? diff : Integer.compare(left.age, right.age);
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            Iterator<Cell> iterator = sources.get(i);
+            if (iterator.hasNext()) {
+                queue.add(new Source(iterator, i));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public Cell next() {
+        Source top = queue.poll();
+        if (top == null) {
+            throw new NoSuchElementException();
+        }
+        Cell cell = top.current;
+        if (top.advance()) {
+            queue.add(top);
+        }
+        // older cells of the same key are shadowed
+        while (!queue.isEmpty() && Bytes.compare(queue.peek().current.getKey(), cell.getKey()) == 0) {
+            Source older = queue.poll();
+            if (older.advance()) {
+                queue.add(older);
+            }
+        }
+        return cell;
+    }
+}
@@ -0,0 +1,350 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Immutable sorted table read through a memory mapping, so neither the cells nor the index take heap
+ * +-------+-------+-------+--------+
+ * | cells | index | bloom | footer |
+ * +-------+-------+-------+--------+
+ * Cells are sorted by key and stored as in the {@link Wal}. The sparse index keeps the offset of every
+ * {@link #INDEX_INTERVAL}-th cell, a lookup searches it and scans at most that many cells. The footer
+ * +--------------+-------+--------------+-------------+--------------+-------------+-------+
+ * | min sequence | cells | index offset | index count | bloom offset | bloom words | magic |
+ * +--------------+-------+--------------+-------------+--------------+-------------+-------+
+ * keeps the lowest sequence of the tables merged into this one, tables within the range are leftovers
+ * of a compaction interrupted before it deleted them.
+ */
+final class SSTable {
+    static final String SUFFIX = ".sst";
+    /**
+     * Tables are mapped as one buffer with int offsets
+     */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int INDEX_INTERVAL = 16;
+    private static final int FOOTER_LENGTH = 5 * Long.BYTES + 2 * Integer.BYTES;
+    private static final long MAGIC = 0x4C534D5441424C45L;
+
+    private final long sequence;
+    private final long minSequence;
+    private final File file;
+    private final ByteBuffer buffer;
+    private final long cells;
+    private final int indexOffset;
+    private final int indexCount;
+    private final int bloomOffset;
+    private final int bloomWords;
+
+    private SSTable(long sequence, @NotNull File file, @NotNull ByteBuffer buffer) throws IOException {
+        this.sequence = sequence;
+        this.file = file;
+        this.buffer = buffer;
+        int footer = buffer.limit() - FOOTER_LENGTH;
+        this.minSequence = buffer.getLong(footer);
+        this.cells = buffer.getLong(footer + Long.BYTES);
+        this.indexOffset = (int) buffer.getLong(footer + 2 * Long.BYTES);
+        this.indexCount = buffer.getInt(footer + 3 * Long.BYTES);
+        this.bloomOffset = (int) buffer.getLong(footer + 3 * Long.BYTES + Integer.BYTES);
+        this.bloomWords = buffer.getInt(footer + 4 * Long.BYTES + Integer.BYTES);
+        long magic = buffer.getLong(footer + 4 * Long.BYTES + 2 * Integer.BYTES);
+        if (magic != MAGIC || minSequence > sequence
+                || indexOffset + (long) indexCount * Long.BYTES != bloomOffset
+                || bloomOffset + (long) bloomWords * Long.BYTES != buffer.limit() - FOOTER_LENGTH) {
+            throw new IOException("Malformed table " + file);
+        }
+    }
+
+    /**
+     * Maps the table, tables up to {@link #MAX_SIZE} are supported
+     */
+    @NotNull
+    static SSTable open(@NotNull File file, long sequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_LENGTH || size > MAX_SIZE) {
+                throw new IOException("Table " + file + " of " + size + " bytes");
+            }
+            return new SSTable(sequence, file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * Writes the cells into a new table of the directory, the file appears only when it is complete
+     *
+     * @param expected   number of cells, the bloom filter is sized for it
+     * @param dropped    cells which are not written
+     * @param maxSize    the write fails rather than leave a table larger than that
+     * @return table or null if no cell was written
+     */
+    @Nullable
+    static SSTable write(@NotNull File dir,
+                         long sequence,
+                         long minSequence,
+                         @NotNull Iterator<Cell> cells,
+                         long expected,
+                         @NotNull Predicate<Cell> dropped,
+                         long maxSize) throws IOException {
+        File file = new File(dir, name(sequence));
+        File tmp = new File(dir, name(sequence) + TMP_SUFFIX);
+        long count = 0;
+        long[] index = new long[16];
+        long[] bloom = BloomFilter.create(expected);
+        try (FileOutputStream stream = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            long offset = 0;
+            while (cells.hasNext()) {
+                Cell cell = cells.next();
+                if (dropped.test(cell)) {
+                    continue;
+                }
+                if (count % INDEX_INTERVAL == 0) {
+                    int position = (int) (count / INDEX_INTERVAL);
+                    if (position == index.length) {
+                        index = Arrays.copyOf(index, index.length * 2);
+                    }
+                    index[position] = offset;
+                }
+                byte[] key = cell.getKey();
+                byte[] value = cell.getValue();
+                out.writeInt(key.length);
+                out.write(key);
+                if (value == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                offset += 2 * Integer.BYTES + key.length + (value == null ? 0 : value.length);
+                if (offset > maxSize) {
+                    throw new IOException("Table " + file + " exceeds " + maxSize + " bytes");
+                }
+                BloomFilter.add(bloom, key);
+                count++;
+            }
+            if (count > 0) {
+                int indexCount = (int) ((count + INDEX_INTERVAL - 1) / INDEX_INTERVAL);
+                long indexEnd = offset + (long) indexCount * Long.BYTES;
+                if (indexEnd + (long) bloom.length * Long.BYTES + FOOTER_LENGTH > maxSize) {
+                    throw new IOException("Table " + file + " exceeds " + maxSize + " bytes");
+                }
+                for (int i = 0; i < indexCount; i++) {
+                    out.writeLong(index[i]);
+                }
+                for (long word : bloom) {
+                    out.writeLong(word);
+                }
+                out.writeLong(minSequence);
+                out.writeLong(count);
+                out.writeLong(offset);
+                out.writeInt(indexCount);
+                out.writeLong(indexEnd);
+                out.writeInt(bloom.length);
+                out.writeLong(MAGIC);
+                out.flush();
+                stream.getChannel().force(true);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        if (count == 0) {
+            Files.delete(tmp.toPath());
+            return null;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return open(file, sequence);
+    }
+
+    @NotNull
+    static String name(long sequence) {
+        return String.format("%019d", sequence) + SUFFIX;
+    }
+
+    /**
+     * @return true for files left by writes interrupted before the table was complete
+     */
+    static boolean isTemporary(@NotNull String name) {
+        return name.endsWith(SUFFIX + TMP_SUFFIX);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getMinSequence() {
+        return minSequence;
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
+
+    long size() {
+        return buffer.limit();
+    }
+
+    long count() {
+        return cells;
+    }
+
+    /**
+     * @return value, {@link MemTable#DELETED} or null if the table has no cell of the key
+     */
+    @Nullable
+    byte[] get(@NotNull byte[] key) {
+        if (!BloomFilter.mightContain(buffer, bloomOffset, bloomWords, key)) {
+            return null;
+        }
+        int block = floor(key);
+        if (block < 0) {
+            return null;
+        }
+        int offset = indexEntry(block);
+        for (int i = 0; i < INDEX_INTERVAL && offset < indexOffset; i++) {
+            int keyLength = buffer.getInt(offset);
+            int valueOffset = offset + Integer.BYTES + keyLength;
+            int valueLength = buffer.getInt(valueOffset);
+            int diff = compare(offset + Integer.BYTES, keyLength, key);
+            if (diff == 0) {
+                return valueLength < 0 ? MemTable.DELETED : copy(valueOffset + Integer.BYTES, valueLength);
+            }
+            if (diff > 0) {
+                return null;
+            }
+            offset = valueOffset + Integer.BYTES + Math.max(0, valueLength);
+        }
+        return null;
+    }
+
+    /**
+     * Iterates cells from {@code from} inclusive in key order, deletions included
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull byte[] from) {
+        int block = floor(from);
+        int start = block < 0 ? 0 : indexEntry(block);
+        Iterator<Cell> iterator = new Iterator<Cell>() {
+            private int offset = start;
+
+            @Override
+            public boolean hasNext() {
+                return offset < indexOffset;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int keyLength = buffer.getInt(offset);
+                byte[] key = copy(offset + Integer.BYTES, keyLength);
+                int valueOffset = offset + Integer.BYTES + keyLength;
+                int valueLength = buffer.getInt(valueOffset);
+                byte[] value = valueLength < 0 ? null : copy(valueOffset + Integer.BYTES, valueLength);
+                offset = valueOffset + Integer.BYTES + Math.max(0, valueLength);
+                return new Cell(key, value);
+            }
+        };
+        return new SkippingIterator(iterator, from);
+    }
+
+    /**
+     * Skips the cells before the key in the block the index points to
+     */
+    private static final class SkippingIterator implements Iterator<Cell> {
+        private final Iterator<Cell> iterator;
+        private Cell next;
+
+        private SkippingIterator(@NotNull Iterator<Cell> iterator, @NotNull byte[] from) {
+            this.iterator = iterator;
+            while (iterator.hasNext()) {
+                Cell cell = iterator.next();
+                if (Bytes.compare(cell.getKey(), from) >= 0) {
+                    next = cell;
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Cell next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Cell cell = next;
+            next = iterator.hasNext() ? iterator.next() : null;
+            return cell;
+        }
+    }
+
+    /**
+     * @return index entry of the last sampled cell not greater than the key or -1
+     */
+    private int floor(@NotNull byte[] key) {
+        int low = 0;
+        int high = indexCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = indexEntry(mid);
+            int diff = compare(offset + Integer.BYTES, buffer.getInt(offset), key);
+            if (diff <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private int indexEntry(int block) {
+        return (int) buffer.getLong(indexOffset + block * Long.BYTES);
+    }
+
+    /**
+     * Compares the key stored at the offset with the given one as {@link Bytes#compare} does
+     */
+    private int compare(int offset, int length, @NotNull byte[] key) {
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (buffer.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    @NotNull
+    private byte[] copy(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        // Buffer.position, ByteBuffer overrides it only since Java 9
+        ((Buffer) source).position(offset);
+        source.get(bytes);
+        return bytes;
+    }
+}
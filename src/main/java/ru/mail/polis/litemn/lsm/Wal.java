@@ -0,0 +1,173 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a memtable. A write is appended as one checksummed record, so a batch is replayed
+ * either whole or not at all and a record torn by a crash ends the replay
+ * +--------+-------+-------+-------+-----+
+ * | length | crc32 | count | cell  | ... |
+ * +--------+-------+-------+-------+-----+
+ * where a cell is
+ * +------------+-----+--------------+-------+
+ * | key length | key | value length | value |
+ * +------------+-----+--------------+-------+
+ * and value length -1 stands for a deletion.
+ */
+final class Wal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Wal.class);
+    private static final int RECORD_HEADER_LENGTH = 2 * Integer.BYTES;
+
+    private final FileChannel channel;
+    private final boolean sync;
+    private final Object syncLock = new Object();
+    // guarded by this
+    private long written;
+    // guarded by syncLock
+    private long synced;
+
+    Wal(@NotNull File file, boolean sync) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.sync = sync;
+    }
+
+    /**
+     * Appends the record, a synced log has it on disk when the call returns. The record is built
+     * before the append is serialized, and one force covers the records of all appends waiting for it.
+     *
+     * @param values values in order of keys, null deletes the key
+     * @return end of the record in the log, appends are ordered by it
+     */
+    long append(@NotNull List<byte[]> keys, @NotNull List<byte[]> values) throws IOException {
+        int length = Integer.BYTES;
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] value = values.get(i);
+            length += 2 * Integer.BYTES + keys.get(i).length + (value == null ? 0 : value.length);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+        record.putInt(length).putInt(0).putInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            byte[] value = values.get(i);
+            record.putInt(key.length).put(key);
+            if (value == null) {
+                record.putInt(-1);
+            } else {
+                record.putInt(value.length).put(value);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        ByteBuffer bytes = ByteBuffer.wrap(record.array());
+        long end;
+        synchronized (this) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            written += bytes.capacity();
+            end = written;
+        }
+        if (sync) {
+            force(end);
+        }
+        return end;
+    }
+
+    /**
+     * Forces the log up to the end unless a force started after that write already did
+     */
+    private void force(long end) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= end) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                target = written;
+            }
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Passes the cells of the log in order of the writes, a deletion is passed with a null value
+     */
+    static void replay(@NotNull File file, @NotNull BiConsumer<byte[], byte[]> consumer) throws IOException {
+        long size = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            long position = 0;
+            while (true) {
+                byte[] payload = readRecord(in, size - position);
+                if (payload == null) {
+                    if (position < size) {
+                        LOGGER.warn("Log {} is torn at {} of {} bytes", file, position, size);
+                    }
+                    return;
+                }
+                position += RECORD_HEADER_LENGTH + payload.length;
+                ByteBuffer cells = ByteBuffer.wrap(payload);
+                int count = cells.getInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] key = new byte[cells.getInt()];
+                    cells.get(key);
+                    int valueLength = cells.getInt();
+                    byte[] value = null;
+                    if (valueLength >= 0) {
+                        value = new byte[valueLength];
+                        cells.get(value);
+                    }
+                    consumer.accept(key, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return payload of the next record or null at the end of the log or at a torn record
+     */
+    @Nullable
+    private static byte[] readRecord(@NotNull DataInputStream in, long remaining) throws IOException {
+        if (remaining < RECORD_HEADER_LENGTH) {
+            return null;
+        }
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < Integer.BYTES || length > remaining - RECORD_HEADER_LENGTH) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        try {
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        return (int) crc.getValue() == checksum ? payload : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
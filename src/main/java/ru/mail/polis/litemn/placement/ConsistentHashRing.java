@@ -0,0 +1,75 @@
+package ru.mail.polis.litemn.placement;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Token ring with virtual nodes.
+ * Replicas of a key are the first {@code from} distinct nodes met walking clockwise
+ * from the key token, so the set for a smaller {@code from} is a prefix of the set for a bigger one.
+ */
+public class ConsistentHashRing implements PlacementStrategy {
+    public static final int DEFAULT_VNODES = 128;
+
+    private final List<String> nodes;
+    private final long[] tokens;
+    private final int[] owners;
+
+    public ConsistentHashRing(@NotNull Collection<String> nodes, int vnodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Ring must contain at least one node");
+        }
+        if (vnodes <= 0) {
+            throw new IllegalArgumentException("Virtual nodes count must be positive");
+        }
+        this.nodes = new ArrayList<>(nodes);
+        this.nodes.sort(String::compareTo);
+        long[][] points = new long[this.nodes.size() * vnodes][];
+        int p = 0;
+        for (int owner = 0; owner < this.nodes.size(); owner++) {
+            String node = this.nodes.get(owner);
+            for (int i = 0; i < vnodes; i++) {
+                points[p++] = new long[]{Hash.hash64(node + '#' + i), owner};
+            }
+        }
+        Arrays.sort(points, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        tokens = new long[points.length];
+        owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            tokens[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<String> replicas(@NotNull byte[] key, int from) {
+        if (from <= 0 || from > nodes.size()) {
+            throw new IllegalArgumentException("Wrong replicas count " + from);
+        }
+        List<String> result = new ArrayList<>(from);
+        boolean[] taken = new boolean[nodes.size()];
+        int start = Arrays.binarySearch(tokens, Hash.hash64(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = 0; i < tokens.length && result.size() < from; i++) {
+            int owner = owners[(start + i) % tokens.length];
+            if (!taken[owner]) {
+                taken[owner] = true;
+                result.add(nodes.get(owner));
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public List<String> getNodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,24 @@
+package ru.mail.polis.litemn.placement;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Deterministic choice of replica nodes for a key
+ */
+public interface PlacementStrategy {
+
+    /**
+     * Replicas for a smaller {@code from} must be a prefix of replicas for a bigger one.
+     *
+     * @param key  key bytes
+     * @param from replicas count, must not exceed the nodes count
+     * @return {@code from} distinct nodes responsible for the key
+     */
+    @NotNull
+    List<String> replicas(@NotNull byte[] key, int from);
+
+    @NotNull
+    List<String> getNodes();
+}
@@ -0,0 +1,52 @@
+package ru.mail.polis.litemn.placement;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the placement configured by system properties:
+ * {@code litemn.placement} is {@code ring} (default) or {@code rendezvous},
+ * {@code litemn.vnodes} is the virtual nodes count per host for the ring,
+ * {@code litemn.weights} is {@code host=weight,...} for rendezvous.
+ */
+public class PlacementStrategyFactory {
+    public static final String PLACEMENT_PROPERTY = "litemn.placement";
+    public static final String VNODES_PROPERTY = "litemn.vnodes";
+    public static final String WEIGHTS_PROPERTY = "litemn.weights";
+
+    private PlacementStrategyFactory() {
+    }
+
+    public static PlacementStrategy newPlacementStrategy(@NotNull Collection<String> topology) {
+        String placement = System.getProperty(PLACEMENT_PROPERTY, "ring");
+        switch (placement) {
+            case "ring":
+                return new ConsistentHashRing(topology,
+                        Integer.getInteger(VNODES_PROPERTY, ConsistentHashRing.DEFAULT_VNODES));
+            case "rendezvous":
+                return new RendezvousPlacement(new ArrayList<>(topology),
+                        parseWeights(System.getProperty(WEIGHTS_PROPERTY, "")));
+            default:
+                throw new IllegalArgumentException("Unknown placement " + placement);
+        }
+    }
+
+    static Map<String, Double> parseWeights(@NotNull String weights) {
+        Map<String, Double> result = new HashMap<>();
+        for (String entry : weights.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            int indexOf = entry.lastIndexOf('=');
+            if (indexOf == -1) {
+                throw new IllegalArgumentException("Wrong weight format " + entry);
+            }
+            result.put(entry.substring(0, indexOf).trim(), Double.valueOf(entry.substring(indexOf + 1).trim()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,85 @@
+package ru.mail.polis.litemn.placement;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Weighted rendezvous (highest random weight) hashing.
+ * Every node scores the key with {@code -weight / ln(u)}, where {@code u} is the uniform hash of
+ * the pair, and the {@code from} best scored nodes are the replicas. A node gets a share of keys
+ * proportional to its weight and removing a node moves only the keys it owned.
+ */
+public class RendezvousPlacement implements PlacementStrategy {
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private final List<String> nodes;
+    private final long[] seeds;
+    private final double[] weights;
+    private final boolean uniform;
+
+    /**
+     * @param weights node weights, nodes missing in the map get {@code 1.0}
+     */
+    public RendezvousPlacement(@NotNull List<String> nodes, @NotNull Map<String, Double> weights) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Placement must contain at least one node");
+        }
+        this.nodes = new ArrayList<>(nodes);
+        this.nodes.sort(String::compareTo);
+        this.seeds = new long[this.nodes.size()];
+        this.weights = new double[this.nodes.size()];
+        for (int i = 0; i < this.nodes.size(); i++) {
+            String node = this.nodes.get(i);
+            double weight = weights.getOrDefault(node, 1.0);
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("Weight of " + node + " must be positive");
+            }
+            this.seeds[i] = Hash.hash64(node);
+            this.weights[i] = weight;
+        }
+        this.uniform = Arrays.stream(this.weights).distinct().count() == 1;
+    }
+
+    public RendezvousPlacement(@NotNull List<String> nodes) {
+        this(nodes, Collections.emptyMap());
+    }
+
+    @NotNull
+    @Override
+    public List<String> replicas(@NotNull byte[] key, int from) {
+        if (from <= 0 || from > nodes.size()) {
+            throw new IllegalArgumentException("Wrong replicas count " + from);
+        }
+        long keyHash = Hash.hash64(key);
+        double[] scores = new double[nodes.size()];
+        for (int i = 0; i < scores.length; i++) {
+            long h = Hash.mix(keyHash ^ seeds[i]);
+            double u = ((h >>> 11) + 0.5) * DOUBLE_UNIT;
+            // with equal weights the score is monotonic in u, skip the logarithm
+            scores[i] = uniform ? u : -weights[i] / Math.log(u);
+        }
+        List<String> result = new ArrayList<>(from);
+        for (int n = 0; n < from; n++) {
+            int best = -1;
+            for (int i = 0; i < scores.length; i++) {
+                if (scores[i] >= 0 && (best == -1 || scores[i] > scores[best])) {
+                    best = i;
+                }
+            }
+            result.add(nodes.get(best));
+            scores[best] = -1;
+        }
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public List<String> getNodes() {
+        return nodes;
+    }
+}
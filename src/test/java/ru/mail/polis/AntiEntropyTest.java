@@ -0,0 +1,116 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Replicas diverged behind the coordinator's back converge by background repair
+ */
+class AntiEntropyTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final String INTERVAL_PROPERTY = "litemn.repair.interval.ms";
+    private final int[] ports = new int[2];
+    private final File[] data = new File[2];
+    private final KVDao[] daos = new KVDao[2];
+    private final KVService[] storages = new KVService[2];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        System.setProperty(INTERVAL_PROPERTY, "100");
+        for (int i = 0; i < 2; i++) {
+            ports[i] = randomPort();
+        }
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1])));
+        for (int i = 0; i < 2; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+        System.clearProperty(INTERVAL_PROPERTY);
+    }
+
+    @Test
+    void replicasConverge() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] missed = randomKey();
+            final byte[] removed = randomKey();
+            final byte[] updated = randomKey();
+            final byte[] value = randomValue();
+            final byte[] stale = randomValue();
+            final byte[] fresh = randomValue();
+
+            // local writes are never replicated by the coordinator
+            daos[0].upsert(missed, value);
+            daos[0].upsert(removed, value);
+            daos[1].upsert(removed, value);
+            daos[0].upsert(updated, stale);
+            TimeUnit.MILLISECONDS.sleep(10);
+            daos[1].remove(removed);
+            daos[1].upsert(updated, fresh);
+
+            while (!Arrays.equals(value, find(1, missed))
+                    || find(0, removed) != null
+                    || !Arrays.equals(fresh, find(0, updated))) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            // the stale replica never rolls the fresh one back
+            assertArrayEquals(fresh, daos[1].get(updated));
+        });
+    }
+
+    @Test
+    void largeValuesConverge() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // two values don't fit a batch together and the last one fits none
+            final int[] lengths = {600 * 1024, 600 * 1024, 1024 * 1024};
+            final byte[][] keys = new byte[lengths.length][];
+            final byte[][] values = new byte[lengths.length][];
+            for (int i = 0; i < lengths.length; i++) {
+                keys[i] = randomId().getBytes(StandardCharsets.UTF_8);
+                values[i] = new byte[lengths[i]];
+                ThreadLocalRandom.current().nextBytes(values[i]);
+                daos[0].upsert(keys[i], values[i]);
+            }
+
+            for (int i = 0; i < lengths.length; i++) {
+                while (!Arrays.equals(values[i], find(1, keys[i]))) {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                }
+            }
+        });
+    }
+
+    private byte[] find(final int node, final byte[] key) throws IOException {
+        try {
+            return daos[node].get(key);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package ru.mail.polis;
+
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Batch reads of {@code /v0/entities} and batch writes of {@code /v0/batch} in a three node cluster
+ */
+class BatchTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private final File[] data = new File[3];
+    private final KVDao[] daos = new KVDao[3];
+    private final KVService[] storages = new KVService[3];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        int[] ports = {randomPort(), randomPort(), randomPort()};
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1]), endpoint(ports[2])));
+        for (int i = 0; i < 3; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            if (storages[i] != null) {
+                stop(i, storages[i]);
+            }
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void mixed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String existing = randomId();
+            final String removed = randomId();
+            final String missing = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, existing, value, 2, 3).getStatus());
+            assertEquals(201, upsert(0, removed, randomValue(), 2, 3).getStatus());
+            assertEquals(202, delete(1, removed, 2, 3).getStatus());
+
+            final ByteBuffer body = ByteBuffer.wrap(
+                    getAll(2, existing + "," + removed + "," + missing, 2, 3).getBody());
+            assertEquals(200, body.getInt());
+            final byte[] actual = new byte[body.getInt()];
+            body.get(actual);
+            assertArrayEquals(value, actual);
+            assertEquals(404, body.getInt());
+            assertEquals(0, body.getInt());
+            assertEquals(404, body.getInt());
+            assertEquals(0, body.getInt());
+            assertFalse(body.hasRemaining());
+        });
+    }
+
+    @Test
+    void capsInlineBytes() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] value = new byte[200 * 1024];
+            final String[] ids = new String[24];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = randomId();
+                assertEquals(201, upsert(0, ids[i], value, 3, 3).getStatus());
+            }
+
+            // 20 values fit the 4 MB of inline payload, the rest are left to single reads
+            final ByteBuffer body = ByteBuffer.wrap(getAll(1, String.join(",", ids), 3, 3).getBody());
+            for (int i = 0; i < ids.length; i++) {
+                if (i < 20) {
+                    assertEquals(200, body.getInt());
+                    final byte[] actual = new byte[body.getInt()];
+                    body.get(actual);
+                    assertArrayEquals(value, actual);
+                } else {
+                    assertEquals(413, body.getInt());
+                    assertEquals(0, body.getInt());
+                }
+            }
+            assertFalse(body.hasRemaining());
+        });
+    }
+
+    @Test
+    void write() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String upserted = randomId();
+            final String removed = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, removed, randomValue(), 3, 3).getStatus());
+
+            final byte[] batch = mutations(upserted, value, removed);
+            assertEquals(201, batch(1, batch, 3, 3).getStatus());
+            for (int node = 0; node < 3; node++) {
+                assertArrayEquals(value, get(node, upserted, 1, 3).getBody());
+                assertEquals(404, get(node, removed, 1, 3).getStatus());
+            }
+        });
+    }
+
+    @Test
+    void writeUnreachable() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            stop(0, storages[0]);
+            storages[0] = null;
+            assertEquals(504, batch(1, mutations(randomId(), randomValue(), randomId()), 3, 3).getStatus());
+            assertEquals(201, batch(1, mutations(randomId(), randomValue(), randomId()), 2, 3).getStatus());
+        });
+    }
+
+    private static byte[] mutations(final String upserted, final byte[] value, final String removed) {
+        final byte[] upsertKey = upserted.getBytes(StandardCharsets.UTF_8);
+        final byte[] removeKey = removed.getBytes(StandardCharsets.UTF_8);
+        final int upsertLength = 1 + Integer.BYTES + upsertKey.length + value.length;
+        final int removeLength = 1 + Integer.BYTES + removeKey.length;
+        return ByteBuffer.allocate(2 * Integer.BYTES + upsertLength + removeLength)
+                .putInt(upsertLength).put((byte) 1).putInt(upsertKey.length).put(upsertKey).put(value)
+                .putInt(removeLength).put((byte) 0).putInt(removeKey.length).put(removeKey)
+                .array();
+    }
+
+    @Test
+    void unreachable() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            assertEquals(201, upsert(0, key, randomValue(), 3, 3).getStatus());
+            stop(0, storages[0]);
+            storages[0] = null;
+
+            final ByteBuffer body = ByteBuffer.wrap(getAll(1, key, 3, 3).getBody());
+            assertEquals(504, body.getInt());
+            assertEquals(0, body.getInt());
+        });
+    }
+
+    @Test
+    void rejectedOnStop() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final HttpServer server = (HttpServer) storages[0];
+            stop(0, storages[0]);
+            storages[0] = null;
+            final Response[] sent = new Response[1];
+            final HttpSession session = new HttpSession(null, server) {
+                @Override
+                public synchronized void sendResponse(final Response response) {
+                    sent[0] = response;
+                }
+            };
+
+            server.handleDefault(
+                    new Request(Request.METHOD_GET, "/v0/entities?ids=" + randomId() + "&replicas=2/3", true),
+                    session);
+            assertEquals(503, sent[0].getStatus());
+
+            sent[0] = null;
+            final Request batch = new Request(Request.METHOD_POST, "/v0/batch?replicas=2/3", true);
+            batch.setBody(mutations(randomId(), randomValue(), randomId()));
+            server.handleDefault(batch, session);
+            assertEquals(503, sent[0].getStatus());
+        });
+    }
+
+    @Test
+    void badRequest() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(400, getAll(0, "a,,b", 2, 3).getStatus());
+            assertEquals(400, getAll(0, "a", 4, 3).getStatus());
+            assertEquals(400, batch(0, new byte[]{0, 0, 0, 3, 1, 2, 3}, 2, 3).getStatus());
+        });
+    }
+}
@@ -94,6 +94,39 @@ abstract class ClusterTestBase extends TestBase {
         return client(node).get(path(key, ack, from));
     }
 
+    Response getAll(
+            final int node,
+            @NotNull final String ids,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).get("/v0/entities?ids=" + ids + "&replicas=" + ack + "/" + from);
+    }
+
+    Response range(
+            final int node,
+            @NotNull final String start,
+            final String end,
+            final int limit,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).get("/v0/entities?start=" + start
+                + (end == null ? "" : "&end=" + end)
+                + (limit > 0 ? "&limit=" + limit : "")
+                + "&replicas=" + ack + "/" + from);
+    }
+
+    Response batch(
+            final int node,
+            @NotNull final byte[] mutations,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post("/v0/batch?replicas=" + ack + "/" + from, mutations);
+    }
+
+    Response metrics(final int node) throws Exception {
+        return client(node).get("/v0/metrics");
+    }
+
     Response delete(
             final int node,
             @NotNull final String key,
@@ -110,4 +143,14 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws Exception {
         return client(node).put(path(key, ack, from), data);
     }
+
+    Response upsert(
+            final int node,
+            @NotNull final String key,
+            @NotNull final byte[] data,
+            final int ack,
+            final int from,
+            @NotNull final String ttl) throws Exception {
+        return client(node).put(path(key, ack, from) + "&ttl=" + ttl, data);
+    }
 }
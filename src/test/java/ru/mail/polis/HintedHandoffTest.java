@@ -0,0 +1,189 @@
+package ru.mail.polis;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class HintedHandoffTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private final int[] ports = new int[3];
+    private final File[] data = new File[3];
+    private final KVDao[] daos = new KVDao[3];
+    private final KVService[] storages = new KVService[3];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            ports[i] = randomPort();
+        }
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1]), endpoint(ports[2])));
+        for (int i = 0; i < 3; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void missedWritesAreReplayed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String written = randomId();
+            final String removed = randomId();
+            final byte[] value = randomValue();
+            // through node 2, so node 0 doesn't pool a connection to the node being stopped
+            assertEquals(201, upsert(2, removed, value, 3, 3).getStatus());
+
+            stop(1, storages[1]);
+            assertEquals(201, upsert(0, written, value, 2, 3).getStatus());
+            assertEquals(202, delete(0, removed, 2, 3).getStatus());
+            assertEquals(2, metric(0, "backlog"));
+
+            storages[1] = KVServiceFactory.create(ports[1], daos[1], endpoints);
+            start(1, storages[1]);
+            while (metric(0, "backlog") > 0) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, metric(0, "replayed"));
+
+            isolate(1);
+            final Response response = get(1, written, 1, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+            assertEquals(404, get(1, removed, 1, 3).getStatus());
+        });
+    }
+
+    @Test
+    void largeHintsAreReplayed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // two hints don't fit a batch together and the last one fits none
+            final int[] lengths = {600 * 1024, 600 * 1024, 1024 * 1024};
+            final String[] keys = new String[lengths.length];
+            final byte[][] values = new byte[lengths.length][];
+
+            stop(1, storages[1]);
+            for (int i = 0; i < lengths.length; i++) {
+                keys[i] = randomId();
+                values[i] = new byte[lengths[i]];
+                ThreadLocalRandom.current().nextBytes(values[i]);
+                assertEquals(201, upsert(0, keys[i], values[i], 2, 3).getStatus());
+            }
+            assertEquals(lengths.length, metric(0, "backlog"));
+
+            storages[1] = KVServiceFactory.create(ports[1], daos[1], endpoints);
+            start(1, storages[1]);
+            while (metric(0, "backlog") > 0) {
+                Thread.sleep(100);
+            }
+            assertEquals(lengths.length, metric(0, "replayed"));
+            for (int i = 0; i < lengths.length; i++) {
+                assertArrayEquals(values[i], daos[1].get(keys[i].getBytes(StandardCharsets.UTF_8)));
+            }
+        });
+    }
+
+    @Test
+    void streamedValuesAreReplayed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = new byte[3 * 1024 * 1024 + 17];
+            ThreadLocalRandom.current().nextBytes(value);
+
+            stop(1, storages[1]);
+            assertEquals(201, upsert(0, key, value, 2, 3).getStatus());
+            assertEquals(1, metric(0, "backlog"));
+
+            storages[1] = KVServiceFactory.create(ports[1], daos[1], endpoints);
+            start(1, storages[1]);
+            while (metric(0, "backlog") > 0) {
+                Thread.sleep(100);
+            }
+            assertEquals(1, metric(0, "replayed"));
+            assertArrayEquals(value, daos[1].get(key.getBytes(StandardCharsets.UTF_8)));
+        });
+    }
+
+    @Test
+    void replayDoesNotRollBack() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] stale = randomValue();
+            final byte[] fresh = randomValue();
+
+            stop(1, storages[1]);
+            assertEquals(201, upsert(0, key, stale, 2, 3).getStatus());
+            TimeUnit.MILLISECONDS.sleep(10);
+            storages[1] = KVServiceFactory.create(ports[1], daos[1], endpoints);
+            start(1, storages[1]);
+            // a fresh write may reach the replica before the hint
+            assertEquals(201, upsert(2, key, fresh, 3, 3).getStatus());
+            while (metric(0, "backlog") > 0) {
+                Thread.sleep(100);
+            }
+
+            isolate(1);
+            assertArrayEquals(fresh, get(1, key, 1, 3).getBody());
+        });
+    }
+
+    /**
+     * Restarts the other nodes without data, so reads see only the node's own replica
+     */
+    private void isolate(final int node) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            if (i != node) {
+                stop(i, storages[i]);
+                daos[i].close();
+                Files.recursiveDelete(data[i]);
+                data[i] = Files.createTempDirectory();
+                daos[i] = KVDaoFactory.create(data[i]);
+                storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+                start(i, storages[i]);
+            }
+        }
+    }
+
+    /**
+     * @return hints metric of node 0 for node 1
+     */
+    private long metric(final int node, final String name) throws Exception {
+        final Iterator<String> hosts = endpoints.iterator();
+        hosts.next();
+        final String prefix = "hints." + hosts.next() + "." + name + " ";
+        final Response response = metrics(node);
+        for (String line : new String(response.getBody(), StandardCharsets.UTF_8).split("\n")) {
+            if (line.startsWith(prefix)) {
+                return Long.parseLong(line.substring(prefix.length()));
+            }
+        }
+        return fail("No metric " + prefix);
+    }
+}
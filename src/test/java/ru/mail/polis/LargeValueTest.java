@@ -0,0 +1,127 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Values larger than a request body kept in memory are streamed in a three node cluster
+ */
+class LargeValueTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int LARGE_VALUE = 3 * 1024 * 1024 + 17;
+    private static final int INLINE_LIMIT = 1024 * 1024;
+    private final File[] data = new File[3];
+    private final KVDao[] daos = new KVDao[3];
+    private final KVService[] storages = new KVService[3];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        int[] ports = {randomPort(), randomPort(), randomPort()};
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1]), endpoint(ports[2])));
+        for (int i = 0; i < 3; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void everywhere() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = largeValue();
+            assertEquals(201, upsert(0, key, value, 3, 3).getStatus());
+            for (int node = 0; node < 3; node++) {
+                assertArrayEquals(value, get(node, key, 3, 3).getBody());
+                assertArrayEquals(value, daos[node].get(key.getBytes()));
+            }
+        });
+    }
+
+    @Test
+    void fromReplica() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = largeValue();
+            assertEquals(201, upsert(0, key, value, 1, 1).getStatus());
+            for (int node = 0; node < 3; node++) {
+                assertArrayEquals(value, get(node, key, 1, 1).getBody());
+            }
+        });
+    }
+
+    @Test
+    void overwriteAndRemove() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            assertEquals(201, upsert(1, key, largeValue(), 2, 3).getStatus());
+            final byte[] small = randomValue();
+            assertEquals(201, upsert(1, key, small, 2, 3).getStatus());
+            assertArrayEquals(small, get(2, key, 2, 3).getBody());
+            final byte[] large = largeValue();
+            assertEquals(201, upsert(2, key, large, 2, 3).getStatus());
+            assertArrayEquals(large, get(0, key, 2, 3).getBody());
+            assertEquals(202, delete(0, key, 2, 3).getStatus());
+            assertEquals(404, get(1, key, 2, 3).getStatus());
+        });
+    }
+
+    @Test
+    void inlineLimit() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // the largest values replicated as stamped records
+            for (final int length : new int[]{INLINE_LIMIT - 9, INLINE_LIMIT}) {
+                final String key = randomId();
+                final byte[] value = new byte[length];
+                ThreadLocalRandom.current().nextBytes(value);
+                assertEquals(201, upsert(0, key, value, 3, 3).getStatus());
+                for (int node = 0; node < 3; node++) {
+                    assertArrayEquals(value, get(node, key, 1, 3).getBody());
+                    assertArrayEquals(value, daos[node].get(key.getBytes()));
+                }
+            }
+        });
+    }
+
+    @Test
+    void withStoppedReplica() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = largeValue();
+            stop(2, storages[2]);
+            assertEquals(201, upsert(0, key, value, 2, 3).getStatus());
+            assertArrayEquals(value, get(1, key, 2, 3).getBody());
+            assertArrayEquals(value, daos[1].get(key.getBytes()));
+        });
+    }
+
+    private static byte[] largeValue() {
+        final byte[] value = new byte[LARGE_VALUE];
+        ThreadLocalRandom.current().nextBytes(value);
+        return value;
+    }
+}
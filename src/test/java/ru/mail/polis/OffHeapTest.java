@@ -0,0 +1,94 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two node cluster keeping the data in off-heap memory
+ */
+class OffHeapTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final String STORAGE_PROPERTY = "litemn.storage";
+    private static final String CAPACITY_PROPERTY = "litemn.offheap.capacity";
+    private final File[] data = new File[2];
+    private final KVDao[] daos = new KVDao[2];
+    private final KVService[] storages = new KVService[2];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        System.setProperty(STORAGE_PROPERTY, "offheap");
+        System.setProperty(CAPACITY_PROPERTY, "16m");
+        int[] ports = {randomPort(), randomPort()};
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1])));
+        for (int i = 0; i < 2; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+        System.clearProperty(STORAGE_PROPERTY);
+        System.clearProperty(CAPACITY_PROPERTY);
+    }
+
+    @Test
+    void replicated() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, key, value, 2, 2).getStatus());
+            for (int node = 0; node < 2; node++) {
+                assertArrayEquals(value, get(node, key, 2, 2).getBody());
+                assertArrayEquals(value, daos[node].get(key.getBytes(StandardCharsets.UTF_8)));
+            }
+            assertEquals(202, delete(1, key, 2, 2).getStatus());
+            assertEquals(404, get(0, key, 1, 2).getStatus());
+        });
+    }
+
+    @Test
+    void largeValueStreamed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = new byte[3 * 1024 * 1024 + 17];
+            ThreadLocalRandom.current().nextBytes(value);
+            assertEquals(201, upsert(0, key, value, 2, 2).getStatus());
+            assertArrayEquals(value, get(1, key, 2, 2).getBody());
+            assertArrayEquals(value, get(0, key, 1, 2).getBody());
+        });
+    }
+
+    @Test
+    void memoryMetrics() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(201, upsert(0, randomId(), randomValue(), 2, 2).getStatus());
+            final String metrics = new String(metrics(0).getBody(), StandardCharsets.UTF_8);
+            assertTrue(metrics.contains("storage.memory.used.bytes "), metrics);
+            assertTrue(metrics.contains("storage.memory.capacity.bytes " + 16 * 1024 * 1024), metrics);
+        });
+    }
+}
@@ -0,0 +1,164 @@
+package ru.mail.polis;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Range scans of {@code /v0/entities} in a three node cluster
+ */
+class RangeTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private final File[] data = new File[3];
+    private final KVDao[] daos = new KVDao[3];
+    private final KVService[] storages = new KVService[3];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        int[] ports = {randomPort(), randomPort(), randomPort()};
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1]), endpoint(ports[2])));
+        for (int i = 0; i < 3; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            if (storages[i] != null) {
+                stop(i, storages[i]);
+            }
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void scan() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Map<String, byte[]> expected = new LinkedHashMap<>();
+            for (int i = 100; i < 700; i++) {
+                final byte[] value = randomValue();
+                assertEquals(201, upsert(i % 3, "k" + i, value, 2, 3).getStatus());
+                expected.put("k" + i, value);
+            }
+            assertEquals(202, delete(0, "k150", 2, 3).getStatus());
+            expected.remove("k150");
+            assertEquals(201, upsert(1, "k200", expected.get("k100"), 2, 3).getStatus());
+            expected.put("k200", expected.get("k100"));
+
+            assertRecords(expected, range(2, "k", null, 0, 2, 3));
+        });
+    }
+
+    @Test
+    void bounds() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(201, upsert(0, "b" + i, new byte[]{(byte) i}, 3, 3).getStatus());
+            }
+            final Map<String, byte[]> expected = new LinkedHashMap<>();
+            for (int i = 2; i < 5; i++) {
+                expected.put("b" + i, new byte[]{(byte) i});
+            }
+            assertRecords(expected, range(1, "b2", "b7", 3, 3, 3));
+            assertRecords(Collections.emptyMap(), range(1, "c", null, 0, 3, 3));
+        });
+    }
+
+    @Test
+    void largeValues() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // pages of the peers end by bytes long before their record limit
+            final Map<String, byte[]> expected = new LinkedHashMap<>();
+            for (int i = 0; i < 10; i++) {
+                final byte[] value = new byte[300 * 1024];
+                ThreadLocalRandom.current().nextBytes(value);
+                assertEquals(201, upsert(i % 3, "l" + i, value, 3, 3).getStatus());
+                expected.put("l" + i, value);
+            }
+            assertRecords(expected, range(0, "l", "m", 0, 3, 3));
+        });
+    }
+
+    @Test
+    void streamedValuesExcluded() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // values above the inline limit are stored as chunks and read by key only
+            final byte[] streamed = new byte[3 * 1024 * 1024];
+            ThreadLocalRandom.current().nextBytes(streamed);
+            final Map<String, byte[]> expected = new LinkedHashMap<>();
+            expected.put("s1", randomValue());
+            expected.put("s3", randomValue());
+            assertEquals(201, upsert(0, "s1", expected.get("s1"), 3, 3).getStatus());
+            assertEquals(201, upsert(1, "s2", streamed, 3, 3).getStatus());
+            assertEquals(201, upsert(2, "s3", expected.get("s3"), 3, 3).getStatus());
+
+            assertRecords(expected, range(0, "s", "t", 0, 2, 3));
+            assertArrayEquals(streamed, get(0, "s2", 2, 3).getBody());
+        });
+    }
+
+    @Test
+    void escapedBounds() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            for (int i = 1; i < 4; i++) {
+                assertEquals(201, upsert(0, "e" + i, new byte[]{(byte) i}, 3, 3).getStatus());
+            }
+            // "e2&x" follows "e2", the peers must not read the start as "e2"
+            assertRecords(Collections.singletonMap("e3", new byte[]{3}), range(1, "e2%26x", "f", 0, 3, 3));
+        });
+    }
+
+    @Test
+    void unreachable() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(201, upsert(0, "u", new byte[]{1}, 3, 3).getStatus());
+            stop(0, storages[0]);
+            storages[0] = null;
+            assertEquals(504, range(1, "u", null, 0, 3, 3).getStatus());
+            assertRecords(Collections.singletonMap("u", new byte[]{1}), range(1, "u", null, 0, 2, 3));
+        });
+    }
+
+    private static void assertRecords(final Map<String, byte[]> expected, final Response response) {
+        assertEquals(200, response.getStatus());
+        final ByteBuffer body = ByteBuffer.wrap(response.getBody());
+        final List<String> keys = new ArrayList<>();
+        while (body.hasRemaining()) {
+            final byte[] key = new byte[body.getInt()];
+            body.get(key);
+            final byte[] value = new byte[body.getInt()];
+            body.get(value);
+            final String id = new String(key, StandardCharsets.UTF_8);
+            assertArrayEquals(expected.get(id), value, id);
+            keys.add(id);
+        }
+        final List<String> sorted = new ArrayList<>(expected.keySet());
+        Collections.sort(sorted);
+        assertEquals(sorted, keys);
+    }
+}
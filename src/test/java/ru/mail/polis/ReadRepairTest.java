@@ -0,0 +1,103 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Quorum reads push the newest version to the replicas which answered with an older one
+ */
+class ReadRepairTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final String CHANCE_PROPERTY = "litemn.read.repair.chance";
+    private final int[] ports = new int[2];
+    private final File[] data = new File[2];
+    private final KVDao[] daos = new KVDao[2];
+    private final KVService[] storages = new KVService[2];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        System.setProperty(CHANCE_PROPERTY, "1");
+        for (int i = 0; i < 2; i++) {
+            ports[i] = randomPort();
+        }
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1])));
+        for (int i = 0; i < 2; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+        System.clearProperty(CHANCE_PROPERTY);
+    }
+
+    @Test
+    void staleReplicasRepaired() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String missed = randomId();
+            final String updated = randomId();
+            final String removed = randomId();
+            final byte[] stale = randomValue();
+            final byte[] fresh = randomValue();
+
+            // local writes are never replicated by the coordinator
+            daos[1].upsert(bytes(updated), stale);
+            daos[1].upsert(bytes(removed), stale);
+            TimeUnit.MILLISECONDS.sleep(10);
+            daos[0].upsert(bytes(missed), fresh);
+            daos[0].upsert(bytes(updated), fresh);
+            daos[0].remove(bytes(removed));
+
+            // both coordinators, so both the local and the remote replica get repaired
+            assertArrayEquals(fresh, get(1, missed, 2, 2).getBody());
+            assertArrayEquals(fresh, get(0, updated, 2, 2).getBody());
+            assertEquals(404, get(1, removed, 2, 2).getStatus());
+
+            while (!Arrays.equals(fresh, find(1, missed))
+                    || !Arrays.equals(fresh, find(1, updated))
+                    || find(1, removed) != null) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        });
+    }
+
+    private static byte[] bytes(final String id) {
+        return id.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] find(final int node, final byte[] key) throws IOException {
+        try {
+            return daos[node].get(key);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private byte[] find(final int node, final String id) throws IOException {
+        return find(node, bytes(id));
+    }
+}
@@ -0,0 +1,117 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Values written with TTL read as absent from every replica once they expire
+ */
+class TtlTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private final int[] ports = new int[2];
+    private final File[] data = new File[2];
+    private final KVDao[] daos = new KVDao[2];
+    private final KVService[] storages = new KVService[2];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            ports[i] = randomPort();
+        }
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1])));
+        for (int i = 0; i < 2; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void expires() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            assertEquals(201, upsert(0, key, value, 2, 2, "1").getStatus());
+            assertArrayEquals(value, get(1, key, 2, 2).getBody());
+
+            TimeUnit.MILLISECONDS.sleep(1100);
+            assertEquals(404, get(0, key, 2, 2).getStatus());
+            assertEquals(404, get(1, key, 1, 2).getStatus());
+        });
+    }
+
+    @Test
+    void largestInlineValueExpires() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = new byte[1024 * 1024];
+            ThreadLocalRandom.current().nextBytes(value);
+
+            assertEquals(201, upsert(0, key, value, 2, 2, "1").getStatus());
+            for (int node = 0; node < 2; node++) {
+                assertArrayEquals(value, daos[node].get(key.getBytes()));
+            }
+
+            TimeUnit.MILLISECONDS.sleep(1100);
+            for (int node = 0; node < 2; node++) {
+                assertEquals(404, get(node, key, 1, 2).getStatus());
+                final KVDao dao = daos[node];
+                assertThrows(NoSuchElementException.class, () -> dao.get(key.getBytes()));
+            }
+        });
+    }
+
+    @Test
+    void newerWriteOutlivesExpiry() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            assertEquals(201, upsert(0, key, randomValue(), 2, 2, "1").getStatus());
+            TimeUnit.MILLISECONDS.sleep(10);
+            assertEquals(201, upsert(1, key, value, 2, 2).getStatus());
+
+            TimeUnit.MILLISECONDS.sleep(1100);
+            assertArrayEquals(value, get(0, key, 2, 2).getBody());
+        });
+    }
+
+    @Test
+    void wrongTtl() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+
+            assertEquals(400, upsert(0, key, randomValue(), 2, 2, "0").getStatus());
+            assertEquals(400, upsert(0, key, randomValue(), 2, 2, "soon").getStatus());
+            assertEquals(404, get(0, key, 2, 2).getStatus());
+        });
+    }
+}
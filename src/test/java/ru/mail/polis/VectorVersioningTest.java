@@ -0,0 +1,119 @@
+package ru.mail.polis;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.litemn.Frames;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Concurrent writes are kept as siblings until a write with their context replaces them
+ */
+class VectorVersioningTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final String VERSIONING_PROPERTY = "litemn.versioning";
+    private final int[] ports = new int[2];
+    private final File[] data = new File[2];
+    private final KVDao[] daos = new KVDao[2];
+    private final KVService[] storages = new KVService[2];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        System.setProperty(VERSIONING_PROPERTY, "vector");
+        for (int i = 0; i < 2; i++) {
+            ports[i] = randomPort();
+        }
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(ports[0]), endpoint(ports[1])));
+        for (int i = 0; i < 2; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+        System.clearProperty(VERSIONING_PROPERTY);
+    }
+
+    @Test
+    void siblingsResolved() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] first = randomValue();
+            final byte[] second = randomValue();
+            final byte[] resolved = randomValue();
+
+            // neither write has seen the other
+            assertEquals(201, upsert(0, key, first, 2, 2).getStatus());
+            assertEquals(201, upsert(1, key, second, 2, 2).getStatus());
+
+            Response siblings = get(0, key, 2, 2);
+            assertEquals(300, siblings.getStatus());
+            List<byte[]> values = Frames.decode(siblings.getBody());
+            assertEquals(2, values.size());
+            assertTrue(values.stream().anyMatch(v -> Arrays.equals(first, v)));
+            assertTrue(values.stream().anyMatch(v -> Arrays.equals(second, v)));
+
+            assertEquals(201, upsert(1, key + "&context=" + context(siblings), resolved, 2, 2).getStatus());
+            Response response = get(0, key, 2, 2);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(resolved, response.getBody());
+
+            assertEquals(202, delete(0, key + "&context=" + context(response), 2, 2).getStatus());
+            assertEquals(404, get(1, key, 2, 2).getStatus());
+        });
+    }
+
+    @Test
+    void writeForwardedToReplica() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] first = randomValue();
+            final byte[] second = randomValue();
+
+            // only one node replicates the key, the other forwards
+            assertEquals(201, upsert(0, key, first, 1, 1).getStatus());
+            Response response = get(1, key, 1, 1);
+            assertArrayEquals(first, response.getBody());
+            assertEquals(201, upsert(1, key + "&context=" + context(response), second, 1, 1).getStatus());
+            assertArrayEquals(second, get(0, key, 1, 1).getBody());
+        });
+    }
+
+    @Test
+    void unsupported() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(400, upsert(0, randomId(), randomValue(), 2, 2, "10").getStatus());
+            assertEquals(400, upsert(0, randomId() + "&context=%", randomValue(), 2, 2).getStatus());
+            assertEquals(400, getAll(0, randomId(), 2, 2).getStatus());
+        });
+    }
+
+    private static String context(final Response response) {
+        final String context = response.getHeader("X-Context: ");
+        assertNotNull(context);
+        return context;
+    }
+}
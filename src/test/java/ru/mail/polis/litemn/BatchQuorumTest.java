@@ -0,0 +1,52 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchQuorumTest {
+
+    @Test
+    void newestWins() {
+        BatchQuorum quorum = new BatchQuorum(new int[]{3}, 2);
+        quorum.onResult(0, StorageValue.exists(new byte[]{1}, 1));
+        assertFalse(quorum.getFuture().isDone());
+        quorum.onResult(0, StorageValue.exists(new byte[]{2}, 2));
+        assertTrue(quorum.getFuture().isDone());
+        assertArrayEquals(new byte[]{2}, quorum.getResult(0).getValue());
+    }
+
+    @Test
+    void keysAreIndependent() {
+        BatchQuorum quorum = new BatchQuorum(new int[]{2, 2}, 2);
+        quorum.onResult(0, StorageValue.absent());
+        quorum.onResult(0, StorageValue.removed(5));
+        quorum.onFailure(1);
+        assertTrue(quorum.getFuture().isDone());
+        assertEquals(StorageValue.State.REMOVED, quorum.getResult(0).getState());
+        assertNull(quorum.getResult(1));
+    }
+
+    @Test
+    void absentEverywhere() {
+        BatchQuorum quorum = new BatchQuorum(new int[]{1}, 1);
+        quorum.onResult(0, StorageValue.absent());
+        assertEquals(StorageValue.State.ABSENT, quorum.getResult(0).getState());
+    }
+
+    @Test
+    void writes() {
+        BatchQuorum quorum = new BatchQuorum(new int[]{2, 2}, 2);
+        quorum.onSuccess(0);
+        quorum.onSuccess(1);
+        quorum.onSuccess(0);
+        quorum.onFailure(1);
+        assertTrue(quorum.getFuture().isDone());
+        assertTrue(quorum.isSucceeded(0));
+        assertFalse(quorum.isSucceeded(1));
+    }
+}
@@ -0,0 +1,84 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitTest {
+    private static final int THREADS = 8;
+    private static final int WRITES = 200;
+
+    @Test
+    void concurrentWritesAreGrouped() throws Exception {
+        Path dir = Files.createTempDirectory("group");
+        RocksDBConfig config = RocksDBConfig.defaults().toBuilder()
+                .groupCommitWindowMicros(200)
+                .groupCommitSize(16)
+                .build();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (KVDaoRocksDB dao = new KVDaoRocksDB(dir.toFile(), config)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < WRITES; i++) {
+                        byte[] key = key(thread, i);
+                        if (i % 10 == 9) {
+                            dao.remove(key);
+                        } else {
+                            dao.upsert(key, key);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < WRITES; i++) {
+                    byte[] key = key(t, i);
+                    if (i % 10 == 9) {
+                        assertEquals(StorageValue.State.REMOVED, dao.getInternal(key).getState());
+                    } else {
+                        assertArrayEquals(key, dao.get(key));
+                    }
+                }
+            }
+            StringBuilder metrics = new StringBuilder();
+            dao.appendMetrics(metrics);
+            long groups = metric(metrics, "storage.commit.groups");
+            assertEquals(THREADS * WRITES, metric(metrics, "storage.commit.writes"));
+            assertTrue(groups < THREADS * WRITES, "Groups " + groups);
+        } finally {
+            executor.shutdownNow();
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static byte[] key(int thread, int i) {
+        return ("key" + thread + "_" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long metric(StringBuilder metrics, String name) {
+        return Long.parseLong(metrics.toString().split(name + " ")[1].split("\n")[0]);
+    }
+}
@@ -0,0 +1,52 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HybridClockTest {
+
+    @Test
+    void sameMillisOrdered() {
+        HybridClock clock = new HybridClock();
+        long previous = clock.now();
+        for (int i = 0; i < 10_000; i++) {
+            long time = clock.now();
+            assertTrue(time > previous);
+            previous = time;
+        }
+    }
+
+    @Test
+    void observedTimeAhead() {
+        HybridClock clock = new HybridClock();
+        long ahead = (System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)) << HybridClock.LOGICAL_BITS;
+        clock.observe(ahead);
+        assertTrue(clock.now() > ahead);
+        clock.observe(1);
+        assertTrue(clock.now() > ahead);
+    }
+
+    @Test
+    void skewedTimeIgnored() {
+        HybridClock clock = new HybridClock(TimeUnit.SECONDS.toMillis(10));
+        long skewed = (System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)) << HybridClock.LOGICAL_BITS;
+        clock.observe(skewed);
+        assertTrue(HybridClock.physical(clock.now()) < System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10));
+        long drifted = (System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5)) << HybridClock.LOGICAL_BITS;
+        clock.observe(drifted);
+        assertTrue(clock.now() > drifted);
+    }
+
+    @Test
+    void physical() {
+        long millis = System.currentTimeMillis();
+        assertEquals(millis, HybridClock.physical(millis << HybridClock.LOGICAL_BITS | 42));
+        // records written before the clock keep plain millis
+        assertEquals(millis, HybridClock.physical(millis));
+        assertTrue(HybridClock.physical(new HybridClock().now()) >= millis);
+    }
+}
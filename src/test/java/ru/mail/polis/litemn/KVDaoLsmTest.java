@@ -0,0 +1,185 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KVDaoLsmTest {
+    private static final LsmConfig CONFIG = new LsmConfig.Builder()
+            .memTableSize(256 * 1024)
+            .tombstoneGraceSeconds(0)
+            .build();
+    private Path dir;
+    private KVDaoLsm dao;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("lsm");
+        dao = new KVDaoLsm(dir.toFile(), CONFIG);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        dao.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void survivesReopen() throws IOException {
+        int count = 5_000;
+        for (int i = 0; i < count; i++) {
+            dao.upsert(key(i), value(i));
+        }
+        dao.remove(key(0));
+        dao.close();
+        dao = new KVDaoLsm(dir.toFile(), CONFIG);
+        assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+        assertEquals(StorageValue.State.REMOVED, dao.getInternal(key(0)).getState());
+        for (int i = 1; i < count; i++) {
+            assertArrayEquals(value(i), dao.get(key(i)));
+        }
+    }
+
+    @Test
+    void appliesOnlyNewerRecords() {
+        byte[] key = key(1);
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        assertTrue(dao.upsertRecord(key, KVDaoRocksDB.stamp(KVDaoRocksDB.record(value), 42)));
+        assertTrue(dao.applyNewer(Arrays.asList(key, key(2)),
+                Arrays.asList(KVDaoRocksDB.removed(41), KVDaoRocksDB.removed(41))));
+        StorageValue stored = dao.getInternal(key);
+        assertArrayEquals(value, stored.getValue());
+        assertEquals(42, stored.getTime());
+        assertEquals(StorageValue.State.REMOVED, dao.getInternal(key(2)).getState());
+        assertFalse(dao.upsertRecord(key, new byte[]{1}));
+        assertFalse(dao.applyNewer(Arrays.asList(key), Arrays.asList(KVDaoRocksDB.manifest(43, 1, 0))));
+    }
+
+    @Test
+    void compactionPurgesTombstones() throws IOException {
+        dao.upsert(key(1), value(1));
+        long old = (System.currentTimeMillis() - 1000) << HybridClock.LOGICAL_BITS;
+        assertTrue(dao.removeInternal(key(2), old));
+        dao.compact();
+        assertEquals(StorageValue.State.ABSENT, dao.getInternal(key(2)).getState());
+        assertArrayEquals(value(1), dao.get(key(1)));
+        List<Record> records = new ArrayList<>();
+        try (RecordIterator iterator = dao.range(key(0), null)) {
+            iterator.forEachRemaining(records::add);
+        }
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    void largeValueIsChunked() throws IOException {
+        byte[] key = key(1);
+        byte[] value = new byte[KVDaoRocksDB.CHUNK_SIZE * 2 + 1];
+        ThreadLocalRandom.current().nextBytes(value);
+        ValueWriter writer = dao.openWriter(key, value.length, dao.getClock().now());
+        writer.write(value, 0, 10);
+        writer.write(value, 10, value.length - 10);
+        assertTrue(writer.commit());
+        assertTrue(dao.getInternal(key).isChunked());
+        assertArrayEquals(value, dao.get(key));
+
+        // chunks of the overwritten value stay until its reader is done
+        ValueSource source = dao.openValue(key);
+        assertNotNull(source);
+        byte[] next = new byte[KVDaoRocksDB.CHUNK_SIZE + 1];
+        writer = dao.openWriter(key, next.length, dao.getClock().now());
+        writer.write(next, 0, next.length);
+        assertTrue(writer.commit());
+        byte[] read = new byte[value.length];
+        int offset = 0;
+        for (byte[] piece = source.next(); piece != null; piece = source.next()) {
+            System.arraycopy(piece, 0, read, offset, piece.length);
+            offset += piece.length;
+        }
+        source.close();
+        assertArrayEquals(value, read);
+        assertArrayEquals(next, dao.get(key));
+
+        dao.close();
+        dao = new KVDaoLsm(dir.toFile(), CONFIG);
+        assertArrayEquals(next, dao.get(key));
+        dao.remove(key);
+        assertNull(dao.openValue(key));
+    }
+
+    @Test
+    void replacedChunksAreDeleted() throws IOException {
+        byte[] key = key(1);
+        List<Replace> replaces = Arrays.asList(
+                () -> dao.upsert(key, value(1)),
+                () -> dao.remove(key),
+                () -> assertTrue(dao.upsertRecord(key, KVDaoRocksDB.stamp(KVDaoRocksDB.record(value(1)),
+                        dao.getClock().now()))),
+                () -> assertTrue(dao.removeInternal(key, dao.getClock().now())),
+                () -> assertTrue(dao.applyNewer(Collections.singletonList(key),
+                        Collections.singletonList(KVDaoRocksDB.removed(dao.getClock().now())))),
+                () -> assertTrue(dao.applyInternal(Collections.singletonList(Mutation.upsert(key, value(1))),
+                        dao.getClock().now())));
+        for (Replace replace : replaces) {
+            byte[] value = new byte[KVDaoRocksDB.CHUNK_SIZE * 2 + 1];
+            ValueWriter writer = dao.openWriter(key, value.length, dao.getClock().now());
+            writer.write(value, 0, value.length);
+            assertTrue(writer.commit());
+            // the header chunk and three chunks of data
+            assertEquals(4, dao.chunkCount());
+            replace.run();
+            assertEquals(0, dao.chunkCount());
+        }
+    }
+
+    @Test
+    void hintsSurviveReopen() throws IOException {
+        HintStore hints = dao.getHints();
+        hints.add("host", key(1), KVDaoRocksDB.removed(1));
+        hints.add("host", key(2), KVDaoRocksDB.removed(2));
+        hints.add("other", key(3), KVDaoRocksDB.removed(3));
+        hints.remove("host", hints.oldest("host", 1, Long.MAX_VALUE));
+        dao.close();
+        dao = new KVDaoLsm(dir.toFile(), CONFIG);
+        hints = dao.getHints();
+        assertEquals(1, hints.backlog("host"));
+        List<HintStore.Hint> oldest = hints.oldest("host", 10, Long.MAX_VALUE);
+        assertEquals(1, oldest.size());
+        assertArrayEquals(key(2), oldest.get(0).getKey());
+    }
+
+    private interface Replace {
+        void run() throws IOException;
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key%05d", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] value(int i) {
+        return ("value" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
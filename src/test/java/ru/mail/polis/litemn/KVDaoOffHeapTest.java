@@ -0,0 +1,234 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KVDaoOffHeapTest {
+    private static final long CAPACITY = 4 * 1024 * 1024;
+    private KVDaoOffHeap dao;
+
+    @BeforeEach
+    void setUp() {
+        dao = new KVDaoOffHeap(CAPACITY);
+    }
+
+    @AfterEach
+    void tearDown() {
+        dao.close();
+    }
+
+    @Test
+    void keysSurviveResizeAndRemoval() throws IOException {
+        int count = 10_000;
+        for (int i = 0; i < count; i++) {
+            dao.upsert(key(i), value(i));
+        }
+        for (int i = 0; i < count; i += 2) {
+            dao.remove(key(i));
+        }
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                int k = i;
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(k)));
+                assertEquals(StorageValue.State.REMOVED, dao.getInternal(key(i)).getState());
+            } else {
+                assertArrayEquals(value(i), dao.get(key(i)));
+            }
+        }
+        assertEquals(StorageValue.State.ABSENT, dao.getInternal(key(count)).getState());
+    }
+
+    @Test
+    void evictsOldEntriesToStayWithinCapacity() throws IOException {
+        byte[] value = new byte[1024];
+        int count = (int) (4 * CAPACITY / value.length);
+        for (int i = 0; i < count; i++) {
+            dao.upsert(key(i), value);
+        }
+        StringBuilder metrics = new StringBuilder();
+        dao.appendMetrics(metrics);
+        long used = metric(metrics, "storage.memory.used.bytes");
+        assertTrue(used <= CAPACITY, "Used " + used);
+        assertTrue(metric(metrics, "storage.memory.evicted") > 0);
+        assertArrayEquals(value, dao.get(key(count - 1)));
+        assertThrows(IOException.class, () -> dao.upsert(key(0), new byte[(int) CAPACITY]));
+    }
+
+    @Test
+    void appliesOnlyNewerRecords() {
+        byte[] key = key(1);
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        assertTrue(dao.upsertRecord(key, KVDaoRocksDB.stamp(KVDaoRocksDB.record(value), 42)));
+        assertTrue(dao.applyNewer(Arrays.asList(key, key(2)),
+                Arrays.asList(KVDaoRocksDB.removed(41), KVDaoRocksDB.removed(41))));
+        StorageValue stored = dao.getInternal(key);
+        assertArrayEquals(value, stored.getValue());
+        assertEquals(42, stored.getTime());
+        assertEquals(StorageValue.State.REMOVED, dao.getInternal(key(2)).getState());
+        assertFalse(dao.upsertRecord(key, new byte[]{1}));
+        assertFalse(dao.applyNewer(Arrays.asList(key), Arrays.asList(KVDaoRocksDB.manifest(43, 1, 0))));
+    }
+
+    @Test
+    void batchIsAllOrNothing() {
+        List<Mutation> mutations = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            mutations.add(Mutation.upsert(key(i), value(i)));
+        }
+        assertTrue(dao.applyInternal(mutations, dao.getClock().now()));
+        mutations.add(Mutation.upsert(key(100), new byte[(int) CAPACITY]));
+        assertFalse(dao.applyInternal(mutations, dao.getClock().now()));
+        assertEquals(StorageValue.State.ABSENT, dao.getInternal(key(100)).getState());
+        assertArrayEquals(value(99), dao.getInternal(key(99)).getValue());
+    }
+
+    @Test
+    void largeValueIsStreamed() throws IOException {
+        byte[] key = key(1);
+        byte[] value = new byte[StreamSession.MAX_INLINE_BODY + 1];
+        ThreadLocalRandom.current().nextBytes(value);
+        ValueWriter writer = dao.openWriter(key, value.length, dao.getClock().now());
+        writer.write(value, 0, 10);
+        writer.write(value, 10, value.length - 10);
+        assertTrue(writer.commit());
+
+        assertTrue(dao.getInternal(key).isChunked());
+        assertTrue(StorageValueCodec.decode(dao.getEncoded(key, false)).isDigest());
+        dao.scan((k, record) -> {
+            assertTrue(KVDaoRocksDB.isChunked(record));
+            return true;
+        });
+        ValueSource source = dao.openValue(key);
+        assertNotNull(source);
+        assertEquals(value.length, source.length());
+        byte[] read = new byte[value.length];
+        int offset = 0;
+        for (byte[] piece = source.next(); piece != null; piece = source.next()) {
+            System.arraycopy(piece, 0, read, offset, piece.length);
+            offset += piece.length;
+        }
+        assertArrayEquals(value, read);
+        assertArrayEquals(value, dao.get(key));
+
+        dao.remove(key);
+        assertNull(dao.openValue(key));
+    }
+
+    @Test
+    void rangeIsSorted() {
+        for (int i = 9; i >= 0; i--) {
+            assertTrue(dao.upsertRecord(key(i), KVDaoRocksDB.stamp(KVDaoRocksDB.record(value(i)), i + 1)));
+        }
+        List<Record> records = new ArrayList<>();
+        try (RecordIterator iterator = dao.range(key(2), key(7))) {
+            iterator.forEachRemaining(records::add);
+        }
+        assertEquals(5, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertArrayEquals(key(i + 2), records.get(i).getKey());
+            assertArrayEquals(value(i + 2), records.get(i).getValue().getValue());
+        }
+    }
+
+    @Test
+    void rangeReadsKeysOnce() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            dao.upsert(key(2 * i), value(2 * i));
+        }
+        List<byte[]> keys = new ArrayList<>();
+        try (RecordIterator iterator = dao.range(key(0), null)) {
+            keys.add(iterator.next().getKey());
+            // written after the keys were read
+            dao.upsert(key(5), value(5));
+            dao.remove(key(6));
+            iterator.forEachRemaining(record -> keys.add(record.getKey()));
+        }
+        assertEquals(10, keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertArrayEquals(key(2 * i), keys.get(i));
+        }
+    }
+
+    @Test
+    void rangeSpansSegments() throws IOException {
+        int count = 5_000;
+        for (int i = 0; i < count; i++) {
+            dao.upsert(key(i), value(i));
+        }
+        int expected = 1;
+        try (RecordIterator iterator = dao.range(key(1), key(count - 1))) {
+            while (iterator.hasNext()) {
+                assertArrayEquals(key(expected++), iterator.next().getKey());
+            }
+        }
+        assertEquals(count - 1, expected);
+    }
+
+    @Test
+    void siblingsAreMerged() throws IOException {
+        byte[] key = key(1);
+        byte[] first = dao.updateSiblings(key, new long[0], 0, value(1), 1);
+        KVDaoOffHeap other = new KVDaoOffHeap(CAPACITY);
+        try {
+            byte[] second = other.updateSiblings(key, new long[0], 1, value(2), 2);
+            assertTrue(dao.upsertRecord(key, second));
+            assertTrue(other.applyNewer(Arrays.asList(key), Arrays.asList(first)));
+        } finally {
+            other.close();
+        }
+        assertEquals(2, Siblings.decode(dao.getInternal(key).getValue()).live().size());
+    }
+
+    @Test
+    void hintsAreCappedByBytes() throws IOException {
+        HintStore hints = dao.getHints();
+        byte[] record = KVDaoRocksDB.record(new byte[1024 * 1024]);
+        int count = 64;
+        for (int i = 0; i < count; i++) {
+            hints.add("host", key(i), record);
+        }
+        long backlog = hints.backlog("host");
+        assertTrue(backlog > 0 && backlog < count, "Backlog " + backlog);
+        List<HintStore.Hint> kept = hints.oldest("host", count, Long.MAX_VALUE);
+        assertEquals(backlog, kept.size());
+        assertArrayEquals(key((int) (count - backlog)), kept.get(0).getKey());
+        hints.remove("host", kept);
+        assertEquals(0, hints.backlog("host"));
+        hints.add("other", key(0), record);
+        assertEquals(1, hints.backlog("other"));
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key%05d", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] value(int i) {
+        return ("value" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long metric(CharSequence metrics, String name) {
+        for (String line : metrics.toString().split("\n")) {
+            if (line.startsWith(name + ' ')) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        throw new AssertionError("No metric " + name);
+    }
+}
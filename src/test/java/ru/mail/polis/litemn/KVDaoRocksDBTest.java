@@ -0,0 +1,143 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KVDaoRocksDBTest {
+    private Path dir;
+    private KVDaoRocksDB dao;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("dao");
+        dao = new KVDaoRocksDB(dir.toFile());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        dao.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void valuesOutgrowingReadBuffer() throws IOException {
+        for (int size : new int[]{0, 16, 8 * 1024, 100 * 1024, 16}) {
+            byte[] key = ("key" + size).getBytes(StandardCharsets.UTF_8);
+            byte[] value = new byte[size];
+            ThreadLocalRandom.current().nextBytes(value);
+            dao.upsert(key, value);
+            assertArrayEquals(value, dao.get(key));
+            assertArrayEquals(value, dao.getInternal(key).getValue());
+            StorageValue decoded = StorageValueCodec.decode(dao.getEncoded(key, false));
+            assertArrayEquals(value, decoded.getValue());
+            assertTrue(StorageValueCodec.decode(dao.getEncoded(key, true)).isDigest());
+        }
+    }
+
+    @Test
+    void encodedStates() throws IOException {
+        byte[] key = "removed".getBytes(StandardCharsets.UTF_8);
+        assertEquals(StorageValue.State.ABSENT, StorageValueCodec.state(dao.getEncoded(key, false)));
+        dao.remove(key);
+        assertEquals(StorageValue.State.REMOVED, StorageValueCodec.decode(dao.getEncoded(key, false)).getState());
+    }
+
+    @Test
+    void stampedRecordKeepsTime() throws IOException {
+        byte[] key = "record".getBytes(StandardCharsets.UTF_8);
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        assertTrue(dao.upsertRecord(key, KVDaoRocksDB.stamp(KVDaoRocksDB.record(value), 42)));
+        StorageValue stored = dao.getInternal(key);
+        assertArrayEquals(value, stored.getValue());
+        assertEquals(42, stored.getTime());
+        assertFalse(dao.upsertRecord(key, new byte[]{1}));
+        assertFalse(dao.upsertRecord(key, null));
+    }
+
+    @Test
+    void writesInvalidateCachedReads() throws IOException {
+        byte[] key = "cached".getBytes(StandardCharsets.UTF_8);
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        assertEquals(StorageValue.State.ABSENT, dao.getInternal(key).getState());
+        dao.upsert(key, value);
+        assertArrayEquals(value, dao.get(key));
+        dao.remove(key);
+        assertEquals(StorageValue.State.REMOVED, dao.getInternal(key).getState());
+        assertTrue(dao.applyInternal(Collections.singletonList(Mutation.upsert(key, value))));
+        assertArrayEquals(value, dao.getInternal(key).getValue());
+        assertTrue(dao.removeInternal(key));
+        assertEquals(StorageValue.State.REMOVED, dao.getInternal(key).getState());
+    }
+
+    @Test
+    void sweepPurgesOnlyExpiredTombstones() throws IOException {
+        dao.close();
+        dao = new KVDaoRocksDB(dir.toFile(), RocksDBConfig.defaults().toBuilder()
+                .tombstoneGraceSeconds(0)
+                .tombstoneSweepIntervalSeconds(0)
+                .build());
+        byte[] expired = "expired".getBytes(StandardCharsets.UTF_8);
+        byte[] recent = "recent".getBytes(StandardCharsets.UTF_8);
+        byte[] kept = "kept".getBytes(StandardCharsets.UTF_8);
+        dao.upsert(kept, kept);
+        assertTrue(dao.applyNewer(Arrays.asList(expired, recent), Arrays.asList(
+                KVDaoRocksDB.removed(System.currentTimeMillis() - 1),
+                KVDaoRocksDB.removed(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)))));
+        assertEquals(StorageValue.State.REMOVED, dao.getInternal(expired).getState());
+
+        assertEquals(1, dao.sweepTombstones());
+        assertEquals(StorageValue.State.ABSENT, dao.getInternal(expired).getState());
+        assertEquals(StorageValue.State.REMOVED, dao.getInternal(recent).getState());
+        assertArrayEquals(kept, dao.get(kept));
+        StringBuilder metrics = new StringBuilder();
+        dao.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("storage.tombstones.purged 1\n"));
+    }
+
+    @Test
+    void expiredValueReadsAsRemovedAndIsPurged() throws IOException {
+        dao.close();
+        dao = new KVDaoRocksDB(dir.toFile(), RocksDBConfig.defaults().toBuilder()
+                .tombstoneGraceSeconds(0)
+                .tombstoneSweepIntervalSeconds(0)
+                .build());
+        byte[] expired = "expired".getBytes(StandardCharsets.UTF_8);
+        byte[] live = "live".getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        assertTrue(dao.upsertRecord(expired, KVDaoRocksDB.expiring(expired, 0, expired.length, now - 2, now - 1)));
+        assertTrue(dao.upsertRecord(live, KVDaoRocksDB.expiring(live, 0, live.length, now, now + 60_000)));
+
+        StorageValue removed = dao.getInternal(expired);
+        assertEquals(StorageValue.State.REMOVED, removed.getState());
+        assertEquals(now - 2, removed.getTime());
+        assertThrows(NoSuchElementException.class, () -> dao.get(expired));
+        assertArrayEquals(live, dao.get(live));
+        assertEquals(now + 60_000, dao.getInternal(live).getExpires());
+
+        assertEquals(1, dao.sweepTombstones());
+        assertEquals(StorageValue.State.ABSENT, dao.getInternal(expired).getState());
+        assertArrayEquals(live, dao.get(live));
+    }
+}
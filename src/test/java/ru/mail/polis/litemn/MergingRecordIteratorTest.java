@@ -0,0 +1,73 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MergingRecordIteratorTest {
+
+    @Test
+    void newestWinsAndTombstonesSkipped() {
+        RecordIterator first = of(
+                record("a", StorageValue.exists(new byte[]{1}, 1)),
+                record("b", StorageValue.exists(new byte[]{1}, 1)),
+                record("d", StorageValue.exists(new byte[]{1}, 5)));
+        RecordIterator second = of(
+                record("a", StorageValue.exists(new byte[]{2}, 2)),
+                record("b", StorageValue.removed(2)),
+                record("c", StorageValue.exists(new byte[]{3}, 1)));
+        MergingRecordIterator merged = new MergingRecordIterator(Arrays.asList(first, second));
+        List<String> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        merged.forEachRemaining(r -> {
+            keys.add(new String(r.getKey(), StandardCharsets.UTF_8));
+            values.add(r.getValue().getValue());
+        });
+        assertEquals(Arrays.asList("a", "c", "d"), keys);
+        assertArrayEquals(new byte[]{2}, values.get(0));
+    }
+
+    @Test
+    void unsignedOrder() {
+        RecordIterator first = of(record(new byte[]{1}), record(new byte[]{(byte) 0xFF}));
+        RecordIterator second = of(record(new byte[]{(byte) 0x80}));
+        MergingRecordIterator merged = new MergingRecordIterator(Arrays.asList(first, second));
+        assertArrayEquals(new byte[]{1}, merged.next().getKey());
+        assertArrayEquals(new byte[]{(byte) 0x80}, merged.next().getKey());
+        assertArrayEquals(new byte[]{(byte) 0xFF}, merged.next().getKey());
+    }
+
+    private static Record record(String key, StorageValue value) {
+        return new Record(key.getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    private static Record record(byte[] key) {
+        return new Record(key, StorageValue.exists(new byte[0], 1));
+    }
+
+    private static RecordIterator of(Record... records) {
+        Iterator<Record> iterator = Arrays.asList(records).iterator();
+        return new RecordIterator() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Record next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
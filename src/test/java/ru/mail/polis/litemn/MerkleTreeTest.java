@@ -0,0 +1,63 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MerkleTreeTest {
+    private static final int DEPTH = 8;
+
+    private static byte[] key(int i) {
+        return ("key" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static MerkleTree tree(int keys, long time) {
+        MerkleTree tree = new MerkleTree(DEPTH);
+        for (int i = 0; i < keys; i++) {
+            tree.add(key(i), KVDaoRocksDB.removed(time));
+        }
+        return tree.seal();
+    }
+
+    @Test
+    void sameRecordsInAnyOrder() {
+        MerkleTree reversed = new MerkleTree(DEPTH);
+        for (int i = 99; i >= 0; i--) {
+            reversed.add(key(i), KVDaoRocksDB.removed(1));
+        }
+        MerkleTree tree = tree(100, 1);
+        assertEquals(tree.root(), reversed.seal().root());
+        assertTrue(tree.diff(reversed).isEmpty());
+    }
+
+    @Test
+    void diffFindsChangedBuckets() {
+        MerkleTree tree = tree(100, 1);
+        MerkleTree other = new MerkleTree(DEPTH);
+        for (int i = 0; i < 100; i++) {
+            other.add(key(i), KVDaoRocksDB.removed(i == 42 ? 2 : 1));
+        }
+        other.add(key(100), KVDaoRocksDB.stamp(KVDaoRocksDB.record(new byte[]{7}), 1));
+        assertNotEquals(tree.root(), other.seal().root());
+        BitSet expected = new BitSet();
+        expected.set(MerkleTree.bucket(key(42), DEPTH));
+        expected.set(MerkleTree.bucket(key(100), DEPTH));
+        assertEquals(expected, tree.diff(other));
+    }
+
+    @Test
+    void transferredAsLeaves() {
+        MerkleTree tree = tree(1000, 1);
+        MerkleTree copy = MerkleTree.fromBytes(tree.toBytes());
+        assertEquals(DEPTH, copy.getDepth());
+        assertEquals(tree.root(), copy.root());
+        assertThrows(IllegalArgumentException.class, () -> MerkleTree.fromBytes(new byte[24]));
+        assertThrows(IllegalArgumentException.class, () -> tree.diff(new MerkleTree(DEPTH - 1)));
+    }
+}
@@ -0,0 +1,94 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RocksDBConfigTest {
+
+    @Test
+    void propertiesOverrideProfile() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(RocksDBConfig.PROFILE_PROPERTY, "write-heavy");
+        properties.setProperty("litemn.rocksdb.block.cache.size", "32m");
+        properties.setProperty("litemn.rocksdb.bloom.bits", "0");
+        properties.setProperty("litemn.rocksdb.compression", "none, lz4");
+        RocksDBConfig config = RocksDBConfig.fromProperties(properties);
+        assertEquals("write-heavy", config.getProfile());
+        assertEquals(CompactionStyle.UNIVERSAL, config.getCompaction());
+        assertEquals(32 * 1024 * 1024, config.getBlockCacheSize());
+        assertEquals(0, config.getBloomBitsPerKey());
+        assertEquals(Arrays.asList(CompressionType.NO_COMPRESSION, CompressionType.LZ4_COMPRESSION),
+                config.getCompressionPerLevel());
+    }
+
+    @Test
+    void systemPropertiesOverrideFile() throws IOException {
+        Path file = Files.createTempFile("rocksdb", ".properties");
+        try {
+            Properties stored = new Properties();
+            stored.setProperty(RocksDBConfig.PROFILE_PROPERTY, "scan-heavy");
+            stored.setProperty("litemn.rocksdb.background.jobs", "3");
+            try (OutputStream out = Files.newOutputStream(file)) {
+                stored.store(out, null);
+            }
+            Properties properties = new Properties();
+            properties.setProperty(RocksDBConfig.CONFIG_PROPERTY, file.toString());
+            properties.setProperty("litemn.rocksdb.background.jobs", "5");
+            RocksDBConfig config = RocksDBConfig.fromProperties(properties);
+            assertEquals("scan-heavy", config.getProfile());
+            assertEquals(64 * 1024, config.getBlockSize());
+            assertEquals(5, config.getBackgroundJobs());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void wrongValues() {
+        assertThrows(IllegalArgumentException.class, () -> RocksDBConfig.profile("fast"));
+        Properties properties = new Properties();
+        properties.setProperty("litemn.rocksdb.compaction", "fifo");
+        assertThrows(IllegalArgumentException.class, () -> RocksDBConfig.fromProperties(properties));
+        properties.setProperty("litemn.rocksdb.compaction", "level");
+        properties.setProperty("litemn.rocksdb.write.buffer.count", "0");
+        assertThrows(IllegalArgumentException.class, () -> RocksDBConfig.fromProperties(properties));
+    }
+
+    @Test
+    void presetsOpen() throws IOException {
+        for (RocksDBConfig config : Arrays.asList(RocksDBConfig.pointLookup(), RocksDBConfig.writeHeavy(),
+                RocksDBConfig.scanHeavy(), RocksDBConfig.defaults().toBuilder().blockCacheSize(0).build())) {
+            Path dir = Files.createTempDirectory("config");
+            try {
+                byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+                byte[] value = config.getProfile().getBytes(StandardCharsets.UTF_8);
+                try (KVDaoRocksDB dao = new KVDaoRocksDB(dir.toFile(), config)) {
+                    dao.upsert(key, value);
+                }
+                try (KVDaoRocksDB dao = new KVDaoRocksDB(dir.toFile(), config)) {
+                    assertArrayEquals(value, dao.get(key));
+                }
+            } finally {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowCacheTest {
+    private static final byte[] RECORD = {1, 0, 0, 0, 0, 0, 0, 0, 42, 7};
+
+    private static byte[] key(int i) {
+        return ("key" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void cachesRecordsAndMisses() {
+        RowCache cache = new RowCache(1024 * 1024);
+        byte[] key = key(1);
+        byte[] absent = key(2);
+        assertNull(cache.get(key));
+        cache.put(key, RECORD, RECORD.length, cache.stamp(key));
+        cache.put(absent, RECORD, -1, cache.stamp(absent));
+        assertArrayEquals(RECORD, cache.get(key));
+        assertSame(RowCache.ABSENT, cache.get(absent));
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    void writeDropsRacingRead() {
+        RowCache cache = new RowCache(1024 * 1024);
+        byte[] key = key(1);
+        long stamp = cache.stamp(key);
+        cache.invalidate(key);
+        cache.put(key, RECORD, RECORD.length, stamp);
+        assertNull(cache.get(key));
+        cache.put(key, RECORD, RECORD.length, cache.stamp(key));
+        cache.invalidate(key);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void scanDoesNotFlushHotKeys() {
+        long capacity = 256 * 1024;
+        RowCache cache = new RowCache(capacity);
+        int hot = 100;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < hot; i++) {
+                byte[] key = key(i);
+                if (cache.get(key) == null) {
+                    cache.put(key, RECORD, RECORD.length, cache.stamp(key));
+                }
+            }
+        }
+        for (int i = hot; i < hot + 20_000; i++) {
+            byte[] key = key(i);
+            if (cache.get(key) == null) {
+                cache.put(key, RECORD, RECORD.length, cache.stamp(key));
+            }
+        }
+        int cached = 0;
+        for (int i = 0; i < hot; i++) {
+            if (cache.get(key(i)) != null) {
+                cached++;
+            }
+        }
+        assertTrue(cached > hot * 9 / 10, "Hot keys left " + cached);
+        assertTrue(cache.evictions() > 0);
+        StringBuilder metrics = new StringBuilder();
+        cache.appendMetrics(metrics);
+        long size = Long.parseLong(metrics.toString().split("cache.row.size.bytes ")[1].split("\n")[0]);
+        assertTrue(size <= capacity, "Size " + size);
+    }
+
+    @Test
+    void disabled() {
+        RowCache cache = new RowCache(0);
+        byte[] key = key(1);
+        cache.put(key, RECORD, RECORD.length, cache.stamp(key));
+        assertNull(cache.get(key));
+        StringBuilder metrics = new StringBuilder();
+        cache.appendMetrics(metrics);
+        assertNotNull(metrics.toString());
+    }
+}
@@ -0,0 +1,78 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SiblingsTest {
+    private static final byte[] A = {1};
+    private static final byte[] B = {2};
+    private static final byte[] C = {3};
+
+    @Test
+    void concurrentWritesKept() {
+        Siblings first = Siblings.empty().update(new long[0], 0, A);
+        Siblings second = Siblings.empty().update(new long[0], 1, B);
+        Siblings merged = first.sync(second);
+        assertEquals(2, merged.live().size());
+        assertEquals(merged.live().size(), second.sync(first).live().size());
+        assertEquals(2, merged.sync(first).live().size());
+    }
+
+    @Test
+    void writeWithContextReplaces() {
+        Siblings merged = Siblings.empty().update(new long[0], 0, A)
+                .sync(Siblings.empty().update(new long[0], 1, B));
+        Siblings resolved = merged.update(merged.context(), 1, C);
+        assertEquals(1, resolved.live().size());
+        assertArrayEquals(C, resolved.live().get(0));
+        // a replica which missed the resolution gets it by sync
+        assertEquals(1, Siblings.empty().update(new long[0], 0, A).sync(resolved).live().size());
+    }
+
+    @Test
+    void staleContextKeepsNewerValue() {
+        Siblings first = Siblings.empty().update(new long[0], 0, A);
+        long[] context = first.context();
+        Siblings second = first.update(context, 0, B);
+        Siblings third = second.update(context, 0, C);
+        List<byte[]> live = third.live();
+        assertEquals(2, live.size());
+        assertArrayEquals(C, live.get(0));
+        assertArrayEquals(B, live.get(1));
+    }
+
+    @Test
+    void removal() throws IOException {
+        Siblings written = Siblings.empty().update(new long[0], 0, A);
+        Siblings removed = written.update(written.context(), 0, null);
+        assertTrue(removed.live().isEmpty());
+        assertEquals(1, Siblings.decode(removed.encode()).values().size());
+    }
+
+    @Test
+    void encoding() throws IOException {
+        Siblings merged = Siblings.empty().update(new long[0], 0, A)
+                .sync(Siblings.empty().update(new long[0], 2, new byte[300]));
+        Siblings decoded = Siblings.decode(merged.encode());
+        assertArrayEquals(merged.context(), decoded.context());
+        assertEquals(2, decoded.live().size());
+        assertArrayEquals(merged.context(), Siblings.decodeContext(Siblings.encodeContext(merged.context())));
+        // a single value costs a few bytes over the timestamp header
+        assertEquals(A.length + 4, Siblings.empty().update(new long[0], 0, A).encode().length);
+    }
+
+    @Test
+    void malformed() {
+        byte[] encoded = Siblings.empty().update(new long[0], 0, new byte[10]).encode();
+        assertThrows(IOException.class, () -> Siblings.decode(Arrays.copyOf(encoded, encoded.length - 1)));
+        assertThrows(IOException.class, () -> Siblings.decode(new byte[]{(byte) 0xFF}));
+    }
+}
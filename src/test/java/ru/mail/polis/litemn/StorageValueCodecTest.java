@@ -0,0 +1,72 @@
+package ru.mail.polis.litemn;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StorageValueCodecTest {
+
+    @Test
+    void exists() throws IOException {
+        byte[] payload = {1, 2, 3};
+        StorageValue value = StorageValueCodec.decode(StorageValueCodec.encode(StorageValue.exists(payload, 42)));
+        assertEquals(StorageValue.State.EXISTS, value.getState());
+        assertEquals(42, value.getTime());
+        assertArrayEquals(payload, value.getValue());
+    }
+
+    @Test
+    void empty() throws IOException {
+        StorageValue value = StorageValueCodec.decode(StorageValueCodec.encode(StorageValue.exists(new byte[0], 1)));
+        assertArrayEquals(new byte[0], value.getValue());
+    }
+
+    @Test
+    void expiring() throws IOException {
+        byte[] payload = {1, 2, 3};
+        StorageValue value = StorageValueCodec.decode(
+                StorageValueCodec.encode(StorageValue.exists(payload, 42, 1042)));
+        assertEquals(42, value.getTime());
+        assertEquals(1042, value.getExpires());
+        assertArrayEquals(payload, value.getValue());
+        assertEquals(StorageValue.NEVER,
+                StorageValueCodec.decode(StorageValueCodec.encode(StorageValue.exists(payload, 42))).getExpires());
+    }
+
+    @Test
+    void digest() throws IOException {
+        StorageValue value = StorageValueCodec.decode(
+                StorageValueCodec.encode(StorageValue.exists(new byte[]{1}, 7).digest()));
+        assertTrue(value.isDigest());
+        assertEquals(7, value.getTime());
+    }
+
+    @Test
+    void removedAndAbsent() throws IOException {
+        StorageValue removed = StorageValueCodec.decode(StorageValueCodec.encode(StorageValue.removed(3)));
+        assertEquals(StorageValue.State.REMOVED, removed.getState());
+        assertEquals(3, removed.getTime());
+        StorageValue absent = StorageValueCodec.decode(StorageValueCodec.encode(StorageValue.absent()));
+        assertEquals(StorageValue.State.ABSENT, absent.getState());
+    }
+
+    @Test
+    void wrongVersion() {
+        byte[] bytes = StorageValueCodec.encode(StorageValue.removed(3));
+        bytes[0] = StorageValueCodec.EXPIRING_VERSION + 1;
+        assertThrows(IOException.class, () -> StorageValueCodec.decode(bytes));
+    }
+
+    @Test
+    void truncated() {
+        byte[] bytes = StorageValueCodec.encode(StorageValue.exists(new byte[]{1, 2}, 1));
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertThrows(IOException.class, () -> StorageValueCodec.decode(truncated));
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis.litemn.command;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgedCommandProcessorTest {
+    private static final long DELAY_MICROS = TimeUnit.MILLISECONDS.toMicros(20);
+
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+    private CommandProcessor<String> processor;
+
+    @BeforeEach
+    void beforeEach() {
+        executor = Executors.newCachedThreadPool();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        processor = CommandProcessorFactory.newHedgedCommandProcessor(executor, scheduler, DELAY_MICROS);
+    }
+
+    @AfterEach
+    void afterEach() {
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void onlyAckCommandsWhenFast() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        List<String> result = processor.process(Arrays.asList(
+                new Fixed(started, 0, "ok"), new Fixed(started, 0, "ok"), new Fixed(started, 0, "ok")),
+                "ok"::equals, 2).get(5, TimeUnit.SECONDS);
+        assertEquals(2, result.size());
+        Thread.sleep(TimeUnit.MICROSECONDS.toMillis(DELAY_MICROS) * 3);
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    void hedgeSlowReplica() throws Exception {
+        AtomicInteger started = new AtomicInteger();
+        long begin = System.nanoTime();
+        List<String> result = processor.process(Arrays.asList(
+                new Fixed(started, TimeUnit.SECONDS.toMillis(10), "ok"), new Fixed(started, 0, "ok")),
+                "ok"::equals, 1).get(5, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("ok"), result);
+        assertEquals(2, started.get());
+        assertTrue(System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    void replaceFailedReplica() throws Exception {
+        List<String> result = processor.process(Arrays.asList(
+                () -> "error", () -> "ok", () -> "ok"),
+                "ok"::equals, 2).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("ok", "ok"), result);
+    }
+
+    @Test
+    void notEnoughReplicas() throws Exception {
+        List<String> result = processor.process(Arrays.asList(
+                () -> "error", () -> "ok", () -> "error"),
+                "ok"::equals, 2).get(5, TimeUnit.SECONDS);
+        assertTrue(result.size() < 2);
+    }
+
+    private static class Fixed extends Command<String> {
+        private final AtomicInteger started;
+        private final long sleepMillis;
+        private final String value;
+
+        Fixed(AtomicInteger started, long sleepMillis, String value) {
+            super(new Peer("test", null, new PeerStats(95), 1000), "id");
+            this.started = started;
+            this.sleepMillis = sleepMillis;
+            this.value = value;
+        }
+
+        @Override
+        String execute() {
+            started.incrementAndGet();
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return value;
+        }
+
+        @Override
+        String failed() {
+            return "error";
+        }
+    }
+}
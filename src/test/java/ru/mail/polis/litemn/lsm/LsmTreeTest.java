@@ -0,0 +1,296 @@
+package ru.mail.polis.litemn.lsm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LsmTreeTest {
+    private static final long MEMTABLE_SIZE = 64 * 1024;
+    private File dir;
+    private LsmTree tree;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("lsm").toFile();
+        tree = open(record -> false);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        tree.close();
+        delete(dir);
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private LsmTree open(Predicate<byte[]> purgeable) throws IOException {
+        return new LsmTree(dir, MEMTABLE_SIZE, 4, false, purgeable);
+    }
+
+    @Test
+    void readsThroughFlushesAndCompactions() throws IOException {
+        int count = 20_000;
+        for (int i = 0; i < count; i++) {
+            tree.put(key(i), value(i));
+        }
+        for (int i = 0; i < count; i += 3) {
+            tree.delete(key(i));
+        }
+        tree.flush();
+        assertTrue(tables() > 1);
+        assertTrue(metric("test.flushes") > 0);
+        for (int i = 0; i < count; i++) {
+            if (i % 3 == 0) {
+                assertNull(tree.get(key(i)));
+            } else {
+                assertArrayEquals(value(i), tree.get(key(i)));
+            }
+        }
+        tree.compact();
+        assertEquals(1, tables());
+        assertEquals(count - (count + 2) / 3, size(tree.range(new byte[0], null)));
+        assertArrayEquals(value(count - 1), tree.get(key(count - 1)));
+        assertNull(tree.get(key(count)));
+    }
+
+    @Test
+    void recoversFromLog() throws IOException {
+        tree.put(key(1), value(1));
+        tree.put(key(2), value(2));
+        tree.delete(key(1));
+        File copy = Files.createTempDirectory("lsm").toFile();
+        try {
+            // the log as a crash leaves it, the close would flush it
+            for (File file : dir.listFiles()) {
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+            }
+            try (LsmTree recovered = new LsmTree(copy, MEMTABLE_SIZE, 4, false, record -> false)) {
+                assertNull(recovered.get(key(1)));
+                assertArrayEquals(value(2), recovered.get(key(2)));
+            }
+        } finally {
+            delete(copy);
+        }
+    }
+
+    @Test
+    void stopsReplayAtTornRecord() throws IOException {
+        tree.put(key(1), value(1));
+        tree.put(key(2), value(2));
+        File copy = Files.createTempDirectory("lsm").toFile();
+        try {
+            for (File file : dir.listFiles()) {
+                File target = new File(copy, file.getName());
+                Files.copy(file.toPath(), target.toPath());
+                if (file.getName().endsWith(".wal") && file.length() > 0) {
+                    try (RandomAccessFile log = new RandomAccessFile(target, "rw")) {
+                        log.setLength(file.length() - 1);
+                    }
+                }
+            }
+            try (LsmTree recovered = new LsmTree(copy, MEMTABLE_SIZE, 4, false, record -> false)) {
+                assertArrayEquals(value(1), recovered.get(key(1)));
+                assertNull(recovered.get(key(2)));
+            }
+        } finally {
+            delete(copy);
+        }
+    }
+
+    @Test
+    void concurrentWritesReplayToSameState() throws Exception {
+        int keys = 16;
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int writer = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 1_000; i++) {
+                    try {
+                        tree.put(key(i % keys), value(writer * 1_000 + i));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        File copy = Files.createTempDirectory("lsm").toFile();
+        try {
+            for (File file : dir.listFiles()) {
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+            }
+            try (LsmTree recovered = new LsmTree(copy, MEMTABLE_SIZE, 4, false, record -> false)) {
+                for (int i = 0; i < keys; i++) {
+                    assertArrayEquals(tree.get(key(i)), recovered.get(key(i)));
+                }
+            }
+        } finally {
+            delete(copy);
+        }
+    }
+
+    @Test
+    void persistsOnClose() throws IOException {
+        tree.apply(Arrays.asList(key(1), key(2)), Arrays.asList(value(1), value(2)));
+        tree.close();
+        String[] logs = dir.list((d, name) -> name.endsWith(".wal"));
+        assertEquals(0, logs == null ? -1 : logs.length);
+        tree = open(record -> false);
+        assertArrayEquals(value(1), tree.get(key(1)));
+        assertArrayEquals(value(2), tree.get(key(2)));
+    }
+
+    @Test
+    void rangeMergesNewestFirst() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            tree.put(key(i), value(i));
+        }
+        tree.flush();
+        tree.put(key(3), value(33));
+        tree.delete(key(4));
+        tree.flush();
+        tree.put(key(5), value(55));
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+        tree.range(key(2), key(7)).forEachRemaining(entries::add);
+        assertEquals(4, entries.size());
+        assertArrayEquals(key(2), entries.get(0).getKey());
+        assertArrayEquals(value(33), entries.get(1).getValue());
+        assertArrayEquals(key(5), entries.get(2).getKey());
+        assertArrayEquals(value(55), entries.get(2).getValue());
+        assertArrayEquals(key(6), entries.get(3).getKey());
+    }
+
+    @Test
+    void compactionDropsPurgeableValues() throws IOException {
+        byte[] purgeable = {0};
+        tree.close();
+        tree = open(record -> record.length == 1 && record[0] == 0);
+        tree.put(key(1), purgeable);
+        tree.put(key(2), value(2));
+        tree.flush();
+        // only compaction drops values
+        assertArrayEquals(purgeable, tree.get(key(1)));
+        tree.compact();
+        assertNull(tree.get(key(1)));
+        assertArrayEquals(value(2), tree.get(key(2)));
+    }
+
+    @Test
+    void dropsTablesCoveredByCompaction() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            tree.put(key(i), value(i));
+            tree.flush();
+        }
+        File[] tables = dir.listFiles((d, name) -> name.endsWith(SSTable.SUFFIX));
+        assertEquals(3, tables.length);
+        Arrays.sort(tables);
+        // copies of the merged tables as a crash before their deletion leaves them
+        List<byte[]> merged = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            merged.add(Files.readAllBytes(tables[i].toPath()));
+        }
+        tree.compact();
+        tree.close();
+        for (int i = 0; i < 2; i++) {
+            Files.write(tables[i].toPath(), merged.get(i));
+        }
+        tree = open(record -> false);
+        assertFalse(tables[0].exists());
+        assertFalse(tables[1].exists());
+        assertEquals(1, tables());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(value(i), tree.get(key(i)));
+        }
+    }
+
+    @Test
+    void compactionKeepsTablesWithinLimit() throws IOException {
+        long limit = 4 * MEMTABLE_SIZE;
+        tree.close();
+        tree = new LsmTree(dir, MEMTABLE_SIZE, 4, false, record -> false, limit);
+        int count = 20_000;
+        for (int i = 0; i < count; i++) {
+            tree.put(key(i), value(i));
+        }
+        tree.compact();
+        assertTrue(tables() > 1);
+        for (File table : dir.listFiles((d, name) -> name.endsWith(SSTable.SUFFIX))) {
+            assertTrue(table.length() <= limit);
+        }
+        tree.close();
+        tree = new LsmTree(dir, MEMTABLE_SIZE, 4, false, record -> false, limit);
+        assertEquals(count, size(tree.range(new byte[0], null)));
+    }
+
+    @Test
+    void rejectsTableBeyondLimit() {
+        List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            cells.add(new Cell(key(i), value(i)));
+        }
+        assertThrows(IOException.class,
+                () -> SSTable.write(dir, 1, 1, cells.iterator(), cells.size(), cell -> false, 1024));
+        assertEquals(0, dir.list((d, name) -> name.contains(SSTable.SUFFIX)).length);
+    }
+
+    private int tables() {
+        return (int) metric("test.tables");
+    }
+
+    private long metric(String name) {
+        StringBuilder metrics = new StringBuilder();
+        tree.appendMetrics(metrics, "test");
+        for (String line : metrics.toString().split("\n")) {
+            if (line.startsWith(name + ' ')) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        throw new AssertionError("No metric " + name);
+    }
+
+    private static int size(Iterator<?> iterator) {
+        int size = 0;
+        for (; iterator.hasNext(); iterator.next()) {
+            size++;
+        }
+        return size;
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key%06d", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] value(int i) {
+        return ("value" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
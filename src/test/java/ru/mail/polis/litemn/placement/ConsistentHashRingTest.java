@@ -0,0 +1,66 @@
+package ru.mail.polis.litemn.placement;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsistentHashRingTest {
+    private static final List<String> NODES = Arrays.asList(
+            "http://localhost:8080", "http://localhost:8081", "http://localhost:8082", "http://localhost:8083");
+    private static final int KEYS = 10_000;
+
+    @Test
+    void smallerFromIsPrefix() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, ConsistentHashRing.DEFAULT_VNODES);
+        for (int i = 0; i < KEYS; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            List<String> all = ring.replicas(key, NODES.size());
+            assertEquals(NODES.size(), new HashSet<>(all).size());
+            for (int from = 1; from < NODES.size(); from++) {
+                assertEquals(all.subList(0, from), ring.replicas(key, from));
+            }
+        }
+    }
+
+    @Test
+    void deterministic() {
+        ConsistentHashRing ring1 = new ConsistentHashRing(NODES, ConsistentHashRing.DEFAULT_VNODES);
+        ConsistentHashRing ring2 = new ConsistentHashRing(
+                Arrays.asList(NODES.get(3), NODES.get(1), NODES.get(0), NODES.get(2)),
+                ConsistentHashRing.DEFAULT_VNODES);
+        for (int i = 0; i < KEYS; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            assertEquals(ring1.replicas(key, 2), ring2.replicas(key, 2));
+        }
+    }
+
+    @Test
+    void balanced() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, ConsistentHashRing.DEFAULT_VNODES);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            owned.merge(ring.replicas(key, 1).get(0), 1, Integer::sum);
+        }
+        int expected = KEYS / NODES.size();
+        for (String node : NODES) {
+            int count = owned.getOrDefault(node, 0);
+            assertTrue(Math.abs(count - expected) < expected / 4, node + " owns " + count);
+        }
+    }
+
+    @Test
+    void tooManyReplicas() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, ConsistentHashRing.DEFAULT_VNODES);
+        assertThrows(IllegalArgumentException.class, () -> ring.replicas(new byte[]{1}, NODES.size() + 1));
+    }
+}
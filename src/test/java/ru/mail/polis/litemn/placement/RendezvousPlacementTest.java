@@ -0,0 +1,67 @@
+package ru.mail.polis.litemn.placement;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RendezvousPlacementTest {
+    private static final List<String> NODES = Arrays.asList(
+            "http://localhost:8080", "http://localhost:8081", "http://localhost:8082", "http://localhost:8083");
+    private static final int KEYS = 10_000;
+
+    @Test
+    void smallerFromIsPrefix() {
+        RendezvousPlacement placement = new RendezvousPlacement(NODES);
+        for (int i = 0; i < KEYS; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            List<String> all = placement.replicas(key, NODES.size());
+            for (int from = 1; from < NODES.size(); from++) {
+                assertEquals(all.subList(0, from), placement.replicas(key, from));
+            }
+        }
+    }
+
+    @Test
+    void onlyLeavingNodeKeysMove() {
+        RendezvousPlacement full = new RendezvousPlacement(NODES);
+        List<String> rest = new ArrayList<>(NODES);
+        String leaving = rest.remove(1);
+        RendezvousPlacement shrunk = new RendezvousPlacement(rest);
+        for (int i = 0; i < KEYS; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            String owner = full.replicas(key, 1).get(0);
+            if (!owner.equals(leaving)) {
+                assertEquals(owner, shrunk.replicas(key, 1).get(0));
+            }
+        }
+    }
+
+    @Test
+    void proportionalToWeight() {
+        Map<String, Double> weights = new HashMap<>();
+        weights.put(NODES.get(0), 3.0);
+        RendezvousPlacement placement = new RendezvousPlacement(NODES, weights);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(placement.replicas(("key" + i).getBytes(StandardCharsets.UTF_8), 1).get(0), 1, Integer::sum);
+        }
+        double heavy = owned.get(NODES.get(0));
+        double light = owned.get(NODES.get(1));
+        assertTrue(heavy / light > 2.5 && heavy / light < 3.5, "ratio " + heavy / light);
+    }
+
+    @Test
+    void parseWeights() {
+        Map<String, Double> weights = PlacementStrategyFactory.parseWeights("http://a:1=2, http://b:2=0.5");
+        assertEquals(2.0, (double) weights.get("http://a:1"));
+        assertEquals(0.5, (double) weights.get("http://b:2"));
+    }
+}